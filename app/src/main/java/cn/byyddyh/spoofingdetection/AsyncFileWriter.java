@@ -0,0 +1,420 @@
+package cn.byyddyh.spoofingdetection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Double buffered log file writer. Callers append complete records into a preallocated front
+ * buffer and return without touching the disk; a dedicated I/O thread swaps the buffers and writes
+ * everything collected since the last swap with one {@link FileChannel#write} (group commit). The
+ * buffers are swapped every {@code flushIntervalMillis} or as soon as {@code flushBytes} are
+ * pending.
+ *
+ * <p>When the front buffer is full because the disk falls behind, the {@link OverflowPolicy}
+ * decides whether the record is dropped at once or the caller waits a bounded time for the I/O
+ * thread. Dropped records are counted and a comment line with the number of lost records is
+ * written at the position of the gap, so the loss stays bounded and visible in the file.
+ *
+ * <p>The class does not depend on Android.
+ */
+public class AsyncFileWriter implements Closeable {
+
+    /** What {@link #appendLine} and {@link #append} do when the front buffer is full */
+    public enum OverflowPolicy {
+        /** Drop the record without waiting, for real time callers such as sensor callbacks */
+        DROP,
+        /** Wait up to {@code maxBlockMillis} for the I/O thread, then drop */
+        BLOCK
+    }
+
+    public static final int DEFAULT_BUFFER_BYTES = 512 * 1024;
+    public static final int DEFAULT_FLUSH_BYTES = 64 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 500;
+
+    private static final byte NEW_LINE = '\n';
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    /** Signalled by callers when the I/O thread has work */
+    private final Condition mWorkAvailable = mLock.newCondition();
+    /** Signalled by the I/O thread after each swap and write */
+    private final Condition mSwapped = mLock.newCondition();
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final int mFlushBytes;
+    private final long mFlushIntervalNanos;
+    private final OverflowPolicy mOverflowPolicy;
+    private final long mMaxBlockNanos;
+    private final Thread mThread;
+
+    /* Guarded by mLock */
+    private ByteBuffer mFront;
+    private ByteBuffer mBack;
+    private boolean mWriting = false;
+    private boolean mFlushRequested = false;
+    private boolean mClosed = false;
+    private long mPendingDroppedRecords = 0;
+    private long mFlushGeneration = 0;
+
+    /* Counters, written under mLock or by the I/O thread only */
+    private volatile long mRecords = 0;
+    private volatile long mBytesAppended = 0;
+    private volatile long mDroppedRecords = 0;
+    private volatile long mDroppedBytes = 0;
+    private volatile long mBytesWritten = 0;
+    private volatile long mWrites = 0;
+    private volatile IOException mLastError;
+    private volatile boolean mDropNotes = true;
+
+    public AsyncFileWriter(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_BYTES, DEFAULT_FLUSH_BYTES, DEFAULT_FLUSH_INTERVAL_MILLIS,
+                OverflowPolicy.DROP, 0);
+    }
+
+    /**
+     * @param bufferBytes         capacity of each of the two buffers, the largest record that fits
+     * @param flushBytes          pending bytes that wake the I/O thread before the interval ends
+     * @param flushIntervalMillis longest time a record stays in memory
+     * @param maxBlockMillis      bounded wait of {@link OverflowPolicy#BLOCK}
+     */
+    public AsyncFileWriter(File file, int bufferBytes, int flushBytes, long flushIntervalMillis,
+                           OverflowPolicy overflowPolicy, long maxBlockMillis) throws IOException {
+        mStream = new FileOutputStream(file);
+        mChannel = mStream.getChannel();
+        mFront = ByteBuffer.allocate(bufferBytes);
+        mBack = ByteBuffer.allocate(bufferBytes);
+        mFlushBytes = Math.min(flushBytes, bufferBytes);
+        mFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        mOverflowPolicy = overflowPolicy;
+        mMaxBlockNanos = TimeUnit.MILLISECONDS.toNanos(maxBlockMillis);
+        mThread = new Thread(this::run, "AsyncFileWriter-" + file.getName());
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.NORM_PRIORITY - 1);
+        mThread.start();
+    }
+
+    /**
+     * Disables the comment line written at each gap, for binary files
+     */
+    public void setDropNotes(boolean enabled) {
+        mDropNotes = enabled;
+    }
+
+    /**
+     * Appends {@code record} followed by a line break. Characters outside ASCII are encoded as
+     * UTF-8 by code point, a surrogate without its pair as {@code '?'}.
+     *
+     * @return {@code false} if the record was dropped
+     */
+    public boolean appendLine(CharSequence record) {
+        int length = record.length();
+        int bytes = encodedLength(record, length) + 1;
+        mLock.lock();
+        try {
+            if (!reserve(bytes)) {
+                return false;
+            }
+            ByteBuffer front = mFront;
+            for (int i = 0; i < length; ) {
+                char c = record.charAt(i);
+                if (c < 0x80) {
+                    front.put((byte) c);
+                    i++;
+                } else {
+                    int codePoint = Character.codePointAt(record, i);
+                    putUtf8(front, codePoint);
+                    i += Character.charCount(codePoint);
+                }
+            }
+            front.put(NEW_LINE);
+            committed(bytes);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Appends {@code length} bytes of {@code record}, which must already contain its line break
+     *
+     * @return {@code false} if the record was dropped
+     */
+    public boolean append(byte[] record, int offset, int length) {
+        mLock.lock();
+        try {
+            if (!reserve(length)) {
+                return false;
+            }
+            mFront.put(record, offset, length);
+            committed(length);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Makes room for {@code bytes} in the front buffer according to the overflow policy, called
+     * with {@link #mLock} held
+     */
+    private boolean reserve(int bytes) {
+        if (mClosed) {
+            mDroppedRecords++;
+            mDroppedBytes += bytes;
+            return false;
+        }
+        if (bytes > mFront.remaining() && mOverflowPolicy == OverflowPolicy.BLOCK
+                && bytes <= mFront.capacity()) {
+            long deadline = System.nanoTime() + mMaxBlockNanos;
+            mFlushRequested = true;
+            mWorkAvailable.signal();
+            while (bytes > mFront.remaining() && !mClosed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    mSwapped.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if (mClosed || bytes > mFront.remaining()) {
+            mDroppedRecords++;
+            mDroppedBytes += bytes;
+            mPendingDroppedRecords++;
+            return false;
+        }
+        return true;
+    }
+
+    /** Counts an appended record and wakes the I/O thread once enough bytes are pending */
+    private void committed(int bytes) {
+        mRecords++;
+        mBytesAppended += bytes;
+        if (mFront.position() >= mFlushBytes && !mWriting) {
+            mWorkAvailable.signal();
+        }
+    }
+
+    /**
+     * Waits until everything appended before the call has been handed to the file
+     */
+    public void flush() throws InterruptedIOException {
+        mLock.lock();
+        try {
+            long target = mFlushGeneration + (mWriting ? 1 : 0) + (mFront.position() > 0 ? 1 : 0);
+            mFlushRequested = true;
+            mWorkAvailable.signal();
+            while (mFlushGeneration < target && !mClosed) {
+                try {
+                    mSwapped.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending records and closes the file. Records appended afterwards are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mWorkAvailable.signal();
+            mSwapped.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mStream.close();
+        if (mLastError != null) {
+            throw mLastError;
+        }
+    }
+
+    private void run() {
+        while (true) {
+            ByteBuffer pending;
+            long dropped;
+            boolean closing;
+            mLock.lock();
+            try {
+                long remaining = mFlushIntervalNanos;
+                while (!mClosed && !mFlushRequested && mFront.position() < mFlushBytes
+                        && remaining > 0) {
+                    try {
+                        remaining = mWorkAvailable.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        mClosed = true;
+                    }
+                }
+                // Swap: callers continue in the empty buffer while this thread writes the full one
+                pending = mFront;
+                mFront = mBack;
+                mBack = pending;
+                dropped = mPendingDroppedRecords;
+                mPendingDroppedRecords = 0;
+                mFlushRequested = false;
+                mWriting = true;
+                closing = mClosed;
+                mSwapped.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+
+            pending.flip();
+            write(pending, dropped);
+            pending.clear();
+
+            mLock.lock();
+            try {
+                mWriting = false;
+                mFlushGeneration++;
+                mSwapped.signalAll();
+                if (closing && mFront.position() == 0) {
+                    return;
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes one swapped buffer. Records are only dropped while the front buffer is full, so the gap
+     * note follows the records of the buffer.
+     */
+    private void write(ByteBuffer pending, long dropped) {
+        try {
+            if (pending.hasRemaining()) {
+                writeFully(pending);
+                mWrites++;
+            }
+            if (dropped > 0 && mDropNotes) {
+                byte[] note = ("# Dropped " + dropped + " records\n").getBytes(StandardCharsets.US_ASCII);
+                writeFully(ByteBuffer.wrap(note));
+            }
+        } catch (IOException e) {
+            mLastError = e;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mBytesWritten += mChannel.write(buffer);
+        }
+    }
+
+    private static int encodedLength(CharSequence record, int length) {
+        int bytes = 0;
+        for (int i = 0; i < length; ) {
+            char c = record.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+                i++;
+            } else {
+                int codePoint = Character.codePointAt(record, i);
+                bytes += utf8Length(codePoint);
+                i += Character.charCount(codePoint);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * UTF-8 length of {@code codePoint}, 1 for a lone surrogate written as {@code '?'} like
+     * {@link String#getBytes}
+     */
+    private static int utf8Length(int codePoint) {
+        if (codePoint < 0x80) {
+            return 1;
+        } else if (codePoint < 0x800) {
+            return 2;
+        } else if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+            return 1;
+        } else if (codePoint < 0x10000) {
+            return 3;
+        }
+        return 4;
+    }
+
+    private static void putUtf8(ByteBuffer buffer, int codePoint) {
+        switch (utf8Length(codePoint)) {
+            case 1:
+                buffer.put(codePoint < 0x80 ? (byte) codePoint : (byte) '?');
+                break;
+            case 2:
+                buffer.put((byte) (0xC0 | (codePoint >> 6)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                break;
+            case 3:
+                buffer.put((byte) (0xE0 | (codePoint >> 12)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                break;
+            default:
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                break;
+        }
+    }
+
+    /** Records accepted so far */
+    public long getRecords() {
+        return mRecords;
+    }
+
+    /** Records lost to a full buffer or appended after {@link #close()} */
+    public long getDroppedRecords() {
+        return mDroppedRecords;
+    }
+
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /** Bytes of the accepted records, including those not written yet */
+    public long getBytesAppended() {
+        return mBytesAppended;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** Number of group commits, each one {@link FileChannel#write} of a swapped buffer */
+    public long getWrites() {
+        return mWrites;
+    }
+
+    /** Last error of the I/O thread, {@code null} while the file is healthy */
+    public IOException getLastError() {
+        return mLastError;
+    }
+}
@@ -11,40 +11,77 @@ import android.location.Location;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.core.content.FileProvider;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 
+import cn.byyddyh.spoofingdetection.gnsslog.BinaryLogFormat;
+import cn.byyddyh.spoofingdetection.gnsslog.BinaryLogWriter;
+import cn.byyddyh.spoofingdetection.gnsslog.GnssLogText;
+import cn.byyddyh.spoofingdetection.gnsslog.LogSegmentCompressor;
+import cn.byyddyh.spoofingdetection.gnsslog.LogSegmentIndex;
+import cn.byyddyh.spoofingdetection.gnsslog.RawRecord;
+
 public class FileLogger {
 
     private static final String TAG = "FileLogger";
     private static final String FILE_PREFIX = "gnss_log";
-    private static final String ERROR_WRITING_FILE = "Problem writing to file.";
-    private static final String COMMENT_START = "# ";
-    private static final char RECORD_DELIMITER = ',';
     private static final String VERSION_TAG = "Version: 1.4.0.0, Platform: HUAWEI MATE30";
 
     private static final int MAX_FILES_STORED = 100;
     private static final int MINIMUM_USABLE_FILE_SIZE_BYTES = 1000;
+    /* A segment is closed at whichever limit comes first */
+    private static final long DEFAULT_MAX_SEGMENT_BYTES = 32L * 1024 * 1024;
+    private static final long DEFAULT_MAX_SEGMENT_MILLIS = 60L * 60 * 1000;
 
     private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     private final Object mFileLock = new Object();
-    private BufferedWriter mFileWriter;
+    /** Records are formatted on the caller's thread and written by the writer's I/O thread */
+    private AsyncFileWriter mFileWriter;
+    /** Current segment of the session */
     private File mFile;
+    /** Set while the current file is a binary log, see {@link BinaryLogFormat} */
+    private BinaryLogWriter mBinaryWriter;
+    private volatile boolean mBinaryFormat = false;
+    /* Reused for every record, guarded by mFileLock */
+    private final LogRecordEncoder mEncoder = new LogRecordEncoder();
+    private final RawRecord mRawRecord = new RawRecord();
+    private double[] mValues = new double[64];
+
+    /* Segments of the current session, guarded by mFileLock */
+    private File mBaseDirectory;
+    private String mSessionName;
+    private boolean mSessionBinary;
+    private LogSegmentIndex mIndex;
+    private LogSegmentIndex.Segment mSegment;
+    private int mSegmentNumber;
+    private long mSegmentStartMillis;
+    private long mLastRecordMillis;
+    /* Next segment, opened ahead on the compressor thread so a rotation only swaps writers */
+    private File mNextFile;
+    private AsyncFileWriter mNextFileWriter;
+    private boolean mNextSegmentPending;
+    /** Also closes segments and saves the index, off the threads that log */
+    private final LogSegmentCompressor mCompressor = new LogSegmentCompressor();
+    private volatile long mMaxSegmentBytes = DEFAULT_MAX_SEGMENT_BYTES;
+    private volatile long mMaxSegmentMillis = DEFAULT_MAX_SEGMENT_MILLIS;
 
     public static final String MeasurementProviderTAG = "MeasurementProvider";
 
@@ -62,6 +99,37 @@ public class FileLogger {
         this.mContext = context;
     }
 
+    /**
+     * Selects the format of the logs started afterwards: GnssLogger text or the binary format
+     * read by {@link cn.byyddyh.spoofingdetection.gnsslog.BinaryLogReader}
+     */
+    public void setBinaryFormat(boolean binaryFormat) {
+        mBinaryFormat = binaryFormat;
+    }
+
+    public boolean isBinaryFormat() {
+        return mBinaryFormat;
+    }
+
+    /**
+     * Limits of a log segment: once the current segment holds {@code maxSegmentBytes} or has been
+     * open for {@code maxSegmentMillis} a new one is started and the old one gzipped in the
+     * background. 0 disables a limit.
+     */
+    public void setRotation(long maxSegmentBytes, long maxSegmentMillis) {
+        mMaxSegmentBytes = maxSegmentBytes;
+        mMaxSegmentMillis = maxSegmentMillis;
+    }
+
+    /**
+     * Segment index of the current or last session, {@code null} before the first log
+     */
+    public File getIndexFile() {
+        synchronized (mFileLock) {
+            return mIndex == null ? null : mIndex.getFile();
+        }
+    }
+
     /**
      * Start a new file logging process.
      */
@@ -83,165 +151,260 @@ public class FileLogger {
 
             @SuppressLint("SimpleDateFormat") SimpleDateFormat formatter = new SimpleDateFormat("yyy_MM_dd_HH_mm_ss");
             Date now = new Date();
-            String fileName = String.format("%s_%s.txt", FILE_PREFIX, formatter.format(now));
-            File currentFile = new File(baseDirectory, fileName);
-            String currentFilePath = currentFile.getAbsolutePath();
-            BufferedWriter currentFileWriter;
-            try {
-                currentFileWriter = new BufferedWriter(new FileWriter(currentFile));
-            } catch (IOException e) {
-                logException("Could not open file: " + currentFilePath, e);
-                return;
+
+            if (mFileWriter != null) {
+                closeFileWriter(true);
             }
 
-            // initialize the contents of the file
-            // 初始化文件内容
+            // 每次记录是一个会话，按大小或时长切分为多个分段，并由索引文件记录各分段的时间范围
+            mBaseDirectory = baseDirectory;
+            mSessionName = String.format("%s_%s", FILE_PREFIX, formatter.format(now));
+            mSessionBinary = mBinaryFormat;
+            mSegmentNumber = 0;
+            LogSegmentIndex index = LogSegmentIndex.create(
+                    new File(baseDirectory, mSessionName + LogSegmentIndex.FILE_EXTENSION));
+            mIndex = index;
+            File file = segmentFile(mSegmentNumber);
             try {
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.write("Header Description:");
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.write(VERSION_TAG);
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.write(
-                        "Raw,ElapsedRealtimeMillis,TimeNanos,LeapSecond,TimeUncertaintyNanos,FullBiasNanos,"
-                                + "BiasNanos,BiasUncertaintyNanos,DriftNanosPerSecond,DriftUncertaintyNanosPerSecond,"
-                                + "HardwareClockDiscontinuityCount,Svid,TimeOffsetNanos,State,ReceivedSvTimeNanos,"
-                                + "ReceivedSvTimeUncertaintyNanos,Cn0DbHz,PseudorangeRateMetersPerSecond,"
-                                + "PseudorangeRateUncertaintyMetersPerSecond,"
-                                + "AccumulatedDeltaRangeState,AccumulatedDeltaRangeMeters,"
-                                + "AccumulatedDeltaRangeUncertaintyMeters,CarrierFrequencyHz,CarrierCycles,"
-                                + "CarrierPhase,CarrierPhaseUncertainty,MultipathIndicator,SnrInDb,"
-                                + "ConstellationType,AgcDb");
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.write(
-                        "Fix,Provider,Latitude,Longitude,Altitude,Speed,Accuracy,(UTC)TimeInMs");
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.write("Nav,Svid,Type,Status,MessageId,Sub-messageId,Data(Bytes)");
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.newLine();
+                startSegment(file, new AsyncFileWriter(file), now.getTime());
             } catch (IOException e) {
-                logException("Count not initialize file: " + currentFilePath, e);
+                logException("Could not open file: " + file.getAbsolutePath(), e);
                 return;
             }
+            Toast.makeText(mContext, "File opened: " + mFile.getAbsolutePath(), Toast.LENGTH_SHORT).show();
 
-            if (mFileWriter != null) {
-                try {
-                    mFileWriter.close();
-                } catch (IOException e) {
-                    logException("Unable to close all file streams.", e);
-                    return;
-                }
+            // Behind the close of the previous session, whose last segment may still grow
+            mCompressor.execute(() -> pruneFiles(baseDirectory, file, index.getFile()));
+            openNextSegment();
+        }
+    }
+
+    /**
+     * To make sure that files do not fill up the external storage
+     */
+    private static void pruneFiles(File baseDirectory, File... retainedFiles) {
+        // - Remove all empty files
+        FileFilter filter = new FileToDeleteFilter(retainedFiles);
+        for (File existingFile : Objects.requireNonNull(baseDirectory.listFiles(filter))) {
+            existingFile.delete();
+        }
+        // - Trim the number of files with data
+        File[] existingFiles = baseDirectory.listFiles();
+        int filesToDeleteCount = existingFiles.length - MAX_FILES_STORED;
+        if (filesToDeleteCount > 0) {
+            Arrays.sort(existingFiles);
+            for (int i = 0; i < filesToDeleteCount; ++i) {
+                existingFiles[i].delete();
+            }
+        }
+    }
+
+    /** File of segment {@code number} of the session, called under mFileLock */
+    private File segmentFile(int number) {
+        String fileName = String.format(Locale.US, "%s_%03d%s", mSessionName, number,
+                mSessionBinary ? BinaryLogFormat.FILE_EXTENSION : ".txt");
+        return new File(mBaseDirectory, fileName);
+    }
+
+    /**
+     * Makes {@code fileWriter} segment {@link #mSegmentNumber} of the session and writes its header,
+     * so every segment can be read on its own. The segment is only added to the index in memory, the
+     * compressor thread saves it. Called under mFileLock.
+     */
+    private void startSegment(File file, AsyncFileWriter fileWriter, long nowMillis) {
+        // initialize the contents of the file
+        // 初始化文件内容
+        BinaryLogWriter binaryWriter = null;
+        if (mSessionBinary) {
+            // A dropped block is skipped by the readers, a text note would only add garbage
+            fileWriter.setDropNotes(false);
+            binaryWriter = new BinaryLogWriter(fileWriter, VERSION_TAG);
+        } else {
+            for (String line : GnssLogText.headerLines(VERSION_TAG)) {
+                fileWriter.appendLine(line);
             }
+        }
 
-            mFile = currentFile;
-            mFileWriter = currentFileWriter;
-            Toast.makeText(mContext, "File opened: " + currentFilePath, Toast.LENGTH_SHORT).show();
+        mFile = file;
+        mFileWriter = fileWriter;
+        mBinaryWriter = binaryWriter;
+        mSegmentStartMillis = nowMillis;
+        mLastRecordMillis = nowMillis;
+        LogSegmentIndex index = mIndex;
+        mSegment = index.add(file.getName(), nowMillis);
+        mCompressor.execute(() -> saveIndex(index));
+    }
 
-            // To make sure that files do not fill up the external storage:
-            // - Remove all empty files
-            FileFilter filter = new FileToDeleteFilter(mFile);
-            for (File existingFile : Objects.requireNonNull(baseDirectory.listFiles(filter))) {
-                existingFile.delete();
+    /**
+     * Opens the file of the next segment on the compressor thread, so that creating it never holds up
+     * a record. Called under mFileLock.
+     */
+    private void openNextSegment() {
+        LogSegmentIndex index = mIndex;
+        File file = segmentFile(mSegmentNumber + 1);
+        mNextSegmentPending = true;
+        mCompressor.execute(() -> {
+            AsyncFileWriter fileWriter = null;
+            try {
+                fileWriter = new AsyncFileWriter(file);
+            } catch (IOException e) {
+                // Retried once the current segment is due again
+                Log.e(TAG, "Could not open " + file, e);
             }
-            // - Trim the number of files with data
-            File[] existingFiles = baseDirectory.listFiles();
-            int filesToDeleteCount = existingFiles.length - MAX_FILES_STORED;
-            if (filesToDeleteCount > 0) {
-                Arrays.sort(existingFiles);
-                for (int i = 0; i < filesToDeleteCount; ++i) {
-                    existingFiles[i].delete();
+            synchronized (mFileLock) {
+                // The session may have ended in the meantime
+                if (index == mIndex && mNextSegmentPending) {
+                    mNextSegmentPending = false;
+                    if (fileWriter != null) {
+                        mNextFile = file;
+                        mNextFileWriter = fileWriter;
+                        return;
+                    }
                 }
             }
+            if (fileWriter != null) {
+                discardSegment(fileWriter, file);
+            }
+        });
+    }
+
+    /**
+     * Starts the next segment once the current one is full or old enough. Called under mFileLock
+     * before each record, so a measurement event never spans two segments. Only the writers are
+     * swapped here: the next file has been opened ahead, the old one is closed, indexed and
+     * compressed on the compressor thread. Until the next file is open the current one grows on.
+     *
+     * @return {@code false} if no log is being written
+     */
+    private boolean prepareRecord() {
+        if (mFileWriter == null) {
+            return false;
         }
+        long now = System.currentTimeMillis();
+        long maxSegmentBytes = mMaxSegmentBytes;
+        long maxSegmentMillis = mMaxSegmentMillis;
+        if ((maxSegmentBytes > 0 && mFileWriter.getBytesAppended() >= maxSegmentBytes)
+                || (maxSegmentMillis > 0 && now - mSegmentStartMillis >= maxSegmentMillis)) {
+            if (mNextFileWriter != null) {
+                File file = mNextFile;
+                AsyncFileWriter fileWriter = mNextFileWriter;
+                mNextFile = null;
+                mNextFileWriter = null;
+                closeFileWriter(true);
+                mSegmentNumber++;
+                startSegment(file, fileWriter, now);
+                openNextSegment();
+            } else if (!mNextSegmentPending) {
+                openNextSegment();
+            }
+        }
+        mLastRecordMillis = now;
+        return true;
     }
 
     public void writeGnssMeasurementData(GnssMeasurementsEvent event) {
         synchronized (mFileLock) {
-            if (mFileWriter == null) {
+            if (!prepareRecord()) {
                 return;
             }
             if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
                 GnssClock gnssClock  = event.getClock();
+                // One clock per event, so the binary log stores it once
+                setClock(mRawRecord, gnssClock, SystemClock.elapsedRealtime());
 
                 for (GnssMeasurement measurement : event.getMeasurements()) {
-                    try {
-                        /*写入到文件中*/
-                        writeGnssMeasurementToFile(gnssClock, measurement);
-                    } catch (IOException e) {
-                        logException(ERROR_WRITING_FILE, e);
+                    /*写入到文件中*/
+                    setMeasurement(mRawRecord, measurement);
+                    if (mBinaryWriter != null) {
+                        mBinaryWriter.writeRaw(mRawRecord);
+                    } else {
+                        GnssLogText.appendRaw(mEncoder, mRawRecord);
+                        writeRecord();
                     }
                 }
             }
         }
     }
 
+    private static void setClock(RawRecord record, GnssClock clock, long elapsedRealtimeMillis) {
+        record.elapsedRealtimeMillis = elapsedRealtimeMillis;
+        record.timeNanos = clock.getTimeNanos();
+        record.hasLeapSecond = clock.hasLeapSecond();
+        record.leapSecond = record.hasLeapSecond ? clock.getLeapSecond() : 0;
+        record.hasTimeUncertaintyNanos = clock.hasTimeUncertaintyNanos();
+        record.timeUncertaintyNanos =
+                record.hasTimeUncertaintyNanos ? clock.getTimeUncertaintyNanos() : 0;
+        record.fullBiasNanos = clock.getFullBiasNanos();
+        record.hasBiasNanos = clock.hasBiasNanos();
+        record.biasNanos = record.hasBiasNanos ? clock.getBiasNanos() : 0;
+        record.hasBiasUncertaintyNanos = clock.hasBiasUncertaintyNanos();
+        record.biasUncertaintyNanos =
+                record.hasBiasUncertaintyNanos ? clock.getBiasUncertaintyNanos() : 0;
+        record.hasDriftNanosPerSecond = clock.hasDriftNanosPerSecond();
+        record.driftNanosPerSecond =
+                record.hasDriftNanosPerSecond ? clock.getDriftNanosPerSecond() : 0;
+        record.hasDriftUncertaintyNanosPerSecond = clock.hasDriftUncertaintyNanosPerSecond();
+        record.driftUncertaintyNanosPerSecond = record.hasDriftUncertaintyNanosPerSecond
+                ? clock.getDriftUncertaintyNanosPerSecond() : 0;
+        record.hardwareClockDiscontinuityCount = clock.getHardwareClockDiscontinuityCount();
+    }
+
+    private static void setMeasurement(RawRecord record, GnssMeasurement measurement) {
+        record.svid = measurement.getSvid();
+        record.timeOffsetNanos = measurement.getTimeOffsetNanos();
+        record.state = measurement.getState();
+        record.receivedSvTimeNanos = measurement.getReceivedSvTimeNanos();
+        record.receivedSvTimeUncertaintyNanos = measurement.getReceivedSvTimeUncertaintyNanos();
+        record.cn0DbHz = measurement.getCn0DbHz();
+        record.pseudorangeRateMetersPerSecond = measurement.getPseudorangeRateMetersPerSecond();
+        record.pseudorangeRateUncertaintyMetersPerSecond =
+                measurement.getPseudorangeRateUncertaintyMetersPerSecond();
+        record.accumulatedDeltaRangeState = measurement.getAccumulatedDeltaRangeState();
+        record.accumulatedDeltaRangeMeters = measurement.getAccumulatedDeltaRangeMeters();
+        record.accumulatedDeltaRangeUncertaintyMeters =
+                measurement.getAccumulatedDeltaRangeUncertaintyMeters();
+        record.hasCarrierFrequencyHz = measurement.hasCarrierFrequencyHz();
+        record.carrierFrequencyHz =
+                record.hasCarrierFrequencyHz ? measurement.getCarrierFrequencyHz() : 0f;
+        record.hasCarrierCycles = measurement.hasCarrierCycles();
+        record.carrierCycles = record.hasCarrierCycles ? measurement.getCarrierCycles() : 0L;
+        record.hasCarrierPhase = measurement.hasCarrierPhase();
+        record.carrierPhase = record.hasCarrierPhase ? measurement.getCarrierPhase() : 0;
+        record.hasCarrierPhaseUncertainty = measurement.hasCarrierPhaseUncertainty();
+        record.carrierPhaseUncertainty =
+                record.hasCarrierPhaseUncertainty ? measurement.getCarrierPhaseUncertainty() : 0;
+        record.multipathIndicator = measurement.getMultipathIndicator();
+        record.hasSnrInDb = measurement.hasSnrInDb();
+        record.snrInDb = record.hasSnrInDb ? measurement.getSnrInDb() : 0;
+        record.constellationType = measurement.getConstellationType();
+        record.hasAutomaticGainControlLevelDb = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && measurement.hasAutomaticGainControlLevelDb();
+        record.automaticGainControlLevelDb = record.hasAutomaticGainControlLevelDb
+                ? measurement.getAutomaticGainControlLevelDb() : 0;
+    }
+
     /**
-     * 将GNSS测量值记录到日志文件中
+     * 记录导航电文
      */
-    private void writeGnssMeasurementToFile(GnssClock clock, GnssMeasurement measurement)
-            throws IOException {
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
-            String clockStream =
-                    String.format(
-                            "Raw,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
-                            SystemClock.elapsedRealtime(),
-                            clock.getTimeNanos(),
-                            clock.hasLeapSecond() ? clock.getLeapSecond() : "",
-                            clock.hasTimeUncertaintyNanos() ? clock.getTimeUncertaintyNanos() : "",
-                            clock.getFullBiasNanos(),
-                            clock.hasBiasNanos() ? clock.getBiasNanos() : "",
-                            clock.hasBiasUncertaintyNanos() ? clock.getBiasUncertaintyNanos() : "",
-                            clock.hasDriftNanosPerSecond() ? clock.getDriftNanosPerSecond() : "",
-                            clock.hasDriftUncertaintyNanosPerSecond()
-                                    ? clock.getDriftUncertaintyNanosPerSecond()
-                                    : "",
-                            clock.getHardwareClockDiscontinuityCount() + ",");
-            mFileWriter.write(clockStream);
-
-            String measurementStream =
-                    String.format(
-                            "%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
-                            measurement.getSvid(),
-                            measurement.getTimeOffsetNanos(),
-                            measurement.getState(),
-                            measurement.getReceivedSvTimeNanos(),
-                            measurement.getReceivedSvTimeUncertaintyNanos(),
-                            measurement.getCn0DbHz(),
-                            measurement.getPseudorangeRateMetersPerSecond(),
-                            measurement.getPseudorangeRateUncertaintyMetersPerSecond(),
-                            measurement.getAccumulatedDeltaRangeState(),
-                            measurement.getAccumulatedDeltaRangeMeters(),
-                            measurement.getAccumulatedDeltaRangeUncertaintyMeters(),
-                            measurement.hasCarrierFrequencyHz() ? measurement.getCarrierFrequencyHz() : "",
-                            measurement.hasCarrierCycles() ? measurement.getCarrierCycles() : "",
-                            measurement.hasCarrierPhase() ? measurement.getCarrierPhase() : "",
-                            measurement.hasCarrierPhaseUncertainty()
-                                    ? measurement.getCarrierPhaseUncertainty()
-                                    : "",
-                            measurement.getMultipathIndicator(),
-                            measurement.hasSnrInDb() ? measurement.getSnrInDb() : "",
-                            measurement.getConstellationType(),
-                            Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
-                                    && measurement.hasAutomaticGainControlLevelDb()
-                                    ? measurement.getAutomaticGainControlLevelDb()
-                                    : "");
-            mFileWriter.write(measurementStream);
-            mFileWriter.newLine();
+    public void writeNavigationMessage(GnssNavigationMessage navigationMessage) {
+        synchronized (mFileLock) {
+            if (!prepareRecord()) {
+                return;
+            }
+            byte[] data = navigationMessage.getData();
+            int dataLength = data == null ? 0 : data.length;
+            if (mBinaryWriter != null) {
+                mBinaryWriter.writeNavigation(navigationMessage.getSvid(),
+                        navigationMessage.getType(), navigationMessage.getStatus(),
+                        navigationMessage.getMessageId(), navigationMessage.getSubmessageId(),
+                        data, dataLength);
+            } else {
+                GnssLogText.appendNavigation(mEncoder, navigationMessage.getSvid(),
+                        navigationMessage.getType(), navigationMessage.getStatus(),
+                        navigationMessage.getMessageId(), navigationMessage.getSubmessageId(),
+                        data, dataLength);
+                writeRecord();
+            }
         }
     }
 
@@ -249,120 +412,187 @@ public class FileLogger {
      * Send the current log via email or other options selected from a pop menu shown to the user. A
      * new log is started when calling this function.
      * 通过电子邮件或从显示给用户的弹出菜单中选择的其他选项发送当前日志。 调用此函数时会启动一个新日志。
+     *
+     * <p>All segments of the session are attached. The last one is left uncompressed, the receiving
+     * app may read it after this returns. The files are collected on the compressor thread behind
+     * the close and compression of the earlier segments, so they are shared under their final names
+     * without blocking the caller, and the chooser is started on the main thread.
      */
     public void send() {
-        if (mFile == null) {
-            return;
+        LogSegmentIndex index;
+        synchronized (mFileLock) {
+            index = mIndex;
+            if (index == null) {
+                return;
+            }
+            if (mFileWriter != null) {
+                closeFileWriter(false);
+            }
         }
+        LogFragment.UIFragmentComponent uiComponent = getUiComponent();
+        mCompressor.execute(() -> {
+            List<File> files = index.getFiles();
+            if (files.isEmpty()) {
+                return;
+            }
+            Intent chooser = Intent.createChooser(createSendIntent(files), "Send log..");
+            mMainHandler.post(() -> uiComponent.startActivity(chooser));
+        });
+    }
 
-        Intent emailIntent = new Intent(Intent.ACTION_SEND);
+    private Intent createSendIntent(List<File> files) {
+        Intent emailIntent;
+        if (files.size() == 1) {
+            emailIntent = new Intent(Intent.ACTION_SEND);
+            emailIntent.putExtra(Intent.EXTRA_STREAM, getUri(files.get(0)));
+        } else {
+            emailIntent = new Intent(Intent.ACTION_SEND_MULTIPLE);
+            ArrayList<Uri> fileURIs = new ArrayList<>(files.size());
+            for (File file : files) {
+                fileURIs.add(getUri(file));
+            }
+            emailIntent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, fileURIs);
+        }
         emailIntent.setType("*/*");
         emailIntent.putExtra(Intent.EXTRA_SUBJECT, "SensorLog");
         emailIntent.putExtra(Intent.EXTRA_TEXT, "");
-        // attach the file
-        Uri fileURI =
-                FileProvider.getUriForFile(mContext, BuildConfig.APPLICATION_ID + ".provider", mFile);
-        emailIntent.putExtra(Intent.EXTRA_STREAM, fileURI);
-        getUiComponent().startActivity(Intent.createChooser(emailIntent, "Send log.."));
-        if (mFileWriter != null) {
-            try {
-                mFileWriter.flush();
-                mFileWriter.close();
-                mFileWriter = null;
-            } catch (IOException e) {
-                logException("Unable to close all file streams.", e);
-                return;
-            }
+        return emailIntent;
+    }
+
+    private Uri getUri(File file) {
+        return FileProvider.getUriForFile(mContext, BuildConfig.APPLICATION_ID + ".provider", file);
+    }
+
+    /**
+     * Detaches the current segment and hands it to the compressor thread, which writes the buffered
+     * records, closes it, records its time range in the index and reports the records lost to a full
+     * buffer. A next segment opened ahead is discarded. Called under {@link #mFileLock}.
+     *
+     * @param compress gzip the segment once it is closed
+     */
+    private void closeFileWriter(boolean compress) {
+        AsyncFileWriter fileWriter = mFileWriter;
+        LogSegmentIndex index = mIndex;
+        LogSegmentIndex.Segment segment = mSegment;
+        long lastRecordMillis = mLastRecordMillis;
+        if (mBinaryWriter != null) {
+            mBinaryWriter.flush();
+            mBinaryWriter = null;
+        }
+        mFileWriter = null;
+        mSegment = null;
+        mCompressor.execute(() -> finishSegment(fileWriter, index, segment, lastRecordMillis));
+        if (compress) {
+            mCompressor.compress(index, segment);
+        }
+
+        File nextFile = mNextFile;
+        AsyncFileWriter nextFileWriter = mNextFileWriter;
+        mNextFile = null;
+        mNextFileWriter = null;
+        mNextSegmentPending = false;
+        if (nextFileWriter != null) {
+            mCompressor.execute(() -> discardSegment(nextFileWriter, nextFile));
+        }
+    }
+
+    /** Closes a detached segment, on the compressor thread */
+    @SuppressLint("LongLogTag")
+    private static void finishSegment(AsyncFileWriter fileWriter, LogSegmentIndex index,
+                                      LogSegmentIndex.Segment segment, long lastRecordMillis) {
+        try {
+            fileWriter.close();
+        } catch (IOException e) {
+            Log.e(MeasurementProviderTAG + TAG, "Unable to close " + segment.getFileName(), e);
+        }
+        if (fileWriter.getDroppedRecords() > 0) {
+            Log.w(MeasurementProviderTAG + TAG, "Dropped " + fileWriter.getDroppedRecords()
+                    + " of " + (fileWriter.getRecords() + fileWriter.getDroppedRecords()) + " records");
+        }
+        try {
+            index.close(segment, lastRecordMillis, fileWriter.getBytesAppended());
+        } catch (IOException e) {
+            // The segment itself is fine, only window queries will miss it
+            Log.e(TAG, "Could not update the segment index", e);
+        }
+    }
+
+    /** Closes and deletes a segment opened ahead but never written, on the compressor thread */
+    private static void discardSegment(AsyncFileWriter fileWriter, File file) {
+        try {
+            fileWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close " + file, e);
+        }
+        file.delete();
+    }
+
+    private static void saveIndex(LogSegmentIndex index) {
+        try {
+            index.save();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not update the segment index", e);
+        }
+    }
+
+    /**
+     * Records of the current file lost because the disk could not keep up
+     */
+    public long getDroppedRecords() {
+        synchronized (mFileLock) {
+            return mFileWriter == null ? 0 : mFileWriter.getDroppedRecords();
         }
     }
 
     public void onLocationReceived(Location location) {
         synchronized (mFileLock) {
-            if (mFileWriter == null) {
+            if (!prepareRecord()) {
                 return;
             }
-            StringBuilder builder = new StringBuilder("GNSS");
-            builder.append(RECORD_DELIMITER);
-            builder.append(location.getLatitude());
-            builder.append(RECORD_DELIMITER);
-            builder.append(location.getLongitude());
-            builder.append(RECORD_DELIMITER);
-            builder.append(location.getAltitude());
-            builder.append(RECORD_DELIMITER);
-
-            try {
-                mFileWriter.write(builder.toString());
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                logException(ERROR_WRITING_FILE, e);
+            if (mBinaryWriter != null) {
+                mBinaryWriter.writeFix(location.getLatitude(), location.getLongitude(),
+                        location.getAltitude());
+            } else {
+                GnssLogText.appendFix(mEncoder, location.getLatitude(), location.getLongitude(),
+                        location.getAltitude());
+                writeRecord();
             }
         }
     }
 
     public void storeData(String str, double[] data) {
         synchronized (mFileLock) {
-            if (mFileWriter == null) {
+            if (!prepareRecord()) {
                 return;
             }
-            StringBuilder builder = new StringBuilder(str);
-            builder.append(RECORD_DELIMITER);
-            builder.append(data[0]);
-            builder.append(RECORD_DELIMITER);
-            builder.append(data[1]);
-            builder.append(RECORD_DELIMITER);
-            builder.append(data[2]);
-
-            try {
-                mFileWriter.write(builder.toString());
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                logException(ERROR_WRITING_FILE, e);
-            }
+            writeValues(str, data, 3);
         }
     }
 
     public void storeListData(String str, List<Double> data) {
         synchronized (mFileLock) {
-            if (mFileWriter == null) {
+            if (!prepareRecord()) {
                 return;
             }
-            StringBuilder builder = new StringBuilder(str);
-
-            for (double datum : data) {
-                builder.append(RECORD_DELIMITER);
-                builder.append(datum);
+            int count = data.size();
+            if (mValues.length < count) {
+                mValues = new double[count];
             }
-
-            try {
-                mFileWriter.write(builder.toString());
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                logException(ERROR_WRITING_FILE, e);
+            for (int i = 0; i < count; i++) {
+                mValues[i] = data.get(i);
             }
+            writeValues(str, mValues, count);
         }
     }
 
     public void storeArrayData(String str, double[] data) {
         synchronized (mFileLock) {
-            if (mFileWriter == null) {
+            if (!prepareRecord()) {
                 return;
             }
 
-            // 写标题
-            StringBuilder builder = new StringBuilder(str);
-
-            // 写数据
-            for (double datum : data) {
-                builder.append(RECORD_DELIMITER);
-                builder.append(datum);
-            }
-
-            try {
-                mFileWriter.write(builder.toString());
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                logException(ERROR_WRITING_FILE, e);
-            }
+            // 写标题和数据
+            writeValues(str, data, data.length);
         }
     }
 
@@ -375,39 +605,35 @@ public class FileLogger {
      */
     public void storeIMUData(double[] values, double[] vel_mea, double[] pos_mea, double delta_timestamp_sec) {
         synchronized (mFileLock) {
-            if (mFileWriter == null) {
+            if (!prepareRecord()) {
                 return;
             }
 
-            // 写标题头
-            StringBuilder builder = new StringBuilder("Imu_data");
-            // 写加速度
-            for (double datum : values) {
-                builder.append(RECORD_DELIMITER);
-                builder.append(datum);
-            }
-            // 写速度
-            for (double datum : vel_mea) {
-                builder.append(RECORD_DELIMITER);
-                builder.append(datum);
-            }
-            // 写位置
-            for (double datum : pos_mea) {
-                builder.append(RECORD_DELIMITER);
-                builder.append(datum);
+            if (mBinaryWriter != null) {
+                mBinaryWriter.writeImu(values, vel_mea, pos_mea, delta_timestamp_sec);
+            } else {
+                GnssLogText.appendImu(mEncoder, values, values.length, vel_mea, vel_mea.length,
+                        pos_mea, pos_mea.length, delta_timestamp_sec);
+                writeRecord();
             }
-            builder.append(RECORD_DELIMITER);
-            builder.append(delta_timestamp_sec);
+        }
+    }
 
-            try {
-                mFileWriter.write(builder.toString());
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                logException(ERROR_WRITING_FILE, e);
-            }
+    /** Writes {@code count} labelled values in the current format, called under mFileLock */
+    private void writeValues(String label, double[] values, int count) {
+        if (mBinaryWriter != null) {
+            mBinaryWriter.writeValues(label, values, count);
+        } else {
+            GnssLogText.appendValues(mEncoder, label, values, count);
+            writeRecord();
         }
     }
 
+    /** Queues the text record in {@link #mEncoder}, called under mFileLock */
+    private void writeRecord() {
+        mFileWriter.append(mEncoder.getBuffer(), 0, mEncoder.length());
+    }
+
     @SuppressLint("LongLogTag")
     private void logError(String errorMessage) {
         Log.e(MeasurementProviderTAG + TAG, errorMessage);
@@ -444,6 +670,11 @@ public class FileLogger {
             if (mRetainedFiles.contains(pathname)) {
                 return false;
             }
+            // The index is small by nature, temporary files belong to a running compression
+            String name = pathname.getName();
+            if (name.endsWith(LogSegmentIndex.FILE_EXTENSION) || name.endsWith(".tmp")) {
+                return false;
+            }
             return pathname.length() < MINIMUM_USABLE_FILE_SIZE_BYTES;
         }
     }
@@ -42,6 +42,10 @@ public class LogFragment extends Fragment {
     public static TextView[] mAcc = new TextView[3];
     public static TextView[] mVel = new TextView[3];
     public static TextView[] mPos = new TextView[3];
+    /**
+     * 处理时延诊断视图
+     */
+    public static TextView mLatencyView;
 
     /**
      * 文件写入标志位
@@ -71,14 +75,25 @@ public class LogFragment extends Fragment {
         mPos[1] = newView.findViewById(R.id.Y_Pos);
         mPos[2] = newView.findViewById(R.id.Z_Pos);
 
+        mLatencyView = newView.findViewById(R.id.latency_view);
+
         uiFragmentComponent = new UIFragmentComponent();
         fileLogger.setUiComponent(uiFragmentComponent);
 
         buttonStart.setOnClickListener(view -> {
             writableFlag = true;
+            fileLogger.setBinaryFormat(false);
             fileLogger.startNewLog();
         });
 
+        // 长按开始按钮以二进制格式记录
+        buttonStart.setOnLongClickListener(view -> {
+            writableFlag = true;
+            fileLogger.setBinaryFormat(true);
+            fileLogger.startNewLog();
+            return true;
+        });
+
         buttonEnd.setOnClickListener(view -> {
             writableFlag = false;
             fileLogger.send();
@@ -128,6 +143,49 @@ public class LogFragment extends Fragment {
         fileLogger = value;
     }
 
+    /**
+     * Shows the per-stage processing latency summary, may be called from any thread
+     */
+    public static void setLatencyView(final String summary) {
+        final TextView latencyView = mLatencyView;
+        if (latencyView != null) {
+            latencyView.post(() -> latencyView.setText(summary));
+        }
+    }
+
+    /* IMU values waiting for the main thread, guarded by mImuViewValues */
+    private final double[][] mImuViewValues = new double[3][3];
+    private boolean mImuViewPending = false;
+    private final Runnable mImuViewUpdate = () -> {
+        synchronized (mImuViewValues) {
+            setAccView(mImuViewValues[0]);
+            setVelView(mImuViewValues[1]);
+            setPosView(mImuViewValues[2], 1);
+            mImuViewPending = false;
+        }
+    };
+
+    /**
+     * Shows the IMU values from any thread. While an update is pending only its values are
+     * replaced, so a fast sensor cannot flood the main thread.
+     */
+    public void postImuViews(double[] acc, double[] vel, double[] pos) {
+        TextView view = mAcc[0];
+        if (view == null) {
+            return;
+        }
+        synchronized (mImuViewValues) {
+            System.arraycopy(acc, 0, mImuViewValues[0], 0, 3);
+            System.arraycopy(vel, 0, mImuViewValues[1], 0, 3);
+            System.arraycopy(pos, 0, mImuViewValues[2], 0, 3);
+            if (mImuViewPending) {
+                return;
+            }
+            mImuViewPending = true;
+        }
+        view.post(mImuViewUpdate);
+    }
+
     @SuppressLint("DefaultLocale")
     public void setAccView(double[] values) {
         for (int i = 0; i < values.length; i++) {
@@ -0,0 +1,285 @@
+package cn.byyddyh.spoofingdetection;
+
+import java.util.Arrays;
+
+/**
+ * Builds one comma separated log line at a time in a recycled ASCII byte buffer, without
+ * {@link String#format}, boxing or intermediate strings.
+ *
+ * <p>The output matches what {@code String.format("%s", value)} produced for the GnssLogger v1.4
+ * records: integers as by {@link Long#toString(long)} and floating point values in the plain
+ * notation of {@link Double#toString(double)} with the shortest fraction that parses back to the
+ * same value. Where several 17 digit fractions qualify the closest one is written, which may differ
+ * from the JDK in the last digit but always parses to the identical double. Values
+ * {@link Double#toString(double)} prints in computerized scientific notation fall back to the JDK
+ * conversion.
+ * Optional fields are left empty by calling {@link #next()} without appending a value.
+ *
+ * <pre>
+ * encoder.begin("Raw").next().appendLong(timeNanos).next();   // "Raw,123," then an empty field
+ * </pre>
+ */
+public class LogRecordEncoder {
+
+    private static final byte DELIMITER = ',';
+    private static final byte NEW_LINE = '\n';
+    /** Fraction mantissas have to stay exact in a double and in a long */
+    private static final double MAX_FRACTION_MANTISSA = 9007199254740992.0;
+    private static final long MANTISSA_MASK = 0x000fffffffffffffL;
+    /** Veltkamp splitter 2^27 + 1 */
+    private static final double SPLITTER = 134217729.0;
+    /** Keeps accepted errors clear of the rounding of the error computation itself */
+    private static final double ERROR_MARGIN = 1.0 - 0x1.0p-50;
+    /** {@link Double#toString(double)} uses plain notation in [1e-3, 1e7) */
+    private static final double PLAIN_MIN = 1.0e-3;
+    private static final double PLAIN_MAX = 1.0e7;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15,
+            1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+    /** Tens and ones digit of 0..99 */
+    private static final byte[] DIGIT_TENS = new byte[100];
+    private static final byte[] DIGIT_ONES = new byte[100];
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            DIGIT_TENS[i] = (byte) ('0' + i / 10);
+            DIGIT_ONES[i] = (byte) ('0' + i % 10);
+        }
+    }
+
+    private byte[] mBuffer;
+    private int mLength = 0;
+    /** Digits are written backwards into this scratch array */
+    private final byte[] mDigits = new byte[24];
+
+    /** Last float converted through the JDK and its text, float fields repeat between records */
+    private float mCachedFloat = Float.NaN;
+    private byte[] mCachedFloatText = "NaN".getBytes();
+
+    public LogRecordEncoder() {
+        this(512);
+    }
+
+    public LogRecordEncoder(int initialCapacity) {
+        mBuffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Starts a new line with the record tag
+     */
+    public LogRecordEncoder begin(String tag) {
+        mLength = 0;
+        return append(tag);
+    }
+
+    /**
+     * Starts the next field
+     */
+    public LogRecordEncoder next() {
+        ensureCapacity(1);
+        mBuffer[mLength++] = DELIMITER;
+        return this;
+    }
+
+    /**
+     * Terminates the line, the record is then {@link #length()} bytes of {@link #getBuffer()}
+     */
+    public LogRecordEncoder end() {
+        ensureCapacity(1);
+        mBuffer[mLength++] = NEW_LINE;
+        return this;
+    }
+
+    /**
+     * Appends ASCII text
+     */
+    public LogRecordEncoder append(String text) {
+        int length = text.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            mBuffer[mLength++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    public LogRecordEncoder appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            return appendBytes(MIN_LONG);
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            mBuffer[mLength++] = '-';
+            value = -value;
+        }
+        appendDigits(value, 1);
+        return this;
+    }
+
+    public LogRecordEncoder appendDouble(double value) {
+        double magnitude = Math.abs(value);
+        if (magnitude == 0.0) {
+            return append(Double.doubleToRawLongBits(value) < 0 ? "-0.0" : "0.0");
+        }
+        if (!(magnitude >= PLAIN_MIN && magnitude < PLAIN_MAX) || !appendPlain(value, magnitude)) {
+            append(Double.toString(value));
+        }
+        return this;
+    }
+
+    /**
+     * Appends {@code value} as {@link Float#toString(float)} does. The conversion goes through the
+     * JDK, only the last value is cached, which covers constant fields such as the carrier
+     * frequency.
+     */
+    public LogRecordEncoder appendFloat(float value) {
+        if (Float.floatToRawIntBits(value) != Float.floatToRawIntBits(mCachedFloat)) {
+            mCachedFloat = value;
+            mCachedFloatText = Float.toString(value).getBytes();
+        }
+        return appendBytes(mCachedFloatText);
+    }
+
+    /**
+     * Writes {@code magnitude} as {@code i.f}, with the integer part {@code i} and the shortest
+     * fraction {@code f} whose decimal lies within half a unit in the last place of the double, so
+     * that the text parses back to exactly the same value. Among the shortest fractions the closest
+     * is taken, as {@link Double#toString(double)} does.
+     *
+     * <p>The error of a candidate fraction is computed exactly with Dekker's product, no
+     * {@code BigDecimal} and no {@code Math.fma} (not available before API 33) are needed.
+     */
+    private boolean appendPlain(double value, double magnitude) {
+        long integerPart = (long) magnitude;
+        // Exact, the fraction has no more significant bits than the magnitude
+        double fraction = magnitude - integerPart;
+        if (fraction == 0.0) {
+            appendSign(value);
+            appendFixed(integerPart, 0, 0);
+            return true;
+        }
+        double halfUlp = 0.5 * Math.ulp(magnitude);
+        // Below a power of two the next smaller double is only half as far away
+        double lowerHalfUlp = (Double.doubleToRawLongBits(magnitude) & MANTISSA_MASK) == 0
+                ? 0.5 * halfUlp : halfUlp;
+        for (int fractionDigits = 1; fractionDigits < POWERS_OF_TEN.length; fractionDigits++) {
+            double scale = POWERS_OF_TEN[fractionDigits];
+            double product = fraction * scale;
+            if (product >= MAX_FRACTION_MANTISSA) {
+                return false;
+            }
+            double mantissa = Math.rint(product);
+            // Exact (Sterbenz)
+            double roundedError = product - mantissa;
+            // Most candidates miss by far more than the rounding of the product
+            if (Math.abs(roundedError) >= halfUlp * scale + product * 0x1.0p-52) {
+                continue;
+            }
+            // fraction * scale - mantissa, exactly up to one rounding
+            double error = roundedError + productError(fraction, scale, product);
+            // A product rounded onto a half may have been rounded away from the closer integer
+            if (error > 0.5) {
+                mantissa += 1;
+                error -= 1;
+            } else if (error < -0.5) {
+                mantissa -= 1;
+                error += 1;
+            }
+            double bound = (error > 0 ? lowerHalfUlp : halfUlp) * scale * ERROR_MARGIN;
+            if (Math.abs(error) < bound) {
+                long fractionMantissa = (long) mantissa;
+                long wholePart = integerPart;
+                if (fractionMantissa == (long) scale) {
+                    wholePart++;
+                    fractionMantissa = 0;
+                }
+                appendSign(value);
+                appendFixed(wholePart, fractionMantissa, fractionDigits);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Rounding error of {@code product = a * b}, so that {@code a * b == product + error} */
+    private static double productError(double a, double b, double product) {
+        double aSplit = SPLITTER * a;
+        double aHigh = aSplit - (aSplit - a);
+        double aLow = a - aHigh;
+        double bSplit = SPLITTER * b;
+        double bHigh = bSplit - (bSplit - b);
+        double bLow = b - bHigh;
+        return ((aHigh * bHigh - product) + aHigh * bLow + aLow * bHigh) + aLow * bLow;
+    }
+
+    private void appendSign(double value) {
+        ensureCapacity(48);
+        if (value < 0) {
+            mBuffer[mLength++] = '-';
+        }
+    }
+
+    /** Writes {@code wholePart.fraction} with {@code fractionDigits} digits after the point */
+    private void appendFixed(long wholePart, long fraction, int fractionDigits) {
+        appendDigits(wholePart, 1);
+        mBuffer[mLength++] = '.';
+        appendDigits(fraction, Math.max(1, fractionDigits));
+    }
+
+    /** Writes a non negative value with at least {@code minDigits} digits, zero padded */
+    private void appendDigits(long value, int minDigits) {
+        int count = 0;
+        // Two digits per division, in int arithmetic as soon as the value fits
+        while (value > Integer.MAX_VALUE) {
+            long quotient = value / 100;
+            int pair = (int) (value - quotient * 100);
+            mDigits[count++] = DIGIT_ONES[pair];
+            mDigits[count++] = DIGIT_TENS[pair];
+            value = quotient;
+        }
+        int remaining = (int) value;
+        while (remaining >= 100) {
+            int quotient = remaining / 100;
+            int pair = remaining - quotient * 100;
+            mDigits[count++] = DIGIT_ONES[pair];
+            mDigits[count++] = DIGIT_TENS[pair];
+            remaining = quotient;
+        }
+        mDigits[count++] = DIGIT_ONES[remaining];
+        if (remaining >= 10) {
+            mDigits[count++] = DIGIT_TENS[remaining];
+        }
+        while (count < minDigits) {
+            mDigits[count++] = '0';
+        }
+        while (count > 0) {
+            mBuffer[mLength++] = mDigits[--count];
+        }
+    }
+
+    private LogRecordEncoder appendBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+        mLength += bytes.length;
+        return this;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (mLength + additional > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(2 * mBuffer.length, mLength + additional));
+        }
+    }
+
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public String toString() {
+        return new String(mBuffer, 0, mLength);
+    }
+}
@@ -6,8 +6,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.location.GnssMeasurementsEvent;
 import android.location.GnssNavigationMessage;
@@ -30,11 +28,20 @@ import com.amap.api.maps.MapsInitializer;
 import com.amap.api.services.core.ServiceSettings;
 import com.google.android.material.bottomnavigation.BottomNavigationView;
 
-import java.util.Arrays;
+import java.io.File;
 
 import cn.byyddyh.spoofingdetection.pseudorange.Ecef2EnuConverter;
 import cn.byyddyh.spoofingdetection.pseudorange.Ecef2LlaConverter;
+import cn.byyddyh.spoofingdetection.pseudorange.GeoidHeightGrid;
 import cn.byyddyh.spoofingdetection.pseudorange.Lla2EcefConverter;
+import cn.byyddyh.spoofingdetection.pseudorange.WarmStartSnapshot;
+import cn.byyddyh.spoofingdetection.process.FileUtils;
+import cn.byyddyh.spoofingdetection.protocol.FrameSink;
+import cn.byyddyh.spoofingdetection.protocol.StreamEncoder;
+import cn.byyddyh.spoofingdetection.sensor.GnssImuSynchronizer;
+import cn.byyddyh.spoofingdetection.sensor.ImuPipeline;
+import cn.byyddyh.spoofingdetection.sensor.ImuSampleRing;
+import cn.byyddyh.spoofingdetection.sockets.SocketClient;
 
 public class MainActivity extends AppCompatActivity implements LocationListener {
 
@@ -72,6 +79,28 @@ public class MainActivity extends AppCompatActivity implements LocationListener
 
     public static RealTimePositionVelocityCalculator mRealTimePositionVelocityCalculator;
 
+    /**
+     * 二进制数据流设备标识, 由ANDROID_ID得到
+     */
+    public static int streamDeviceId = 0;
+
+    /**
+     * 将编码后的数据帧发送给已连接的服务端, 未连接时丢弃
+     */
+    public static final FrameSink streamSink = (buffer, offset, length) -> {
+        SocketClient client = getConnectedClient();
+        if (client != null) {
+            client.sendFrame(buffer, offset, length);
+        }
+    };
+
+    /**
+     * 返回已连接的客户端, 未连接时返回null
+     */
+    public static SocketClient getConnectedClient() {
+        return settingsFragment.isConnected ? settingsFragment.client : null;
+    }
+
     @SuppressLint("NonConstantResourceId")
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -89,6 +118,9 @@ public class MainActivity extends AppCompatActivity implements LocationListener
         ServiceSettings.updatePrivacyShow(context, true, true);
         ServiceSettings.updatePrivacyAgree(context, true);
 
+        String androidId = Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID);
+        streamDeviceId = androidId == null ? 0 : androidId.hashCode() & 0x7fffffff;
+
         fileLogger = new FileLogger(getApplicationContext());
         logFragment.setFileLogger(fileLogger);
 
@@ -126,12 +158,16 @@ public class MainActivity extends AppCompatActivity implements LocationListener
 
         // 初始化RealTimePositionVelocityCalculator
         initCalculator();
+        // 离线大地水准面格网，用于对流层改正中的海拔高
+        GeoidHeightGrid.loadDefault(new FileUtils().createFileInSDCard(
+                GeoidHeightGrid.DEFAULT_FILE_NAME, "Download"));
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             GnssNavigationMessage.Callback gnssNavigationMessageListener = new GnssNavigationMessage.Callback() {
                 @Override
                 public void onGnssNavigationMessageReceived(GnssNavigationMessage event) {
                     mRealTimePositionVelocityCalculator.onGnssNavigationMessageReceived(event);
+                    fileLogger.writeNavigationMessage(event);
                     LogFragment.logText("text", "接收到了导航信息数据" + event.getSvid());
                 }
             };
@@ -158,6 +194,9 @@ public class MainActivity extends AppCompatActivity implements LocationListener
 
         mapFragment.setPositionVelocityCalculator(mRealTimePositionVelocityCalculator);
         mRealTimePositionVelocityCalculator.setMapFragment(mapFragment);
+        // 热启动：恢复上次保存的星历、电离层参数和接收机状态
+        mRealTimePositionVelocityCalculator.setWarmStartFile(
+                new File(getFilesDir(), WarmStartSnapshot.DEFAULT_FILE_NAME));
     }
 
     @Override
@@ -169,6 +208,7 @@ public class MainActivity extends AppCompatActivity implements LocationListener
         }
 
         stop_GPS_Sensors();
+        mRealTimePositionVelocityCalculator.saveWarmStart();
     }
 
     @Override
@@ -206,81 +246,106 @@ public class MainActivity extends AppCompatActivity implements LocationListener
     public static double[] acc_mea_temp = new double[3];
     private static int acc_count = 0;
     private static int display_count = 0;
+    /** 由主线程的GPS初值设定请求, 在IMU线程上清零速度和位置 */
+    private static volatile boolean mResetIntegration = false;
+    /** IMU状态历史, 融合时按GNSS观测时刻取对应的惯导状态 */
+    public static final GnssImuSynchronizer imuSynchronizer = new GnssImuSynchronizer();
+    private static long mLin_Acc_Nanos = 0;
+    /** 每200个原始采样发送一个IMU采样, 与原文本消息的频率一致 */
+    private static final int IMU_SEND_INTERVAL = 200;
+    /** 每帧1个采样, 不额外增加发送延迟 */
+    private static final int IMU_SAMPLES_PER_FRAME = 1;
+    private static StreamEncoder imuEncoder;
 
     /**
-     * 软件传感器监听器
+     * 线性加速度积分, 在{@link ImuPipeline}的消费线程上运行
      */
-    public static class My_Software_SensorListener implements SensorEventListener {
-        @Override
-        public void onAccuracyChanged(Sensor arg0, int arg1) {
-        }
-
+    public static class LinearAccelerationIntegrator implements ImuSampleRing.Consumer {
         @Override
-        public void onSensorChanged(SensorEvent event) {
-            double timestamp_sec = event.timestamp * NS2S;
-
-            if (event.sensor.getType() == Sensor.TYPE_LINEAR_ACCELERATION) {
-                for (int i = 0; i < event.values.length; i++) {
-                    mLin_Acc_Buffer[i] = event.values[i];
+        public void onSample(long timestampNanos, float x, float y, float z) {
+            double timestamp_sec = timestampNanos * NS2S;
+
+            if (mResetIntegration) {
+                mResetIntegration = false;
+                for (int i = 0; i < 3; i++) {
+                    vel_mea[i] = 0;
+                    pos_mea[i] = 0;
                 }
+                imuSynchronizer.clear();
+            }
 
-                double delta_timestamp_sec = timestamp_sec - mLin_Acc_Time;
-                mLin_Acc_Time = timestamp_sec;
-
-                if (acc_count < acc_len) {
-                    // 记录数据
-                    System.arraycopy(mLin_Acc_Buffer, 0, acc_mea[acc_count], 0, 3);
-                    acc_count++;
-
-                    // 计算加速度均值
-                    if (acc_count == acc_len - 1) {
-                        for (int i = 100; i < acc_len; i++) {
-                            for (int j = 0; j < 3; j++) {
-                                acc_mea_temp[j] = acc_mea_temp[j] + acc_mea[i][j] / (acc_len - 100);
-                            }
-                        }
-
-                        acc_mea_temp[0] = 0;
-                        acc_mea_temp[1] = 0;
-                    }
-                } else {
-                    for (int i = 0; i < 3; i++) {
-                        if (i == 2) {
-                            mLin_Acc_Buffer[i] = (mLin_Acc_Buffer[i] - acc_mea_temp[i]) / 10;
+            mLin_Acc_Buffer[0] = x;
+            mLin_Acc_Buffer[1] = y;
+            mLin_Acc_Buffer[2] = z;
+
+            double delta_timestamp_sec = timestamp_sec - mLin_Acc_Time;
+            mLin_Acc_Time = timestamp_sec;
+            long state_nanos = mLin_Acc_Nanos;
+            mLin_Acc_Nanos = timestampNanos;
+
+            if (acc_count < acc_len) {
+                // 记录数据
+                System.arraycopy(mLin_Acc_Buffer, 0, acc_mea[acc_count], 0, 3);
+                acc_count++;
+
+                // 计算加速度均值
+                if (acc_count == acc_len - 1) {
+                    for (int i = 100; i < acc_len; i++) {
+                        for (int j = 0; j < 3; j++) {
+                            acc_mea_temp[j] = acc_mea_temp[j] + acc_mea[i][j] / (acc_len - 100);
                         }
-                        vel_mea[i] = vel_mea[i] + mLin_Acc_Buffer[i] * delta_timestamp_sec;
-                        pos_mea[i] = pos_mea[i] + vel_mea[i] * delta_timestamp_sec;
                     }
 
-                    display_count++;
-                    if (display_count % 10 == 0) {
-                        if (display_count % 200 == 0) {
-                            if (settingsFragment.isConnected) {
-                                Log.d("发送数据", "this");
-                                settingsFragment.client.sendMsg("IMU_data:\t"
-                                        + Arrays.toString(mLin_Acc_Buffer) + "\t"
-                                        + Arrays.toString(vel_mea) + "\t"
-                                        + Arrays.toString(pos_mea));
+                    acc_mea_temp[0] = 0;
+                    acc_mea_temp[1] = 0;
+                }
+            } else {
+                // 融合结果对应较早的GNSS时刻, 修正到当前状态 (上一个采样时刻)
+                imuSynchronizer.applyCorrection(state_nanos, pos_mea, vel_mea);
+                for (int i = 0; i < 3; i++) {
+                    if (i == 2) {
+                        mLin_Acc_Buffer[i] = (mLin_Acc_Buffer[i] - acc_mea_temp[i]) / 10;
+                    }
+                    vel_mea[i] = vel_mea[i] + mLin_Acc_Buffer[i] * delta_timestamp_sec;
+                    pos_mea[i] = pos_mea[i] + vel_mea[i] * delta_timestamp_sec;
+                }
+                imuSynchronizer.add(timestampNanos, mLin_Acc_Buffer, vel_mea, pos_mea);
+
+                display_count++;
+                if (display_count % 10 == 0) {
+                    if (display_count % IMU_SEND_INTERVAL == 0) {
+                        if (getConnectedClient() != null) {
+                            if (imuEncoder == null) {
+                                imuEncoder = new StreamEncoder(streamDeviceId, IMU_SAMPLES_PER_FRAME);
+                                imuEncoder.setSink(streamSink);
                             }
-                            display_count = 0;
+                            // 帧满即发送
+                            imuEncoder.addImuSample(timestampNanos / 1000,
+                                    mLin_Acc_Buffer, vel_mea, pos_mea);
                         }
-                        logFragment.setAccView(mLin_Acc_Buffer);
-                        logFragment.setVelView(vel_mea);
-                        logFragment.setPosView(pos_mea, 1);
+                        display_count = 0;
                     }
-                    fileLogger.storeIMUData(mLin_Acc_Buffer, vel_mea, pos_mea, delta_timestamp_sec);
+                    logFragment.postImuViews(mLin_Acc_Buffer, vel_mea, pos_mea);
                 }
+                fileLogger.storeIMUData(mLin_Acc_Buffer, vel_mea, pos_mea, delta_timestamp_sec);
             }
         }
     }
 
-    public static My_Software_SensorListener mySoftwareSensorListener = new My_Software_SensorListener();
+    private static ImuPipeline imuPipeline;
 
+    /**
+     * 在独立的传感器线程上以硬件批处理方式接收线性加速度, 可重复调用
+     */
     public static void start_Software_Sensors() {
 
         try {
-            mSensor_Stream.registerListener(mySoftwareSensorListener,
-                    mSensor_Stream.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION), SensorManager.SENSOR_DELAY_FASTEST);
+            if (imuPipeline == null) {
+                imuPipeline = new ImuPipeline(mSensor_Stream, Sensor.TYPE_LINEAR_ACCELERATION,
+                        new LinearAccelerationIntegrator());
+            }
+            imuPipeline.start(SensorManager.SENSOR_DELAY_FASTEST,
+                    ImuPipeline.DEFAULT_MAX_REPORT_LATENCY_US);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -288,7 +353,9 @@ public class MainActivity extends AppCompatActivity implements LocationListener
 
     public static void stop_Software_Sensors() {
 
-        mSensor_Stream.unregisterListener(mySoftwareSensorListener);
+        if (imuPipeline != null) {
+            imuPipeline.stop();
+        }
 
         mOriBufferReady = false;
     }
@@ -303,6 +370,33 @@ public class MainActivity extends AppCompatActivity implements LocationListener
 
     public static double[] llaMeasure = new double[3];
 
+    /** 设定参考位置，之后的定位结果都相对于该位置 */
+    private void setReferenceLocation(double latitudeDeg, double longitudeDeg, double altitudeMeters) {
+        isPosSettings = true;
+        reference_degree_mea[0] = latitudeDeg;
+        reference_degree_mea[1] = longitudeDeg;
+        reference_degree_mea[2] = altitudeMeters;
+        reference_radians_mea[0] = Math.toRadians(latitudeDeg);
+        reference_radians_mea[1] = Math.toRadians(longitudeDeg);
+        reference_radians_mea[2] = altitudeMeters;
+        init_ecef_Meters = Lla2EcefConverter.convertFromLlaToEcefMeters(new Ecef2LlaConverter.GeodeticLlaValues(reference_radians_mea[0], reference_radians_mea[1], reference_radians_mea[2]));
+        enuValues = Ecef2EnuConverter.convertEcefToEnu(init_ecef_Meters[0], init_ecef_Meters[1], init_ecef_Meters[2],
+                reference_radians_mea[0], reference_radians_mea[1]);
+        mRealTimePositionVelocityCalculator.mPseudorangePositionVelocityFromRealTimeEvents.setReferencePosition(
+                (int) (latitudeDeg * 1E7),
+                (int) (longitudeDeg * 1E7),
+                (int) (altitudeMeters * 1E7));
+        // 积分在IMU线程上进行, 由其清零
+        mResetIntegration = true;
+    }
+
+    /** 热启动：用上次保存的定位结果作为参考位置，不必等待位置提供者的定位 */
+    public void restoreReferenceLocation(double latitudeDeg, double longitudeDeg, double altitudeMeters) {
+        if (!isPosSettings) {
+            setReferenceLocation(latitudeDeg, longitudeDeg, altitudeMeters);
+        }
+    }
+
     /** GPS传感器数据读取，用于设定初值 */
     @Override
     public void onLocationChanged(@NonNull Location location) {
@@ -314,24 +408,7 @@ public class MainActivity extends AppCompatActivity implements LocationListener
             int gps_len = 10;
             if (gps_count >= gps_len) {
                 if (!isPosSettings) {
-                    isPosSettings = true;
-                    reference_degree_mea[0] = location.getLatitude();
-                    reference_degree_mea[1] = location.getLongitude();
-                    reference_degree_mea[2] = location.getAltitude();
-                    reference_radians_mea[0] = Math.toRadians(location.getLatitude());
-                    reference_radians_mea[1] = Math.toRadians(location.getLongitude());
-                    reference_radians_mea[2] = location.getAltitude();
-                    init_ecef_Meters = Lla2EcefConverter.convertFromLlaToEcefMeters(new Ecef2LlaConverter.GeodeticLlaValues(reference_radians_mea[0], reference_radians_mea[1], reference_radians_mea[2]));
-                    enuValues = Ecef2EnuConverter.convertEcefToEnu(init_ecef_Meters[0], init_ecef_Meters[1], init_ecef_Meters[2],
-                            reference_radians_mea[0], reference_radians_mea[1]);
-                    mRealTimePositionVelocityCalculator.mPseudorangePositionVelocityFromRealTimeEvents.setReferencePosition(
-                            (int) (location.getLatitude() * 1E7),
-                            (int) (location.getLongitude() * 1E7),
-                            (int) (location.getAltitude() * 1E7));
-                    for (int i = 0; i < 3; i++) {
-                        vel_mea[i] = 0;
-                        pos_mea[i] = 0;
-                    }
+                    setReferenceLocation(location.getLatitude(), location.getLongitude(), location.getAltitude());
                 }
                 ++gps_count;
             } else {
@@ -3,6 +3,7 @@ package cn.byyddyh.spoofingdetection;
 import static cn.byyddyh.spoofingdetection.FileLogger.MeasurementProviderTAG;
 
 import android.graphics.Color;
+import android.location.GnssClock;
 import android.location.GnssMeasurementsEvent;
 import android.location.GnssNavigationMessage;
 import android.location.Location;
@@ -10,11 +11,18 @@ import android.location.LocationManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.concurrent.TimeUnit;
 
+import cn.byyddyh.spoofingdetection.diagnostics.PipelineLatencyMonitor;
+import cn.byyddyh.spoofingdetection.protocol.StreamEncoder;
 import cn.byyddyh.spoofingdetection.pseudorange.PseudorangePositionVelocityFromRealTimeEvents;
+import cn.byyddyh.spoofingdetection.pseudorange.WarmStartSnapshot;
 
 public class RealTimePositionVelocityCalculator {
     /** Residual analysis where user disabled residual plots */
@@ -51,6 +59,14 @@ public class RealTimePositionVelocityCalculator {
     private int mResidualPlotStatus;
     private double[] mGroundTruth = null;
     private int mPositionSolutionCount = 0;
+    private final PipelineLatencyMonitor mLatencyMonitor = new PipelineLatencyMonitor();
+    /** Messages of one epoch are sent as one frame, the limit only guards against alarm bursts */
+    private static final int STREAM_MESSAGES_PER_FRAME = 64;
+    private StreamEncoder mStreamEncoder;
+    private static final long WARM_START_SAVE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private File mWarmStartFile;
+    private long mLastWarmStartSaveMillis = 0;
+    private volatile int mSmoothingMode = PseudorangePositionVelocityFromRealTimeEvents.SMOOTHING_NONE;
 
     public RealTimePositionVelocityCalculator() {
         mPositionVelocityCalculationHandlerThread =
@@ -66,6 +82,7 @@ public class RealTimePositionVelocityCalculator {
                         try {
                             mPseudorangePositionVelocityFromRealTimeEvents =
                                     new PseudorangePositionVelocityFromRealTimeEvents();
+                            mPseudorangePositionVelocityFromRealTimeEvents.setLatencyMonitor(mLatencyMonitor);
                         } catch (Exception e) {
                             Log.e(
                                     MeasurementProviderTAG,
@@ -244,6 +261,8 @@ public class RealTimePositionVelocityCalculator {
 
     public void onGnssMeasurementsReceived(final GnssMeasurementsEvent event) {
         mAllowShowingRawResults = true;
+        final long arrivalNanos = PipelineLatencyMonitor.onEventArrived();
+        final long arrivalElapsedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
 
         final Runnable r =
                 () -> {
@@ -254,6 +273,7 @@ public class RealTimePositionVelocityCalculator {
                     if (mPseudorangePositionVelocityFromRealTimeEvents == null) {
                         return;
                     }
+                    mLatencyMonitor.beginEpoch(arrivalNanos);
                     try {
                         if (mResidualPlotStatus != RESIDUAL_MODE_DISABLED
                                 && mResidualPlotStatus != RESIDUAL_MODE_AT_INPUT_LOCATION) {
@@ -264,7 +284,16 @@ public class RealTimePositionVelocityCalculator {
                                     .setCorrectedResidualComputationTruthLocationLla(mGroundTruth);
                         }
                         mPseudorangePositionVelocityFromRealTimeEvents
-                                .computePositionVelocitySolutionsFromRawMeas(event);
+                                .computePositionVelocitySolutionsFromRawMeas(event,
+                                        arrivalElapsedRealtimeNanos);
+                        if (mLatencyMonitor.endEpoch()) {
+                            dumpLatencyStatistics();
+                        }
+                        streamSolution(event.getClock());
+                        if (System.currentTimeMillis() - mLastWarmStartSaveMillis
+                                >= WARM_START_SAVE_INTERVAL_MILLIS) {
+                            saveWarmStartNow();
+                        }
                         // Running on main thread instead of in parallel will improve the thread safety
                         if (mResidualPlotStatus != RESIDUAL_MODE_DISABLED) {
                             mMainActivity.runOnUiThread(
@@ -309,6 +338,136 @@ public class RealTimePositionVelocityCalculator {
         }
     }
 
+    /**
+     * Restores the state saved in {@code file} by an earlier run and keeps saving it there, once a
+     * minute while solutions are computed and on {@link #saveWarmStart()}. A recent snapshot also
+     * sets the reference location, so positioning does not wait for the location provider.
+     */
+    public void setWarmStartFile(final File file) {
+        mMyPositionVelocityCalculationHandler.post(
+                () -> {
+                    mWarmStartFile = file;
+                    if (mPseudorangePositionVelocityFromRealTimeEvents == null) {
+                        return;
+                    }
+                    WarmStartSnapshot snapshot = WarmStartSnapshot.read(file);
+                    if (snapshot == null) {
+                        return;
+                    }
+                    long nowMillis = System.currentTimeMillis();
+                    if (mPseudorangePositionVelocityFromRealTimeEvents.restoreWarmStart(
+                            snapshot, nowMillis)) {
+                        final double[] positionLatLngDeg = snapshot.getPositionLatLngDeg();
+                        mMainActivity.runOnUiThread(
+                                () -> mMainActivity.restoreReferenceLocation(positionLatLngDeg[0],
+                                        positionLatLngDeg[1], positionLatLngDeg[2]));
+                    }
+                    logText("Warm Start", "Snapshot of " + TimeUnit.MILLISECONDS.toSeconds(
+                            snapshot.getAgeMillis(nowMillis)) + " s ago restored\n", mCurrentColor);
+                });
+    }
+
+    /**
+     * Selects the pseudorange smoothing, one of the {@code SMOOTHING_*} constants of
+     * {@link PseudorangePositionVelocityFromRealTimeEvents}. Takes effect from the next epoch.
+     */
+    public void setSmoothingMode(final int smoothingMode) {
+        mSmoothingMode = smoothingMode;
+        mMyPositionVelocityCalculationHandler.post(
+                () -> {
+                    if (mPseudorangePositionVelocityFromRealTimeEvents != null) {
+                        mPseudorangePositionVelocityFromRealTimeEvents.setSmoothingMode(smoothingMode);
+                    }
+                });
+    }
+
+    public int getSmoothingMode() {
+        return mSmoothingMode;
+    }
+
+    /**
+     * Saves the current state for the next launch, without waiting for the periodic save
+     */
+    public void saveWarmStart() {
+        mMyPositionVelocityCalculationHandler.post(this::saveWarmStartNow);
+    }
+
+    /** Positioning thread */
+    private void saveWarmStartNow() {
+        if (mWarmStartFile == null || mPseudorangePositionVelocityFromRealTimeEvents == null) {
+            return;
+        }
+        long nowMillis = System.currentTimeMillis();
+        WarmStartSnapshot snapshot =
+                mPseudorangePositionVelocityFromRealTimeEvents.createWarmStartSnapshot(nowMillis);
+        if (snapshot == null) {
+            return;
+        }
+        mLastWarmStartSaveMillis = nowMillis;
+        try {
+            snapshot.write(mWarmStartFile);
+        } catch (IOException e) {
+            Log.e(MeasurementProviderTAG, " Exception saving the warm start snapshot : ", e);
+        }
+    }
+
+    /**
+     * Sends the solution, residuals, range measurements and alarms of the last epoch as one binary
+     * frame to the connected server
+     */
+    private void streamSolution(GnssClock clock) {
+        if (MainActivity.getConnectedClient() == null || !clock.hasFullBiasNanos()) {
+            return;
+        }
+        if (mStreamEncoder == null) {
+            mStreamEncoder = new StreamEncoder(MainActivity.streamDeviceId, STREAM_MESSAGES_PER_FRAME);
+            mStreamEncoder.setSink(MainActivity.streamSink);
+        }
+        long gpsTimeNanos = clock.getTimeNanos() - clock.getFullBiasNanos();
+        long gpsTimeMicros = gpsTimeNanos / 1000;
+        double[] posSolution = mPseudorangePositionVelocityFromRealTimeEvents.getPositionSolutionLatLngDeg();
+        double[] residuals = mPseudorangePositionVelocityFromRealTimeEvents.getPseudorangeResidualsMeters();
+        // Only solutions of this epoch, the measurements have to match the reported position
+        if (!Double.isNaN(posSolution[0])
+                && mPseudorangePositionVelocityFromRealTimeEvents.getSolutionTimeSinceGpsEpochNs()
+                == gpsTimeNanos) {
+            int satellites = 0;
+            for (double residual : residuals) {
+                if (!Double.isNaN(residual)) {
+                    satellites++;
+                }
+            }
+            mStreamEncoder.addPvtSolution(gpsTimeMicros, posSolution[0], posSolution[1], posSolution[2],
+                    mPseudorangePositionVelocityFromRealTimeEvents.getVelocitySolutionEnuMps(),
+                    mPseudorangePositionVelocityFromRealTimeEvents.getPositionVelocityUncertaintyEnu(),
+                    satellites);
+            mStreamEncoder.addSatelliteResiduals(gpsTimeMicros, residuals);
+            mStreamEncoder.addRangeMeasurements(gpsTimeMicros,
+                    mPseudorangePositionVelocityFromRealTimeEvents.getRawPseudorangesMeters(),
+                    mPseudorangePositionVelocityFromRealTimeEvents.getRawPseudorangeRatesMps(),
+                    mPseudorangePositionVelocityFromRealTimeEvents.getRawPseudorangeUncertaintiesMeters(),
+                    mPseudorangePositionVelocityFromRealTimeEvents.getSatellitePositionsEcefMeters());
+        }
+        mStreamEncoder.addAlarms(gpsTimeMicros,
+                mPseudorangePositionVelocityFromRealTimeEvents.getSpoofingAlarms());
+        mStreamEncoder.flush();
+    }
+
+    /**
+     * Writes the per-stage latency statistics into the log file and refreshes the diagnostics view.
+     * Runs on the positioning thread that owns the histograms.
+     */
+    private void dumpLatencyStatistics() {
+        if (LogFragment.writableFlag) {
+            for (int stage = 0; stage < mLatencyMonitor.getStageCount(); stage++) {
+                LogFragment.fileLogger.storeArrayData(
+                        "Latency " + mLatencyMonitor.getHistogram(stage).getName(),
+                        mLatencyMonitor.getStageSummaryMicros(stage));
+            }
+        }
+        LogFragment.setLatencyView(mLatencyMonitor.formatSummary());
+    }
+
     private void logEvent(String tag, String message, int color) {
         String composedTag = MeasurementProviderTAG + tag;
         Log.d(composedTag, message);
@@ -19,6 +19,7 @@ import androidx.fragment.app.Fragment;
 
 import java.net.SocketException;
 
+import cn.byyddyh.spoofingdetection.pseudorange.PseudorangePositionVelocityFromRealTimeEvents;
 import cn.byyddyh.spoofingdetection.sockets.NetworkUtils;
 import cn.byyddyh.spoofingdetection.sockets.SocketClient;
 import cn.byyddyh.spoofingdetection.sockets.SocketServer;
@@ -29,6 +30,7 @@ public class SettingsFragment extends Fragment {
     Button singleSettings;
     Button multipleSettings;
     Button endSettings;
+    Button smoothingSettings;
     Button downloadSettings;
     Button binding;
     Button ipGenerate;
@@ -52,6 +54,7 @@ public class SettingsFragment extends Fragment {
         singleSettings = inflate.findViewById(R.id.single_settings);
         multipleSettings = inflate.findViewById(R.id.multiple_settings);
         endSettings = inflate.findViewById(R.id.end_settings);
+        smoothingSettings = inflate.findViewById(R.id.smoothing_settings);
         downloadSettings = inflate.findViewById(R.id.download_settings);
         binding = inflate.findViewById(R.id.binding);
         lat = inflate.findViewById(R.id.Lat);
@@ -75,6 +78,17 @@ public class SettingsFragment extends Fragment {
             }
         });
 
+        // 伪距平滑方式：不平滑 / Hatch滤波（载波或多普勒辅助）
+        updateSmoothingText();
+        smoothingSettings.setOnClickListener(v -> {
+            mRealTimePositionVelocityCalculator.setSmoothingMode(
+                    mRealTimePositionVelocityCalculator.getSmoothingMode()
+                            == PseudorangePositionVelocityFromRealTimeEvents.SMOOTHING_HATCH
+                            ? PseudorangePositionVelocityFromRealTimeEvents.SMOOTHING_NONE
+                            : PseudorangePositionVelocityFromRealTimeEvents.SMOOTHING_HATCH);
+            updateSmoothingText();
+        });
+
         binding.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -130,4 +144,10 @@ public class SettingsFragment extends Fragment {
         });
         return inflate;
     }
+
+    private void updateSmoothingText() {
+        smoothingSettings.setText(mRealTimePositionVelocityCalculator.getSmoothingMode()
+                == PseudorangePositionVelocityFromRealTimeEvents.SMOOTHING_HATCH
+                ? "SMOOTHING: HATCH" : "SMOOTHING: NONE");
+    }
 }
@@ -0,0 +1,20 @@
+package cn.byyddyh.spoofingdetection.aggregation;
+
+import cn.byyddyh.spoofingdetection.detection.AlarmType;
+
+/**
+ * Receives the cross receiver alarms of an {@link AggregationServer}. Called from the group lane
+ * threads, implementations must be thread safe and must not block.
+ */
+public interface AggregationListener {
+
+    /**
+     * @param timeMicros   GPS time of the epoch in microseconds
+     * @param deviceId     first device of the pair
+     * @param peerDeviceId second device of the pair
+     * @param statistic    chi-square statistic that triggered the alarm
+     * @param threshold    threshold it was compared with
+     */
+    void onCrossReceiverAlarm(AlarmType type, long timeMicros, int deviceId, int peerDeviceId,
+                              double statistic, double threshold);
+}
@@ -0,0 +1,164 @@
+package cn.byyddyh.spoofingdetection.aggregation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.byyddyh.spoofingdetection.detection.AlarmType;
+import cn.byyddyh.spoofingdetection.protocol.StreamDecoder;
+import cn.byyddyh.spoofingdetection.sockets.FrameListener;
+import cn.byyddyh.spoofingdetection.sockets.NioEventLoop;
+import cn.byyddyh.spoofingdetection.sockets.NioPeer;
+
+/**
+ * Plain JVM service collecting the {@code StreamBatch} frames of many phones and cross checking
+ * co-located receivers for spoofing.
+ *
+ * <p>Threading:
+ *
+ * <ul>
+ *   <li>one {@link NioEventLoop} selector thread accepts connections and reads frames; it only
+ *       copies each frame and hands it to the ingest lane of its device id, so a device that
+ *       reconnects stays on the lane holding its state;
+ *   <li>{@link IngestLane}s decode frames and build per device epochs;
+ *   <li>{@link GroupLane}s own the proximity groups by grid cell and run the double difference
+ *       checks of their groups ({@link DoubleDifferenceChecker}); devices near a cell border also
+ *       join the neighbouring groups ({@link CellGrid}).
+ * </ul>
+ *
+ * <p>Every piece of state is owned by exactly one thread and looked up in primitive keyed maps, so
+ * the lanes scale with the number of cores without locks.
+ *
+ * <p>Usage: {@code java -cp <classes>:protobuf-nano.jar:commons-math3-3.6.1.jar
+ * cn.byyddyh.spoofingdetection.aggregation.AggregationServer [port] [cellSizeMeters]}
+ */
+public class AggregationServer implements FrameListener {
+
+    public static final int DEFAULT_PORT = 8899;
+    /** Devices within the same cell are compared, several times the expected device spread */
+    public static final double DEFAULT_CELL_SIZE_METERS = 2000.0;
+    /** Devices closer than this share a group even across a cell border */
+    private static final double NEIGHBOUR_MARGIN_CELLS = 0.25;
+
+    private final int mPort;
+    private final Statistics mStatistics = new Statistics();
+    private final GroupLane[] mGroupLanes;
+    private final IngestLane[] mIngestLanes;
+    private final NioEventLoop mLoop;
+
+    public AggregationServer(int port, double cellSizeMeters, AggregationListener listener)
+            throws IOException {
+        this(port, cellSizeMeters, listener,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                Math.max(1, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public AggregationServer(int port, double cellSizeMeters, AggregationListener listener,
+                             int ingestThreads, int groupThreads) throws IOException {
+        mPort = port;
+        CellGrid grid = new CellGrid(cellSizeMeters, NEIGHBOUR_MARGIN_CELLS * cellSizeMeters);
+        mGroupLanes = new GroupLane[groupThreads];
+        for (int i = 0; i < groupThreads; i++) {
+            mGroupLanes[i] = new GroupLane(i, grid, listener, mStatistics);
+        }
+        mIngestLanes = new IngestLane[ingestThreads];
+        for (int i = 0; i < ingestThreads; i++) {
+            mIngestLanes[i] = new IngestLane(i, mGroupLanes, grid, mStatistics);
+        }
+        mLoop = new NioEventLoop("AggregationServer", this);
+    }
+
+    public void start() throws IOException {
+        mLoop.listen(mPort);
+        mLoop.start();
+    }
+
+    public void close() {
+        mLoop.close();
+        for (IngestLane lane : mIngestLanes) {
+            lane.shutdown();
+        }
+        for (GroupLane lane : mGroupLanes) {
+            lane.shutdown();
+        }
+    }
+
+    public Statistics getStatistics() {
+        return mStatistics;
+    }
+
+    @Override
+    public void onConnected(NioPeer peer) {
+        mStatistics.connections.incrementAndGet();
+    }
+
+    @Override
+    public void onFrame(NioPeer peer, ByteBuffer payload) {
+        byte[] frame = new byte[payload.remaining()];
+        payload.get(frame);
+        int deviceId;
+        try {
+            deviceId = StreamDecoder.readDeviceId(frame, 0, frame.length);
+        } catch (IOException e) {
+            // Counted as malformed by the lane
+            deviceId = 0;
+        }
+        mIngestLanes[laneIndex(deviceId, mIngestLanes.length)].submit(frame);
+    }
+
+    private static int laneIndex(int deviceId, int lanes) {
+        return (int) ((deviceId & 0xffffffffL) % lanes);
+    }
+
+    @Override
+    public void onDisconnected(NioPeer peer) {
+        mStatistics.connections.decrementAndGet();
+    }
+
+    /**
+     * Counters shared by all threads
+     */
+    public static final class Statistics {
+        public final AtomicLong connections = new AtomicLong();
+        public final AtomicLong devices = new AtomicLong();
+        public final AtomicLong groups = new AtomicLong();
+        public final AtomicLong frames = new AtomicLong();
+        public final AtomicLong malformedFrames = new AtomicLong();
+        public final AtomicLong epochs = new AtomicLong();
+        public final AtomicLong lateEpochs = new AtomicLong();
+        public final AtomicLong pairChecks = new AtomicLong();
+        public final AtomicLong alarms = new AtomicLong();
+        public final AtomicLong deviceAlarms = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return "connections=" + connections.get()
+                    + " devices=" + devices.get()
+                    + " groups=" + groups.get()
+                    + " frames=" + frames.get()
+                    + " malformed=" + malformedFrames.get()
+                    + " epochs=" + epochs.get()
+                    + " late=" + lateEpochs.get()
+                    + " pairChecks=" + pairChecks.get()
+                    + " crossAlarms=" + alarms.get()
+                    + " deviceAlarms=" + deviceAlarms.get();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        double cellSizeMeters = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_CELL_SIZE_METERS;
+        AggregationServer server = new AggregationServer(port, cellSizeMeters,
+                (AlarmType type, long timeMicros, int deviceId, int peerDeviceId, double statistic,
+                 double threshold) ->
+                        System.out.printf("%s t=%.1f devices=%d/%d statistic=%.1f threshold=%.1f%n",
+                                type, timeMicros / 1.0e6, deviceId, peerDeviceId, statistic, threshold));
+        server.start();
+        System.out.println("Aggregation server listening on port " + port);
+        while (true) {
+            TimeUnit.SECONDS.sleep(10);
+            System.out.println(server.getStatistics());
+        }
+    }
+}
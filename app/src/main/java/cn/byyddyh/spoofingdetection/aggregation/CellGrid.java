@@ -0,0 +1,104 @@
+package cn.byyddyh.spoofingdetection.aggregation;
+
+/**
+ * Cubic ECEF grid the proximity groups are keyed by. A device belongs to the group of its home
+ * cell and also visits, as a guest, every neighbouring cell (up to 26) that comes within
+ * {@code marginMeters} of its position, so devices on both sides of a cell boundary still meet in
+ * a group. Both lanes evaluate the same pure functions, so a group can tell which other group
+ * sees a pair as well.
+ *
+ * <p>Cell keys pack the three cell indices into 21 bits each, enough for ±1 million cells of
+ * 10 m around the Earth.
+ */
+final class CellGrid {
+
+    private static final int AXIS_BITS = 21;
+    private static final long AXIS_MASK = (1L << AXIS_BITS) - 1;
+    /** Largest number of neighbours of a cell */
+    static final int MAX_NEIGHBOURS = 26;
+
+    private final double mCellSizeMeters;
+    private final double mMarginMeters;
+
+    CellGrid(double cellSizeMeters, double marginMeters) {
+        if (!(marginMeters >= 0 && marginMeters <= cellSizeMeters)) {
+            throw new IllegalArgumentException("Margin " + marginMeters
+                    + " m has to lie between 0 and the cell size " + cellSizeMeters + " m");
+        }
+        mCellSizeMeters = cellSizeMeters;
+        mMarginMeters = marginMeters;
+    }
+
+    /** Cell containing an ECEF position */
+    long cellKey(double[] positionEcefMeters) {
+        return pack((long) Math.floor(positionEcefMeters[0] / mCellSizeMeters),
+                (long) Math.floor(positionEcefMeters[1] / mCellSizeMeters),
+                (long) Math.floor(positionEcefMeters[2] / mCellSizeMeters));
+    }
+
+    /**
+     * Writes the neighbours of {@code homeCell} a device at {@code positionEcefMeters} visits as a
+     * guest into {@code cells}, which holds at least {@link #MAX_NEIGHBOURS} keys
+     *
+     * @return the number of cells written
+     */
+    int guestCells(long homeCell, double[] positionEcefMeters, long[] cells) {
+        long x = axis(homeCell, 2);
+        long y = axis(homeCell, 1);
+        long z = axis(homeCell, 0);
+        int count = 0;
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    if ((dx | dy | dz) != 0
+                            && isNear(x + dx, y + dy, z + dz, positionEcefMeters)) {
+                        cells[count++] = pack(x + dx, y + dy, z + dz);
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /** Whether a device of {@code homeCell} at {@code positionEcefMeters} visits {@code cell} */
+    boolean isGuest(long cell, long homeCell, double[] positionEcefMeters) {
+        if (cell == homeCell) {
+            return false;
+        }
+        long x = axis(cell, 2);
+        long y = axis(cell, 1);
+        long z = axis(cell, 0);
+        return Math.abs(x - axis(homeCell, 2)) <= 1
+                && Math.abs(y - axis(homeCell, 1)) <= 1
+                && Math.abs(z - axis(homeCell, 0)) <= 1
+                && isNear(x, y, z, positionEcefMeters);
+    }
+
+    /** Whether the cell with indices {@code x, y, z} lies within the margin of a position */
+    private boolean isNear(long x, long y, long z, double[] positionEcefMeters) {
+        double distanceSquared = square(axisDistance(x, positionEcefMeters[0]))
+                + square(axisDistance(y, positionEcefMeters[1]))
+                + square(axisDistance(z, positionEcefMeters[2]));
+        return distanceSquared <= mMarginMeters * mMarginMeters;
+    }
+
+    /** Distance along one axis from a coordinate to the cell interval with index {@code index} */
+    private double axisDistance(long index, double coordinate) {
+        double low = index * mCellSizeMeters;
+        double high = low + mCellSizeMeters;
+        return coordinate < low ? low - coordinate : coordinate > high ? coordinate - high : 0.0;
+    }
+
+    private static long pack(long x, long y, long z) {
+        return ((x & AXIS_MASK) << (2 * AXIS_BITS)) | ((y & AXIS_MASK) << AXIS_BITS) | (z & AXIS_MASK);
+    }
+
+    /** Sign extended index of axis {@code shift} (2 = x, 1 = y, 0 = z) */
+    private static long axis(long cell, int shift) {
+        return (cell << (64 - AXIS_BITS * (shift + 1))) >> (64 - AXIS_BITS);
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+}
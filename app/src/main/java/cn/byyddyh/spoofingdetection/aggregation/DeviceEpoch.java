@@ -0,0 +1,57 @@
+package cn.byyddyh.spoofingdetection.aggregation;
+
+import java.util.Arrays;
+
+/**
+ * Solution and raw range measurements of one device at one epoch. Arrays are indexed by
+ * {@code svid - 1}, missing satellites are NaN. An epoch is filled by the ingest lane and read
+ * only afterwards by the group lanes it is handed to.
+ */
+final class DeviceEpoch {
+
+    static final int MAX_SVID = 32;
+
+    final int deviceId;
+    /** GPS time of the measurements in microseconds */
+    final long timeMicros;
+    final double[] positionEcefMeters = new double[3];
+    /** Root sum square of the reported ENU position uncertainties */
+    final double positionSigmaMeters;
+    /** Grid cell of the group the device belongs to, see {@link CellGrid} */
+    long homeCell;
+
+    final double[] pseudorangesMeters = new double[MAX_SVID];
+    final double[] pseudorangeRatesMps = new double[MAX_SVID];
+    final double[] pseudorangeSigmasMeters = new double[MAX_SVID];
+    final double[] satellitePositionsEcefMeters = new double[3 * MAX_SVID];
+    int satelliteCount;
+
+    DeviceEpoch(int deviceId, long timeMicros, double[] positionEcefMeters, double positionSigmaMeters) {
+        this.deviceId = deviceId;
+        this.timeMicros = timeMicros;
+        System.arraycopy(positionEcefMeters, 0, this.positionEcefMeters, 0, 3);
+        this.positionSigmaMeters = positionSigmaMeters;
+        Arrays.fill(pseudorangesMeters, Double.NaN);
+    }
+
+    void addMeasurement(int svid, double pseudorangeMeters, double rateMps, double sigmaMeters,
+                        double x, double y, double z) {
+        if (svid < 1 || svid > MAX_SVID || Double.isNaN(pseudorangeMeters)) {
+            return;
+        }
+        int index = svid - 1;
+        if (Double.isNaN(pseudorangesMeters[index])) {
+            satelliteCount++;
+        }
+        pseudorangesMeters[index] = pseudorangeMeters;
+        pseudorangeRatesMps[index] = rateMps;
+        pseudorangeSigmasMeters[index] = sigmaMeters;
+        satellitePositionsEcefMeters[3 * index] = x;
+        satellitePositionsEcefMeters[3 * index + 1] = y;
+        satellitePositionsEcefMeters[3 * index + 2] = z;
+    }
+
+    boolean hasMeasurement(int index) {
+        return !Double.isNaN(pseudorangesMeters[index]);
+    }
+}
@@ -0,0 +1,238 @@
+package cn.byyddyh.spoofingdetection.aggregation;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import cn.byyddyh.spoofingdetection.protocol.StreamEncoder;
+import cn.byyddyh.spoofingdetection.pseudorange.Ecef2LlaConverter;
+import cn.byyddyh.spoofingdetection.pseudorange.Lla2EcefConverter;
+import cn.byyddyh.spoofingdetection.sockets.FrameListener;
+import cn.byyddyh.spoofingdetection.sockets.NioEventLoop;
+import cn.byyddyh.spoofingdetection.sockets.NioPeer;
+
+/**
+ * Load generator for the {@link AggregationServer}: simulates phones at several sites, each on its
+ * own connection, streaming a PVT solution and raw range measurements once per simulated second.
+ *
+ * <p>The constellation is a 24 satellite Walker-like GPS constellation; Earth rotation, the
+ * atmosphere and satellite clocks are left out as they cancel in the double differences of close
+ * receivers. Two faults are injected:
+ *
+ * <ul>
+ *   <li>the second device of site 1 reports a position {@link #FAKE_OFFSET_METERS} east of where
+ *       its ranges were measured, expected to raise
+ *       {@code AlarmType#CROSS_RECEIVER_INCONSISTENT};
+ *   <li>after {@code spoofAfterSeconds} all devices of site 0 receive a single antenna spoofer at
+ *       the site center simulating a position {@link #SPOOF_OFFSET_METERS} north, expected to raise
+ *       {@code AlarmType#CROSS_RECEIVER_COLLAPSE}.
+ * </ul>
+ *
+ * <p>Usage: {@code DeviceSimulator [host] [port] [devices] [sites] [seconds] [spoofAfterSeconds]
+ * [speedup]}
+ */
+public class DeviceSimulator implements FrameListener {
+
+    private static final double ORBIT_RADIUS_METERS = 26_560_000.0;
+    private static final double ORBIT_RATE_RADIANS_PER_SECOND = 2 * Math.PI / 43_082.0;
+    private static final double INCLINATION_RADIANS = Math.toRadians(55.0);
+    private static final int PLANES = 6;
+    private static final int SATELLITES_PER_PLANE = 4;
+    private static final double ELEVATION_MASK_SINE = Math.sin(Math.toRadians(10.0));
+    private static final int MAX_SVID = 32;
+
+    private static final double SITE_SPACING_DEGREES = 0.1;
+    private static final double SITE_RADIUS_METERS = 100.0;
+    private static final double PSEUDORANGE_SIGMA_METERS = 3.0;
+    private static final double RATE_SIGMA_MPS = 0.1;
+    private static final double REPORTED_POSITION_SIGMA_METERS = 1.0;
+    private static final double REPORTED_UNCERTAINTY_METERS = 3.0;
+    private static final double FAKE_OFFSET_METERS = 80.0;
+    private static final double SPOOF_OFFSET_METERS = 400.0;
+    /** Start of the simulation in GPS microseconds */
+    private static final long START_MICROS = 1_300_000_000_000_000L;
+
+    private final Random mRandom = new Random(42);
+    private final SimulatedDevice[] mDevices;
+    private final NioEventLoop mLoop;
+
+    public DeviceSimulator(int devices, int sites) throws Exception {
+        mLoop = new NioEventLoop("DeviceSimulator", this);
+        mDevices = new SimulatedDevice[devices];
+        for (int i = 0; i < devices; i++) {
+            int site = i % sites;
+            mDevices[i] = new SimulatedDevice(i + 1, site, siteCenter(site),
+                    site == 1 && i / sites == 1);
+        }
+    }
+
+    public void run(String host, int port, int seconds, int spoofAfterSeconds, double speedup)
+            throws Exception {
+        mLoop.start();
+        for (SimulatedDevice device : mDevices) {
+            NioPeer peer = mLoop.connect(host, port);
+            device.encoder.setSink((buffer, offset, length) -> peer.send(buffer, offset, length));
+        }
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / speedup);
+        long next = System.nanoTime();
+        for (int second = 0; second < seconds; second++) {
+            boolean spoofing = spoofAfterSeconds >= 0 && second >= spoofAfterSeconds;
+            for (SimulatedDevice device : mDevices) {
+                device.sendEpoch(second, spoofing && device.site == 0);
+            }
+            next += periodNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        }
+        // Let the selector thread drain the queued frames
+        TimeUnit.SECONDS.sleep(1);
+        mLoop.close();
+    }
+
+    @Override
+    public void onConnected(NioPeer peer) {
+    }
+
+    @Override
+    public void onFrame(NioPeer peer, ByteBuffer payload) {
+    }
+
+    @Override
+    public void onDisconnected(NioPeer peer) {
+        System.err.println("Connection " + peer.getId() + " closed");
+    }
+
+    private static double[] siteCenter(int site) {
+        return Lla2EcefConverter.convertFromLlaToEcefMeters(new Ecef2LlaConverter.GeodeticLlaValues(
+                Math.toRadians(39.9 + SITE_SPACING_DEGREES * site), Math.toRadians(116.3), 50.0));
+    }
+
+    /** Satellite position at {@code timeSeconds}, svid 1..24 */
+    private static void satellitePosition(int svid, double timeSeconds, double[] out) {
+        int plane = (svid - 1) / SATELLITES_PER_PLANE;
+        int slot = (svid - 1) % SATELLITES_PER_PLANE;
+        double node = 2 * Math.PI * plane / PLANES;
+        double argument = 2 * Math.PI * slot / SATELLITES_PER_PLANE + 0.5 * plane
+                + ORBIT_RATE_RADIANS_PER_SECOND * timeSeconds;
+        double cosU = Math.cos(argument);
+        double sinU = Math.sin(argument);
+        out[0] = ORBIT_RADIUS_METERS * (Math.cos(node) * cosU - Math.sin(node) * sinU * Math.cos(INCLINATION_RADIANS));
+        out[1] = ORBIT_RADIUS_METERS * (Math.sin(node) * cosU + Math.cos(node) * sinU * Math.cos(INCLINATION_RADIANS));
+        out[2] = ORBIT_RADIUS_METERS * sinU * Math.sin(INCLINATION_RADIANS);
+    }
+
+    /** Moves {@code origin} by {@code east} and {@code north} meters */
+    private static double[] offset(double[] origin, double east, double north) {
+        Ecef2LlaConverter.GeodeticLlaValues lla =
+                Ecef2LlaConverter.convertECEFToLLACloseForm(origin[0], origin[1], origin[2]);
+        double sinLat = Math.sin(lla.latitudeRadians);
+        double cosLat = Math.cos(lla.latitudeRadians);
+        double sinLon = Math.sin(lla.longitudeRadians);
+        double cosLon = Math.cos(lla.longitudeRadians);
+        return new double[]{
+                origin[0] - sinLon * east - sinLat * cosLon * north,
+                origin[1] + cosLon * east - sinLat * sinLon * north,
+                origin[2] + cosLat * north};
+    }
+
+    private static double norm(double[] vector) {
+        return Math.sqrt(vector[0] * vector[0] + vector[1] * vector[1] + vector[2] * vector[2]);
+    }
+
+    private static double distance(double[] a, double[] b) {
+        double dx = a[0] - b[0];
+        double dy = a[1] - b[1];
+        double dz = a[2] - b[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    private final class SimulatedDevice {
+        final int site;
+        final StreamEncoder encoder;
+        final double[] siteCenter;
+        final double[] truePosition;
+        final double[] reportedOffsetPosition;
+        final double clockBiasMeters;
+        final double clockDriftMps;
+        final long epochOffsetMicros;
+
+        final double[] pseudoranges = new double[MAX_SVID];
+        final double[] rates = new double[MAX_SVID];
+        final double[] uncertainties = new double[MAX_SVID];
+        final double[][] satellitePositions = new double[MAX_SVID][3];
+        final double[] satellite = new double[3];
+        final double[] satelliteLater = new double[3];
+        final double[] velocity = new double[3];
+        final double[] uncertaintyEnu = new double[3];
+
+        SimulatedDevice(int deviceId, int site, double[] siteCenter, boolean fakesPosition) {
+            this.site = site;
+            this.siteCenter = siteCenter;
+            encoder = new StreamEncoder(deviceId, 8, 4096);
+            truePosition = offset(siteCenter, (2 * mRandom.nextDouble() - 1) * SITE_RADIUS_METERS,
+                    (2 * mRandom.nextDouble() - 1) * SITE_RADIUS_METERS);
+            reportedOffsetPosition = fakesPosition ? offset(truePosition, FAKE_OFFSET_METERS, 0) : truePosition;
+            clockBiasMeters = mRandom.nextDouble() * 1.0e5;
+            clockDriftMps = (2 * mRandom.nextDouble() - 1) * 50.0;
+            epochOffsetMicros = mRandom.nextInt(30_000);
+            Arrays.fill(uncertainties, PSEUDORANGE_SIGMA_METERS);
+            Arrays.fill(uncertaintyEnu, REPORTED_UNCERTAINTY_METERS);
+        }
+
+        void sendEpoch(int second, boolean spoofed) {
+            long timeMicros = START_MICROS + second * 1_000_000L + epochOffsetMicros;
+            double timeSeconds = second + epochOffsetMicros / 1.0e6;
+            double bias = clockBiasMeters + clockDriftMps * timeSeconds;
+            // A single antenna spoofer replays the ranges of a fake position, delayed by its distance
+            double[] rangeOrigin = spoofed ? offset(siteCenter, 0, SPOOF_OFFSET_METERS) : truePosition;
+            double commonDelay = spoofed ? distance(truePosition, siteCenter) : 0;
+            double[] reported = spoofed ? rangeOrigin : reportedOffsetPosition;
+
+            Arrays.fill(pseudoranges, Double.NaN);
+            int visible = 0;
+            for (int svid = 1; svid <= PLANES * SATELLITES_PER_PLANE; svid++) {
+                satellitePosition(svid, timeSeconds, satellite);
+                double range = distance(satellite, rangeOrigin);
+                double elevationSine = ((satellite[0] - rangeOrigin[0]) * rangeOrigin[0]
+                        + (satellite[1] - rangeOrigin[1]) * rangeOrigin[1]
+                        + (satellite[2] - rangeOrigin[2]) * rangeOrigin[2])
+                        / (range * norm(rangeOrigin));
+                if (elevationSine < ELEVATION_MASK_SINE) {
+                    continue;
+                }
+                satellitePosition(svid, timeSeconds + 1.0, satelliteLater);
+                double rangeRate = distance(satelliteLater, rangeOrigin) - range;
+                pseudoranges[svid - 1] = range + commonDelay + bias
+                        + mRandom.nextGaussian() * PSEUDORANGE_SIGMA_METERS;
+                rates[svid - 1] = rangeRate + clockDriftMps + mRandom.nextGaussian() * RATE_SIGMA_MPS;
+                System.arraycopy(satellite, 0, satellitePositions[svid - 1], 0, 3);
+                visible++;
+            }
+
+            Ecef2LlaConverter.GeodeticLlaValues lla = Ecef2LlaConverter.convertECEFToLLACloseForm(
+                    reported[0] + mRandom.nextGaussian() * REPORTED_POSITION_SIGMA_METERS,
+                    reported[1] + mRandom.nextGaussian() * REPORTED_POSITION_SIGMA_METERS,
+                    reported[2] + mRandom.nextGaussian() * REPORTED_POSITION_SIGMA_METERS);
+            encoder.addPvtSolution(timeMicros, Math.toDegrees(lla.latitudeRadians),
+                    Math.toDegrees(lla.longitudeRadians), lla.altitudeMeters, velocity,
+                    uncertaintyEnu, visible);
+            encoder.addRangeMeasurements(timeMicros, pseudoranges, rates, uncertainties,
+                    satellitePositions);
+            encoder.flush();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : AggregationServer.DEFAULT_PORT;
+        int devices = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int sites = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 60;
+        int spoofAfterSeconds = args.length > 5 ? Integer.parseInt(args[5]) : 30;
+        double speedup = args.length > 6 ? Double.parseDouble(args[6]) : 1.0;
+        new DeviceSimulator(devices, sites).run(host, port, seconds, spoofAfterSeconds, speedup);
+    }
+}
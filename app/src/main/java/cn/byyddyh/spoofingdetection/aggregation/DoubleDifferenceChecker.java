@@ -0,0 +1,228 @@
+package cn.byyddyh.spoofingdetection.aggregation;
+
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+
+/**
+ * Cross receiver consistency test of two nearby devices A and B.
+ *
+ * <p>The single difference of satellite {@code i}, {@code SD_i = rho_A,i - rho_B,i}, removes the
+ * satellite clock and, for short baselines, the atmosphere; the double difference against a
+ * reference satellite {@code k}, {@code DD_i = SD_i - SD_k}, also removes both receiver clocks.
+ * What is left is geometry: {@code DD_i = |s_i - r_A| - |s_i - r_B| - (|s_k - r_A| - |s_k - r_B|)}
+ * with the positions reported by the devices. Three chi-square statistics are computed from the
+ * measured double differences:
+ *
+ * <ul>
+ *   <li>against the reported relative position, failing when a device reports a position its
+ *       ranges do not support;
+ *   <li>against a zero baseline, passing when all signals of both devices come from one
+ *       transmitter;
+ *   <li>against an anchor baseline, the relative position before a suspected collapse.
+ * </ul>
+ *
+ * <p>The double differences share the reference satellite, so their covariance is
+ * {@code D + s_k * 1 1^T}; its inverse is applied with the Sherman–Morrison formula in {@code O(n)}.
+ * The reported position uncertainties enter the diagonal through the line of sight difference,
+ * neglecting their correlation between satellites. The pseudoranges of B are moved to the epoch of
+ * A with B's pseudorange rate; the receiver clock drift in the rate cancels in the double
+ * differences.
+ *
+ * <p>Workspaces are preallocated, an instance must only be used from a single thread.
+ */
+final class DoubleDifferenceChecker {
+
+    /** Probability of false alarm of each statistic per pair and epoch */
+    static final double DEFAULT_FALSE_ALARM_PROBABILITY = 1.0e-4;
+    /** Common satellites needed, i.e. at least four double differences */
+    static final int MIN_COMMON_SATELLITES = 5;
+    /** Epochs of the two devices further apart are not compared */
+    static final double MAX_EPOCH_OFFSET_SECONDS = 0.5;
+
+    private static final int MAX_SVID = DeviceEpoch.MAX_SVID;
+    /** Phones tend to report optimistic code uncertainties */
+    private static final double PSEUDORANGE_SIGMA_FLOOR_METERS = 3.0;
+    private static final double POSITION_SIGMA_FLOOR_METERS = 2.0;
+    private static final double MICROS_PER_SECOND = 1.0e6;
+
+    private final double[] mChiSquareThresholds = new double[MAX_SVID + 1];
+
+    // Per common satellite values, compact indices 0..count-1
+    private final double[] mLineOfSight = new double[3 * MAX_SVID];
+    private final double[] mElevationSine = new double[MAX_SVID];
+    private final double[] mMeasuredSd = new double[MAX_SVID];
+    private final double[] mPredictedSd = new double[MAX_SVID];
+    private final double[] mMeasurementVariance = new double[MAX_SVID];
+    private final double[] mResiduals = new double[MAX_SVID];
+    private final double[] mVariances = new double[MAX_SVID];
+    private int mCount;
+    private int mReference;
+
+    // Results of the last check
+    private int mDegreesOfFreedom;
+    private double mStatistic;
+    private double mZeroBaselineStatistic;
+    private double mAnchorStatistic;
+
+    DoubleDifferenceChecker() {
+        this(DEFAULT_FALSE_ALARM_PROBABILITY);
+    }
+
+    DoubleDifferenceChecker(double falseAlarmProbability) {
+        mChiSquareThresholds[0] = Double.POSITIVE_INFINITY;
+        for (int dof = 1; dof <= MAX_SVID; dof++) {
+            mChiSquareThresholds[dof] = new ChiSquaredDistribution(null, dof)
+                    .inverseCumulativeProbability(1.0 - falseAlarmProbability);
+        }
+    }
+
+    /**
+     * Compares the double differences of {@code a} and {@code b}.
+     *
+     * @param anchorBaselineEcefMeters {@code r_B - r_A} before a suspected collapse, or null
+     * @return false if the epochs are too far apart or too few satellites are common
+     */
+    boolean check(DeviceEpoch a, DeviceEpoch b, double[] anchorBaselineEcefMeters) {
+        mAnchorStatistic = Double.NaN;
+        double dt = (a.timeMicros - b.timeMicros) / MICROS_PER_SECOND;
+        if (Math.abs(dt) > MAX_EPOCH_OFFSET_SECONDS || !collect(a, b, dt)) {
+            mDegreesOfFreedom = 0;
+            mStatistic = Double.NaN;
+            mZeroBaselineStatistic = Double.NaN;
+            return false;
+        }
+        double positionVariance = square(Math.max(a.positionSigmaMeters, POSITION_SIGMA_FLOOR_METERS))
+                + square(Math.max(b.positionSigmaMeters, POSITION_SIGMA_FLOOR_METERS));
+        int k = mReference;
+
+        // Reported relative position
+        int n = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (i == k) {
+                continue;
+            }
+            mResiduals[n] = (mMeasuredSd[i] - mMeasuredSd[k]) - (mPredictedSd[i] - mPredictedSd[k]);
+            mVariances[n] = mMeasurementVariance[i] + lineOfSightDifferenceSquared(i, k) * positionVariance;
+            n++;
+        }
+        mDegreesOfFreedom = n;
+        mStatistic = chiSquare(n, mMeasurementVariance[k]);
+
+        // Zero baseline, no position uncertainty involved
+        n = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (i == k) {
+                continue;
+            }
+            mResiduals[n] = mMeasuredSd[i] - mMeasuredSd[k];
+            mVariances[n] = mMeasurementVariance[i];
+            n++;
+        }
+        mZeroBaselineStatistic = chiSquare(n, mMeasurementVariance[k]);
+
+        // Anchor baseline, linearized SD_i = los_i . (r_B - r_A)
+        if (anchorBaselineEcefMeters != null) {
+            n = 0;
+            for (int i = 0; i < mCount; i++) {
+                if (i == k) {
+                    continue;
+                }
+                double predicted = 0;
+                for (int axis = 0; axis < 3; axis++) {
+                    predicted += (mLineOfSight[3 * i + axis] - mLineOfSight[3 * k + axis])
+                            * anchorBaselineEcefMeters[axis];
+                }
+                mResiduals[n] = mMeasuredSd[i] - mMeasuredSd[k] - predicted;
+                mVariances[n] = mMeasurementVariance[i]
+                        + lineOfSightDifferenceSquared(i, k) * positionVariance;
+                n++;
+            }
+            mAnchorStatistic = chiSquare(n, mMeasurementVariance[k]);
+        }
+        return true;
+    }
+
+    int getDegreesOfFreedom() {
+        return mDegreesOfFreedom;
+    }
+
+    double getThreshold() {
+        return mChiSquareThresholds[mDegreesOfFreedom];
+    }
+
+    /** Statistic against the reported relative position */
+    double getStatistic() {
+        return mStatistic;
+    }
+
+    double getZeroBaselineStatistic() {
+        return mZeroBaselineStatistic;
+    }
+
+    /** Statistic against the anchor baseline, NaN if none was given */
+    double getAnchorStatistic() {
+        return mAnchorStatistic;
+    }
+
+    /** Fills the per satellite arrays for the satellites tracked by both devices */
+    private boolean collect(DeviceEpoch a, DeviceEpoch b, double dt) {
+        double[] rA = a.positionEcefMeters;
+        double[] rB = b.positionEcefMeters;
+        double normA = Math.sqrt(rA[0] * rA[0] + rA[1] * rA[1] + rA[2] * rA[2]);
+        mCount = 0;
+        mReference = -1;
+        double bestElevation = Double.NEGATIVE_INFINITY;
+        for (int svIndex = 0; svIndex < MAX_SVID; svIndex++) {
+            if (!a.hasMeasurement(svIndex) || !b.hasMeasurement(svIndex)) {
+                continue;
+            }
+            double sx = a.satellitePositionsEcefMeters[3 * svIndex];
+            double sy = a.satellitePositionsEcefMeters[3 * svIndex + 1];
+            double sz = a.satellitePositionsEcefMeters[3 * svIndex + 2];
+            double rangeA = Math.sqrt(square(sx - rA[0]) + square(sy - rA[1]) + square(sz - rA[2]));
+            double rangeB = Math.sqrt(square(sx - rB[0]) + square(sy - rB[1]) + square(sz - rB[2]));
+            int i = mCount++;
+            mLineOfSight[3 * i] = (sx - rA[0]) / rangeA;
+            mLineOfSight[3 * i + 1] = (sy - rA[1]) / rangeA;
+            mLineOfSight[3 * i + 2] = (sz - rA[2]) / rangeA;
+            mElevationSine[i] = (mLineOfSight[3 * i] * rA[0] + mLineOfSight[3 * i + 1] * rA[1]
+                    + mLineOfSight[3 * i + 2] * rA[2]) / normA;
+            mMeasuredSd[i] = a.pseudorangesMeters[svIndex]
+                    - (b.pseudorangesMeters[svIndex] + b.pseudorangeRatesMps[svIndex] * dt);
+            mPredictedSd[i] = rangeA - rangeB;
+            mMeasurementVariance[i] =
+                    square(Math.max(a.pseudorangeSigmasMeters[svIndex], PSEUDORANGE_SIGMA_FLOOR_METERS))
+                    + square(Math.max(b.pseudorangeSigmasMeters[svIndex], PSEUDORANGE_SIGMA_FLOOR_METERS));
+            if (mElevationSine[i] > bestElevation) {
+                bestElevation = mElevationSine[i];
+                mReference = i;
+            }
+        }
+        return mCount >= MIN_COMMON_SATELLITES;
+    }
+
+    /**
+     * {@code v^T (D + s 1 1^T)^-1 v} of the first {@code n} residuals and variances
+     */
+    private double chiSquare(int n, double referenceVariance) {
+        double weightedSquares = 0;
+        double weightedSum = 0;
+        double weightSum = 0;
+        for (int i = 0; i < n; i++) {
+            double weight = 1.0 / mVariances[i];
+            weightedSquares += mResiduals[i] * mResiduals[i] * weight;
+            weightedSum += mResiduals[i] * weight;
+            weightSum += weight;
+        }
+        return weightedSquares - weightedSum * weightedSum / (1.0 / referenceVariance + weightSum);
+    }
+
+    private double lineOfSightDifferenceSquared(int i, int k) {
+        return square(mLineOfSight[3 * i] - mLineOfSight[3 * k])
+                + square(mLineOfSight[3 * i + 1] - mLineOfSight[3 * k + 1])
+                + square(mLineOfSight[3 * i + 2] - mLineOfSight[3 * k + 2]);
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+}
@@ -0,0 +1,266 @@
+package cn.byyddyh.spoofingdetection.aggregation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import cn.byyddyh.spoofingdetection.detection.AlarmType;
+
+/**
+ * One worker thread owning a share of the proximity groups. Devices are grouped by the grid cell of
+ * their reported ECEF position; every cell maps to exactly one lane, so group and pair state is
+ * only touched by that lane's thread and needs no locking, and lanes check their groups in
+ * parallel. Devices near the border of their home cell join the neighbouring groups as guests
+ * ({@link CellGrid}); a group checks its members with each other and with its guests, and a pair
+ * seen by two groups is only checked by the one with the smaller cell key.
+ *
+ * <p>A group collects the epochs of its devices for one GPS second and is checked when the first
+ * epoch of the next second arrives or, at the latest, {@link #EVALUATION_DELAY_NANOS} after its
+ * last arrival. Each device is compared with the {@link #MAX_PARTNERS} devices following it in
+ * device id order, so it takes part in up to {@code 2 * MAX_PARTNERS} pairs and the work per epoch
+ * stays linear in the group size.
+ */
+final class GroupLane {
+
+    /** Partners checked per device */
+    static final int MAX_PARTNERS = 3;
+    /** Waiting time for late devices before an epoch is checked */
+    private static final long EVALUATION_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(700);
+    private static final long SWEEP_PERIOD_MILLIS = 250;
+    /** Groups and pairs without updates are dropped */
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long PAIR_TIMEOUT_MICROS = TimeUnit.SECONDS.toMicros(10);
+
+    /** Reported baseline before a collapse has to be at least this long */
+    private static final double MIN_ANCHOR_BASELINE_METERS = 20.0;
+    /** Reported baseline counted as collapsed */
+    private static final double COLLAPSED_BASELINE_METERS = 10.0;
+    /** Consecutive collapsed epochs before the alarm */
+    private static final int COLLAPSE_EPOCHS = 3;
+
+    private static final Comparator<DeviceEpoch> BY_DEVICE_ID =
+            (first, second) -> Integer.compare(first.deviceId, second.deviceId);
+
+    private final ScheduledExecutorService mExecutor;
+    private final AggregationListener mListener;
+    private final AggregationServer.Statistics mStatistics;
+    private final CellGrid mGrid;
+    private final LongObjectHashMap<ProximityGroup> mGroups = new LongObjectHashMap<>();
+    private final DoubleDifferenceChecker mChecker = new DoubleDifferenceChecker();
+    private final double[] mBaseline = new double[3];
+    private long[] mRemovalScratch = new long[16];
+
+    GroupLane(int index, CellGrid grid, AggregationListener listener,
+              AggregationServer.Statistics statistics) {
+        mGrid = grid;
+        mListener = listener;
+        mStatistics = statistics;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "GroupLane-" + index);
+            thread.setDaemon(true);
+            return thread;
+        });
+        mExecutor.scheduleAtFixedRate(this::sweep, SWEEP_PERIOD_MILLIS, SWEEP_PERIOD_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands an epoch of a device in {@code cellKey} to the lane thread
+     */
+    void submit(long cellKey, DeviceEpoch epoch) {
+        mExecutor.execute(() -> onEpoch(cellKey, epoch));
+    }
+
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void onEpoch(long cellKey, DeviceEpoch epoch) {
+        ProximityGroup group = mGroups.get(cellKey);
+        if (group == null) {
+            group = new ProximityGroup(cellKey);
+            mGroups.put(cellKey, group);
+            mStatistics.groups.incrementAndGet();
+        }
+        long second = Math.round(epoch.timeMicros / 1.0e6);
+        if (second > group.epochSecond) {
+            evaluate(group);
+            group.epochSecond = second;
+        } else if (second < group.epochSecond) {
+            mStatistics.lateEpochs.incrementAndGet();
+            return;
+        }
+        group.add(epoch);
+        group.lastArrivalNanos = System.nanoTime();
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        int removals = 0;
+        for (int slot = 0; slot < mGroups.capacity(); slot++) {
+            ProximityGroup group = mGroups.valueAt(slot);
+            if (group == null) {
+                continue;
+            }
+            if (!group.members.isEmpty() && now - group.lastArrivalNanos > EVALUATION_DELAY_NANOS) {
+                evaluate(group);
+            }
+            if (now - group.lastArrivalNanos > IDLE_TIMEOUT_NANOS) {
+                if (removals == mRemovalScratch.length) {
+                    mRemovalScratch = Arrays.copyOf(mRemovalScratch, 2 * removals);
+                }
+                mRemovalScratch[removals++] = mGroups.keyAt(slot);
+            }
+        }
+        for (int i = 0; i < removals; i++) {
+            mGroups.remove(mRemovalScratch[i]);
+            mStatistics.groups.decrementAndGet();
+        }
+    }
+
+    /** Checks the collected epoch of {@code group} and clears it */
+    private void evaluate(ProximityGroup group) {
+        List<DeviceEpoch> members = group.members;
+        int count = members.size();
+        if (count >= 2) {
+            Collections.sort(members, BY_DEVICE_ID);
+            for (int i = 0; i < count; i++) {
+                DeviceEpoch device = members.get(i);
+                int partners = 0;
+                for (int j = i + 1; j < count && partners < MAX_PARTNERS; j++) {
+                    DeviceEpoch partner = members.get(j);
+                    if (isCheckedHere(group.cellKey, device, partner)) {
+                        checkPair(group, device, partner);
+                        partners++;
+                    }
+                }
+            }
+            group.prunePairs(members.get(0).timeMicros - PAIR_TIMEOUT_MICROS);
+        }
+        members.clear();
+    }
+
+    /**
+     * Whether the pair belongs to the group of {@code cellKey}: at least one device has to be at
+     * home there, and a pair also seen by the other device's home group is left to the smaller key
+     */
+    private boolean isCheckedHere(long cellKey, DeviceEpoch first, DeviceEpoch second) {
+        boolean firstHome = first.homeCell == cellKey;
+        boolean secondHome = second.homeCell == cellKey;
+        if (firstHome == secondHome) {
+            return firstHome;
+        }
+        DeviceEpoch home = firstHome ? first : second;
+        DeviceEpoch guest = firstHome ? second : first;
+        return cellKey < guest.homeCell
+                || !mGrid.isGuest(guest.homeCell, home.homeCell, home.positionEcefMeters);
+    }
+
+    private void checkPair(ProximityGroup group, DeviceEpoch first, DeviceEpoch second) {
+        DeviceEpoch a = first.deviceId < second.deviceId ? first : second;
+        DeviceEpoch b = a == first ? second : first;
+        long pairKey = ((long) a.deviceId << 32) | (b.deviceId & 0xffffffffL);
+        PairState pair = group.pairs.get(pairKey);
+        if (pair == null) {
+            pair = new PairState();
+            group.pairs.put(pairKey, pair);
+        }
+        for (int axis = 0; axis < 3; axis++) {
+            mBaseline[axis] = b.positionEcefMeters[axis] - a.positionEcefMeters[axis];
+        }
+        double baselineMeters = norm(mBaseline);
+        boolean hasAnchor = pair.hasAnchor && norm(pair.anchorBaseline) >= MIN_ANCHOR_BASELINE_METERS;
+        if (!mChecker.check(a, b, hasAnchor ? pair.anchorBaseline : null)) {
+            return;
+        }
+        mStatistics.pairChecks.incrementAndGet();
+        pair.lastCheckMicros = a.timeMicros;
+        double threshold = mChecker.getThreshold();
+
+        if (mChecker.getStatistic() > threshold) {
+            mStatistics.alarms.incrementAndGet();
+            mListener.onCrossReceiverAlarm(AlarmType.CROSS_RECEIVER_INCONSISTENT, a.timeMicros,
+                    a.deviceId, b.deviceId, mChecker.getStatistic(), threshold);
+        }
+
+        boolean collapsed = hasAnchor
+                && baselineMeters < COLLAPSED_BASELINE_METERS
+                && mChecker.getZeroBaselineStatistic() < threshold
+                && mChecker.getAnchorStatistic() > threshold;
+        if (collapsed) {
+            pair.collapsedEpochs++;
+            if (pair.collapsedEpochs == COLLAPSE_EPOCHS) {
+                mStatistics.alarms.incrementAndGet();
+                mListener.onCrossReceiverAlarm(AlarmType.CROSS_RECEIVER_COLLAPSE, a.timeMicros,
+                        a.deviceId, b.deviceId, mChecker.getAnchorStatistic(), threshold);
+            }
+        } else {
+            // Healthy epoch: its baseline is the anchor of a later collapse
+            pair.collapsedEpochs = 0;
+            pair.hasAnchor = true;
+            System.arraycopy(mBaseline, 0, pair.anchorBaseline, 0, 3);
+        }
+    }
+
+    private static double norm(double[] vector) {
+        return Math.sqrt(vector[0] * vector[0] + vector[1] * vector[1] + vector[2] * vector[2]);
+    }
+
+    /**
+     * Devices of one grid cell and its guests
+     */
+    private static final class ProximityGroup {
+        final long cellKey;
+        final List<DeviceEpoch> members = new ArrayList<>();
+        final LongObjectHashMap<PairState> pairs = new LongObjectHashMap<>();
+        long epochSecond = Long.MIN_VALUE;
+        long lastArrivalNanos;
+        private long[] mRemovalScratch = new long[16];
+
+        ProximityGroup(long cellKey) {
+            this.cellKey = cellKey;
+        }
+
+        /** Adds or replaces the epoch of a device */
+        void add(DeviceEpoch epoch) {
+            for (int i = 0; i < members.size(); i++) {
+                if (members.get(i).deviceId == epoch.deviceId) {
+                    members.set(i, epoch);
+                    return;
+                }
+            }
+            members.add(epoch);
+        }
+
+        void prunePairs(long oldestMicros) {
+            int removals = 0;
+            for (int slot = 0; slot < pairs.capacity(); slot++) {
+                PairState pair = pairs.valueAt(slot);
+                if (pair != null && pair.lastCheckMicros < oldestMicros) {
+                    if (removals == mRemovalScratch.length) {
+                        mRemovalScratch = Arrays.copyOf(mRemovalScratch, 2 * removals);
+                    }
+                    mRemovalScratch[removals++] = pairs.keyAt(slot);
+                }
+            }
+            for (int i = 0; i < removals; i++) {
+                pairs.remove(mRemovalScratch[i]);
+            }
+        }
+    }
+
+    /**
+     * History of one device pair
+     */
+    private static final class PairState {
+        final double[] anchorBaseline = new double[3];
+        boolean hasAnchor = false;
+        int collapsedEpochs = 0;
+        long lastCheckMicros = Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,172 @@
+package cn.byyddyh.spoofingdetection.aggregation;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import cn.byyddyh.spoofingdetection.protocol.StreamDecoder;
+import cn.byyddyh.spoofingdetection.protocol.StreamListener;
+import cn.byyddyh.spoofingdetection.pseudorange.Ecef2LlaConverter;
+import cn.byyddyh.spoofingdetection.pseudorange.Lla2EcefConverter;
+
+/**
+ * One worker thread decoding the frames of a share of the devices. Frames are routed by the device
+ * id they carry, not by connection, so the frames of a device are decoded in order and its
+ * {@link DeviceState} is only touched by that lane, also after a reconnect. A PVT solution and the range measurements of the same epoch are combined
+ * into a {@link DeviceEpoch} and routed to the {@link GroupLane}s owning the device's home cell and
+ * the neighbouring cells it visits as a guest ({@link CellGrid}).
+ *
+ * <p>The home cell is the grid cell a device was first seen in. It only follows the reported
+ * position after the device stayed outside for {@link #REHOME_EPOCHS} epochs, so a spoofer pulling
+ * a group of receivers to a far away position cannot move them out of reach of their neighbours'
+ * history.
+ */
+final class IngestLane implements StreamListener {
+
+    /** Consecutive epochs outside the home cell before the device is regrouped */
+    private static final int REHOME_EPOCHS = 60;
+    private static final double DEGREES_TO_RADIANS = Math.PI / 180.0;
+
+    private final ExecutorService mExecutor;
+    private final StreamDecoder mDecoder = new StreamDecoder();
+    private final LongObjectHashMap<DeviceState> mDevices = new LongObjectHashMap<>(256);
+    private final GroupLane[] mGroupLanes;
+    private final CellGrid mGrid;
+    private final long[] mGuestCells = new long[CellGrid.MAX_NEIGHBOURS];
+    private final AggregationServer.Statistics mStatistics;
+
+    IngestLane(int index, GroupLane[] groupLanes, CellGrid grid,
+               AggregationServer.Statistics statistics) {
+        mGroupLanes = groupLanes;
+        mGrid = grid;
+        mStatistics = statistics;
+        mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "IngestLane-" + index);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Decodes {@code frame} on the lane thread, the array must not be reused by the caller
+     */
+    void submit(byte[] frame) {
+        mExecutor.execute(() -> {
+            try {
+                mDecoder.decode(frame, 0, frame.length, this);
+                mStatistics.frames.incrementAndGet();
+            } catch (IOException e) {
+                mStatistics.malformedFrames.incrementAndGet();
+            }
+        });
+    }
+
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public void onImuSample(int deviceId, long timeMicros, float[] values) {
+        // IMU samples are not used by the cross receiver checks
+    }
+
+    @Override
+    public void onPvtSolution(int deviceId, long timeMicros, double latitudeDegrees,
+                              double longitudeDegrees, float altitudeMeters, float[] velocityEnuMps,
+                              float[] positionUncertaintyEnuMeters, int satellites) {
+        if (Double.isNaN(latitudeDegrees) || Double.isNaN(longitudeDegrees)) {
+            return;
+        }
+        DeviceState device = mDevices.get(deviceId);
+        if (device == null) {
+            device = new DeviceState();
+            mDevices.put(deviceId, device);
+            mStatistics.devices.incrementAndGet();
+        }
+        double[] ecef = Lla2EcefConverter.convertFromLlaToEcefMeters(
+                new Ecef2LlaConverter.GeodeticLlaValues(latitudeDegrees * DEGREES_TO_RADIANS,
+                        longitudeDegrees * DEGREES_TO_RADIANS, altitudeMeters));
+        System.arraycopy(ecef, 0, device.positionEcefMeters, 0, 3);
+        device.positionSigmaMeters = Math.sqrt(square(positionUncertaintyEnuMeters[0])
+                + square(positionUncertaintyEnuMeters[1]) + square(positionUncertaintyEnuMeters[2]));
+        if (Double.isNaN(device.positionSigmaMeters)) {
+            device.positionSigmaMeters = 0;
+        }
+        device.pvtTimeMicros = timeMicros;
+    }
+
+    @Override
+    public void onSatelliteResiduals(int deviceId, long timeMicros, int count, int[] svids,
+                                     float[] residualsMeters) {
+        // Residuals are relative to each device's own solution and not comparable across devices
+    }
+
+    @Override
+    public void onAlarm(int deviceId, long timeMicros, int type, int svid, float statistic,
+                        float threshold) {
+        mStatistics.deviceAlarms.incrementAndGet();
+    }
+
+    @Override
+    public void onRangeMeasurements(int deviceId, long timeMicros, int count, int[] svids,
+                                    double[] pseudorangesMeters, float[] pseudorangeRatesMps,
+                                    float[] uncertaintiesMeters,
+                                    float[] satellitePositionsEcefMeters) {
+        DeviceState device = mDevices.get(deviceId);
+        // The measurements have to belong to the solution that reported the position
+        if (device == null || device.pvtTimeMicros != timeMicros) {
+            return;
+        }
+        DeviceEpoch epoch = new DeviceEpoch(deviceId, timeMicros, device.positionEcefMeters,
+                device.positionSigmaMeters);
+        for (int i = 0; i < count; i++) {
+            epoch.addMeasurement(svids[i], pseudorangesMeters[i], pseudorangeRatesMps[i],
+                    uncertaintiesMeters[i], satellitePositionsEcefMeters[3 * i],
+                    satellitePositionsEcefMeters[3 * i + 1], satellitePositionsEcefMeters[3 * i + 2]);
+        }
+        long homeCell = device.updateHomeCell(mGrid.cellKey(device.positionEcefMeters));
+        epoch.homeCell = homeCell;
+        mStatistics.epochs.incrementAndGet();
+        mGroupLanes[laneIndex(homeCell, mGroupLanes.length)].submit(homeCell, epoch);
+        // The epoch is only read from here on, the lanes may share it
+        int guestCells = mGrid.guestCells(homeCell, device.positionEcefMeters, mGuestCells);
+        for (int i = 0; i < guestCells; i++) {
+            long cellKey = mGuestCells[i];
+            mGroupLanes[laneIndex(cellKey, mGroupLanes.length)].submit(cellKey, epoch);
+        }
+    }
+
+    private static int laneIndex(long cellKey, int lanes) {
+        long hash = cellKey * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 33) % lanes);
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+
+    /**
+     * Last solution and grouping state of one device
+     */
+    private static final class DeviceState {
+        final double[] positionEcefMeters = new double[3];
+        double positionSigmaMeters;
+        long pvtTimeMicros = Long.MIN_VALUE;
+        long homeCell;
+        boolean hasHomeCell = false;
+        int epochsOutsideHome = 0;
+
+        /** Returns the cell the device is grouped in */
+        long updateHomeCell(long currentCell) {
+            if (!hasHomeCell || currentCell == homeCell) {
+                homeCell = currentCell;
+                hasHomeCell = true;
+                epochsOutsideHome = 0;
+            } else if (++epochsOutsideHome >= REHOME_EPOCHS) {
+                homeCell = currentCell;
+                epochsOutsideHome = 0;
+            }
+            return homeCell;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package cn.byyddyh.spoofingdetection.aggregation;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive {@code long} keys to objects. Keys are never boxed, a
+ * lookup is a multiplicative hash and a linear probe over two parallel arrays. Removal shifts the
+ * following entries back so no tombstones accumulate.
+ *
+ * <p>Slots can be iterated with {@link #capacity()}, {@link #valueAt(int)} and {@link #keyAt(int)};
+ * empty slots have a null value. The map is not thread safe.
+ */
+public class LongObjectHashMap<V> {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mMask;
+    private int mSize;
+
+    public LongObjectHashMap() {
+        this(16);
+    }
+
+    public LongObjectHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int slot = slot(key);
+        while (mValues[slot] != null) {
+            if (mKeys[slot] == key) {
+                return (V) mValues[slot];
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Associates {@code value} with {@code key} and returns the previous value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not supported");
+        }
+        int slot = slot(key);
+        while (mValues[slot] != null) {
+            if (mKeys[slot] == key) {
+                V previous = (V) mValues[slot];
+                mValues[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        if (++mSize > mValues.length * LOAD_FACTOR) {
+            rehash(mValues.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Removes {@code key} and returns its value, or null if it was not present
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int slot = slot(key);
+        while (mValues[slot] != null) {
+            if (mKeys[slot] == key) {
+                V previous = (V) mValues[slot];
+                shiftBack(slot);
+                mSize--;
+                return previous;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return null;
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    /**
+     * Number of slots, for iteration together with {@link #valueAt(int)}
+     */
+    public int capacity() {
+        return mValues.length;
+    }
+
+    public long keyAt(int slot) {
+        return mKeys[slot];
+    }
+
+    /**
+     * Returns the value stored in {@code slot}, or null if the slot is empty
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) mValues[slot];
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mMask;
+    }
+
+    /** Backward shift deletion: moves the following entries of the probe run into the gap */
+    private void shiftBack(int gap) {
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mMask;
+            if (mValues[slot] == null) {
+                break;
+            }
+            int home = slot(mKeys[slot]);
+            // Move the entry if its home slot is not within (gap, slot]
+            boolean movable = gap <= slot ? home <= gap || home > slot : home <= gap && home > slot;
+            if (movable) {
+                mKeys[gap] = mKeys[slot];
+                mValues[gap] = mValues[slot];
+                gap = slot;
+            }
+        }
+        mValues[gap] = null;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mMask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        Object[] values = mValues;
+        allocate(capacity);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                continue;
+            }
+            int slot = slot(keys[i]);
+            while (mValues[slot] != null) {
+                slot = (slot + 1) & mMask;
+            }
+            mKeys[slot] = keys[i];
+            mValues[slot] = values[i];
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package cn.byyddyh.spoofingdetection.detection;
+
+/**
+ * Kinds of spoofing alarms raised next to the position solution
+ */
+public enum AlarmType {
+    /** C/N0 of the tracked satellites is abnormally uniform, typical for a single transmitter */
+    CN0_LOW_DISPERSION,
+    /** C/N0 of one satellite jumped away from its own recent statistics */
+    CN0_JUMP,
+    /** Step in the automatic gain control level, i.e. added in-band power */
+    AGC_STEP,
+    /** WLS clock bias moved differently than the reported oscillator drift, i.e. time push */
+    CLOCK_BIAS_INCONSISTENT,
+    /** WLS clock bias rate disagrees with the reported oscillator drift */
+    CLOCK_DRIFT_INCONSISTENT,
+    /** Code differenced range rate of one satellite disagrees with its Doppler */
+    CODE_DOPPLER_INCONSISTENT,
+    /** Carrier (ADR) differenced range rate of one satellite disagrees with its Doppler */
+    CARRIER_DOPPLER_INCONSISTENT,
+    /** Double differences of two nearby receivers disagree with their reported relative position */
+    CROSS_RECEIVER_INCONSISTENT,
+    /** Two separated receivers suddenly observe a zero baseline, i.e. one common transmitter */
+    CROSS_RECEIVER_COLLAPSE
+}
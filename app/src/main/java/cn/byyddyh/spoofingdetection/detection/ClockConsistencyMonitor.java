@@ -0,0 +1,186 @@
+package cn.byyddyh.spoofingdetection.detection;
+
+/**
+ * Online consistency check of the WLS receiver clock solution against the clock drift reported by
+ * the GNSS chipset, aimed at time-push spoofing.
+ *
+ * <p>The receiver time used by the positioning pipeline is {@code TimeNanos - FullBiasNanos}, so
+ * the WLS clock bias estimates {@code BiasNanos} and {@code FullBiasNanos + b / c} follows the
+ * integral of {@code DriftNanosPerSecond}. Two innovations are tested every epoch:
+ *
+ * <ul>
+ *   <li>bias: the change of {@code FullBiasNanos + b / c} minus the drift integrated over the epoch
+ *       with the trapezoidal rule, raising {@link AlarmType#CLOCK_BIAS_INCONSISTENT};
+ *   <li>drift: the WLS clock bias rate minus the reported drift, raising
+ *       {@link AlarmType#CLOCK_DRIFT_INCONSISTENT}.
+ * </ul>
+ *
+ * <p>A spoofer that slowly pulls the receiver time away has to shift all pseudoranges coherently,
+ * which is invisible to residual based RAIM but not to the free running oscillator. Each normalized
+ * innovation feeds a two sided CUSUM, so small persistent pushes accumulate until they cross the
+ * threshold. Memory and work per epoch are constant.
+ *
+ * <p>The state is reset when the hardware clock discontinuity count changes, when the drift is not
+ * reported or when epochs are too far apart for the drift to be integrated.
+ */
+public class ClockConsistencyMonitor {
+
+    private static final double SPEED_OF_LIGHT_MPS = 299792458.0;
+    private static final double NANOS_PER_SECOND = 1.0e9;
+
+    /** Standard deviation of the WLS clock bias solution */
+    private static final double CLOCK_BIAS_SIGMA_METERS = 3.0;
+    /** Standard deviation of the WLS clock bias rate solution */
+    private static final double CLOCK_RATE_SIGMA_MPS = 0.1;
+    /** Drift uncertainty assumed if the receiver does not report one */
+    private static final double DEFAULT_DRIFT_UNCERTAINTY_NANOS_PER_SECOND = 1.0;
+    /** Epochs further apart are not compared */
+    private static final double MAX_EPOCH_INTERVAL_SECONDS = 10.0;
+    /** CUSUM allowance (reference value) in sigma */
+    private static final double CUSUM_DRIFT = 0.5;
+    /** CUSUM decision threshold in sigma */
+    private static final double CUSUM_THRESHOLD = 10.0;
+    /** Consecutive epochs before testing starts, the WLS clock needs a few epochs to settle */
+    private static final int WARM_UP_EPOCHS = 5;
+
+    private boolean mHasPrevious = false;
+    private int mValidEpochs = 0;
+    private long mPreviousTimeNanos;
+    private long mPreviousFullBiasNanos;
+    private double mPreviousClockBiasMeters;
+    private double mPreviousDriftNanosPerSecond;
+    private int mPreviousDiscontinuityCount;
+
+    private double mBiasCusumPositive;
+    private double mBiasCusumNegative;
+    private double mDriftCusumPositive;
+    private double mDriftCusumNegative;
+    private double mLastBiasInnovationNanos = Double.NaN;
+    private double mLastDriftInnovationNanosPerSecond = Double.NaN;
+
+    /**
+     * Tests the clock solution of one epoch.
+     *
+     * @param timeNanos                    {@code GnssClock#getTimeNanos()}
+     * @param fullBiasNanos                {@code GnssClock#getFullBiasNanos()}
+     * @param driftNanosPerSecond          reported drift, {@code Double.NaN} if not available
+     * @param driftUncertaintyNanosPerSecond reported drift uncertainty, {@code Double.NaN} if not
+     *                                     available
+     * @param discontinuityCount           {@code GnssClock#getHardwareClockDiscontinuityCount()}
+     * @param clockBiasMeters              WLS receiver clock bias
+     * @param clockBiasRateMps             WLS receiver clock bias rate
+     * @param alarms                       receives the alarms of this epoch
+     */
+    public void update(
+            long timeNanos,
+            long fullBiasNanos,
+            double driftNanosPerSecond,
+            double driftUncertaintyNanosPerSecond,
+            int discontinuityCount,
+            double clockBiasMeters,
+            double clockBiasRateMps,
+            SpoofingAlarmSet alarms) {
+        mLastBiasInnovationNanos = Double.NaN;
+        mLastDriftInnovationNanosPerSecond = Double.NaN;
+        if (Double.isNaN(driftNanosPerSecond)
+                || Double.isNaN(clockBiasMeters)
+                || Double.isNaN(clockBiasRateMps)) {
+            mHasPrevious = false;
+            mValidEpochs = 0;
+            return;
+        }
+        double intervalSeconds = (timeNanos - mPreviousTimeNanos) / NANOS_PER_SECOND;
+        boolean comparable = mHasPrevious
+                && discontinuityCount == mPreviousDiscontinuityCount
+                && intervalSeconds > 0
+                && intervalSeconds <= MAX_EPOCH_INTERVAL_SECONDS;
+        if (!comparable) {
+            mValidEpochs = 0;
+            resetCusums();
+        } else {
+            mValidEpochs++;
+        }
+
+        if (comparable && mValidEpochs >= WARM_UP_EPOCHS) {
+            double driftUncertainty = Double.isNaN(driftUncertaintyNanosPerSecond)
+                    ? DEFAULT_DRIFT_UNCERTAINTY_NANOS_PER_SECOND
+                    : driftUncertaintyNanosPerSecond;
+
+            // Bias: observed change of FullBiasNanos + b / c against the integrated drift
+            double observedChangeNanos = (fullBiasNanos - mPreviousFullBiasNanos)
+                    + (clockBiasMeters - mPreviousClockBiasMeters)
+                    / SPEED_OF_LIGHT_MPS * NANOS_PER_SECOND;
+            double predictedChangeNanos =
+                    0.5 * (driftNanosPerSecond + mPreviousDriftNanosPerSecond) * intervalSeconds;
+            mLastBiasInnovationNanos = observedChangeNanos - predictedChangeNanos;
+            double biasSigmaNanos = Math.sqrt(
+                    2 * square(CLOCK_BIAS_SIGMA_METERS / SPEED_OF_LIGHT_MPS * NANOS_PER_SECOND)
+                            + square(driftUncertainty * intervalSeconds));
+            double normalizedBias = mLastBiasInnovationNanos / biasSigmaNanos;
+            mBiasCusumPositive = Math.max(0, mBiasCusumPositive + normalizedBias - CUSUM_DRIFT);
+            mBiasCusumNegative = Math.max(0, mBiasCusumNegative - normalizedBias - CUSUM_DRIFT);
+            double biasStatistic = Math.max(mBiasCusumPositive, mBiasCusumNegative);
+            if (biasStatistic > CUSUM_THRESHOLD) {
+                alarms.raise(AlarmType.CLOCK_BIAS_INCONSISTENT, SpoofingAlarm.RECEIVER_WIDE,
+                        mBiasCusumPositive > mBiasCusumNegative ? biasStatistic : -biasStatistic,
+                        CUSUM_THRESHOLD);
+                mBiasCusumPositive = 0;
+                mBiasCusumNegative = 0;
+            }
+
+            // Drift: WLS clock rate against the reported oscillator drift
+            mLastDriftInnovationNanosPerSecond =
+                    clockBiasRateMps / SPEED_OF_LIGHT_MPS * NANOS_PER_SECOND - driftNanosPerSecond;
+            double driftSigma = Math.sqrt(
+                    square(CLOCK_RATE_SIGMA_MPS / SPEED_OF_LIGHT_MPS * NANOS_PER_SECOND)
+                            + square(driftUncertainty));
+            double normalizedDrift = mLastDriftInnovationNanosPerSecond / driftSigma;
+            mDriftCusumPositive = Math.max(0, mDriftCusumPositive + normalizedDrift - CUSUM_DRIFT);
+            mDriftCusumNegative = Math.max(0, mDriftCusumNegative - normalizedDrift - CUSUM_DRIFT);
+            double driftStatistic = Math.max(mDriftCusumPositive, mDriftCusumNegative);
+            if (driftStatistic > CUSUM_THRESHOLD) {
+                alarms.raise(AlarmType.CLOCK_DRIFT_INCONSISTENT, SpoofingAlarm.RECEIVER_WIDE,
+                        mDriftCusumPositive > mDriftCusumNegative ? driftStatistic : -driftStatistic,
+                        CUSUM_THRESHOLD);
+                mDriftCusumPositive = 0;
+                mDriftCusumNegative = 0;
+            }
+        }
+
+        mHasPrevious = true;
+        mPreviousTimeNanos = timeNanos;
+        mPreviousFullBiasNanos = fullBiasNanos;
+        mPreviousClockBiasMeters = clockBiasMeters;
+        mPreviousDriftNanosPerSecond = driftNanosPerSecond;
+        mPreviousDiscontinuityCount = discontinuityCount;
+    }
+
+    /**
+     * Returns [bias innovation ns, drift innovation ns/s, bias CUSUM, drift CUSUM] of the last epoch
+     * for the file log, innovations are NaN if the epoch was not tested.
+     */
+    public double[] toLogArray() {
+        return new double[]{
+                mLastBiasInnovationNanos,
+                mLastDriftInnovationNanosPerSecond,
+                Math.max(mBiasCusumPositive, mBiasCusumNegative),
+                Math.max(mDriftCusumPositive, mDriftCusumNegative)};
+    }
+
+    public void reset() {
+        mHasPrevious = false;
+        mValidEpochs = 0;
+        resetCusums();
+    }
+
+    private void resetCusums() {
+        mBiasCusumPositive = 0;
+        mBiasCusumNegative = 0;
+        mDriftCusumPositive = 0;
+        mDriftCusumNegative = 0;
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+}
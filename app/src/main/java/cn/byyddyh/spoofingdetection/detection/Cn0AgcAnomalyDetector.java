@@ -0,0 +1,242 @@
+package cn.byyddyh.spoofingdetection.detection;
+
+/**
+ * Streaming detector of signal power anomalies caused by a simulator type spoofer.
+ *
+ * <p>Three tests run on every epoch:
+ *
+ * <ul>
+ *   <li>{@link AlarmType#CN0_JUMP}: per satellite, the C/N0 is compared to its exponentially
+ *       weighted mean, scaled by the standard deviation of the last complete window of
+ *       {@link #WINDOW_SIZE} samples (Welford). A spoofer taking over a tracking loop shows up as a
+ *       jump of several sigma.
+ *   <li>{@link AlarmType#CN0_LOW_DISPERSION}: authentic signals arrive with C/N0 spread over several
+ *       dB-Hz depending on elevation and antenna gain, signals from one transmitter are nearly
+ *       uniform. The cross satellite standard deviation of each epoch is smoothed and compared to
+ *       {@link #MIN_CN0_DISPERSION_DB_HZ}.
+ *   <li>{@link AlarmType#AGC_STEP}: two sided CUSUM on the normalized innovation of the mean AGC
+ *       level, which drops when in-band power is added.
+ * </ul>
+ *
+ * <p>All state lives in fixed-size primitive arrays indexed by {@code svid - 1}; every measurement
+ * costs O(1) and nothing is allocated after construction. Measurements have to come from one band,
+ * L1 and L5 of the same satellite differ by a few dB-Hz and would look like jumps. The detector is
+ * not thread safe.
+ */
+public class Cn0AgcAnomalyDetector {
+
+    /** Number of tracked svids, GPS PRN 1..32 */
+    public static final int MAX_SVID = 32;
+
+    /** Smoothing factor of the per satellite exponentially weighted C/N0 statistics */
+    private static final double CN0_EW_ALPHA = 0.1;
+    /** Samples per Welford window, the completed window provides the scale of the jump test */
+    private static final int WINDOW_SIZE = 30;
+    /** Lower bound of the per satellite C/N0 standard deviation */
+    private static final double CN0_SIGMA_FLOOR_DB_HZ = 0.5;
+    /** Normalized C/N0 deviation that raises a jump alarm */
+    private static final double CN0_JUMP_THRESHOLD_SIGMA = 6.0;
+    /** Satellites not seen for this many epochs start over */
+    private static final int MAX_GAP_EPOCHS = 10;
+
+    /** Smoothing factor of the cross satellite C/N0 dispersion */
+    private static final double DISPERSION_EW_ALPHA = 0.2;
+    /** Smoothed cross satellite C/N0 standard deviation below which the signals are too uniform */
+    private static final double MIN_CN0_DISPERSION_DB_HZ = 1.5;
+    /** Minimum number of satellites for the dispersion test */
+    private static final int MIN_SATELLITES_FOR_DISPERSION = 5;
+
+    /** Smoothing factor of the AGC baseline */
+    private static final double AGC_EW_ALPHA = 0.05;
+    private static final double AGC_SIGMA_FLOOR_DB = 0.5;
+    /** CUSUM allowance (reference value) in sigma */
+    private static final double AGC_CUSUM_DRIFT = 0.5;
+    /** CUSUM decision threshold in sigma */
+    private static final double AGC_CUSUM_THRESHOLD = 8.0;
+
+    /** Epochs before the receiver wide tests start alarming */
+    private static final int WARM_UP_EPOCHS = 10;
+
+    // Per satellite state
+    private final int[] mSampleCount = new int[MAX_SVID];
+    private final long[] mLastSeenEpoch = new long[MAX_SVID];
+    private final double[] mEwMean = new double[MAX_SVID];
+    private final double[] mWindowCount = new double[MAX_SVID];
+    private final double[] mWindowMean = new double[MAX_SVID];
+    private final double[] mWindowM2 = new double[MAX_SVID];
+    private final double[] mReferenceSigma = new double[MAX_SVID];
+
+    // Per epoch accumulators
+    private int mEpochSatellites;
+    private double mEpochCn0Mean;
+    private double mEpochCn0M2;
+    private int mEpochAgcCount;
+    private double mEpochAgcSum;
+
+    // Receiver wide state
+    private long mEpoch = 0;
+    private int mDispersionEpochs = 0;
+    private double mSmoothedDispersion;
+    private int mAgcEpochs = 0;
+    private double mAgcMean;
+    private double mAgcVariance;
+    private double mAgcCusumPositive;
+    private double mAgcCusumNegative;
+
+    private SpoofingAlarmSet mAlarms;
+
+    /**
+     * Starts a new epoch, the alarms of the epoch are raised into {@code alarms}.
+     */
+    public void beginEpoch(SpoofingAlarmSet alarms) {
+        mAlarms = alarms;
+        mEpoch++;
+        mEpochSatellites = 0;
+        mEpochCn0Mean = 0;
+        mEpochCn0M2 = 0;
+        mEpochAgcCount = 0;
+        mEpochAgcSum = 0;
+    }
+
+    /**
+     * Adds one measurement of the current epoch.
+     *
+     * @param svid   satellite id between 1 and {@link #MAX_SVID}
+     * @param agcDb  AGC level in dB, or {@code Double.NaN} if the receiver does not report it
+     */
+    public void addMeasurement(int svid, double cn0DbHz, double agcDb) {
+        if (!Double.isNaN(agcDb)) {
+            mEpochAgcCount++;
+            mEpochAgcSum += agcDb;
+        }
+        if (svid < 1 || svid > MAX_SVID || !(cn0DbHz > 0)) {
+            return;
+        }
+        int index = svid - 1;
+
+        // Cross satellite Welford accumulation for the dispersion test
+        mEpochSatellites++;
+        double delta = cn0DbHz - mEpochCn0Mean;
+        mEpochCn0Mean += delta / mEpochSatellites;
+        mEpochCn0M2 += delta * (cn0DbHz - mEpochCn0Mean);
+
+        if (mSampleCount[index] > 0 && mEpoch - mLastSeenEpoch[index] > MAX_GAP_EPOCHS) {
+            resetSatellite(index);
+        }
+        mLastSeenEpoch[index] = mEpoch;
+
+        if (mSampleCount[index] == 0) {
+            mEwMean[index] = cn0DbHz;
+        } else if (mReferenceSigma[index] > 0) {
+            double sigma = Math.max(mReferenceSigma[index], CN0_SIGMA_FLOOR_DB_HZ);
+            double normalizedDeviation = Math.abs(cn0DbHz - mEwMean[index]) / sigma;
+            if (normalizedDeviation > CN0_JUMP_THRESHOLD_SIGMA && mAlarms != null) {
+                mAlarms.raise(AlarmType.CN0_JUMP, svid, normalizedDeviation, CN0_JUMP_THRESHOLD_SIGMA);
+            }
+        }
+        mSampleCount[index]++;
+        mEwMean[index] += CN0_EW_ALPHA * (cn0DbHz - mEwMean[index]);
+
+        // Tumbling Welford window, each completed window becomes the scale of the next one
+        mWindowCount[index]++;
+        double windowDelta = cn0DbHz - mWindowMean[index];
+        mWindowMean[index] += windowDelta / mWindowCount[index];
+        mWindowM2[index] += windowDelta * (cn0DbHz - mWindowMean[index]);
+        if (mWindowCount[index] >= WINDOW_SIZE) {
+            mReferenceSigma[index] = Math.sqrt(mWindowM2[index] / (mWindowCount[index] - 1));
+            mWindowCount[index] = 0;
+            mWindowMean[index] = 0;
+            mWindowM2[index] = 0;
+        }
+    }
+
+    /**
+     * Closes the epoch and runs the receiver wide tests.
+     */
+    public void endEpoch() {
+        if (mEpochSatellites >= MIN_SATELLITES_FOR_DISPERSION) {
+            double dispersion = Math.sqrt(mEpochCn0M2 / (mEpochSatellites - 1));
+            if (mDispersionEpochs == 0) {
+                mSmoothedDispersion = dispersion;
+            } else {
+                mSmoothedDispersion += DISPERSION_EW_ALPHA * (dispersion - mSmoothedDispersion);
+            }
+            mDispersionEpochs++;
+            if (mDispersionEpochs >= WARM_UP_EPOCHS
+                    && mSmoothedDispersion < MIN_CN0_DISPERSION_DB_HZ
+                    && mAlarms != null) {
+                mAlarms.raise(AlarmType.CN0_LOW_DISPERSION, SpoofingAlarm.RECEIVER_WIDE,
+                        mSmoothedDispersion, MIN_CN0_DISPERSION_DB_HZ);
+            }
+        }
+
+        if (mEpochAgcCount > 0) {
+            updateAgc(mEpochAgcSum / mEpochAgcCount);
+        }
+        mAlarms = null;
+    }
+
+    /**
+     * Returns the smoothed cross satellite C/N0 standard deviation in dB-Hz
+     */
+    public double getSmoothedCn0Dispersion() {
+        return mSmoothedDispersion;
+    }
+
+    /**
+     * Forgets all statistics, e.g. after the receiver was restarted.
+     */
+    public void reset() {
+        for (int i = 0; i < MAX_SVID; i++) {
+            resetSatellite(i);
+        }
+        mEpoch = 0;
+        mDispersionEpochs = 0;
+        mSmoothedDispersion = 0;
+        mAgcEpochs = 0;
+        mAgcCusumPositive = 0;
+        mAgcCusumNegative = 0;
+    }
+
+    private void updateAgc(double agcDb) {
+        if (mAgcEpochs == 0) {
+            mAgcMean = agcDb;
+            mAgcVariance = 0;
+            mAgcEpochs++;
+            return;
+        }
+        double innovation = agcDb - mAgcMean;
+        double sigma = Math.max(Math.sqrt(mAgcVariance), AGC_SIGMA_FLOOR_DB);
+        double normalized = innovation / sigma;
+        mAgcEpochs++;
+
+        if (mAgcEpochs > WARM_UP_EPOCHS) {
+            mAgcCusumPositive = Math.max(0, mAgcCusumPositive + normalized - AGC_CUSUM_DRIFT);
+            mAgcCusumNegative = Math.max(0, mAgcCusumNegative - normalized - AGC_CUSUM_DRIFT);
+            double statistic = Math.max(mAgcCusumPositive, mAgcCusumNegative);
+            if (statistic > AGC_CUSUM_THRESHOLD) {
+                if (mAlarms != null) {
+                    mAlarms.raise(AlarmType.AGC_STEP, SpoofingAlarm.RECEIVER_WIDE,
+                            mAgcCusumPositive > mAgcCusumNegative ? statistic : -statistic,
+                            AGC_CUSUM_THRESHOLD);
+                }
+                // Re-baseline on the new level so a persistent step alarms once
+                mAgcMean = agcDb;
+                mAgcCusumPositive = 0;
+                mAgcCusumNegative = 0;
+                return;
+            }
+        }
+        mAgcMean += AGC_EW_ALPHA * innovation;
+        mAgcVariance = (1 - AGC_EW_ALPHA) * (mAgcVariance + AGC_EW_ALPHA * innovation * innovation);
+    }
+
+    private void resetSatellite(int index) {
+        mSampleCount[index] = 0;
+        mEwMean[index] = 0;
+        mWindowCount[index] = 0;
+        mWindowMean[index] = 0;
+        mWindowM2[index] = 0;
+        mReferenceSigma[index] = 0;
+    }
+}
@@ -0,0 +1,230 @@
+package cn.byyddyh.spoofingdetection.detection;
+
+/**
+ * Compares three independent range rate observations of every tracked satellite between two
+ * consecutive epochs:
+ *
+ * <ul>
+ *   <li>the Doppler derived pseudorange rate, averaged over the two epochs,
+ *   <li>the code differenced rate {@code (rho_k - rho_k-1) / dt},
+ *   <li>the carrier differenced rate {@code (ADR_k - ADR_k-1) / dt} if the ADR is continuous.
+ * </ul>
+ *
+ * <p>All three contain the receiver clock drift, which cancels in the differences to the Doppler
+ * rate. Clock steps of the receiver (changes of {@code FullBiasNanos}) are common to all satellites
+ * and are removed by subtracting the cross satellite median of each difference. A spoofer that
+ * fakes the code delay without matching Doppler and carrier leaves a satellite specific
+ * inconsistency, which raises {@link AlarmType#CODE_DOPPLER_INCONSISTENT} or
+ * {@link AlarmType#CARRIER_DOPPLER_INCONSISTENT} once it exceeds
+ * {@link #OUTLIER_THRESHOLD_SIGMA} standard deviations.
+ *
+ * <p>Measurements are kept in primitive arrays indexed by {@code svid - 1}. The arrays of the
+ * current and the previous epoch are swapped at the end of each epoch, so nothing is allocated
+ * after construction. The detector is not thread safe.
+ */
+public class RangeRateConsistencyDetector {
+
+    /** Number of tracked svids, GPS PRN 1..32 */
+    public static final int MAX_SVID = 32;
+
+    private static final double NANOS_PER_SECOND = 1.0e9;
+    /** Epochs further apart are not differenced */
+    private static final double MAX_EPOCH_INTERVAL_SECONDS = 2.5;
+    /** Normalized deviation from the cross satellite median that is flagged */
+    private static final double OUTLIER_THRESHOLD_SIGMA = 5.0;
+    /** Minimum number of satellites for a meaningful median */
+    private static final int MIN_SATELLITES = 4;
+    /** Lower bounds of the standard deviations, receivers tend to report optimistic uncertainties */
+    private static final double CODE_SIGMA_FLOOR_METERS = 1.0;
+    private static final double DOPPLER_SIGMA_FLOOR_MPS = 0.05;
+    private static final double CARRIER_SIGMA_FLOOR_METERS = 0.01;
+
+    private EpochMeasurements mCurrent = new EpochMeasurements();
+    private EpochMeasurements mPrevious = new EpochMeasurements();
+
+    // Per satellite differences of the current epoch and their standard deviations
+    private final double[] mCodeDifference = new double[MAX_SVID];
+    private final double[] mCodeSigma = new double[MAX_SVID];
+    private final boolean[] mHasCodeDifference = new boolean[MAX_SVID];
+    private final double[] mCarrierDifference = new double[MAX_SVID];
+    private final double[] mCarrierSigma = new double[MAX_SVID];
+    private final boolean[] mHasCarrierDifference = new boolean[MAX_SVID];
+    private final double[] mMedianScratch = new double[MAX_SVID];
+
+    /**
+     * Starts a new epoch.
+     *
+     * @param epochTimeNanos receiver time of the epoch in nanoseconds
+     */
+    public void beginEpoch(long epochTimeNanos) {
+        mCurrent.clear(epochTimeNanos);
+    }
+
+    /**
+     * Adds the measurement of one satellite to the current epoch.
+     *
+     * @param adrValid true if the ADR is valid and has neither been reset nor slipped a cycle since
+     *                 the previous epoch
+     */
+    public void addMeasurement(
+            int svid,
+            double pseudorangeMeters,
+            double pseudorangeUncertaintyMeters,
+            double pseudorangeRateMps,
+            double pseudorangeRateUncertaintyMps,
+            boolean adrValid,
+            double adrMeters,
+            double adrUncertaintyMeters) {
+        if (svid < 1 || svid > MAX_SVID) {
+            return;
+        }
+        int index = svid - 1;
+        mCurrent.present[index] = true;
+        mCurrent.pseudorangeMeters[index] = pseudorangeMeters;
+        mCurrent.pseudorangeSigmaMeters[index] =
+                Math.max(pseudorangeUncertaintyMeters, CODE_SIGMA_FLOOR_METERS);
+        mCurrent.rateMps[index] = pseudorangeRateMps;
+        mCurrent.rateSigmaMps[index] =
+                Math.max(pseudorangeRateUncertaintyMps, DOPPLER_SIGMA_FLOOR_MPS);
+        mCurrent.adrValid[index] = adrValid;
+        mCurrent.adrMeters[index] = adrMeters;
+        mCurrent.adrSigmaMeters[index] = Math.max(adrUncertaintyMeters, CARRIER_SIGMA_FLOOR_METERS);
+    }
+
+    /**
+     * Differences the current epoch against the previous one, raises the alarms into
+     * {@code alarms} and keeps the current epoch as the reference of the next one.
+     */
+    public void endEpoch(SpoofingAlarmSet alarms) {
+        double intervalSeconds = (mCurrent.epochTimeNanos - mPrevious.epochTimeNanos) / NANOS_PER_SECOND;
+        if (mPrevious.valid && intervalSeconds > 0 && intervalSeconds <= MAX_EPOCH_INTERVAL_SECONDS) {
+            int codeCount = 0;
+            int carrierCount = 0;
+            // Single pass over all svids computing both differences to the mean Doppler rate
+            for (int i = 0; i < MAX_SVID; i++) {
+                mHasCodeDifference[i] = false;
+                mHasCarrierDifference[i] = false;
+                if (!mCurrent.present[i] || !mPrevious.present[i]) {
+                    continue;
+                }
+                double dopplerRate = 0.5 * (mCurrent.rateMps[i] + mPrevious.rateMps[i]);
+                double dopplerVariance = 0.25 * (square(mCurrent.rateSigmaMps[i])
+                        + square(mPrevious.rateSigmaMps[i]));
+
+                mCodeDifference[i] = (mCurrent.pseudorangeMeters[i] - mPrevious.pseudorangeMeters[i])
+                        / intervalSeconds - dopplerRate;
+                mCodeSigma[i] = Math.sqrt((square(mCurrent.pseudorangeSigmaMeters[i])
+                        + square(mPrevious.pseudorangeSigmaMeters[i]))
+                        / square(intervalSeconds) + dopplerVariance);
+                mHasCodeDifference[i] = true;
+                codeCount++;
+
+                if (mCurrent.adrValid[i] && mPrevious.adrValid[i]) {
+                    mCarrierDifference[i] = (mCurrent.adrMeters[i] - mPrevious.adrMeters[i])
+                            / intervalSeconds - dopplerRate;
+                    mCarrierSigma[i] = Math.sqrt((square(mCurrent.adrSigmaMeters[i])
+                            + square(mPrevious.adrSigmaMeters[i]))
+                            / square(intervalSeconds) + dopplerVariance);
+                    mHasCarrierDifference[i] = true;
+                    carrierCount++;
+                }
+            }
+            if (codeCount >= MIN_SATELLITES) {
+                flagOutliers(mCodeDifference, mCodeSigma, mHasCodeDifference,
+                        AlarmType.CODE_DOPPLER_INCONSISTENT, alarms);
+            }
+            if (carrierCount >= MIN_SATELLITES) {
+                flagOutliers(mCarrierDifference, mCarrierSigma, mHasCarrierDifference,
+                        AlarmType.CARRIER_DOPPLER_INCONSISTENT, alarms);
+            }
+        }
+
+        EpochMeasurements swap = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = swap;
+        mPrevious.valid = true;
+    }
+
+    /**
+     * Returns the code minus Doppler rate of {@code svid} of the last epoch before the median was
+     * removed, or {@code Double.NaN} if it was not available.
+     */
+    public double getCodeMinusDopplerRateMps(int svid) {
+        return mHasCodeDifference[svid - 1] ? mCodeDifference[svid - 1] : Double.NaN;
+    }
+
+    /**
+     * Returns the carrier minus Doppler rate of {@code svid} of the last epoch before the median was
+     * removed, or {@code Double.NaN} if it was not available.
+     */
+    public double getCarrierMinusDopplerRateMps(int svid) {
+        return mHasCarrierDifference[svid - 1] ? mCarrierDifference[svid - 1] : Double.NaN;
+    }
+
+    public void reset() {
+        mPrevious.valid = false;
+        mCurrent.valid = false;
+    }
+
+    private void flagOutliers(double[] differences, double[] sigmas, boolean[] available,
+                              AlarmType type, SpoofingAlarmSet alarms) {
+        double median = median(differences, available);
+        for (int i = 0; i < MAX_SVID; i++) {
+            if (!available[i]) {
+                continue;
+            }
+            double normalized = Math.abs(differences[i] - median) / sigmas[i];
+            if (normalized > OUTLIER_THRESHOLD_SIGMA) {
+                alarms.raise(type, i + 1, normalized, OUTLIER_THRESHOLD_SIGMA);
+            }
+        }
+    }
+
+    /** Median of the available entries, insertion sort on the preallocated scratch array */
+    private double median(double[] values, boolean[] available) {
+        int count = 0;
+        for (int i = 0; i < MAX_SVID; i++) {
+            if (!available[i]) {
+                continue;
+            }
+            double value = values[i];
+            int j = count++;
+            while (j > 0 && mMedianScratch[j - 1] > value) {
+                mMedianScratch[j] = mMedianScratch[j - 1];
+                j--;
+            }
+            mMedianScratch[j] = value;
+        }
+        return (count & 1) == 1
+                ? mMedianScratch[count / 2]
+                : 0.5 * (mMedianScratch[count / 2 - 1] + mMedianScratch[count / 2]);
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+
+    /**
+     * Measurements of one epoch, indexed by {@code svid - 1}
+     */
+    private static class EpochMeasurements {
+        boolean valid = false;
+        long epochTimeNanos;
+        final boolean[] present = new boolean[MAX_SVID];
+        final double[] pseudorangeMeters = new double[MAX_SVID];
+        final double[] pseudorangeSigmaMeters = new double[MAX_SVID];
+        final double[] rateMps = new double[MAX_SVID];
+        final double[] rateSigmaMps = new double[MAX_SVID];
+        final boolean[] adrValid = new boolean[MAX_SVID];
+        final double[] adrMeters = new double[MAX_SVID];
+        final double[] adrSigmaMeters = new double[MAX_SVID];
+
+        void clear(long epochTimeNanos) {
+            this.epochTimeNanos = epochTimeNanos;
+            for (int i = 0; i < MAX_SVID; i++) {
+                present[i] = false;
+                adrValid[i] = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package cn.byyddyh.spoofingdetection.detection;
+
+import java.util.Locale;
+
+/**
+ * One alarm of the current epoch. Instances are owned and reused by {@link SpoofingAlarmSet}.
+ */
+public class SpoofingAlarm {
+
+    /** Svid used for alarms that concern the receiver rather than a single satellite */
+    public static final int RECEIVER_WIDE = 0;
+
+    private AlarmType mType;
+    private int mSvid;
+    private double mStatistic;
+    private double mThreshold;
+
+    void set(AlarmType type, int svid, double statistic, double threshold) {
+        mType = type;
+        mSvid = svid;
+        mStatistic = statistic;
+        mThreshold = threshold;
+    }
+
+    public AlarmType getType() {
+        return mType;
+    }
+
+    /**
+     * Returns the satellite the alarm refers to, or {@link #RECEIVER_WIDE}
+     */
+    public int getSvid() {
+        return mSvid;
+    }
+
+    /**
+     * Returns the value of the test statistic that crossed the threshold
+     */
+    public double getStatistic() {
+        return mStatistic;
+    }
+
+    public double getThreshold() {
+        return mThreshold;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s svid=%d statistic=%.3f threshold=%.3f",
+                mType, mSvid, mStatistic, mThreshold);
+    }
+}
@@ -0,0 +1,84 @@
+package cn.byyddyh.spoofingdetection.detection;
+
+/**
+ * Fixed capacity list of the alarms raised in one epoch. The alarm objects are preallocated and
+ * reused, so raising an alarm never allocates. Alarms beyond the capacity are counted but dropped.
+ */
+public class SpoofingAlarmSet {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private final SpoofingAlarm[] mAlarms;
+    private int mSize = 0;
+    private int mDropped = 0;
+
+    public SpoofingAlarmSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SpoofingAlarmSet(int capacity) {
+        mAlarms = new SpoofingAlarm[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mAlarms[i] = new SpoofingAlarm();
+        }
+    }
+
+    /**
+     * Removes the alarms of the previous epoch
+     */
+    public void clear() {
+        mSize = 0;
+        mDropped = 0;
+    }
+
+    public void raise(AlarmType type, int svid, double statistic, double threshold) {
+        if (mSize == mAlarms.length) {
+            mDropped++;
+            return;
+        }
+        mAlarms[mSize++].set(type, svid, statistic, threshold);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Returns the alarm at {@code index}, only valid until the next {@link #clear()}
+     */
+    public SpoofingAlarm get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        return mAlarms[index];
+    }
+
+    /**
+     * Returns true if an alarm of {@code type} was raised in this epoch
+     */
+    public boolean contains(AlarmType type) {
+        for (int i = 0; i < mSize; i++) {
+            if (mAlarms[i].getType() == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Returns [type ordinal, svid, statistic, threshold] of alarm {@code index} for the file log.
+     */
+    public double[] toLogArray(int index) {
+        SpoofingAlarm alarm = get(index);
+        return new double[]{
+                alarm.getType().ordinal(), alarm.getSvid(), alarm.getStatistic(), alarm.getThreshold()};
+    }
+}
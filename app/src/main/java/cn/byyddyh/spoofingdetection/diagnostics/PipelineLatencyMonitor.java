@@ -0,0 +1,152 @@
+package cn.byyddyh.spoofingdetection.diagnostics;
+
+import java.util.Locale;
+
+/**
+ * Timestamps every {@code GnssMeasurementsEvent} on its way from the measurement callback to the
+ * spoofing detection verdict and keeps one {@link LatencyHistogram} per pipeline stage.
+ *
+ * <p>The stages are contiguous: each {@link #markStageEnd(int)} records the time elapsed since the
+ * previous boundary, so the stage latencies of an epoch add up to {@link #STAGE_TOTAL}. A stage
+ * boundary costs one {@link System#nanoTime()} call and a bucket increment, well below 1 µs.
+ *
+ * <p>{@link #onEventArrived()} may be called on any thread, every other method must be called on
+ * the positioning thread that owns the histograms.
+ */
+public class PipelineLatencyMonitor {
+
+    /** From the measurement callback until the positioning thread picks the event up */
+    public static final int STAGE_QUEUE = 0;
+    /** Measurement filtering and navigation message selection */
+    public static final int STAGE_PREPROCESS = 1;
+    /** Weighted least square position/velocity solution including spoofed satellite rejection */
+    public static final int STAGE_WLS = 2;
+    /** Coordinate conversion, logging and GNSS/IMU fusion */
+    public static final int STAGE_FUSION = 3;
+    /** From the measurement callback to the detection verdict */
+    public static final int STAGE_TOTAL = 4;
+
+    private static final String[] STAGE_NAMES = {"queue", "preprocess", "wls", "fusion", "total"};
+
+    /** Number of completed epochs between two periodic dumps, about one minute at 1 Hz */
+    private static final int DUMP_PERIOD_EPOCHS = 60;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_NAMES.length];
+    private long mEpochStartNanos;
+    private long mLastBoundaryNanos;
+    private boolean mEpochInProgress = false;
+    private boolean mVerdictReached = false;
+    private int mEpochsSinceDump = 0;
+
+    public PipelineLatencyMonitor() {
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            mHistograms[i] = new LatencyHistogram(STAGE_NAMES[i]);
+        }
+    }
+
+    /**
+     * Returns the arrival timestamp to be handed to {@link #beginEpoch(long)} once the positioning
+     * thread processes the event.
+     */
+    public static long onEventArrived() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Starts a new epoch on the positioning thread and records the queueing latency.
+     */
+    public void beginEpoch(long arrivalNanos) {
+        long now = System.nanoTime();
+        mHistograms[STAGE_QUEUE].record(now - arrivalNanos);
+        mEpochStartNanos = arrivalNanos;
+        mLastBoundaryNanos = now;
+        mEpochInProgress = true;
+        mVerdictReached = false;
+    }
+
+    /**
+     * Records the latency of {@code stage}, measured from the previous stage boundary.
+     */
+    public void markStageEnd(int stage) {
+        if (!mEpochInProgress) {
+            return;
+        }
+        long now = System.nanoTime();
+        mHistograms[stage].record(now - mLastBoundaryNanos);
+        mLastBoundaryNanos = now;
+        if (stage == STAGE_WLS) {
+            mVerdictReached = true;
+        }
+    }
+
+    /**
+     * Closes the current epoch. The end-to-end latency is only recorded for epochs that produced a
+     * WLS solution, epochs dropped early (no reference location, too few satellites) are ignored.
+     *
+     * @return {@code true} if a periodic dump of the statistics is due
+     */
+    public boolean endEpoch() {
+        if (!mEpochInProgress) {
+            return false;
+        }
+        mEpochInProgress = false;
+        if (!mVerdictReached) {
+            return false;
+        }
+        mHistograms[STAGE_TOTAL].record(System.nanoTime() - mEpochStartNanos);
+        mEpochsSinceDump++;
+        if (mEpochsSinceDump >= DUMP_PERIOD_EPOCHS) {
+            mEpochsSinceDump = 0;
+            return true;
+        }
+        return false;
+    }
+
+    public int getStageCount() {
+        return mHistograms.length;
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    /**
+     * Returns [count, p50, p99, max] of {@code stage}, latencies in microseconds, in the layout
+     * written by {@code FileLogger#storeArrayData}.
+     */
+    public double[] getStageSummaryMicros(int stage) {
+        LatencyHistogram histogram = mHistograms[stage];
+        return new double[]{
+                histogram.getCount(),
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getMaxNanos() / 1000.0};
+    }
+
+    /**
+     * Formats the statistics of all stages for the diagnostics view, one stage per line.
+     */
+    public String formatSummary() {
+        StringBuilder builder = new StringBuilder("stage  p50/p99/max (ms)\n");
+        for (int i = 0; i < mHistograms.length; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            builder.append(String.format(Locale.US, "%-10s %8.3f %8.3f %8.3f  n=%d\n",
+                    histogram.getName(),
+                    histogram.getValueAtPercentile(50) / 1.0e6,
+                    histogram.getValueAtPercentile(99) / 1.0e6,
+                    histogram.getMaxNanos() / 1.0e6,
+                    histogram.getCount()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Clears all histograms, e.g. when a new log file is started.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mEpochsSinceDump = 0;
+    }
+}
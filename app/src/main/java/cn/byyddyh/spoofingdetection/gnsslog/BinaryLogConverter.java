@@ -0,0 +1,126 @@
+package cn.byyddyh.spoofingdetection.gnsslog;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import cn.byyddyh.spoofingdetection.LogRecordEncoder;
+
+/**
+ * Turns a binary GNSS log back into the GnssLogger v1.4 text that {@code FileLogger} writes in
+ * text mode, for tools that still read text. The records are encoded by {@link GnssLogText}, the
+ * same code the text logger uses, so the output is identical to a text log of the same session.
+ *
+ * <p>Usage: {@code java -cp <classes> cn.byyddyh.spoofingdetection.gnsslog.BinaryLogConverter
+ * log.bin [log.txt]}
+ */
+public class BinaryLogConverter implements BinaryLogListener {
+
+    private final OutputStream mOutput;
+    private final LogRecordEncoder mEncoder = new LogRecordEncoder();
+    private IOException mError;
+
+    private BinaryLogConverter(OutputStream output) {
+        mOutput = output;
+    }
+
+    /**
+     * Writes the complete text log of {@code binaryLog} to {@code textLog}
+     */
+    public static void toText(File binaryLog, File textLog) throws IOException {
+        try (OutputStream output =
+                     new BufferedOutputStream(new FileOutputStream(textLog), 64 * 1024)) {
+            toText(binaryLog, output);
+        }
+    }
+
+    /**
+     * Writes the complete text log of {@code binaryLog} to {@code output}, which is not closed
+     */
+    public static void toText(File binaryLog, OutputStream output) throws IOException {
+        try (BinaryLogReader reader = new BinaryLogReader(binaryLog)) {
+            BinaryLogConverter converter = new BinaryLogConverter(output);
+            reader.read(converter);
+            if (converter.mError != null) {
+                throw converter.mError;
+            }
+        }
+    }
+
+    @Override
+    public void onHeader(int formatVersion, long createdMillis, String versionTag) {
+        for (String line : GnssLogText.headerLines(versionTag)) {
+            writeLine(line);
+        }
+    }
+
+    @Override
+    public void onRaw(RawRecord record) {
+        GnssLogText.appendRaw(mEncoder, record);
+        write();
+    }
+
+    @Override
+    public void onNavigation(int svid, int type, int status, int messageId, int submessageId,
+                             byte[] data, int dataLength) {
+        GnssLogText.appendNavigation(mEncoder, svid, type, status, messageId, submessageId,
+                data, dataLength);
+        write();
+    }
+
+    @Override
+    public void onFix(double latitude, double longitude, double altitude) {
+        GnssLogText.appendFix(mEncoder, latitude, longitude, altitude);
+        write();
+    }
+
+    @Override
+    public void onImu(double[] values, int valueCount, double[] velocity, int velocityCount,
+                      double[] position, int positionCount, double deltaSeconds) {
+        GnssLogText.appendImu(mEncoder, values, valueCount, velocity, velocityCount, position,
+                positionCount, deltaSeconds);
+        write();
+    }
+
+    @Override
+    public void onValues(String label, double[] values, int count) {
+        GnssLogText.appendValues(mEncoder, label, values, count);
+        write();
+    }
+
+    private void writeLine(String line) {
+        mEncoder.begin(line).end();
+        write();
+    }
+
+    /** Writes the encoded line, keeping the first error for the caller */
+    private void write() {
+        if (mError != null) {
+            return;
+        }
+        try {
+            mOutput.write(mEncoder.getBuffer(), 0, mEncoder.length());
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: BinaryLogConverter <log.bin> [log.txt]");
+            return;
+        }
+        File binaryLog = new File(args[0]);
+        String name = binaryLog.getName();
+        if (name.endsWith(BinaryLogFormat.FILE_EXTENSION)) {
+            name = name.substring(0, name.length() - BinaryLogFormat.FILE_EXTENSION.length());
+        }
+        File textLog = args.length > 1 ? new File(args[1])
+                : new File(binaryLog.getAbsoluteFile().getParentFile(), name + ".txt");
+        toText(binaryLog, textLog);
+        System.out.println("Wrote " + textLog + " (" + textLog.length() + " bytes from "
+                + binaryLog.length() + ")");
+    }
+}
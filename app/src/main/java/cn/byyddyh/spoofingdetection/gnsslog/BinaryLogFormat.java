@@ -0,0 +1,115 @@
+package cn.byyddyh.spoofingdetection.gnsslog;
+
+/**
+ * Layout of the binary GNSS log, all values little endian.
+ *
+ * <pre>
+ * file   = header block*
+ * header = magic "GNSSBLOG" (8) | version u16 | reserved u16 | created millis i64
+ *          | version tag length u16 | version tag UTF-8
+ * block  = sync u32 | payload length u32 | record count u32 | CRC-32 of payload u32 | payload
+ * record = type u8 | fixed layout of the type
+ * </pre>
+ *
+ * <p>Every block decodes on its own: time deltas and the label table start over in each block, so
+ * a block lost to a full write buffer or corrupted on disk only removes its own records. Readers
+ * skip blocks with a bad CRC and search for the next sync word after garbage.
+ *
+ * <p>Records:
+ *
+ * <ul>
+ *   <li>{@link #RECORD_CLOCK}: flags u16 (2 bit {@code DOUBLE_*} kind per optional double
+ *       time uncertainty, bias, bias uncertainty, drift, drift uncertainty; {@link #CLOCK_LEAP}
+ *       and {@link #CLOCK_ABSOLUTE}), elapsed realtime millis and {@code TimeNanos} as i32 deltas
+ *       to the previous clock of the block or i64 when absolute, full bias i64, leap second i32
+ *       when present, hardware clock discontinuity count i32, then the doubles by kind. Written
+ *       once per measurement event.
+ *   <li>{@link #RECORD_MEASUREMENT}: kinds u32 (2 bits per field, see {@code MEASUREMENT_*}),
+ *       svid u16, constellation u8, multipath u8, state i32, accumulated delta range state i32,
+ *       then the fields by kind. {@code ReceivedSvTimeNanos} is an i32 delta to the previous
+ *       measurement of the block. Belongs to the last clock record.
+ *   <li>{@link #RECORD_NAVIGATION}: svid, type, status, message id, submessage id i32, data
+ *       length u16, data.
+ *   <li>{@link #RECORD_FIX}: latitude, longitude, altitude f64.
+ *   <li>{@link #RECORD_IMU}: value, velocity and position counts u8, the values f64, time step f64.
+ *   <li>{@link #RECORD_LABEL}: id u16, length u16, UTF-8 text; defines a label for the
+ *       following {@link #RECORD_VALUES} of the block.
+ *   <li>{@link #RECORD_VALUES}: label id u16, count u16, values f64.
+ * </ul>
+ *
+ * <p>Doubles are stored losslessly in the smallest of the {@code DOUBLE_*} kinds: positive zero
+ * takes no bytes and values exactly representable as float take four.
+ */
+public final class BinaryLogFormat {
+
+    public static final byte[] MAGIC = {'G', 'N', 'S', 'S', 'B', 'L', 'O', 'G'};
+    public static final int VERSION = 1;
+    public static final String FILE_EXTENSION = ".bin";
+
+    /** "BLK1" in little endian */
+    static final int BLOCK_SYNC = 0x314b4c42;
+    static final int BLOCK_HEADER_BYTES = 16;
+
+    static final int RECORD_CLOCK = 1;
+    static final int RECORD_MEASUREMENT = 2;
+    static final int RECORD_NAVIGATION = 3;
+    static final int RECORD_FIX = 4;
+    static final int RECORD_IMU = 5;
+    static final int RECORD_LABEL = 6;
+    static final int RECORD_VALUES = 7;
+
+    /** Storage kinds of a double field, 2 bits each */
+    static final int DOUBLE_ZERO = 0;
+    static final int DOUBLE_FLOAT = 1;
+    static final int DOUBLE_FULL = 2;
+    static final int DOUBLE_ABSENT = 3;
+    static final int KIND_BITS = 2;
+    static final int KIND_MASK = 3;
+
+    /* Clock flag positions, the five optional doubles use bits 0..9 */
+    static final int CLOCK_TIME_UNCERTAINTY = 0;
+    static final int CLOCK_BIAS = 1;
+    static final int CLOCK_BIAS_UNCERTAINTY = 2;
+    static final int CLOCK_DRIFT = 3;
+    static final int CLOCK_DRIFT_UNCERTAINTY = 4;
+    static final int CLOCK_LEAP = 1 << 10;
+    static final int CLOCK_ABSOLUTE = 1 << 11;
+
+    /* Measurement field positions in the kinds word */
+    static final int MEASUREMENT_TIME_OFFSET = 0;
+    static final int MEASUREMENT_CN0 = 1;
+    static final int MEASUREMENT_RATE = 2;
+    static final int MEASUREMENT_RATE_UNCERTAINTY = 3;
+    static final int MEASUREMENT_ADR = 4;
+    static final int MEASUREMENT_ADR_UNCERTAINTY = 5;
+    static final int MEASUREMENT_CARRIER_PHASE = 6;
+    static final int MEASUREMENT_CARRIER_PHASE_UNCERTAINTY = 7;
+    static final int MEASUREMENT_SNR = 8;
+    static final int MEASUREMENT_AGC = 9;
+    /** Kind DOUBLE_FLOAT when present, DOUBLE_ABSENT otherwise */
+    static final int MEASUREMENT_CARRIER_FREQUENCY = 10;
+    /** Kind DOUBLE_FULL (i64) when present, DOUBLE_ABSENT otherwise */
+    static final int MEASUREMENT_CARRIER_CYCLES = 11;
+    /** Kind DOUBLE_FLOAT for an i32 delta, DOUBLE_FULL for an absolute i64 */
+    static final int MEASUREMENT_RECEIVED_SV_TIME = 12;
+    /** Kind DOUBLE_FLOAT for i32, DOUBLE_FULL for i64 */
+    static final int MEASUREMENT_RECEIVED_SV_TIME_UNCERTAINTY = 13;
+
+    private BinaryLogFormat() {
+    }
+
+    /** Smallest lossless storage kind of {@code value} */
+    static int kindOf(double value) {
+        if (Double.doubleToRawLongBits(value) == 0L) {
+            return DOUBLE_ZERO;
+        }
+        if ((double) (float) value == value) {
+            return DOUBLE_FLOAT;
+        }
+        return DOUBLE_FULL;
+    }
+
+    static int kindAt(int kinds, int field) {
+        return (kinds >>> (KIND_BITS * field)) & KIND_MASK;
+    }
+}
@@ -0,0 +1,25 @@
+package cn.byyddyh.spoofingdetection.gnsslog;
+
+/**
+ * Receives the records of a {@link BinaryLogReader} in file order. Arrays and records are reused
+ * by the reader and only valid during the call.
+ */
+public interface BinaryLogListener {
+
+    /**
+     * @param versionTag version line of the logging app, as in the text header
+     */
+    void onHeader(int formatVersion, long createdMillis, String versionTag);
+
+    void onRaw(RawRecord record);
+
+    void onNavigation(int svid, int type, int status, int messageId, int submessageId, byte[] data,
+                      int dataLength);
+
+    void onFix(double latitude, double longitude, double altitude);
+
+    void onImu(double[] values, int valueCount, double[] velocity, int velocityCount,
+               double[] position, int positionCount, double deltaSeconds);
+
+    void onValues(String label, double[] values, int count);
+}
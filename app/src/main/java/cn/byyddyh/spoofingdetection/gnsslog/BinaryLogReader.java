@@ -0,0 +1,386 @@
+package cn.byyddyh.spoofingdetection.gnsslog;
+
+import static cn.byyddyh.spoofingdetection.gnsslog.BinaryLogFormat.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Scans a binary GNSS log through a read only memory map. Each block is checked against its
+ * CRC-32 and decoded in place; blocks with a bad CRC or an impossible length are skipped and the
+ * scan continues at the next sync word, so a damaged log still yields all its intact blocks.
+ *
+ * <p>No objects are created per record: the {@link RawRecord}, the value arrays and the label
+ * table are reused.
+ *
+ * <p>Segments compressed by {@link LogSegmentCompressor} are inflated into memory instead.
+ */
+public class BinaryLogReader implements Closeable {
+
+    public static final String GZIP_EXTENSION = ".gz";
+
+    /** {@code null} for a compressed log */
+    private final RandomAccessFile mFile;
+    private final ByteBuffer mMap;
+    private final CRC32 mCrc = new CRC32();
+    private byte[] mScratch = new byte[64 * 1024];
+
+    private final RawRecord mRecord = new RawRecord();
+    private long mLastReceivedSvTimeNanos;
+    private String[] mLabels = new String[16];
+    private double[] mValues = new double[64];
+    private double[] mVelocity = new double[8];
+    private double[] mPosition = new double[8];
+    private byte[] mNavigationData = new byte[64];
+
+    private long mBlocks = 0;
+    private long mRecords = 0;
+    private long mCorruptBlocks = 0;
+    private long mSkippedBytes = 0;
+
+    public BinaryLogReader(File file) throws IOException {
+        if (file.getName().endsWith(GZIP_EXTENSION)) {
+            mFile = null;
+            mMap = ByteBuffer.wrap(inflate(file));
+            return;
+        }
+        mFile = new RandomAccessFile(file, "r");
+        FileChannel channel = mFile.getChannel();
+        mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    private static byte[] inflate(File file) throws IOException {
+        try (InputStream input = new GZIPInputStream(new FileInputStream(file), 64 * 1024)) {
+            ByteArrayOutputStream output =
+                    new ByteArrayOutputStream((int) Math.min(file.length() * 3, 1 << 26));
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * Returns {@code true} if {@code file}, gzip compressed or not, starts with the binary log
+     * magic
+     */
+    public static boolean isBinaryLog(File file) {
+        byte[] magic = new byte[MAGIC.length];
+        try (InputStream input = file.getName().endsWith(GZIP_EXTENSION)
+                ? new GZIPInputStream(new FileInputStream(file)) : new FileInputStream(file)) {
+            new DataInputStream(input).readFully(magic);
+        } catch (IOException e) {
+            return false;
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    /**
+     * Reads the whole log, calling {@code listener} for the header and every record
+     *
+     * @throws IOException if the file is not a binary GNSS log
+     */
+    public void read(BinaryLogListener listener) throws IOException {
+        ByteBuffer map = mMap.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        readHeader(map, listener);
+        while (map.remaining() >= BLOCK_HEADER_BYTES) {
+            int start = map.position();
+            if (map.getInt(start) != BLOCK_SYNC) {
+                resync(map);
+                continue;
+            }
+            int payloadBytes = map.getInt(start + 4);
+            int records = map.getInt(start + 8);
+            int crc = map.getInt(start + 12);
+            if (payloadBytes < 0 || payloadBytes > map.remaining() - BLOCK_HEADER_BYTES) {
+                // Torn write at the end of the file or a damaged length
+                mCorruptBlocks++;
+                map.position(start + 4);
+                resync(map);
+                continue;
+            }
+            if (mScratch.length < payloadBytes) {
+                mScratch = new byte[payloadBytes];
+            }
+            map.position(start + BLOCK_HEADER_BYTES);
+            map.get(mScratch, 0, payloadBytes);
+            mCrc.reset();
+            mCrc.update(mScratch, 0, payloadBytes);
+            if ((int) mCrc.getValue() != crc) {
+                // The length may be the damaged part, look for the next block right after the sync
+                mCorruptBlocks++;
+                map.position(start + 4);
+                resync(map);
+                continue;
+            }
+            ByteBuffer payload = ByteBuffer.wrap(mScratch, 0, payloadBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                readBlock(payload, records, listener);
+                mBlocks++;
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                // CRC matched but the content does not parse, written by an incompatible version
+                mCorruptBlocks++;
+            }
+        }
+        mSkippedBytes += map.remaining();
+    }
+
+    private void readHeader(ByteBuffer map, BinaryLogListener listener) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        if (map.remaining() < MAGIC.length + 14) {
+            throw new IOException("Not a binary GNSS log");
+        }
+        map.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a binary GNSS log");
+        }
+        int version = map.getShort() & 0xffff;
+        if (version > VERSION) {
+            throw new IOException("Unsupported binary GNSS log version " + version);
+        }
+        map.getShort();
+        long createdMillis = map.getLong();
+        byte[] tag = new byte[map.getShort() & 0xffff];
+        map.get(tag);
+        listener.onHeader(version, createdMillis, new String(tag, StandardCharsets.UTF_8));
+    }
+
+    /** Advances to the next sync word, counting the bytes in between */
+    private void resync(ByteBuffer map) {
+        int start = map.position();
+        int limit = map.limit() - 4;
+        int position = start + 1;
+        while (position <= limit && map.getInt(position) != BLOCK_SYNC) {
+            position++;
+        }
+        position = Math.min(position, map.limit());
+        mSkippedBytes += position - start;
+        map.position(position);
+    }
+
+    private void readBlock(ByteBuffer payload, int records, BinaryLogListener listener) {
+        Arrays.fill(mLabels, null);
+        boolean hasClock = false;
+        boolean hasReceivedSvTime = false;
+        for (int i = 0; i < records; i++) {
+            int type = payload.get();
+            switch (type) {
+                case RECORD_CLOCK:
+                    readClock(payload, hasClock);
+                    hasClock = true;
+                    break;
+                case RECORD_MEASUREMENT:
+                    if (!hasClock) {
+                        throw new IllegalArgumentException("Measurement without clock");
+                    }
+                    readMeasurement(payload, hasReceivedSvTime);
+                    hasReceivedSvTime = true;
+                    listener.onRaw(mRecord);
+                    break;
+                case RECORD_NAVIGATION:
+                    readNavigation(payload, listener);
+                    break;
+                case RECORD_FIX:
+                    listener.onFix(payload.getDouble(), payload.getDouble(), payload.getDouble());
+                    break;
+                case RECORD_IMU:
+                    readImu(payload, listener);
+                    break;
+                case RECORD_LABEL:
+                    readLabel(payload);
+                    break;
+                case RECORD_VALUES:
+                    readValues(payload, listener);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown record type " + type);
+            }
+            mRecords++;
+        }
+    }
+
+    private void readClock(ByteBuffer payload, boolean hasPrevious) {
+        RawRecord record = mRecord;
+        int flags = payload.getShort() & 0xffff;
+        if ((flags & CLOCK_ABSOLUTE) != 0) {
+            record.elapsedRealtimeMillis = payload.getLong();
+            record.timeNanos = payload.getLong();
+        } else {
+            if (!hasPrevious) {
+                throw new IllegalArgumentException("Clock delta without previous clock");
+            }
+            record.elapsedRealtimeMillis += payload.getInt();
+            record.timeNanos += payload.getInt();
+        }
+        record.fullBiasNanos = payload.getLong();
+        record.hasLeapSecond = (flags & CLOCK_LEAP) != 0;
+        record.leapSecond = record.hasLeapSecond ? payload.getInt() : 0;
+        record.hardwareClockDiscontinuityCount = payload.getInt();
+        record.hasTimeUncertaintyNanos = isPresent(flags, CLOCK_TIME_UNCERTAINTY);
+        record.timeUncertaintyNanos = getDouble(payload, flags, CLOCK_TIME_UNCERTAINTY);
+        record.hasBiasNanos = isPresent(flags, CLOCK_BIAS);
+        record.biasNanos = getDouble(payload, flags, CLOCK_BIAS);
+        record.hasBiasUncertaintyNanos = isPresent(flags, CLOCK_BIAS_UNCERTAINTY);
+        record.biasUncertaintyNanos = getDouble(payload, flags, CLOCK_BIAS_UNCERTAINTY);
+        record.hasDriftNanosPerSecond = isPresent(flags, CLOCK_DRIFT);
+        record.driftNanosPerSecond = getDouble(payload, flags, CLOCK_DRIFT);
+        record.hasDriftUncertaintyNanosPerSecond = isPresent(flags, CLOCK_DRIFT_UNCERTAINTY);
+        record.driftUncertaintyNanosPerSecond = getDouble(payload, flags, CLOCK_DRIFT_UNCERTAINTY);
+    }
+
+    private void readMeasurement(ByteBuffer payload, boolean hasPrevious) {
+        RawRecord record = mRecord;
+        int kinds = payload.getInt();
+        record.svid = payload.getShort() & 0xffff;
+        record.constellationType = payload.get() & 0xff;
+        record.multipathIndicator = payload.get() & 0xff;
+        record.state = payload.getInt();
+        record.accumulatedDeltaRangeState = payload.getInt();
+        record.timeOffsetNanos = getDouble(payload, kinds, MEASUREMENT_TIME_OFFSET);
+        record.cn0DbHz = getDouble(payload, kinds, MEASUREMENT_CN0);
+        record.pseudorangeRateMetersPerSecond = getDouble(payload, kinds, MEASUREMENT_RATE);
+        record.pseudorangeRateUncertaintyMetersPerSecond =
+                getDouble(payload, kinds, MEASUREMENT_RATE_UNCERTAINTY);
+        record.accumulatedDeltaRangeMeters = getDouble(payload, kinds, MEASUREMENT_ADR);
+        record.accumulatedDeltaRangeUncertaintyMeters =
+                getDouble(payload, kinds, MEASUREMENT_ADR_UNCERTAINTY);
+        record.hasCarrierPhase = isPresent(kinds, MEASUREMENT_CARRIER_PHASE);
+        record.carrierPhase = getDouble(payload, kinds, MEASUREMENT_CARRIER_PHASE);
+        record.hasCarrierPhaseUncertainty = isPresent(kinds, MEASUREMENT_CARRIER_PHASE_UNCERTAINTY);
+        record.carrierPhaseUncertainty =
+                getDouble(payload, kinds, MEASUREMENT_CARRIER_PHASE_UNCERTAINTY);
+        record.hasSnrInDb = isPresent(kinds, MEASUREMENT_SNR);
+        record.snrInDb = getDouble(payload, kinds, MEASUREMENT_SNR);
+        record.hasAutomaticGainControlLevelDb = isPresent(kinds, MEASUREMENT_AGC);
+        record.automaticGainControlLevelDb = getDouble(payload, kinds, MEASUREMENT_AGC);
+        record.hasCarrierFrequencyHz = isPresent(kinds, MEASUREMENT_CARRIER_FREQUENCY);
+        record.carrierFrequencyHz = record.hasCarrierFrequencyHz ? payload.getFloat() : 0f;
+        record.hasCarrierCycles = isPresent(kinds, MEASUREMENT_CARRIER_CYCLES);
+        record.carrierCycles = record.hasCarrierCycles ? payload.getLong() : 0L;
+        if (kindAt(kinds, MEASUREMENT_RECEIVED_SV_TIME) == DOUBLE_FLOAT) {
+            if (!hasPrevious) {
+                throw new IllegalArgumentException("Time delta without previous measurement");
+            }
+            record.receivedSvTimeNanos = mLastReceivedSvTimeNanos + payload.getInt();
+        } else {
+            record.receivedSvTimeNanos = payload.getLong();
+        }
+        mLastReceivedSvTimeNanos = record.receivedSvTimeNanos;
+        record.receivedSvTimeUncertaintyNanos =
+                kindAt(kinds, MEASUREMENT_RECEIVED_SV_TIME_UNCERTAINTY) == DOUBLE_FLOAT
+                        ? payload.getInt() : payload.getLong();
+    }
+
+    private void readNavigation(ByteBuffer payload, BinaryLogListener listener) {
+        int svid = payload.getInt();
+        int type = payload.getInt();
+        int status = payload.getInt();
+        int messageId = payload.getInt();
+        int submessageId = payload.getInt();
+        int length = payload.getShort() & 0xffff;
+        if (mNavigationData.length < length) {
+            mNavigationData = new byte[length];
+        }
+        payload.get(mNavigationData, 0, length);
+        listener.onNavigation(svid, type, status, messageId, submessageId, mNavigationData, length);
+    }
+
+    private void readImu(ByteBuffer payload, BinaryLogListener listener) {
+        int valueCount = payload.get() & 0xff;
+        int velocityCount = payload.get() & 0xff;
+        int positionCount = payload.get() & 0xff;
+        mValues = getDoubles(payload, mValues, valueCount);
+        mVelocity = getDoubles(payload, mVelocity, velocityCount);
+        mPosition = getDoubles(payload, mPosition, positionCount);
+        listener.onImu(mValues, valueCount, mVelocity, velocityCount, mPosition, positionCount,
+                payload.getDouble());
+    }
+
+    private void readLabel(ByteBuffer payload) {
+        int id = payload.getShort() & 0xffff;
+        byte[] text = new byte[payload.getShort() & 0xffff];
+        payload.get(text);
+        if (id >= mLabels.length) {
+            mLabels = Arrays.copyOf(mLabels, Math.max(2 * mLabels.length, id + 1));
+        }
+        mLabels[id] = new String(text, StandardCharsets.UTF_8);
+    }
+
+    private void readValues(ByteBuffer payload, BinaryLogListener listener) {
+        int id = payload.getShort() & 0xffff;
+        int count = payload.getShort() & 0xffff;
+        if (id >= mLabels.length || mLabels[id] == null) {
+            throw new IllegalArgumentException("Values without label");
+        }
+        mValues = getDoubles(payload, mValues, count);
+        listener.onValues(mLabels[id], mValues, count);
+    }
+
+    private static double[] getDoubles(ByteBuffer payload, double[] target, int count) {
+        if (target.length < count) {
+            target = new double[count];
+        }
+        for (int i = 0; i < count; i++) {
+            target[i] = payload.getDouble();
+        }
+        return target;
+    }
+
+    private static boolean isPresent(int kinds, int field) {
+        return kindAt(kinds, field) != DOUBLE_ABSENT;
+    }
+
+    private static double getDouble(ByteBuffer payload, int kinds, int field) {
+        switch (kindAt(kinds, field)) {
+            case DOUBLE_FLOAT:
+                return payload.getFloat();
+            case DOUBLE_FULL:
+                return payload.getDouble();
+            default:
+                return 0.0;
+        }
+    }
+
+    /** Intact blocks read so far */
+    public long getBlocks() {
+        return mBlocks;
+    }
+
+    public long getRecords() {
+        return mRecords;
+    }
+
+    /** Blocks skipped because of a bad CRC, length or content */
+    public long getCorruptBlocks() {
+        return mCorruptBlocks;
+    }
+
+    /** Bytes outside intact blocks, such as garbage between blocks or a torn tail */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mFile != null) {
+            mFile.close();
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package cn.byyddyh.spoofingdetection.gnsslog;
+
+import static cn.byyddyh.spoofingdetection.gnsslog.BinaryLogFormat.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import cn.byyddyh.spoofingdetection.AsyncFileWriter;
+
+/**
+ * Encodes log records into CRC protected blocks of the {@link BinaryLogFormat} and hands each
+ * completed block to an {@link AsyncFileWriter}. A block is completed when it holds
+ * {@code maxBlockBytes} or its first record is older than {@code maxBlockAgeMillis}, so the time a
+ * record stays in memory is bounded at low data rates as well.
+ *
+ * <p>Not thread safe, callers serialise access like {@code FileLogger} does with its file lock.
+ */
+public class BinaryLogWriter {
+
+    public static final int DEFAULT_MAX_BLOCK_BYTES = 32 * 1024;
+    public static final long DEFAULT_MAX_BLOCK_AGE_MILLIS = 2000;
+    private static final int MAX_CLOCK_BYTES = 2 + 16 + 8 + 4 + 4 + 5 * 8;
+    private static final int MAX_MEASUREMENT_BYTES = 4 + 4 + 8 + 10 * 8 + 4 + 8 + 8 + 8;
+
+    private final AsyncFileWriter mWriter;
+    private final int mMaxBlockBytes;
+    private final long mMaxBlockAgeNanos;
+    private final CRC32 mCrc = new CRC32();
+    private ByteBuffer mBlock;
+    private int mRecords = 0;
+    private long mBlockStartNanos;
+
+    /* Per block state, reset by startBlock */
+    private final RawRecord mLastClock = new RawRecord();
+    private boolean mHasClock;
+    private long mLastReceivedSvTimeNanos;
+    private boolean mHasReceivedSvTime;
+    private final Map<String, Integer> mLabels = new HashMap<>();
+
+    public BinaryLogWriter(AsyncFileWriter writer, String versionTag) {
+        this(writer, versionTag, DEFAULT_MAX_BLOCK_BYTES, DEFAULT_MAX_BLOCK_AGE_MILLIS);
+    }
+
+    public BinaryLogWriter(AsyncFileWriter writer, String versionTag, int maxBlockBytes,
+                           long maxBlockAgeMillis) {
+        mWriter = writer;
+        mMaxBlockBytes = maxBlockBytes;
+        mMaxBlockAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxBlockAgeMillis);
+        mBlock = ByteBuffer.allocate(BLOCK_HEADER_BYTES + maxBlockBytes + 1024)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        writeFileHeader(versionTag);
+        startBlock();
+    }
+
+    private void writeFileHeader(String versionTag) {
+        byte[] tag = versionTag.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 14 + tag.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC)
+                .putShort((short) VERSION)
+                .putShort((short) 0)
+                .putLong(System.currentTimeMillis())
+                .putShort((short) tag.length)
+                .put(tag);
+        mWriter.append(header.array(), 0, header.position());
+    }
+
+    /**
+     * Writes a {@code Raw} record, preceded by its clock unless the previous record of the block
+     * carried the same clock
+     */
+    public void writeRaw(RawRecord record) {
+        // Clock and measurement go into the same block, the deltas below depend on it
+        ensureRoom(2 + MAX_CLOCK_BYTES + MAX_MEASUREMENT_BYTES);
+        if (!mHasClock || !record.sameClock(mLastClock)) {
+            writeClock(record);
+        }
+        int kinds = 0;
+        kinds |= kindOf(record.timeOffsetNanos) << (KIND_BITS * MEASUREMENT_TIME_OFFSET);
+        kinds |= kindOf(record.cn0DbHz) << (KIND_BITS * MEASUREMENT_CN0);
+        kinds |= kindOf(record.pseudorangeRateMetersPerSecond) << (KIND_BITS * MEASUREMENT_RATE);
+        kinds |= kindOf(record.pseudorangeRateUncertaintyMetersPerSecond)
+                << (KIND_BITS * MEASUREMENT_RATE_UNCERTAINTY);
+        kinds |= kindOf(record.accumulatedDeltaRangeMeters) << (KIND_BITS * MEASUREMENT_ADR);
+        kinds |= kindOf(record.accumulatedDeltaRangeUncertaintyMeters)
+                << (KIND_BITS * MEASUREMENT_ADR_UNCERTAINTY);
+        kinds |= optionalKind(record.hasCarrierPhase, record.carrierPhase)
+                << (KIND_BITS * MEASUREMENT_CARRIER_PHASE);
+        kinds |= optionalKind(record.hasCarrierPhaseUncertainty, record.carrierPhaseUncertainty)
+                << (KIND_BITS * MEASUREMENT_CARRIER_PHASE_UNCERTAINTY);
+        kinds |= optionalKind(record.hasSnrInDb, record.snrInDb) << (KIND_BITS * MEASUREMENT_SNR);
+        kinds |= optionalKind(record.hasAutomaticGainControlLevelDb,
+                record.automaticGainControlLevelDb) << (KIND_BITS * MEASUREMENT_AGC);
+        kinds |= (record.hasCarrierFrequencyHz ? DOUBLE_FLOAT : DOUBLE_ABSENT)
+                << (KIND_BITS * MEASUREMENT_CARRIER_FREQUENCY);
+        kinds |= (record.hasCarrierCycles ? DOUBLE_FULL : DOUBLE_ABSENT)
+                << (KIND_BITS * MEASUREMENT_CARRIER_CYCLES);
+        long svTimeDelta = record.receivedSvTimeNanos - mLastReceivedSvTimeNanos;
+        boolean svTimeAsDelta = mHasReceivedSvTime && fitsInt(svTimeDelta);
+        kinds |= (svTimeAsDelta ? DOUBLE_FLOAT : DOUBLE_FULL)
+                << (KIND_BITS * MEASUREMENT_RECEIVED_SV_TIME);
+        boolean shortUncertainty = fitsInt(record.receivedSvTimeUncertaintyNanos);
+        kinds |= (shortUncertainty ? DOUBLE_FLOAT : DOUBLE_FULL)
+                << (KIND_BITS * MEASUREMENT_RECEIVED_SV_TIME_UNCERTAINTY);
+
+        ByteBuffer block = startRecord(RECORD_MEASUREMENT, MAX_MEASUREMENT_BYTES);
+        block.putInt(kinds)
+                .putShort((short) record.svid)
+                .put((byte) record.constellationType)
+                .put((byte) record.multipathIndicator)
+                .putInt(record.state)
+                .putInt(record.accumulatedDeltaRangeState);
+        putDouble(block, kinds, MEASUREMENT_TIME_OFFSET, record.timeOffsetNanos);
+        putDouble(block, kinds, MEASUREMENT_CN0, record.cn0DbHz);
+        putDouble(block, kinds, MEASUREMENT_RATE, record.pseudorangeRateMetersPerSecond);
+        putDouble(block, kinds, MEASUREMENT_RATE_UNCERTAINTY,
+                record.pseudorangeRateUncertaintyMetersPerSecond);
+        putDouble(block, kinds, MEASUREMENT_ADR, record.accumulatedDeltaRangeMeters);
+        putDouble(block, kinds, MEASUREMENT_ADR_UNCERTAINTY,
+                record.accumulatedDeltaRangeUncertaintyMeters);
+        putDouble(block, kinds, MEASUREMENT_CARRIER_PHASE, record.carrierPhase);
+        putDouble(block, kinds, MEASUREMENT_CARRIER_PHASE_UNCERTAINTY,
+                record.carrierPhaseUncertainty);
+        putDouble(block, kinds, MEASUREMENT_SNR, record.snrInDb);
+        putDouble(block, kinds, MEASUREMENT_AGC, record.automaticGainControlLevelDb);
+        if (record.hasCarrierFrequencyHz) {
+            block.putFloat(record.carrierFrequencyHz);
+        }
+        if (record.hasCarrierCycles) {
+            block.putLong(record.carrierCycles);
+        }
+        if (svTimeAsDelta) {
+            block.putInt((int) svTimeDelta);
+        } else {
+            block.putLong(record.receivedSvTimeNanos);
+        }
+        if (shortUncertainty) {
+            block.putInt((int) record.receivedSvTimeUncertaintyNanos);
+        } else {
+            block.putLong(record.receivedSvTimeUncertaintyNanos);
+        }
+        mLastReceivedSvTimeNanos = record.receivedSvTimeNanos;
+        mHasReceivedSvTime = true;
+        endRecord();
+    }
+
+    private void writeClock(RawRecord record) {
+        int flags = 0;
+        flags |= optionalKind(record.hasTimeUncertaintyNanos, record.timeUncertaintyNanos)
+                << (KIND_BITS * CLOCK_TIME_UNCERTAINTY);
+        flags |= optionalKind(record.hasBiasNanos, record.biasNanos) << (KIND_BITS * CLOCK_BIAS);
+        flags |= optionalKind(record.hasBiasUncertaintyNanos, record.biasUncertaintyNanos)
+                << (KIND_BITS * CLOCK_BIAS_UNCERTAINTY);
+        flags |= optionalKind(record.hasDriftNanosPerSecond, record.driftNanosPerSecond)
+                << (KIND_BITS * CLOCK_DRIFT);
+        flags |= optionalKind(record.hasDriftUncertaintyNanosPerSecond,
+                record.driftUncertaintyNanosPerSecond) << (KIND_BITS * CLOCK_DRIFT_UNCERTAINTY);
+        if (record.hasLeapSecond) {
+            flags |= CLOCK_LEAP;
+        }
+        long elapsedDelta = record.elapsedRealtimeMillis - mLastClock.elapsedRealtimeMillis;
+        long timeDelta = record.timeNanos - mLastClock.timeNanos;
+        boolean absolute = !mHasClock || !fitsInt(elapsedDelta) || !fitsInt(timeDelta);
+        if (absolute) {
+            flags |= CLOCK_ABSOLUTE;
+        }
+
+        ByteBuffer block = startRecord(RECORD_CLOCK, MAX_CLOCK_BYTES);
+        block.putShort((short) flags);
+        if (absolute) {
+            block.putLong(record.elapsedRealtimeMillis).putLong(record.timeNanos);
+        } else {
+            block.putInt((int) elapsedDelta).putInt((int) timeDelta);
+        }
+        block.putLong(record.fullBiasNanos);
+        if (record.hasLeapSecond) {
+            block.putInt(record.leapSecond);
+        }
+        block.putInt(record.hardwareClockDiscontinuityCount);
+        putDouble(block, flags, CLOCK_TIME_UNCERTAINTY, record.timeUncertaintyNanos);
+        putDouble(block, flags, CLOCK_BIAS, record.biasNanos);
+        putDouble(block, flags, CLOCK_BIAS_UNCERTAINTY, record.biasUncertaintyNanos);
+        putDouble(block, flags, CLOCK_DRIFT, record.driftNanosPerSecond);
+        putDouble(block, flags, CLOCK_DRIFT_UNCERTAINTY, record.driftUncertaintyNanosPerSecond);
+        mLastClock.copyClockFrom(record);
+        mHasClock = true;
+        // Never completes the block, the measurement follows
+        mRecords++;
+    }
+
+    public void writeNavigation(int svid, int type, int status, int messageId, int submessageId,
+                                byte[] data, int dataLength) {
+        ByteBuffer block = startRecord(RECORD_NAVIGATION, 22 + dataLength);
+        block.putInt(svid)
+                .putInt(type)
+                .putInt(status)
+                .putInt(messageId)
+                .putInt(submessageId)
+                .putShort((short) dataLength)
+                .put(data, 0, dataLength);
+        endRecord();
+    }
+
+    public void writeFix(double latitude, double longitude, double altitude) {
+        startRecord(RECORD_FIX, 24)
+                .putDouble(latitude)
+                .putDouble(longitude)
+                .putDouble(altitude);
+        endRecord();
+    }
+
+    public void writeImu(double[] values, double[] velocity, double[] position,
+                         double deltaSeconds) {
+        ByteBuffer block = startRecord(RECORD_IMU,
+                3 + 8 * (values.length + velocity.length + position.length + 1));
+        block.put((byte) values.length).put((byte) velocity.length).put((byte) position.length);
+        putDoubles(block, values, values.length);
+        putDoubles(block, velocity, velocity.length);
+        putDoubles(block, position, position.length);
+        block.putDouble(deltaSeconds);
+        endRecord();
+    }
+
+    /**
+     * Writes {@code count} labelled values, the label text is stored once per block
+     */
+    public void writeValues(String label, double[] values, int count) {
+        Integer labelId = mLabels.get(label);
+        if (labelId == null) {
+            byte[] text = label.getBytes(StandardCharsets.UTF_8);
+            labelId = mLabels.size();
+            // The label and its values have to end up in the same block
+            ensureRoom(1 + 4 + text.length + 1 + 4 + 8 * count);
+            startRecord(RECORD_LABEL, 4 + text.length)
+                    .putShort((short) (int) labelId)
+                    .putShort((short) text.length)
+                    .put(text);
+            mLabels.put(label, labelId);
+            mRecords++;
+        }
+        ByteBuffer block = startRecord(RECORD_VALUES, 4 + 8 * count);
+        block.putShort((short) (int) labelId).putShort((short) count);
+        putDoubles(block, values, count);
+        endRecord();
+    }
+
+    /**
+     * Completes the current block, call before closing the file
+     */
+    public void flush() {
+        if (mRecords > 0) {
+            finishBlock();
+        }
+    }
+
+    private ByteBuffer startRecord(int type, int maxBytes) {
+        ensureRoom(1 + maxBytes);
+        if (mRecords == 0) {
+            mBlockStartNanos = System.nanoTime();
+        }
+        return mBlock.put((byte) type);
+    }
+
+    private void endRecord() {
+        mRecords++;
+        if (mBlock.position() - BLOCK_HEADER_BYTES >= mMaxBlockBytes
+                || System.nanoTime() - mBlockStartNanos >= mMaxBlockAgeNanos) {
+            finishBlock();
+        }
+    }
+
+    /** Completes the block early if {@code bytes} would not fit, or grows it for a huge record */
+    private void ensureRoom(int bytes) {
+        if (mBlock.remaining() >= bytes) {
+            return;
+        }
+        if (mRecords > 0) {
+            finishBlock();
+        }
+        if (mBlock.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(BLOCK_HEADER_BYTES + bytes + 1024)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            larger.position(BLOCK_HEADER_BYTES);
+            mBlock = larger;
+        }
+    }
+
+    private void finishBlock() {
+        byte[] array = mBlock.array();
+        int payloadBytes = mBlock.position() - BLOCK_HEADER_BYTES;
+        mCrc.reset();
+        mCrc.update(array, BLOCK_HEADER_BYTES, payloadBytes);
+        mBlock.putInt(0, BLOCK_SYNC)
+                .putInt(4, payloadBytes)
+                .putInt(8, mRecords)
+                .putInt(12, (int) mCrc.getValue());
+        mWriter.append(array, 0, mBlock.position());
+        startBlock();
+    }
+
+    private void startBlock() {
+        mBlock.clear();
+        mBlock.position(BLOCK_HEADER_BYTES);
+        mRecords = 0;
+        mHasClock = false;
+        mHasReceivedSvTime = false;
+        mLabels.clear();
+    }
+
+    private static int optionalKind(boolean has, double value) {
+        return has ? kindOf(value) : DOUBLE_ABSENT;
+    }
+
+    private static void putDouble(ByteBuffer block, int kinds, int field, double value) {
+        switch (kindAt(kinds, field)) {
+            case DOUBLE_FLOAT:
+                block.putFloat((float) value);
+                break;
+            case DOUBLE_FULL:
+                block.putDouble(value);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void putDoubles(ByteBuffer block, double[] values, int count) {
+        for (int i = 0; i < count; i++) {
+            block.putDouble(values[i]);
+        }
+    }
+
+    private static boolean fitsInt(long value) {
+        return value == (int) value;
+    }
+}
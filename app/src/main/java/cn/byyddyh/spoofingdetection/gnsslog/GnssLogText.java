@@ -0,0 +1,188 @@
+package cn.byyddyh.spoofingdetection.gnsslog;
+
+import cn.byyddyh.spoofingdetection.LogRecordEncoder;
+
+/**
+ * Text form of the log records, compatible with GnssLogger v1.4 and {@code ReadGnssLogger}. Used
+ * by {@code FileLogger} for text logs and by {@link BinaryLogConverter}, so both produce the same
+ * bytes for the same record.
+ */
+public final class GnssLogText {
+
+    public static final String COMMENT_START = "# ";
+    public static final String RAW_TAG = "Raw";
+    public static final String NAV_TAG = "Nav";
+    /** Fixes are written as {@code GNSS,latitude,longitude,altitude,} by this app */
+    public static final String FIX_TAG = "GNSS";
+    public static final String IMU_TAG = "Imu_data";
+    public static final String RAW_COLUMNS =
+            "Raw,ElapsedRealtimeMillis,TimeNanos,LeapSecond,TimeUncertaintyNanos,FullBiasNanos,"
+                    + "BiasNanos,BiasUncertaintyNanos,DriftNanosPerSecond,DriftUncertaintyNanosPerSecond,"
+                    + "HardwareClockDiscontinuityCount,Svid,TimeOffsetNanos,State,ReceivedSvTimeNanos,"
+                    + "ReceivedSvTimeUncertaintyNanos,Cn0DbHz,PseudorangeRateMetersPerSecond,"
+                    + "PseudorangeRateUncertaintyMetersPerSecond,"
+                    + "AccumulatedDeltaRangeState,AccumulatedDeltaRangeMeters,"
+                    + "AccumulatedDeltaRangeUncertaintyMeters,CarrierFrequencyHz,CarrierCycles,"
+                    + "CarrierPhase,CarrierPhaseUncertainty,MultipathIndicator,SnrInDb,"
+                    + "ConstellationType,AgcDb";
+    private static final String FIX_COLUMNS =
+            "Fix,Provider,Latitude,Longitude,Altitude,Speed,Accuracy,(UTC)TimeInMs";
+    private static final String NAV_COLUMNS =
+            "Nav,Svid,Type,Status,MessageId,Sub-messageId,Data(Bytes)";
+
+    private GnssLogText() {
+    }
+
+    /**
+     * Comment lines at the start of a log, without line breaks
+     */
+    public static String[] headerLines(String versionTag) {
+        return new String[]{
+                COMMENT_START,
+                COMMENT_START + "Header Description:",
+                COMMENT_START,
+                COMMENT_START + versionTag,
+                COMMENT_START,
+                COMMENT_START + RAW_COLUMNS,
+                COMMENT_START,
+                COMMENT_START + FIX_COLUMNS,
+                COMMENT_START,
+                COMMENT_START + NAV_COLUMNS,
+                COMMENT_START};
+    }
+
+    /**
+     * Encodes a {@code Raw} line, empty fields for the optional values that are not available
+     */
+    public static void appendRaw(LogRecordEncoder encoder, RawRecord record) {
+        encoder.begin(RAW_TAG);
+        encoder.next().appendLong(record.elapsedRealtimeMillis);
+        encoder.next().appendLong(record.timeNanos);
+        encoder.next();
+        if (record.hasLeapSecond) {
+            encoder.appendLong(record.leapSecond);
+        }
+        encoder.next();
+        if (record.hasTimeUncertaintyNanos) {
+            encoder.appendDouble(record.timeUncertaintyNanos);
+        }
+        encoder.next().appendLong(record.fullBiasNanos);
+        encoder.next();
+        if (record.hasBiasNanos) {
+            encoder.appendDouble(record.biasNanos);
+        }
+        encoder.next();
+        if (record.hasBiasUncertaintyNanos) {
+            encoder.appendDouble(record.biasUncertaintyNanos);
+        }
+        encoder.next();
+        if (record.hasDriftNanosPerSecond) {
+            encoder.appendDouble(record.driftNanosPerSecond);
+        }
+        encoder.next();
+        if (record.hasDriftUncertaintyNanosPerSecond) {
+            encoder.appendDouble(record.driftUncertaintyNanosPerSecond);
+        }
+        encoder.next().appendLong(record.hardwareClockDiscontinuityCount);
+
+        encoder.next().appendLong(record.svid);
+        encoder.next().appendDouble(record.timeOffsetNanos);
+        encoder.next().appendLong(record.state);
+        encoder.next().appendLong(record.receivedSvTimeNanos);
+        encoder.next().appendLong(record.receivedSvTimeUncertaintyNanos);
+        encoder.next().appendDouble(record.cn0DbHz);
+        encoder.next().appendDouble(record.pseudorangeRateMetersPerSecond);
+        encoder.next().appendDouble(record.pseudorangeRateUncertaintyMetersPerSecond);
+        encoder.next().appendLong(record.accumulatedDeltaRangeState);
+        encoder.next().appendDouble(record.accumulatedDeltaRangeMeters);
+        encoder.next().appendDouble(record.accumulatedDeltaRangeUncertaintyMeters);
+        encoder.next();
+        if (record.hasCarrierFrequencyHz) {
+            encoder.appendFloat(record.carrierFrequencyHz);
+        }
+        encoder.next();
+        if (record.hasCarrierCycles) {
+            encoder.appendLong(record.carrierCycles);
+        }
+        encoder.next();
+        if (record.hasCarrierPhase) {
+            encoder.appendDouble(record.carrierPhase);
+        }
+        encoder.next();
+        if (record.hasCarrierPhaseUncertainty) {
+            encoder.appendDouble(record.carrierPhaseUncertainty);
+        }
+        encoder.next().appendLong(record.multipathIndicator);
+        encoder.next();
+        if (record.hasSnrInDb) {
+            encoder.appendDouble(record.snrInDb);
+        }
+        encoder.next().appendLong(record.constellationType);
+        encoder.next();
+        if (record.hasAutomaticGainControlLevelDb) {
+            encoder.appendDouble(record.automaticGainControlLevelDb);
+        }
+        encoder.end();
+    }
+
+    /**
+     * Encodes a {@code Nav} line, the data bytes as signed decimals like GnssLogger
+     */
+    public static void appendNavigation(LogRecordEncoder encoder, int svid, int type, int status,
+                                        int messageId, int submessageId, byte[] data,
+                                        int dataLength) {
+        encoder.begin(NAV_TAG)
+                .next().appendLong(svid)
+                .next().appendLong(type)
+                .next().appendLong(status)
+                .next().appendLong(messageId)
+                .next().appendLong(submessageId);
+        for (int i = 0; i < dataLength; i++) {
+            encoder.next().appendLong(data[i]);
+        }
+        encoder.end();
+    }
+
+    /**
+     * Encodes the fix line of {@code FileLogger.onLocationReceived}
+     */
+    public static void appendFix(LogRecordEncoder encoder, double latitude, double longitude,
+                                 double altitude) {
+        encoder.begin(FIX_TAG)
+                .next().appendDouble(latitude)
+                .next().appendDouble(longitude)
+                .next().appendDouble(altitude)
+                .next()
+                .end();
+    }
+
+    /**
+     * Encodes an {@code Imu_data} line: acceleration, velocity, position and time step
+     */
+    public static void appendImu(LogRecordEncoder encoder, double[] values, int valueCount,
+                                 double[] velocity, int velocityCount, double[] position,
+                                 int positionCount, double deltaSeconds) {
+        encoder.begin(IMU_TAG);
+        appendValues(encoder, values, valueCount);
+        appendValues(encoder, velocity, velocityCount);
+        appendValues(encoder, position, positionCount);
+        encoder.next().appendDouble(deltaSeconds).end();
+    }
+
+    /**
+     * Encodes a line of {@code count} labelled values as written by {@code storeData},
+     * {@code storeArrayData} and {@code storeListData}
+     */
+    public static void appendValues(LogRecordEncoder encoder, String label, double[] values,
+                                    int count) {
+        encoder.begin(label);
+        appendValues(encoder, values, count);
+        encoder.end();
+    }
+
+    private static void appendValues(LogRecordEncoder encoder, double[] values, int count) {
+        for (int i = 0; i < count; i++) {
+            encoder.next().appendDouble(values[i]);
+        }
+    }
+}
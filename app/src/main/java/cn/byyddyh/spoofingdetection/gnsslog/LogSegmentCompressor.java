@@ -0,0 +1,88 @@
+package cn.byyddyh.spoofingdetection.gnsslog;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips closed log segments one at a time on a minimum priority thread, so compression never
+ * competes with the sensor callbacks or the writer's I/O thread.
+ *
+ * <p>The segment is streamed into {@code <name>.gz.tmp}, renamed to {@code <name>.gz}, the index is
+ * pointed at it and only then is the original deleted: at any moment the index names a complete
+ * file.
+ */
+public class LogSegmentCompressor {
+
+    private static final String TAG = "LogSegmentCompressor";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final ExecutorService mExecutor;
+
+    public LogSegmentCompressor() {
+        mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the closed {@code segment} of {@code index} for compression
+     */
+    public void compress(LogSegmentIndex index, LogSegmentIndex.Segment segment) {
+        mExecutor.execute(() -> {
+            try {
+                compressNow(index, segment);
+            } catch (IOException e) {
+                // The uncompressed segment stays in place and in the index
+                Log.e(TAG, "Could not compress " + segment.getFileName(), e);
+            }
+        });
+    }
+
+    /**
+     * Runs {@code task} on the compression thread once everything queued before it is done, for the
+     * logger's work on closed segments that must not hold up the sensor callbacks or the UI. A task
+     * queued after {@link #compress} sees the segment under its final name.
+     */
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    private static void compressNow(LogSegmentIndex index, LogSegmentIndex.Segment segment)
+            throws IOException {
+        File directory = index.getDirectory();
+        File source = new File(directory, segment.getFileName());
+        String compressedName = segment.getFileName() + BinaryLogReader.GZIP_EXTENSION;
+        File target = new File(directory, compressedName);
+        File temp = new File(directory, compressedName + TEMP_EXTENSION);
+        try (InputStream input = new FileInputStream(source);
+             OutputStream output = new GZIPOutputStream(new FileOutputStream(temp), BUFFER_BYTES)) {
+            byte[] buffer = new byte[BUFFER_BYTES];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp);
+        }
+        index.rename(segment, compressedName);
+        source.delete();
+    }
+}
@@ -0,0 +1,225 @@
+package cn.byyddyh.spoofingdetection.gnsslog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Index of the segments of one logging session, kept next to them as a small text file:
+ *
+ * <pre>
+ * # GNSS log segment index, times in Unix epoch millis
+ * # File,StartMillis,EndMillis,Bytes
+ * gnss_log_2023_05_01_10_00_00_000.txt.gz,1682906400000,1682910000000,33554432
+ * gnss_log_2023_05_01_10_00_00_001.txt,1682910000000,-1,0
+ * </pre>
+ *
+ * <p>The times are the wall clock of the first and last record of a segment; a segment still being
+ * written, or left open by a crash, has no end time. The file is rewritten whole on every change
+ * and replaced by a rename, so readers never see a half written index. All methods are thread
+ * safe: the logger adds segments while the compressor thread closes and renames them.
+ */
+public class LogSegmentIndex {
+
+    public static final String FILE_EXTENSION = ".idx";
+    public static final long OPEN_END = -1;
+
+    private static final String HEADER = "# GNSS log segment index, times in Unix epoch millis\n"
+            + "# File,StartMillis,EndMillis,Bytes\n";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    /**
+     * One segment file of the session
+     */
+    public static class Segment {
+        private String mFileName;
+        private final long mStartMillis;
+        private long mEndMillis;
+        private long mBytes;
+
+        Segment(String fileName, long startMillis, long endMillis, long bytes) {
+            mFileName = fileName;
+            mStartMillis = startMillis;
+            mEndMillis = endMillis;
+            mBytes = bytes;
+        }
+
+        public String getFileName() {
+            return mFileName;
+        }
+
+        public long getStartMillis() {
+            return mStartMillis;
+        }
+
+        /** {@link #OPEN_END} while the segment is written */
+        public long getEndMillis() {
+            return mEndMillis;
+        }
+
+        /** Uncompressed size */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public boolean isCompressed() {
+            return mFileName.endsWith(BinaryLogReader.GZIP_EXTENSION);
+        }
+
+        /** Returns {@code true} if the segment may hold records from {@code fromMillis} to {@code toMillis} */
+        public boolean overlaps(long fromMillis, long toMillis) {
+            return mStartMillis <= toMillis && (mEndMillis == OPEN_END || mEndMillis >= fromMillis);
+        }
+    }
+
+    private final File mFile;
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    private LogSegmentIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Starts an empty index, written when the first segment is opened
+     */
+    public static LogSegmentIndex create(File file) {
+        return new LogSegmentIndex(file);
+    }
+
+    public static LogSegmentIndex load(File file) throws IOException {
+        LogSegmentIndex index = new LogSegmentIndex(file);
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length < 4) {
+                    throw new IOException("Bad segment line in " + file + ": " + line);
+                }
+                try {
+                    index.mSegments.add(new Segment(fields[0], Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad segment line in " + file + ": " + line, e);
+                }
+            }
+        }
+        return index;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public File getDirectory() {
+        return mFile.getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * Adds a segment being written from {@code startMillis} on. Only the memory is updated, the
+     * file follows with the next {@link #close}, {@link #rename} or {@link #save}, so the logger
+     * can start a segment without waiting for the disk.
+     */
+    public synchronized Segment add(String fileName, long startMillis) {
+        Segment segment = new Segment(fileName, startMillis, OPEN_END, 0);
+        mSegments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Records the end of a segment once its writer has been closed
+     */
+    public synchronized void close(Segment segment, long endMillis, long bytes) throws IOException {
+        segment.mEndMillis = Math.max(endMillis, segment.mStartMillis);
+        segment.mBytes = bytes;
+        save();
+    }
+
+    /**
+     * Points the segment at its compressed file
+     */
+    public synchronized void rename(Segment segment, String fileName) throws IOException {
+        segment.mFileName = fileName;
+        save();
+    }
+
+    public synchronized List<Segment> getSegments() {
+        return new ArrayList<>(mSegments);
+    }
+
+    /**
+     * Files of all existing segments, in recording order
+     */
+    public List<File> getFiles() {
+        return getFiles(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Files of the existing segments that may hold records between {@code fromMillis} and
+     * {@code toMillis}, in recording order. Segments removed by the logger's pruning are left out.
+     */
+    public synchronized List<File> getFiles(long fromMillis, long toMillis) {
+        File directory = getDirectory();
+        List<File> files = new ArrayList<>();
+        for (Segment segment : mSegments) {
+            if (!segment.overlaps(fromMillis, toMillis)) {
+                continue;
+            }
+            File file = new File(directory, segment.mFileName);
+            if (file.exists()) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Writes the index file
+     */
+    public synchronized void save() throws IOException {
+        StringBuilder text = new StringBuilder(HEADER);
+        for (Segment segment : mSegments) {
+            text.append(segment.mFileName).append(',')
+                    .append(segment.mStartMillis).append(',')
+                    .append(segment.mEndMillis).append(',')
+                    .append(segment.mBytes).append('\n');
+        }
+        File temp = new File(mFile.getPath() + TEMP_EXTENSION);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            writer.write(text.toString());
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Could not replace " + mFile);
+        }
+    }
+
+    /**
+     * Opens a segment for reading, inflating it if it has been compressed
+     */
+    public static InputStream openStream(File segment) throws IOException {
+        InputStream input = new FileInputStream(segment);
+        if (segment.getName().endsWith(BinaryLogReader.GZIP_EXTENSION)) {
+            try {
+                return new GZIPInputStream(input, 64 * 1024);
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            }
+        }
+        return input;
+    }
+}
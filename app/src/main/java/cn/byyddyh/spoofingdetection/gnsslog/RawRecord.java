@@ -0,0 +1,105 @@
+package cn.byyddyh.spoofingdetection.gnsslog;
+
+/**
+ * One {@code Raw} line of the GnssLogger v1.4 format: the receiver clock of an event and one of
+ * its measurements. Optional values are only meaningful while their {@code has*} flag is set.
+ *
+ * <p>The object is mutable and reused for every record by the writers and readers.
+ */
+public class RawRecord {
+
+    /* GnssClock */
+    public long elapsedRealtimeMillis;
+    public long timeNanos;
+    public boolean hasLeapSecond;
+    public int leapSecond;
+    public boolean hasTimeUncertaintyNanos;
+    public double timeUncertaintyNanos;
+    public long fullBiasNanos;
+    public boolean hasBiasNanos;
+    public double biasNanos;
+    public boolean hasBiasUncertaintyNanos;
+    public double biasUncertaintyNanos;
+    public boolean hasDriftNanosPerSecond;
+    public double driftNanosPerSecond;
+    public boolean hasDriftUncertaintyNanosPerSecond;
+    public double driftUncertaintyNanosPerSecond;
+    public int hardwareClockDiscontinuityCount;
+
+    /* GnssMeasurement */
+    public int svid;
+    public double timeOffsetNanos;
+    public int state;
+    public long receivedSvTimeNanos;
+    public long receivedSvTimeUncertaintyNanos;
+    public double cn0DbHz;
+    public double pseudorangeRateMetersPerSecond;
+    public double pseudorangeRateUncertaintyMetersPerSecond;
+    public int accumulatedDeltaRangeState;
+    public double accumulatedDeltaRangeMeters;
+    public double accumulatedDeltaRangeUncertaintyMeters;
+    public boolean hasCarrierFrequencyHz;
+    public float carrierFrequencyHz;
+    public boolean hasCarrierCycles;
+    public long carrierCycles;
+    public boolean hasCarrierPhase;
+    public double carrierPhase;
+    public boolean hasCarrierPhaseUncertainty;
+    public double carrierPhaseUncertainty;
+    public int multipathIndicator;
+    public boolean hasSnrInDb;
+    public double snrInDb;
+    public int constellationType;
+    public boolean hasAutomaticGainControlLevelDb;
+    public double automaticGainControlLevelDb;
+
+    /**
+     * Returns {@code true} if the clock fields equal those of {@code other}, doubles are compared
+     * bitwise
+     */
+    public boolean sameClock(RawRecord other) {
+        return elapsedRealtimeMillis == other.elapsedRealtimeMillis
+                && timeNanos == other.timeNanos
+                && fullBiasNanos == other.fullBiasNanos
+                && hardwareClockDiscontinuityCount == other.hardwareClockDiscontinuityCount
+                && hasLeapSecond == other.hasLeapSecond
+                && leapSecond == other.leapSecond
+                && sameOptional(hasTimeUncertaintyNanos, timeUncertaintyNanos,
+                other.hasTimeUncertaintyNanos, other.timeUncertaintyNanos)
+                && sameOptional(hasBiasNanos, biasNanos, other.hasBiasNanos, other.biasNanos)
+                && sameOptional(hasBiasUncertaintyNanos, biasUncertaintyNanos,
+                other.hasBiasUncertaintyNanos, other.biasUncertaintyNanos)
+                && sameOptional(hasDriftNanosPerSecond, driftNanosPerSecond,
+                other.hasDriftNanosPerSecond, other.driftNanosPerSecond)
+                && sameOptional(hasDriftUncertaintyNanosPerSecond, driftUncertaintyNanosPerSecond,
+                other.hasDriftUncertaintyNanosPerSecond, other.driftUncertaintyNanosPerSecond);
+    }
+
+    /**
+     * Copies the clock fields of {@code other}
+     */
+    public void copyClockFrom(RawRecord other) {
+        elapsedRealtimeMillis = other.elapsedRealtimeMillis;
+        timeNanos = other.timeNanos;
+        hasLeapSecond = other.hasLeapSecond;
+        leapSecond = other.leapSecond;
+        hasTimeUncertaintyNanos = other.hasTimeUncertaintyNanos;
+        timeUncertaintyNanos = other.timeUncertaintyNanos;
+        fullBiasNanos = other.fullBiasNanos;
+        hasBiasNanos = other.hasBiasNanos;
+        biasNanos = other.biasNanos;
+        hasBiasUncertaintyNanos = other.hasBiasUncertaintyNanos;
+        biasUncertaintyNanos = other.biasUncertaintyNanos;
+        hasDriftNanosPerSecond = other.hasDriftNanosPerSecond;
+        driftNanosPerSecond = other.driftNanosPerSecond;
+        hasDriftUncertaintyNanosPerSecond = other.hasDriftUncertaintyNanosPerSecond;
+        driftUncertaintyNanosPerSecond = other.driftUncertaintyNanosPerSecond;
+        hardwareClockDiscontinuityCount = other.hardwareClockDiscontinuityCount;
+    }
+
+    private static boolean sameOptional(boolean has, double value, boolean otherHas,
+                                        double otherValue) {
+        return has == otherHas && (!has
+                || Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(otherValue));
+    }
+}
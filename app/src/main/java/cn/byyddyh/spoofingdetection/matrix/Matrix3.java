@@ -0,0 +1,158 @@
+package cn.byyddyh.spoofingdetection.matrix;
+
+/**
+ * 3 x 3 matrices as row major {@code double[9]}, unrolled: rotations between ECEF and local
+ * frames and the position or velocity blocks of covariances. Outputs must not alias inputs unless
+ * stated otherwise.
+ */
+public final class Matrix3 {
+
+    public static final int SIZE = 3;
+
+    private Matrix3() {
+    }
+
+    /**
+     * {@code out = a b}
+     */
+    public static void multiply(double[] a, double[] b, double[] out) {
+        out[0] = a[0] * b[0] + a[1] * b[3] + a[2] * b[6];
+        out[1] = a[0] * b[1] + a[1] * b[4] + a[2] * b[7];
+        out[2] = a[0] * b[2] + a[1] * b[5] + a[2] * b[8];
+        out[3] = a[3] * b[0] + a[4] * b[3] + a[5] * b[6];
+        out[4] = a[3] * b[1] + a[4] * b[4] + a[5] * b[7];
+        out[5] = a[3] * b[2] + a[4] * b[5] + a[5] * b[8];
+        out[6] = a[6] * b[0] + a[7] * b[3] + a[8] * b[6];
+        out[7] = a[6] * b[1] + a[7] * b[4] + a[8] * b[7];
+        out[8] = a[6] * b[2] + a[7] * b[5] + a[8] * b[8];
+    }
+
+    /**
+     * {@code out = a' b}
+     */
+    public static void transposeMultiply(double[] a, double[] b, double[] out) {
+        out[0] = a[0] * b[0] + a[3] * b[3] + a[6] * b[6];
+        out[1] = a[0] * b[1] + a[3] * b[4] + a[6] * b[7];
+        out[2] = a[0] * b[2] + a[3] * b[5] + a[6] * b[8];
+        out[3] = a[1] * b[0] + a[4] * b[3] + a[7] * b[6];
+        out[4] = a[1] * b[1] + a[4] * b[4] + a[7] * b[7];
+        out[5] = a[1] * b[2] + a[4] * b[5] + a[7] * b[8];
+        out[6] = a[2] * b[0] + a[5] * b[3] + a[8] * b[6];
+        out[7] = a[2] * b[1] + a[5] * b[4] + a[8] * b[7];
+        out[8] = a[2] * b[2] + a[5] * b[5] + a[8] * b[8];
+    }
+
+    /**
+     * {@code out = a b'}
+     */
+    public static void multiplyTransposed(double[] a, double[] b, double[] out) {
+        out[0] = a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+        out[1] = a[0] * b[3] + a[1] * b[4] + a[2] * b[5];
+        out[2] = a[0] * b[6] + a[1] * b[7] + a[2] * b[8];
+        out[3] = a[3] * b[0] + a[4] * b[1] + a[5] * b[2];
+        out[4] = a[3] * b[3] + a[4] * b[4] + a[5] * b[5];
+        out[5] = a[3] * b[6] + a[4] * b[7] + a[5] * b[8];
+        out[6] = a[6] * b[0] + a[7] * b[1] + a[8] * b[2];
+        out[7] = a[6] * b[3] + a[7] * b[4] + a[8] * b[5];
+        out[8] = a[6] * b[6] + a[7] * b[7] + a[8] * b[8];
+    }
+
+    /**
+     * {@code out = a x}, {@code out} may be {@code x}
+     */
+    public static void multiplyVector(double[] a, double[] x, double[] out) {
+        double r0 = a[0] * x[0] + a[1] * x[1] + a[2] * x[2];
+        double r1 = a[3] * x[0] + a[4] * x[1] + a[5] * x[2];
+        double r2 = a[6] * x[0] + a[7] * x[1] + a[8] * x[2];
+        out[0] = r0;
+        out[1] = r1;
+        out[2] = r2;
+    }
+
+    /**
+     * {@code out = r p r'}, a covariance {@code p} expressed in the frame {@code r} rotates to
+     *
+     * @param p symmetric, only its upper triangle is read
+     */
+    public static void rotateSymmetric(double[] r, double[] p, double[] out) {
+        for (int i = 0; i < SIZE; i++) {
+            // row i of r p
+            double r0 = r[3 * i];
+            double r1 = r[3 * i + 1];
+            double r2 = r[3 * i + 2];
+            double rp0 = r0 * p[0] + r1 * p[1] + r2 * p[2];
+            double rp1 = r0 * p[1] + r1 * p[4] + r2 * p[5];
+            double rp2 = r0 * p[2] + r1 * p[5] + r2 * p[8];
+            for (int j = i; j < SIZE; j++) {
+                double value = rp0 * r[3 * j] + rp1 * r[3 * j + 1] + rp2 * r[3 * j + 2];
+                out[3 * i + j] = value;
+                out[3 * j + i] = value;
+            }
+        }
+    }
+
+    /**
+     * Closed form inverse by the adjugate, {@code out} may be {@code a}
+     *
+     * @return {@code false} if {@code a} is singular, {@code out} is then unchanged
+     */
+    public static boolean invert(double[] a, double[] out) {
+        double c00 = a[4] * a[8] - a[5] * a[7];
+        double c01 = a[5] * a[6] - a[3] * a[8];
+        double c02 = a[3] * a[7] - a[4] * a[6];
+        double determinant = a[0] * c00 + a[1] * c01 + a[2] * c02;
+        if (determinant == 0) {
+            return false;
+        }
+        double d = 1.0 / determinant;
+        double i01 = (a[2] * a[7] - a[1] * a[8]) * d;
+        double i02 = (a[1] * a[5] - a[2] * a[4]) * d;
+        double i11 = (a[0] * a[8] - a[2] * a[6]) * d;
+        double i12 = (a[2] * a[3] - a[0] * a[5]) * d;
+        double i21 = (a[1] * a[6] - a[0] * a[7]) * d;
+        double i22 = (a[0] * a[4] - a[1] * a[3]) * d;
+        out[0] = c00 * d;
+        out[1] = i01;
+        out[2] = i02;
+        out[3] = c01 * d;
+        out[4] = i11;
+        out[5] = i12;
+        out[6] = c02 * d;
+        out[7] = i21;
+        out[8] = i22;
+        return true;
+    }
+
+    /**
+     * Cholesky factorization {@code a = u'u} in place, {@code u} upper triangular in the upper
+     * triangle of {@code a}, the strict lower triangle is not read nor written
+     *
+     * @return {@code false} if {@code a} is not positive definite
+     */
+    public static boolean cholesky(double[] a) {
+        double d0 = a[0];
+        if (!(d0 > 0)) {
+            return false;
+        }
+        double u00 = Math.sqrt(d0);
+        double u01 = a[1] / u00;
+        double u02 = a[2] / u00;
+        double d1 = a[4] - u01 * u01;
+        if (!(d1 > 0)) {
+            return false;
+        }
+        double u11 = Math.sqrt(d1);
+        double u12 = (a[5] - u01 * u02) / u11;
+        double d2 = a[8] - u02 * u02 - u12 * u12;
+        if (!(d2 > 0)) {
+            return false;
+        }
+        a[0] = u00;
+        a[1] = u01;
+        a[2] = u02;
+        a[4] = u11;
+        a[5] = u12;
+        a[8] = Math.sqrt(d2);
+        return true;
+    }
+}
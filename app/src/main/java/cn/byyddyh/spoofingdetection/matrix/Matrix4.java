@@ -0,0 +1,290 @@
+package cn.byyddyh.spoofingdetection.matrix;
+
+/**
+ * 4 x 4 matrices as row major {@code double[16]}, unrolled: the normal matrices {@code G'WG} of
+ * the position and of the velocity with the clock. Symmetric matrices are read from and factored
+ * into their upper triangle. Outputs must not alias inputs unless stated otherwise.
+ */
+public final class Matrix4 {
+
+    public static final int SIZE = 4;
+
+    private Matrix4() {
+    }
+
+    /**
+     * {@code out = a b}
+     */
+    public static void multiply(double[] a, double[] b, double[] out) {
+        out[0] = a[0] * b[0] + a[1] * b[4] + a[2] * b[8] + a[3] * b[12];
+        out[1] = a[0] * b[1] + a[1] * b[5] + a[2] * b[9] + a[3] * b[13];
+        out[2] = a[0] * b[2] + a[1] * b[6] + a[2] * b[10] + a[3] * b[14];
+        out[3] = a[0] * b[3] + a[1] * b[7] + a[2] * b[11] + a[3] * b[15];
+        out[4] = a[4] * b[0] + a[5] * b[4] + a[6] * b[8] + a[7] * b[12];
+        out[5] = a[4] * b[1] + a[5] * b[5] + a[6] * b[9] + a[7] * b[13];
+        out[6] = a[4] * b[2] + a[5] * b[6] + a[6] * b[10] + a[7] * b[14];
+        out[7] = a[4] * b[3] + a[5] * b[7] + a[6] * b[11] + a[7] * b[15];
+        out[8] = a[8] * b[0] + a[9] * b[4] + a[10] * b[8] + a[11] * b[12];
+        out[9] = a[8] * b[1] + a[9] * b[5] + a[10] * b[9] + a[11] * b[13];
+        out[10] = a[8] * b[2] + a[9] * b[6] + a[10] * b[10] + a[11] * b[14];
+        out[11] = a[8] * b[3] + a[9] * b[7] + a[10] * b[11] + a[11] * b[15];
+        out[12] = a[12] * b[0] + a[13] * b[4] + a[14] * b[8] + a[15] * b[12];
+        out[13] = a[12] * b[1] + a[13] * b[5] + a[14] * b[9] + a[15] * b[13];
+        out[14] = a[12] * b[2] + a[13] * b[6] + a[14] * b[10] + a[15] * b[14];
+        out[15] = a[12] * b[3] + a[13] * b[7] + a[14] * b[11] + a[15] * b[15];
+    }
+
+    /**
+     * {@code out = a' b}
+     */
+    public static void transposeMultiply(double[] a, double[] b, double[] out) {
+        out[0] = a[0] * b[0] + a[4] * b[4] + a[8] * b[8] + a[12] * b[12];
+        out[1] = a[0] * b[1] + a[4] * b[5] + a[8] * b[9] + a[12] * b[13];
+        out[2] = a[0] * b[2] + a[4] * b[6] + a[8] * b[10] + a[12] * b[14];
+        out[3] = a[0] * b[3] + a[4] * b[7] + a[8] * b[11] + a[12] * b[15];
+        out[4] = a[1] * b[0] + a[5] * b[4] + a[9] * b[8] + a[13] * b[12];
+        out[5] = a[1] * b[1] + a[5] * b[5] + a[9] * b[9] + a[13] * b[13];
+        out[6] = a[1] * b[2] + a[5] * b[6] + a[9] * b[10] + a[13] * b[14];
+        out[7] = a[1] * b[3] + a[5] * b[7] + a[9] * b[11] + a[13] * b[15];
+        out[8] = a[2] * b[0] + a[6] * b[4] + a[10] * b[8] + a[14] * b[12];
+        out[9] = a[2] * b[1] + a[6] * b[5] + a[10] * b[9] + a[14] * b[13];
+        out[10] = a[2] * b[2] + a[6] * b[6] + a[10] * b[10] + a[14] * b[14];
+        out[11] = a[2] * b[3] + a[6] * b[7] + a[10] * b[11] + a[14] * b[15];
+        out[12] = a[3] * b[0] + a[7] * b[4] + a[11] * b[8] + a[15] * b[12];
+        out[13] = a[3] * b[1] + a[7] * b[5] + a[11] * b[9] + a[15] * b[13];
+        out[14] = a[3] * b[2] + a[7] * b[6] + a[11] * b[10] + a[15] * b[14];
+        out[15] = a[3] * b[3] + a[7] * b[7] + a[11] * b[11] + a[15] * b[15];
+    }
+
+    /**
+     * {@code out = a b'}
+     */
+    public static void multiplyTransposed(double[] a, double[] b, double[] out) {
+        out[0] = a[0] * b[0] + a[1] * b[1] + a[2] * b[2] + a[3] * b[3];
+        out[1] = a[0] * b[4] + a[1] * b[5] + a[2] * b[6] + a[3] * b[7];
+        out[2] = a[0] * b[8] + a[1] * b[9] + a[2] * b[10] + a[3] * b[11];
+        out[3] = a[0] * b[12] + a[1] * b[13] + a[2] * b[14] + a[3] * b[15];
+        out[4] = a[4] * b[0] + a[5] * b[1] + a[6] * b[2] + a[7] * b[3];
+        out[5] = a[4] * b[4] + a[5] * b[5] + a[6] * b[6] + a[7] * b[7];
+        out[6] = a[4] * b[8] + a[5] * b[9] + a[6] * b[10] + a[7] * b[11];
+        out[7] = a[4] * b[12] + a[5] * b[13] + a[6] * b[14] + a[7] * b[15];
+        out[8] = a[8] * b[0] + a[9] * b[1] + a[10] * b[2] + a[11] * b[3];
+        out[9] = a[8] * b[4] + a[9] * b[5] + a[10] * b[6] + a[11] * b[7];
+        out[10] = a[8] * b[8] + a[9] * b[9] + a[10] * b[10] + a[11] * b[11];
+        out[11] = a[8] * b[12] + a[9] * b[13] + a[10] * b[14] + a[11] * b[15];
+        out[12] = a[12] * b[0] + a[13] * b[1] + a[14] * b[2] + a[15] * b[3];
+        out[13] = a[12] * b[4] + a[13] * b[5] + a[14] * b[6] + a[15] * b[7];
+        out[14] = a[12] * b[8] + a[13] * b[9] + a[14] * b[10] + a[15] * b[11];
+        out[15] = a[12] * b[12] + a[13] * b[13] + a[14] * b[14] + a[15] * b[15];
+    }
+
+    /**
+     * {@code out = a x}, {@code out} may be {@code x}
+     */
+    public static void multiplyVector(double[] a, double[] x, double[] out) {
+        double r0 = a[0] * x[0] + a[1] * x[1] + a[2] * x[2] + a[3] * x[3];
+        double r1 = a[4] * x[0] + a[5] * x[1] + a[6] * x[2] + a[7] * x[3];
+        double r2 = a[8] * x[0] + a[9] * x[1] + a[10] * x[2] + a[11] * x[3];
+        double r3 = a[12] * x[0] + a[13] * x[1] + a[14] * x[2] + a[15] * x[3];
+        out[0] = r0;
+        out[1] = r1;
+        out[2] = r2;
+        out[3] = r3;
+    }
+
+    /**
+     * Upper triangle of {@code c += weight x x'}, {@code x = v[offset..offset+3]}
+     */
+    public static void rankOneUpdate(double[] c, double[] v, int offset, double weight) {
+        double x0 = v[offset];
+        double x1 = v[offset + 1];
+        double x2 = v[offset + 2];
+        double x3 = v[offset + 3];
+        double wx0 = weight * x0;
+        double wx1 = weight * x1;
+        double wx2 = weight * x2;
+        double wx3 = weight * x3;
+        c[0] += wx0 * x0;
+        c[1] += wx0 * x1;
+        c[2] += wx0 * x2;
+        c[3] += wx0 * x3;
+        c[5] += wx1 * x1;
+        c[6] += wx1 * x2;
+        c[7] += wx1 * x3;
+        c[10] += wx2 * x2;
+        c[11] += wx2 * x3;
+        c[15] += wx3 * x3;
+    }
+
+    /**
+     * Closed form inverse by 2 x 2 minors, {@code out} may be {@code a}
+     *
+     * @return {@code false} if {@code a} is singular, {@code out} is then unchanged
+     */
+    public static boolean invert(double[] a, double[] out) {
+        double a00 = a[0]; double a01 = a[1]; double a02 = a[2]; double a03 = a[3];
+        double a10 = a[4]; double a11 = a[5]; double a12 = a[6]; double a13 = a[7];
+        double a20 = a[8]; double a21 = a[9]; double a22 = a[10]; double a23 = a[11];
+        double a30 = a[12]; double a31 = a[13]; double a32 = a[14]; double a33 = a[15];
+        double s0 = a00 * a11 - a10 * a01;
+        double s1 = a00 * a12 - a10 * a02;
+        double s2 = a00 * a13 - a10 * a03;
+        double s3 = a01 * a12 - a11 * a02;
+        double s4 = a01 * a13 - a11 * a03;
+        double s5 = a02 * a13 - a12 * a03;
+        double c0 = a20 * a31 - a30 * a21;
+        double c1 = a20 * a32 - a30 * a22;
+        double c2 = a20 * a33 - a30 * a23;
+        double c3 = a21 * a32 - a31 * a22;
+        double c4 = a21 * a33 - a31 * a23;
+        double c5 = a22 * a33 - a32 * a23;
+        double determinant = s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+        if (determinant == 0) {
+            return false;
+        }
+        double d = 1.0 / determinant;
+        out[0] = (a11 * c5 - a12 * c4 + a13 * c3) * d;
+        out[1] = (-a01 * c5 + a02 * c4 - a03 * c3) * d;
+        out[2] = (a31 * s5 - a32 * s4 + a33 * s3) * d;
+        out[3] = (-a21 * s5 + a22 * s4 - a23 * s3) * d;
+        out[4] = (-a10 * c5 + a12 * c2 - a13 * c1) * d;
+        out[5] = (a00 * c5 - a02 * c2 + a03 * c1) * d;
+        out[6] = (-a30 * s5 + a32 * s2 - a33 * s1) * d;
+        out[7] = (a20 * s5 - a22 * s2 + a23 * s1) * d;
+        out[8] = (a10 * c4 - a11 * c2 + a13 * c0) * d;
+        out[9] = (-a00 * c4 + a01 * c2 - a03 * c0) * d;
+        out[10] = (a30 * s4 - a31 * s2 + a33 * s0) * d;
+        out[11] = (-a20 * s4 + a21 * s2 - a23 * s0) * d;
+        out[12] = (-a10 * c3 + a11 * c1 - a12 * c0) * d;
+        out[13] = (a00 * c3 - a01 * c1 + a02 * c0) * d;
+        out[14] = (-a30 * s3 + a31 * s1 - a32 * s0) * d;
+        out[15] = (a20 * s3 - a21 * s1 + a22 * s0) * d;
+        return true;
+    }
+
+    /**
+     * Cholesky factorization {@code a = u'u} in place, {@code u} upper triangular in the upper
+     * triangle of {@code a}, the strict lower triangle is not read nor written
+     *
+     * @return {@code false} if {@code a} is not positive definite, {@code a} is then unchanged
+     */
+    public static boolean cholesky(double[] a) {
+        double d0 = a[0];
+        if (!(d0 > 0)) {
+            return false;
+        }
+        double u00 = Math.sqrt(d0);
+        double u01 = a[1] / u00;
+        double u02 = a[2] / u00;
+        double u03 = a[3] / u00;
+        double d1 = a[5] - u01 * u01;
+        if (!(d1 > 0)) {
+            return false;
+        }
+        double u11 = Math.sqrt(d1);
+        double u12 = (a[6] - u01 * u02) / u11;
+        double u13 = (a[7] - u01 * u03) / u11;
+        double d2 = a[10] - u02 * u02 - u12 * u12;
+        if (!(d2 > 0)) {
+            return false;
+        }
+        double u22 = Math.sqrt(d2);
+        double u23 = (a[11] - u02 * u03 - u12 * u13) / u22;
+        double d3 = a[15] - u03 * u03 - u13 * u13 - u23 * u23;
+        if (!(d3 > 0)) {
+            return false;
+        }
+        a[0] = u00;
+        a[1] = u01;
+        a[2] = u02;
+        a[3] = u03;
+        a[5] = u11;
+        a[6] = u12;
+        a[7] = u13;
+        a[10] = u22;
+        a[11] = u23;
+        a[15] = Math.sqrt(d3);
+        return true;
+    }
+
+    /**
+     * Solves {@code u'u x = b} by forward and back substitution, {@code x} may be {@code b}
+     *
+     * @param u factor from {@link #cholesky}
+     */
+    public static void choleskySolve(double[] u, double[] b, double[] x) {
+        double y0 = b[0] / u[0];
+        double y1 = (b[1] - u[1] * y0) / u[5];
+        double y2 = (b[2] - u[2] * y0 - u[6] * y1) / u[10];
+        double y3 = (b[3] - u[3] * y0 - u[7] * y1 - u[11] * y2) / u[15];
+        double x3 = y3 / u[15];
+        double x2 = (y2 - u[11] * x3) / u[10];
+        double x1 = (y1 - u[6] * x2 - u[7] * x3) / u[5];
+        x[0] = (y0 - u[1] * x1 - u[2] * x2 - u[3] * x3) / u[0];
+        x[1] = x1;
+        x[2] = x2;
+        x[3] = x3;
+    }
+
+    /**
+     * {@code out = (u'u)^-1 = u^-1 u^-T}, symmetric
+     *
+     * @param u factor from {@link #cholesky}
+     */
+    public static void choleskyInverse(double[] u, double[] out) {
+        // v = u^-1, upper triangular
+        double v00 = 1.0 / u[0];
+        double v11 = 1.0 / u[5];
+        double v22 = 1.0 / u[10];
+        double v33 = 1.0 / u[15];
+        double v01 = -u[1] * v11 * v00;
+        double v12 = -u[6] * v22 * v11;
+        double v23 = -u[11] * v33 * v22;
+        double v02 = -(u[1] * v12 + u[2] * v22) * v00;
+        double v13 = -(u[6] * v23 + u[7] * v33) * v11;
+        double v03 = -(u[1] * v13 + u[2] * v23 + u[3] * v33) * v00;
+        out[0] = v00 * v00 + v01 * v01 + v02 * v02 + v03 * v03;
+        out[1] = v01 * v11 + v02 * v12 + v03 * v13;
+        out[2] = v02 * v22 + v03 * v23;
+        out[3] = v03 * v33;
+        out[5] = v11 * v11 + v12 * v12 + v13 * v13;
+        out[6] = v12 * v22 + v13 * v23;
+        out[7] = v13 * v33;
+        out[10] = v22 * v22 + v23 * v23;
+        out[11] = v23 * v33;
+        out[15] = v33 * v33;
+        out[4] = out[1];
+        out[8] = out[2];
+        out[9] = out[6];
+        out[12] = out[3];
+        out[13] = out[7];
+        out[14] = out[11];
+    }
+
+    /**
+     * Rank-one update ({@code sign} 1) or downdate ({@code sign} -1) of a Cholesky factor:
+     * {@code u'u + sign x x'} is factored into {@code u}. {@code x} is overwritten.
+     *
+     * @param u factor from {@link #cholesky}
+     * @return {@code false} if a downdate leaves a pivot too small to be accurate, {@code u} is
+     * then invalid and has to be factored again
+     */
+    public static boolean choleskyUpdate(double[] u, double[] x, double sign) {
+        for (int k = 0; k < SIZE; k++) {
+            double ukk = u[(SIZE + 1) * k];
+            double r2 = ukk * ukk + sign * x[k] * x[k];
+            if (!(r2 > 1e-12 * ukk * ukk)) {
+                return false;
+            }
+            double r = Math.sqrt(r2);
+            double c = r / ukk;
+            double s = x[k] / ukk;
+            u[(SIZE + 1) * k] = r;
+            for (int j = k + 1; j < SIZE; j++) {
+                u[SIZE * k + j] = (u[SIZE * k + j] + sign * s * x[j]) / c;
+                x[j] = c * x[j] - s * u[SIZE * k + j];
+            }
+        }
+        return true;
+    }
+}
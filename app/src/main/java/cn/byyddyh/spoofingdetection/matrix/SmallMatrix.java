@@ -0,0 +1,229 @@
+package cn.byyddyh.spoofingdetection.matrix;
+
+/**
+ * n x n matrices as row major {@code double[n * n]} for the sizes without an unrolled class, the 6
+ * states of the GNSS/IMU Kalman filter and the 8 of position, velocity and clock. Symmetric
+ * matrices are read from and factored into their upper triangle. Outputs must not alias inputs
+ * unless stated otherwise.
+ *
+ * <p>{@link Matrix3} and {@link Matrix4} hold the unrolled 3 x 3 and 4 x 4 versions.
+ */
+public final class SmallMatrix {
+
+    private SmallMatrix() {
+    }
+
+    /**
+     * {@code out = I}
+     */
+    public static void setIdentity(int n, double[] out) {
+        for (int i = 0; i < n * n; i++) {
+            out[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            out[(n + 1) * i] = 1;
+        }
+    }
+
+    /**
+     * {@code out = a b}
+     */
+    public static void multiply(int n, double[] a, double[] b, double[] out) {
+        for (int i = 0; i < n; i++) {
+            int row = n * i;
+            for (int j = 0; j < n; j++) {
+                double s = 0;
+                for (int k = 0; k < n; k++) {
+                    s += a[row + k] * b[n * k + j];
+                }
+                out[row + j] = s;
+            }
+        }
+    }
+
+    /**
+     * {@code out = a' b}
+     */
+    public static void transposeMultiply(int n, double[] a, double[] b, double[] out) {
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                double s = 0;
+                for (int k = 0; k < n; k++) {
+                    s += a[n * k + i] * b[n * k + j];
+                }
+                out[n * i + j] = s;
+            }
+        }
+    }
+
+    /**
+     * {@code out = a b'}
+     */
+    public static void multiplyTransposed(int n, double[] a, double[] b, double[] out) {
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                double s = 0;
+                for (int k = 0; k < n; k++) {
+                    s += a[n * i + k] * b[n * j + k];
+                }
+                out[n * i + j] = s;
+            }
+        }
+    }
+
+    /**
+     * {@code out = a x}
+     */
+    public static void multiplyVector(int n, double[] a, double[] x, double[] out) {
+        for (int i = 0; i < n; i++) {
+            double s = 0;
+            for (int k = 0; k < n; k++) {
+                s += a[n * i + k] * x[k];
+            }
+            out[i] = s;
+        }
+    }
+
+    /**
+     * {@code out = a + b}, {@code out} may be {@code a} or {@code b}
+     */
+    public static void add(int n, double[] a, double[] b, double[] out) {
+        for (int i = 0; i < n * n; i++) {
+            out[i] = a[i] + b[i];
+        }
+    }
+
+    /**
+     * {@code out = a - b}, {@code out} may be {@code a} or {@code b}
+     */
+    public static void subtract(int n, double[] a, double[] b, double[] out) {
+        for (int i = 0; i < n * n; i++) {
+            out[i] = a[i] - b[i];
+        }
+    }
+
+    /**
+     * Upper triangle of {@code c += a' diag(weights) a}, for the {@code k x n} row major {@code a}
+     *
+     * @param weights {@code null} for {@code c += a'a}
+     */
+    public static void symmetricRankUpdate(int n, double[] c, double[] a, int k, double[] weights) {
+        for (int row = 0; row < k; row++) {
+            int offset = n * row;
+            double w = weights == null ? 1.0 : weights[row];
+            for (int i = 0; i < n; i++) {
+                double wa = w * a[offset + i];
+                for (int j = i; j < n; j++) {
+                    c[n * i + j] += wa * a[offset + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Cholesky factorization {@code a = u'u} in place, {@code u} upper triangular in the upper
+     * triangle of {@code a}, the strict lower triangle is not read nor written
+     *
+     * @return {@code false} if {@code a} is not positive definite, {@code a} is then invalid
+     */
+    public static boolean cholesky(int n, double[] a) {
+        for (int j = 0; j < n; j++) {
+            double d = a[(n + 1) * j];
+            for (int k = 0; k < j; k++) {
+                d -= a[n * k + j] * a[n * k + j];
+            }
+            if (!(d > 0)) {
+                return false;
+            }
+            d = Math.sqrt(d);
+            a[(n + 1) * j] = d;
+            for (int i = j + 1; i < n; i++) {
+                double s = a[n * j + i];
+                for (int k = 0; k < j; k++) {
+                    s -= a[n * k + j] * a[n * k + i];
+                }
+                a[n * j + i] = s / d;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Solves {@code u'u x = b} by forward and back substitution, {@code x} may be {@code b}
+     *
+     * @param u factor from {@link #cholesky}
+     */
+    public static void choleskySolve(int n, double[] u, double[] b, double[] x) {
+        for (int i = 0; i < n; i++) {
+            double s = b[i];
+            for (int k = 0; k < i; k++) {
+                s -= u[n * k + i] * x[k];
+            }
+            x[i] = s / u[(n + 1) * i];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double s = x[i];
+            for (int k = i + 1; k < n; k++) {
+                s -= u[n * i + k] * x[k];
+            }
+            x[i] = s / u[(n + 1) * i];
+        }
+    }
+
+    /**
+     * {@code out = (u'u)^-1}, symmetric
+     *
+     * @param u factor from {@link #cholesky}
+     */
+    public static void choleskyInverse(int n, double[] u, double[] out) {
+        // u^-1, upper triangular, into the upper triangle of out, column by column from the
+        // diagonal up so that only finished entries are read
+        for (int j = 0; j < n; j++) {
+            out[(n + 1) * j] = 1.0 / u[(n + 1) * j];
+            for (int i = j - 1; i >= 0; i--) {
+                double s = 0;
+                for (int k = i + 1; k <= j; k++) {
+                    s += u[n * i + k] * out[n * k + j];
+                }
+                out[n * i + j] = -s / u[(n + 1) * i];
+            }
+        }
+        // (u^-1 u^-T)_ij for i <= j only reads rows i and j of u^-1 from column j on, so it goes to
+        // the lower triangle, the diagonal entry of a row last, then is mirrored
+        for (int i = 0; i < n; i++) {
+            for (int j = n - 1; j >= i; j--) {
+                double s = 0;
+                for (int k = j; k < n; k++) {
+                    s += out[n * i + k] * out[n * j + k];
+                }
+                out[n * j + i] = s;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                out[n * i + j] = out[n * j + i];
+            }
+        }
+    }
+
+    /**
+     * Row major copy of {@code rows}, n x n
+     */
+    public static void copyFromRows(double[][] rows, double[] out) {
+        int n = rows.length;
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(rows[i], 0, out, n * i, n);
+        }
+    }
+
+    /**
+     * {@code a} as n rows
+     */
+    public static double[][] toRows(int n, double[] a) {
+        double[][] rows = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(a, n * i, rows[i], 0, n);
+        }
+        return rows;
+    }
+}
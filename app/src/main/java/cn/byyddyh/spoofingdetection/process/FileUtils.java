@@ -5,6 +5,8 @@ import android.os.Environment;
 import androidx.core.app.ActivityCompat;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -12,7 +14,9 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -20,6 +24,10 @@ import java.util.List;
 import java.util.Scanner;
 import java.util.zip.GZIPInputStream;
 
+import cn.byyddyh.spoofingdetection.gnsslog.BinaryLogConverter;
+import cn.byyddyh.spoofingdetection.gnsslog.BinaryLogReader;
+import cn.byyddyh.spoofingdetection.gnsslog.LogSegmentIndex;
+
 /**
  * 文件操作类
  *      负责根据指定Url下载到指定文件夹
@@ -127,4 +135,33 @@ public class FileUtils {
 //        }
 //        return stringList;
     }
+
+    /**
+     * 读取分段日志中覆盖 [fromMillis, toMillis] 时间窗口的分段内容
+     * Only the segments listed by the index {@code indexFileName} for the window are opened;
+     * compressed segments are inflated and binary ones converted to their text lines.
+     */
+    public List<String> loadFileInSDCard(String indexFileName, String dir, long fromMillis,
+                                         long toMillis) throws IOException {
+        LogSegmentIndex index =
+                LogSegmentIndex.load(new File(SDCardRoot + dir + File.separator + indexFileName));
+        List<String> lines = new ArrayList<>();
+        for (File segment : index.getFiles(fromMillis, toMillis)) {
+            InputStream in;
+            if (BinaryLogReader.isBinaryLog(segment)) {
+                ByteArrayOutputStream text = new ByteArrayOutputStream();
+                BinaryLogConverter.toText(segment, text);
+                in = new ByteArrayInputStream(text.toByteArray());
+            } else {
+                in = LogSegmentIndex.openStream(segment);
+            }
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
 }
@@ -1,8 +0,0 @@
-package cn.byyddyh.spoofingdetection.process.dataModel;
-
-public class WlsVal {
-    public Double[] xHat;
-    public Double[][] H;
-    public Double[][] Wpr;
-    public Double[][] Wrr;
-}
@@ -1,5 +1,6 @@
 package cn.byyddyh.spoofingdetection.process.dataProcess;
 
+import cn.byyddyh.spoofingdetection.matrix.Matrix3;
 import cn.byyddyh.spoofingdetection.process.utils.GpsConstants;
 
 public class PositionTrans {
@@ -47,7 +48,11 @@ public class PositionTrans {
         return new Double[]{latDeg, lonDeg, altM};
     }
 
-    public static Double[][] RotEcef2Ned(double latDeg, double lonDeg) {
+    /**
+     * Rotation from ECEF to NED at latitude {@code latDeg} and longitude {@code lonDeg}, into
+     * {@code re2n}, 3 x 3 row major for {@link Matrix3}
+     */
+    public static void RotEcef2Ned(double latDeg, double lonDeg, double[] re2n) {
         double D2R = Math.PI / 180;
         double latRad = D2R * latDeg;
         double lonRad = D2R * lonDeg;
@@ -57,19 +62,16 @@ public class PositionTrans {
         double clon = Math.cos(lonRad);
         double slon = Math.sin(lonRad);
 
-        Double[][] Re2n = new Double[3][3];
-        Re2n[0][0] = -slat * clon;
-        Re2n[0][1] = -slat * slon;
-        Re2n[0][2] = clat;
+        re2n[0] = -slat * clon;
+        re2n[1] = -slat * slon;
+        re2n[2] = clat;
 
-        Re2n[1][0] = -slon;
-        Re2n[1][1] = clon;
-        Re2n[1][2] = 0.0;
+        re2n[3] = -slon;
+        re2n[4] = clon;
+        re2n[5] = 0.0;
 
-        Re2n[2][0] = -clat * clon;
-        Re2n[2][1] = -clat * slon;
-        Re2n[2][2] = -slat;
-
-        return Re2n;
+        re2n[6] = -clat * clon;
+        re2n[7] = -clat * slon;
+        re2n[8] = -slat;
     }
 }
@@ -12,6 +12,12 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
+import cn.byyddyh.spoofingdetection.gnsslog.BinaryLogListener;
+import cn.byyddyh.spoofingdetection.gnsslog.BinaryLogFormat;
+import cn.byyddyh.spoofingdetection.gnsslog.BinaryLogReader;
+import cn.byyddyh.spoofingdetection.gnsslog.GnssLogText;
+import cn.byyddyh.spoofingdetection.gnsslog.LogSegmentIndex;
+import cn.byyddyh.spoofingdetection.gnsslog.RawRecord;
 import cn.byyddyh.spoofingdetection.process.dataModel.GNSSAnalysis;
 import cn.byyddyh.spoofingdetection.process.dataModel.GNSSRaw;
 import cn.byyddyh.spoofingdetection.process.utils.MathUtils;
@@ -25,7 +31,8 @@ public class ReadGnssLogger {
 
     private static DataFilter dataFilter;
 
-    private static final List<String> allowFiles = Arrays.asList(".txt", ".csv");
+    private static final String RAW_PREFIX = GnssLogText.RAW_TAG + ",";
+    private static final List<String> allowFiles = Arrays.asList(".txt", ".csv", BinaryLogFormat.FILE_EXTENSION);
 
     static  {
         gnssRaw = new GNSSRaw();
@@ -38,15 +45,43 @@ public class ReadGnssLogger {
 
     public static GNSSRaw ReadGnssLogger(String dirName, String fileName) throws Exception {
         if (!checkFileType(fileName)) {
-            throw new Exception("Expecting file name of the form \"*.txt\", or \"*.csv");
+            throw new Exception("Expecting file name of the form \"*.txt\", \"*.csv\" or \"*.bin\"");
+        }
+
+        if (fileName.endsWith(BinaryLogFormat.FILE_EXTENSION)) {
+            // binary logs carry no version line, their Raw records are decoded straight into the rows
+            GNSSRaw rawData = newRawData();
+            readBinaryLog(new File(dirName, fileName), rawData);
+            return processRawData(rawData);
         }
 
         // 将日志文件读入数字矩阵 S 和单元格数组 header
         String rawCsvFile = makeCsv(dirName, fileName);
-        GNSSRaw rawCsv = readRawCsv(rawCsvFile);
+        return processRawData(readRawCsv(rawCsvFile));
+    }
 
+    /**
+     * Reads only the segments of a rotated log session that cover {@code fromMillis} to
+     * {@code toMillis} (Unix epoch millis), as listed by the session's segment index
+     *
+     * @param indexFileName the {@code .idx} file written by {@code FileLogger}
+     */
+    public static GNSSRaw ReadGnssLogger(String dirName, String indexFileName, long fromMillis,
+                                         long toMillis) throws Exception {
+        if (!indexFileName.endsWith(LogSegmentIndex.FILE_EXTENSION)) {
+            throw new Exception("Expecting file name of the form \"*" + LogSegmentIndex.FILE_EXTENSION + "\"");
+        }
+        LogSegmentIndex index = LogSegmentIndex.load(new File(dirName, indexFileName));
+        List<File> segments = index.getFiles(fromMillis, toMillis);
+        if (segments.isEmpty()) {
+            throw new Exception("No log segment between " + fromMillis + " and " + toMillis);
+        }
+        return processRawData(readSegments(segments));
+    }
+
+    private static GNSSRaw processRawData(GNSSRaw rawData) {
         // 应用 dataFilter
-        filterData(rawCsv);
+        filterData(rawData);
 
         // 将数据打包到gnssRaw结构中
         // TODO: 可能后续需要进行优化
@@ -73,6 +108,126 @@ public class ReadGnssLogger {
         return false;
     }
 
+    /**
+     * Reads the Raw records of the given segments in order. Every segment repeats the log header,
+     * text segments keep their {@code Raw} lines and binary ones are decoded.
+     */
+    private static GNSSRaw readSegments(List<File> segments) throws IOException {
+        GNSSRaw rawData = newRawData();
+        for (File segment : segments) {
+            System.out.println("ReadGnssLogger \t\tsegment:" + segment);
+            if (BinaryLogReader.isBinaryLog(segment)) {
+                readBinaryLog(segment, rawData);
+                continue;
+            }
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                    LogSegmentIndex.openStream(segment), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith(RAW_PREFIX)) {
+                        addRawCsvLine(rawData, line.substring(RAW_PREFIX.length()));
+                    }
+                }
+            }
+        }
+        return rawData;
+    }
+
+    /**
+     * Empty rows with the columns of the records this app writes
+     */
+    private static GNSSRaw newRawData() {
+        header = GnssLogText.RAW_COLUMNS.substring(RAW_PREFIX.length()).split(",");
+        return new GNSSRaw();
+    }
+
+    /**
+     * Appends the Raw records of a binary log to {@code rawData}, with the values a text log of the
+     * same records parses to
+     */
+    private static void readBinaryLog(File file, GNSSRaw rawData) throws IOException {
+        try (BinaryLogReader reader = new BinaryLogReader(file)) {
+            reader.read(new BinaryRawCollector(rawData));
+        }
+    }
+
+    /**
+     * Appends each Raw record of a binary log as one row, optional values the record does not have
+     * as {@code null} like the empty fields of raw.csv
+     */
+    private static class BinaryRawCollector implements BinaryLogListener {
+
+        private final GNSSRaw mRaw;
+        /** The text logs carry the float carrier frequency as {@link Float#toString(float)} */
+        private float mCarrierFrequency = Float.NaN;
+        private Double mCarrierFrequencyValue = Double.NaN;
+
+        BinaryRawCollector(GNSSRaw raw) {
+            mRaw = raw;
+        }
+
+        @Override
+        public void onHeader(int formatVersion, long createdMillis, String versionTag) {
+        }
+
+        @Override
+        public void onRaw(RawRecord r) {
+            mRaw.ElapsedRealtimeMillis.add((double) r.elapsedRealtimeMillis);
+            mRaw.TimeNanos.add(r.timeNanos);
+            mRaw.LeapSecond.add(r.hasLeapSecond ? (double) r.leapSecond : null);
+            mRaw.TimeUncertaintyNanos.add(r.hasTimeUncertaintyNanos ? r.timeUncertaintyNanos : null);
+            mRaw.FullBiasNanos.add(r.fullBiasNanos);
+            mRaw.BiasNanos.add(r.hasBiasNanos ? r.biasNanos : null);
+            mRaw.BiasUncertaintyNanos.add(r.hasBiasUncertaintyNanos ? r.biasUncertaintyNanos : null);
+            mRaw.DriftNanosPerSecond.add(r.hasDriftNanosPerSecond ? r.driftNanosPerSecond : null);
+            mRaw.DriftUncertaintyNanosPerSecond.add(
+                    r.hasDriftUncertaintyNanosPerSecond ? r.driftUncertaintyNanosPerSecond : null);
+            mRaw.HardwareClockDiscontinuityCount.add((double) r.hardwareClockDiscontinuityCount);
+            mRaw.Svid.add((double) r.svid);
+            mRaw.TimeOffsetNanos.add(r.timeOffsetNanos);
+            mRaw.State.add((long) r.state);
+            mRaw.ReceivedSvTimeNanos.add(r.receivedSvTimeNanos);
+            mRaw.ReceivedSvTimeUncertaintyNanos.add(r.receivedSvTimeUncertaintyNanos);
+            mRaw.Cn0DbHz.add(r.cn0DbHz);
+            mRaw.PseudorangeRateMetersPerSecond.add(r.pseudorangeRateMetersPerSecond);
+            mRaw.PseudorangeRateUncertaintyMetersPerSecond.add(r.pseudorangeRateUncertaintyMetersPerSecond);
+            mRaw.AccumulatedDeltaRangeState.add((double) r.accumulatedDeltaRangeState);
+            mRaw.AccumulatedDeltaRangeMeters.add(r.accumulatedDeltaRangeMeters);
+            mRaw.AccumulatedDeltaRangeUncertaintyMeters.add(r.accumulatedDeltaRangeUncertaintyMeters);
+            mRaw.CarrierFrequencyHz.add(r.hasCarrierFrequencyHz ? carrierFrequency(r.carrierFrequencyHz) : null);
+            mRaw.CarrierCycles.add(r.hasCarrierCycles ? r.carrierCycles : null);
+            mRaw.MultipathIndicator.add((double) r.multipathIndicator);
+            mRaw.ConstellationType.add((long) r.constellationType);
+            mRaw.AgcDb.add(r.hasAutomaticGainControlLevelDb ? r.automaticGainControlLevelDb : null);
+        }
+
+        private Double carrierFrequency(float value) {
+            if (Float.floatToRawIntBits(value) != Float.floatToRawIntBits(mCarrierFrequency)) {
+                mCarrierFrequency = value;
+                mCarrierFrequencyValue = Double.parseDouble(Float.toString(value));
+            }
+            return mCarrierFrequencyValue;
+        }
+
+        @Override
+        public void onNavigation(int svid, int type, int status, int messageId, int submessageId,
+                                 byte[] data, int dataLength) {
+        }
+
+        @Override
+        public void onFix(double latitude, double longitude, double altitude) {
+        }
+
+        @Override
+        public void onImu(double[] values, int valueCount, double[] velocity, int velocityCount,
+                          double[] position, int positionCount, double deltaSeconds) {
+        }
+
+        @Override
+        public void onValues(String label, double[] values, int count) {
+        }
+    }
+
     /**
      * %% make csv file, if necessary.
      */
@@ -236,36 +391,7 @@ public class ReadGnssLogger {
                 if (i == 8133) {
                     System.out.println("");
                 }
-                String[] strings = line.split(",");
-                gnssRaw.ElapsedRealtimeMillis.add("".equals(strings[0])? null: Double.parseDouble(strings[0]));
-                gnssRaw.TimeNanos.add("".equals(strings[1])? null: MathUtils.bigDecimalToLong(strings[1]));
-                gnssRaw.LeapSecond.add("".equals(strings[2])? null: Double.parseDouble(strings[2]));
-                gnssRaw.TimeUncertaintyNanos.add("".equals(strings[3])? null: Double.parseDouble(strings[3]));
-                gnssRaw.FullBiasNanos.add("".equals(strings[4])? null: MathUtils.bigDecimalToLong(strings[4]));
-                gnssRaw.BiasNanos.add("".equals(strings[5])? null: Double.parseDouble(strings[5]));
-                gnssRaw.BiasUncertaintyNanos.add("".equals(strings[6])? null: Double.parseDouble(strings[6]));
-                gnssRaw.DriftNanosPerSecond.add("".equals(strings[7])? null: Double.parseDouble(strings[7]));
-                gnssRaw.DriftUncertaintyNanosPerSecond.add("".equals(strings[8])? null: Double.parseDouble(strings[8]));
-                gnssRaw.HardwareClockDiscontinuityCount.add("".equals(strings[9])? null: Double.parseDouble(strings[9]));
-                gnssRaw.Svid.add("".equals(strings[10])? null: Double.parseDouble(strings[10]));
-                gnssRaw.TimeOffsetNanos.add("".equals(strings[11])? null: Double.parseDouble(strings[11]));
-                gnssRaw.State.add("".equals(strings[12])? null: MathUtils.bigDecimalToLong(strings[12]));
-                gnssRaw.ReceivedSvTimeNanos.add("".equals(strings[13])? null: MathUtils.bigDecimalToLong(strings[13]));
-                gnssRaw.ReceivedSvTimeUncertaintyNanos.add("".equals(strings[14])? null: MathUtils.bigDecimalToLong(strings[14]));
-                gnssRaw.Cn0DbHz.add("".equals(strings[15])? null: Double.parseDouble(strings[15]));
-                gnssRaw.PseudorangeRateMetersPerSecond.add("".equals(strings[16])? null: Double.parseDouble(strings[16]));
-                gnssRaw.PseudorangeRateUncertaintyMetersPerSecond.add("".equals(strings[17])? null: Double.parseDouble(strings[17]));
-                gnssRaw.AccumulatedDeltaRangeState.add("".equals(strings[18])? null: Double.parseDouble(strings[18]));
-                gnssRaw.AccumulatedDeltaRangeMeters.add("".equals(strings[19])? null: Double.parseDouble(strings[19]));
-                gnssRaw.AccumulatedDeltaRangeUncertaintyMeters.add("".equals(strings[20])? null: Double.parseDouble(strings[20]));
-                gnssRaw.CarrierFrequencyHz.add("".equals(strings[21])? null: Double.parseDouble(strings[21]));
-                gnssRaw.CarrierCycles.add("".equals(strings[22])? null: MathUtils.bigDecimalToLong(strings[22]));
-//                gnssRaw.CarrierPhase.add("".equals(strings[23])? null: Double.parseDouble(strings[23]));
-//                gnssRaw.CarrierPhaseUncertainty.add("".equals(strings[24])? null: Double.parseDouble(strings[24]));
-                gnssRaw.MultipathIndicator.add("".equals(strings[25])? null: Double.parseDouble(strings[25]));
-//                gnssRaw.SnrInDb.add("".equals(strings[26])? null: Double.parseDouble(strings[26]));
-                gnssRaw.ConstellationType.add("".equals(strings[27])? null: MathUtils.bigDecimalToLong(strings[27]));
-                gnssRaw.AgcDb.add("".equals(strings[28])? null: Double.parseDouble(strings[28]));
+                addRawCsvLine(gnssRaw, line);
             }
             System.out.println(preLine);
         } catch (IOException e) {
@@ -275,6 +401,42 @@ public class ReadGnssLogger {
         return gnssRaw;
     }
 
+    /**
+     * Appends one line of raw.csv, a Raw record without its tag, empty fields as {@code null}
+     */
+    private static void addRawCsvLine(GNSSRaw gnssRaw, String line) {
+        String[] strings = line.split(",");
+        gnssRaw.ElapsedRealtimeMillis.add("".equals(strings[0])? null: Double.parseDouble(strings[0]));
+        gnssRaw.TimeNanos.add("".equals(strings[1])? null: MathUtils.bigDecimalToLong(strings[1]));
+        gnssRaw.LeapSecond.add("".equals(strings[2])? null: Double.parseDouble(strings[2]));
+        gnssRaw.TimeUncertaintyNanos.add("".equals(strings[3])? null: Double.parseDouble(strings[3]));
+        gnssRaw.FullBiasNanos.add("".equals(strings[4])? null: MathUtils.bigDecimalToLong(strings[4]));
+        gnssRaw.BiasNanos.add("".equals(strings[5])? null: Double.parseDouble(strings[5]));
+        gnssRaw.BiasUncertaintyNanos.add("".equals(strings[6])? null: Double.parseDouble(strings[6]));
+        gnssRaw.DriftNanosPerSecond.add("".equals(strings[7])? null: Double.parseDouble(strings[7]));
+        gnssRaw.DriftUncertaintyNanosPerSecond.add("".equals(strings[8])? null: Double.parseDouble(strings[8]));
+        gnssRaw.HardwareClockDiscontinuityCount.add("".equals(strings[9])? null: Double.parseDouble(strings[9]));
+        gnssRaw.Svid.add("".equals(strings[10])? null: Double.parseDouble(strings[10]));
+        gnssRaw.TimeOffsetNanos.add("".equals(strings[11])? null: Double.parseDouble(strings[11]));
+        gnssRaw.State.add("".equals(strings[12])? null: MathUtils.bigDecimalToLong(strings[12]));
+        gnssRaw.ReceivedSvTimeNanos.add("".equals(strings[13])? null: MathUtils.bigDecimalToLong(strings[13]));
+        gnssRaw.ReceivedSvTimeUncertaintyNanos.add("".equals(strings[14])? null: MathUtils.bigDecimalToLong(strings[14]));
+        gnssRaw.Cn0DbHz.add("".equals(strings[15])? null: Double.parseDouble(strings[15]));
+        gnssRaw.PseudorangeRateMetersPerSecond.add("".equals(strings[16])? null: Double.parseDouble(strings[16]));
+        gnssRaw.PseudorangeRateUncertaintyMetersPerSecond.add("".equals(strings[17])? null: Double.parseDouble(strings[17]));
+        gnssRaw.AccumulatedDeltaRangeState.add("".equals(strings[18])? null: Double.parseDouble(strings[18]));
+        gnssRaw.AccumulatedDeltaRangeMeters.add("".equals(strings[19])? null: Double.parseDouble(strings[19]));
+        gnssRaw.AccumulatedDeltaRangeUncertaintyMeters.add("".equals(strings[20])? null: Double.parseDouble(strings[20]));
+        gnssRaw.CarrierFrequencyHz.add("".equals(strings[21])? null: Double.parseDouble(strings[21]));
+        gnssRaw.CarrierCycles.add("".equals(strings[22])? null: MathUtils.bigDecimalToLong(strings[22]));
+//                gnssRaw.CarrierPhase.add("".equals(strings[23])? null: Double.parseDouble(strings[23]));
+//                gnssRaw.CarrierPhaseUncertainty.add("".equals(strings[24])? null: Double.parseDouble(strings[24]));
+        gnssRaw.MultipathIndicator.add("".equals(strings[25])? null: Double.parseDouble(strings[25]));
+//                gnssRaw.SnrInDb.add("".equals(strings[26])? null: Double.parseDouble(strings[26]));
+        gnssRaw.ConstellationType.add("".equals(strings[27])? null: MathUtils.bigDecimalToLong(strings[27]));
+        gnssRaw.AgcDb.add("".equals(strings[28])? null: Double.parseDouble(strings[28]));
+    }
+
     /**
      * 对输入的原始数据进行完整性检验
      */
@@ -0,0 +1,469 @@
+package cn.byyddyh.spoofingdetection.process.dataProcess;
+
+import java.util.Arrays;
+
+import cn.byyddyh.spoofingdetection.matrix.Matrix4;
+import cn.byyddyh.spoofingdetection.process.dataModel.GNSSGpsEph;
+import cn.byyddyh.spoofingdetection.process.utils.GNSSThresholds;
+import cn.byyddyh.spoofingdetection.process.utils.GpsConstants;
+
+/**
+ * 加权最小二乘 PVT 解算 (weighted least squares position, velocity and time)
+ *
+ * <p>Same model as the MATLAB GpsWlsPvt / WlsPvt / GpsEph2Pvt: satellite positions at the time of
+ * transmission rotated by the earth rotation during the flight time, iterated until the position
+ * changes by less than {@link GNSSThresholds#MAXDELPOSFORNAVM}, then the velocity and clock drift
+ * from the pseudorange rates on the final line of sight vectors.
+ *
+ * <p>Everything runs on primitive arrays preallocated for {@link #MAX_SATELLITES}: the 4 x 4
+ * weighted normal equations {@code H'WH x = H'Wz} are accumulated satellite by satellite and solved
+ * by Cholesky, and the satellite velocity and clock drift are the analytic derivatives of the
+ * broadcast orbit instead of finite differences. The ephemerides are copied out of
+ * {@link GNSSGpsEph} once and again only when another or a grown instance is passed. Not thread
+ * safe.
+ *
+ * <p>Usage per epoch: {@link #beginEpoch()}, {@link #addMeasurement} for each satellite, then
+ * {@link #solve}.
+ */
+public class WlsPvtEngine {
+
+    /** GPS PRNs 1 to 32 */
+    public static final int MAX_SATELLITES = 32;
+
+    private static final int STATE_SIZE = 8;
+    private static final int MAX_WHILE_COUNT = 100;
+    private static final int MAX_KEPLER_COUNT = 20;
+    private static final double KEPLER_TOLERANCE = 1e-12;
+    /** Fit interval of the broadcast ephemeris when RINEX gives 0, "not known" */
+    private static final int DEFAULT_FIT_INTERVAL_HOURS = 4;
+
+    /* Ephemerides copied from mEphSource, by index */
+    private GNSSGpsEph mEphSource;
+    private int mEphCount;
+    private int[] mEphPrn = new int[0];
+    private double[] mToc = new double[0];
+    private double[] mAf0 = new double[0];
+    private double[] mAf1 = new double[0];
+    private double[] mAf2 = new double[0];
+    private double[] mCrs = new double[0];
+    private double[] mDeltaN = new double[0];
+    private double[] mM0 = new double[0];
+    private double[] mCuc = new double[0];
+    private double[] mE = new double[0];
+    private double[] mCus = new double[0];
+    private double[] mAsqrt = new double[0];
+    private double[] mToe = new double[0];
+    private double[] mCic = new double[0];
+    private double[] mOmega0 = new double[0];
+    private double[] mCis = new double[0];
+    private double[] mI0 = new double[0];
+    private double[] mCrc = new double[0];
+    private double[] mOmega = new double[0];
+    private double[] mOmegaDot = new double[0];
+    private double[] mIdot = new double[0];
+    private double[] mWeek = new double[0];
+    private double[] mTgd = new double[0];
+    private int[] mFitIntervalHours = new int[0];
+
+    /* Measurements of the epoch */
+    private int mCount;
+    private final int[] mPrn = new int[MAX_SATELLITES];
+    private final double[] mTRxSeconds = new double[MAX_SATELLITES];
+    private final double[] mPrM = new double[MAX_SATELLITES];
+    private final double[] mPrWeight = new double[MAX_SATELLITES];
+    private final double[] mPrrMps = new double[MAX_SATELLITES];
+    private final double[] mPrrWeight = new double[MAX_SATELLITES];
+
+    /* Workspace of the epoch, satellites with an ephemeris only */
+    private final int[] mEphIndex = new int[MAX_SATELLITES];
+    private final double[] mSvXyzTtx = new double[3 * MAX_SATELLITES];
+    private final double[] mSvVelocity = new double[3 * MAX_SATELLITES];
+    private final double[] mDtsvS = new double[MAX_SATELLITES];
+    private final double[] mDtsvDot = new double[MAX_SATELLITES];
+    private final double[] mLineOfSight = new double[3 * MAX_SATELLITES];
+    private final double[] mNormal = new double[16];
+    private final double[] mRhs = new double[4];
+    private final double[] mDx = new double[4];
+    /** Output of {@link #evaluate}: x, y, z, dtsv, vx, vy, vz, dtsv rate */
+    private final double[] mPvt = new double[8];
+
+    /**
+     * Clears the measurements of the previous epoch
+     */
+    public void beginEpoch() {
+        mCount = 0;
+    }
+
+    /**
+     * Adds the measurement of satellite {@code prn}, ignored past {@link #MAX_SATELLITES}
+     *
+     * @param tRxSeconds receive time, GPS seconds of the week
+     */
+    public void addMeasurement(int prn, double tRxSeconds, double prM, double prSigmaM,
+                               double prrMps, double prrSigmaMps) {
+        if (mCount == MAX_SATELLITES) {
+            return;
+        }
+        mPrn[mCount] = prn;
+        mTRxSeconds[mCount] = tRxSeconds;
+        mPrM[mCount] = prM;
+        // W = diag(1/sigma) premultiplies both sides, so the normal equations weigh by 1/sigma^2
+        mPrWeight[mCount] = 1.0 / (prSigmaM * prSigmaM);
+        mPrrMps[mCount] = prrMps;
+        mPrrWeight[mCount] = 1.0 / (prrSigmaMps * prrSigmaMps);
+        mCount++;
+    }
+
+    /**
+     * Solves the epoch and adds the solution to {@code xo}
+     *
+     * @param allGpsEph  ephemerides to choose from, the one with Toe closest to {@code fctSeconds}
+     *                   within half its fit interval is used for each satellite
+     * @param weekNum    GPS week of the receive times
+     * @param fctSeconds full cycle time of the epoch
+     * @param xo         [x, y, z, bc, vx, vy, vz, bcDot] in ECEF meters and m/s: the a priori
+     *                   position and clock, replaced by the solution. The velocity is solved
+     *                   afresh, the clock drift as a correction to {@code xo[7]}
+     * @return number of satellites used, 0 if fewer than 4 have an ephemeris or the geometry is
+     * singular, {@code xo} is then unchanged
+     */
+    public int solve(GNSSGpsEph allGpsEph, long weekNum, double fctSeconds, double[] xo) {
+        if (xo.length != STATE_SIZE) {
+            throw new IllegalArgumentException("xo must be [x, y, z, bc, vx, vy, vz, bcDot]");
+        }
+        loadEphemerides(allGpsEph);
+
+        // Keep the satellites with an ephemeris, compacting the measurements
+        int n = 0;
+        for (int i = 0; i < mCount; i++) {
+            int index = closestEphemeris(mPrn[i], fctSeconds);
+            if (index < 0) {
+                System.out.println("No valid ephemeris found for svId " + mPrn[i]);
+                continue;
+            }
+            mEphIndex[n] = index;
+            mPrn[n] = mPrn[i];
+            mTRxSeconds[n] = mTRxSeconds[i];
+            mPrM[n] = mPrM[i];
+            mPrWeight[n] = mPrWeight[i];
+            mPrrMps[n] = mPrrMps[i];
+            mPrrWeight[n] = mPrrWeight[i];
+            n++;
+        }
+        mCount = n;
+        if (n < 4) {
+            return 0;
+        }
+
+        for (int i = 0; i < n; i++) {
+            // ttx by sv clock, accurate because the actual pseudoranges are used
+            double ttxSvSeconds = mTRxSeconds[i] - mPrM[i] / GpsConstants.LIGHTSPEED;
+            // subtract the satellite clock error to get the true GPS time of transmission
+            evaluate(mEphIndex[i], weekNum, ttxSvSeconds, false);
+            double ttxSeconds = ttxSvSeconds - mPvt[3];
+            evaluate(mEphIndex[i], weekNum, ttxSeconds, true);
+            System.arraycopy(mPvt, 0, mSvXyzTtx, 3 * i, 3);
+            mDtsvS[i] = mPvt[3];
+            System.arraycopy(mPvt, 4, mSvVelocity, 3 * i, 3);
+            mDtsvDot[i] = mPvt[7];
+        }
+
+        // Iterate until the position and line of sight vectors converge, < 10 iterations even
+        // from the other side of the Earth (see Stanford course AA272C "Intro to GPS")
+        double x = xo[0];
+        double y = xo[1];
+        double z = xo[2];
+        double bc = xo[3];
+        double dxNorm = Double.MAX_VALUE;
+        int whileCount = 0;
+        while (dxNorm > GNSSThresholds.MAXDELPOSFORNAVM) {
+            whileCount++;
+            if (whileCount >= MAX_WHILE_COUNT) {
+                throw new Error("while loop did not converge after " + whileCount + " iterations");
+            }
+            Arrays.fill(mNormal, 0.0);
+            Arrays.fill(mRhs, 0.0);
+            for (int i = 0; i < n; i++) {
+                // bc > 0 <=> pr too big <=> tflight too big, dtsv > 0 <=> tflight too small
+                double dtflight = (mPrM[i] - bc) / GpsConstants.LIGHTSPEED + mDtsvS[i];
+                // Earth rotation during the flight, IS GPS 200-E 20.3.3.4.3.3.2 (ecef to eci
+                // there, so the rotation is in the opposite direction)
+                double theta = GpsConstants.WE * dtflight;
+                double cosTheta = Math.cos(theta);
+                double sinTheta = Math.sin(theta);
+                double svX = cosTheta * mSvXyzTtx[3 * i] + sinTheta * mSvXyzTtx[3 * i + 1];
+                double svY = -sinTheta * mSvXyzTtx[3 * i] + cosTheta * mSvXyzTtx[3 * i + 1];
+                double svZ = mSvXyzTtx[3 * i + 2];
+
+                double losX = x - svX;
+                double losY = y - svY;
+                double losZ = z - svZ;
+                double range = Math.sqrt(losX * losX + losY * losY + losZ * losZ);
+                losX /= range;
+                losY /= range;
+                losZ /= range;
+                mLineOfSight[3 * i] = losX;
+                mLineOfSight[3 * i + 1] = losY;
+                mLineOfSight[3 * i + 2] = losZ;
+
+                // a-priori range residual
+                double prHat = range + bc - GpsConstants.LIGHTSPEED * mDtsvS[i];
+                accumulate(i, mPrWeight[i], mPrM[i] - prHat);
+            }
+            if (!solveNormal()) {
+                return 0;
+            }
+            x += mDx[0];
+            y += mDx[1];
+            z += mDx[2];
+            bc += mDx[3];
+            dxNorm = Math.sqrt(mDx[0] * mDx[0] + mDx[1] * mDx[1] + mDx[2] * mDx[2]
+                    + mDx[3] * mDx[3]);
+        }
+
+        // Velocities, on the line of sight vectors of the last iteration
+        Arrays.fill(mNormal, 0.0);
+        Arrays.fill(mRhs, 0.0);
+        for (int i = 0; i < n; i++) {
+            double rrMps = -(mSvVelocity[3 * i] * mLineOfSight[3 * i]
+                    + mSvVelocity[3 * i + 1] * mLineOfSight[3 * i + 1]
+                    + mSvVelocity[3 * i + 2] * mLineOfSight[3 * i + 2]);
+            double prrHat = rrMps + xo[7] - GpsConstants.LIGHTSPEED * mDtsvDot[i];
+            accumulate(i, mPrrWeight[i], mPrrMps[i] - prrHat);
+        }
+        if (!solveNormal()) {
+            return 0;
+        }
+
+        xo[0] = x;
+        xo[1] = y;
+        xo[2] = z;
+        xo[3] = bc;
+        xo[4] = mDx[0];
+        xo[5] = mDx[1];
+        xo[6] = mDx[2];
+        xo[7] += mDx[3];
+        return n;
+    }
+
+    /**
+     * Adds the row [lineOfSight, 1] of satellite {@code i} with residual {@code z} to the upper
+     * triangle of the normal equations
+     */
+    private void accumulate(int i, double weight, double z) {
+        double h0 = mLineOfSight[3 * i];
+        double h1 = mLineOfSight[3 * i + 1];
+        double h2 = mLineOfSight[3 * i + 2];
+        double wh0 = weight * h0;
+        double wh1 = weight * h1;
+        double wh2 = weight * h2;
+        mNormal[0] += wh0 * h0;
+        mNormal[1] += wh0 * h1;
+        mNormal[2] += wh0 * h2;
+        mNormal[3] += wh0;
+        mNormal[5] += wh1 * h1;
+        mNormal[6] += wh1 * h2;
+        mNormal[7] += wh1;
+        mNormal[10] += wh2 * h2;
+        mNormal[11] += wh2;
+        mNormal[15] += weight;
+        mRhs[0] += wh0 * z;
+        mRhs[1] += wh1 * z;
+        mRhs[2] += wh2 * z;
+        mRhs[3] += weight * z;
+    }
+
+    /**
+     * Solves the normal equations into {@link #mDx} by an in place Cholesky factorization of the
+     * upper triangle
+     *
+     * @return {@code false} if the matrix is not positive definite
+     */
+    private boolean solveNormal() {
+        if (!Matrix4.cholesky(mNormal)) {
+            return false;
+        }
+        Matrix4.choleskySolve(mNormal, mRhs, mDx);
+        return true;
+    }
+
+    /**
+     * Satellite clock bias (ICD-GPS-200 20.3.3.3.3.1) and, if {@code withOrbit}, ECEF position,
+     * velocity and clock bias rate of ephemeris {@code e} at GPS time {@code ttxSeconds} of
+     * {@code week}, into {@link #mPvt}
+     */
+    private void evaluate(int e, long week, double ttxSeconds, boolean withOrbit) {
+        // subtract weeks first, to avoid precision errors, rollovers included
+        double weekSeconds = (week - mWeek[e]) * GpsConstants.WEEKSEC;
+        double tk = weekSeconds + (ttxSeconds - mToe[e]);
+        double dt = weekSeconds + (ttxSeconds - mToc[e]);
+
+        double a = mAsqrt[e] * mAsqrt[e];
+        double ecc = mE[e];
+        // corrected mean motion (rad/sec) and mean anomaly
+        double n = Math.sqrt(GpsConstants.mu / (a * a * a)) + mDeltaN[e];
+        double mk = mM0[e] + n * tk;
+
+        // Kepler's equation for the eccentric anomaly
+        double ek = mk;
+        for (int i = 0; i < MAX_KEPLER_COUNT; i++) {
+            double err = ek - mk - ecc * Math.sin(ek);
+            ek -= err;
+            if (Math.abs(err) < KEPLER_TOLERANCE) {
+                break;
+            }
+        }
+        double sinEk = Math.sin(ek);
+        double cosEk = Math.cos(ek);
+
+        mPvt[3] = mAf0[e] + mAf1[e] * dt + mAf2[e] * dt * dt
+                + GpsConstants.FREL * ecc * mAsqrt[e] * sinEk - mTgd[e];
+        if (!withOrbit) {
+            return;
+        }
+
+        double oneMinusECosE = 1 - ecc * cosEk;
+        double ekDot = n / oneMinusECosE;
+        mPvt[7] = mAf1[e] + 2 * mAf2[e] * dt + GpsConstants.FREL * ecc * mAsqrt[e] * cosEk * ekDot;
+
+        // true anomaly and argument of latitude
+        double sqrtOneMinusE2 = Math.sqrt(1 - ecc * ecc);
+        double vk = Math.atan2(sqrtOneMinusE2 * sinEk / oneMinusECosE,
+                (cosEk - ecc) / oneMinusECosE);
+        double vkDot = ekDot * sqrtOneMinusE2 / oneMinusECosE;
+        double phik = vk + mOmega[e];
+
+        // second harmonic perturbations of argument of latitude, radius and inclination
+        double sin2Phik = Math.sin(2 * phik);
+        double cos2Phik = Math.cos(2 * phik);
+        double duk = mCus[e] * sin2Phik + mCuc[e] * cos2Phik;
+        double drk = mCrc[e] * cos2Phik + mCrs[e] * sin2Phik;
+        double dik = mCic[e] * cos2Phik + mCis[e] * sin2Phik;
+        double dukDot = 2 * vkDot * (mCus[e] * cos2Phik - mCuc[e] * sin2Phik);
+        double drkDot = 2 * vkDot * (mCrs[e] * cos2Phik - mCrc[e] * sin2Phik);
+        double dikDot = 2 * vkDot * (mCis[e] * cos2Phik - mCic[e] * sin2Phik);
+
+        double uk = phik + duk;
+        double ukDot = vkDot + dukDot;
+        double rk = a * (1 - ecc * ecc) / (1 + ecc * Math.cos(vk)) + drk;
+        double rkDot = a * ecc * sinEk * ekDot + drkDot;
+        double ik = mI0[e] + mIdot[e] * tk + dik;
+        double ikDot = mIdot[e] + dikDot;
+
+        // position and velocity in the orbital plane
+        double sinUk = Math.sin(uk);
+        double cosUk = Math.cos(uk);
+        double xkp = rk * cosUk;
+        double ykp = rk * sinUk;
+        double xkpDot = rkDot * cosUk - ykp * ukDot;
+        double ykpDot = rkDot * sinUk + xkp * ukDot;
+
+        // corrected longitude of ascending node, in ECEF at ttx
+        double wk = mOmega0[e] + (mOmegaDot[e] - GpsConstants.WE) * tk
+                - GpsConstants.WE * mToe[e];
+        double wkDot = mOmegaDot[e] - GpsConstants.WE;
+
+        double sinWk = Math.sin(wk);
+        double cosWk = Math.cos(wk);
+        double sinIk = Math.sin(ik);
+        double cosIk = Math.cos(ik);
+        double xk = xkp * cosWk - ykp * cosIk * sinWk;
+        double yk = xkp * sinWk + ykp * cosIk * cosWk;
+        mPvt[0] = xk;
+        mPvt[1] = yk;
+        mPvt[2] = ykp * sinIk;
+        mPvt[4] = xkpDot * cosWk - ykpDot * cosIk * sinWk + ykp * sinIk * ikDot * sinWk - yk * wkDot;
+        mPvt[5] = xkpDot * sinWk + ykpDot * cosIk * cosWk - ykp * sinIk * ikDot * cosWk + xk * wkDot;
+        mPvt[6] = ykpDot * sinIk + ykp * cosIk * ikDot;
+    }
+
+    /**
+     * Index of the ephemeris of {@code prn} with Toe closest to {@code fctSeconds}
+     *
+     * @return -1 if there is none within half its fit interval
+     */
+    private int closestEphemeris(int prn, double fctSeconds) {
+        int closest = -1;
+        double minSeconds = Double.MAX_VALUE;
+        for (int i = 0; i < mEphCount; i++) {
+            if (mEphPrn[i] != prn) {
+                continue;
+            }
+            double seconds = Math.abs(mWeek[i] * GpsConstants.WEEKSEC + mToe[i] - fctSeconds);
+            if (seconds < minSeconds) {
+                minSeconds = seconds;
+                closest = i;
+            }
+        }
+        if (closest >= 0 && minSeconds >= mFitIntervalHours[closest] / 2.0 * 3600) {
+            return -1;
+        }
+        return closest;
+    }
+
+    /**
+     * Copies the ephemerides unless {@code allGpsEph} is the instance copied last and has not grown
+     */
+    private void loadEphemerides(GNSSGpsEph allGpsEph) {
+        int count = allGpsEph.PRN.size();
+        if (allGpsEph == mEphSource && count == mEphCount) {
+            return;
+        }
+        if (count > mEphPrn.length) {
+            mEphPrn = new int[count];
+            mToc = new double[count];
+            mAf0 = new double[count];
+            mAf1 = new double[count];
+            mAf2 = new double[count];
+            mCrs = new double[count];
+            mDeltaN = new double[count];
+            mM0 = new double[count];
+            mCuc = new double[count];
+            mE = new double[count];
+            mCus = new double[count];
+            mAsqrt = new double[count];
+            mToe = new double[count];
+            mCic = new double[count];
+            mOmega0 = new double[count];
+            mCis = new double[count];
+            mI0 = new double[count];
+            mCrc = new double[count];
+            mOmega = new double[count];
+            mOmegaDot = new double[count];
+            mIdot = new double[count];
+            mWeek = new double[count];
+            mTgd = new double[count];
+            mFitIntervalHours = new int[count];
+        }
+        for (int i = 0; i < count; i++) {
+            mEphPrn[i] = allGpsEph.PRN.get(i);
+            mToc[i] = allGpsEph.Toc.get(i);
+            mAf0[i] = allGpsEph.af0.get(i).doubleValue();
+            mAf1[i] = allGpsEph.af1.get(i).doubleValue();
+            mAf2[i] = allGpsEph.af2.get(i).doubleValue();
+            mCrs[i] = allGpsEph.Crs.get(i);
+            mDeltaN[i] = allGpsEph.Delta_n.get(i).doubleValue();
+            mM0[i] = allGpsEph.M0.get(i);
+            mCuc[i] = allGpsEph.Cuc.get(i).doubleValue();
+            mE[i] = allGpsEph.e.get(i);
+            mCus[i] = allGpsEph.Cus.get(i).doubleValue();
+            mAsqrt[i] = allGpsEph.Asqrt.get(i).doubleValue();
+            mToe[i] = allGpsEph.Toe.get(i);
+            mCic[i] = allGpsEph.Cic.get(i).doubleValue();
+            mOmega0[i] = allGpsEph.OMEGA.get(i);
+            mCis[i] = allGpsEph.Cis.get(i).doubleValue();
+            mI0[i] = allGpsEph.i0.get(i);
+            mCrc[i] = allGpsEph.Crc.get(i);
+            mOmega[i] = allGpsEph.omega.get(i);
+            mOmegaDot[i] = allGpsEph.OMEGA_DOT.get(i).doubleValue();
+            mIdot[i] = allGpsEph.IDOT.get(i).doubleValue();
+            mWeek[i] = allGpsEph.GPS_Week.get(i);
+            mTgd[i] = allGpsEph.TGD.get(i).doubleValue();
+            // Rinex says "Zero if not known"
+            int fitIntervalHours = allGpsEph.Fit_interval.get(i);
+            mFitIntervalHours[i] = fitIntervalHours == 0 ? DEFAULT_FIT_INTERVAL_HOURS : fitIntervalHours;
+        }
+        mEphSource = allGpsEph;
+        mEphCount = count;
+    }
+}
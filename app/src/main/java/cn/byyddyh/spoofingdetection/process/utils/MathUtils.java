@@ -166,32 +166,6 @@ public class MathUtils {
         return Math.sqrt(val);
     }
 
-    public static Double[][] generateDiag(Double d, List<List<Double>> prs, Integer index) {
-        List<Double> data = new ArrayList<>();
-        for (int i = 0; i < prs.size(); i++) {
-            data.add(1 / prs.get(i).get(index));
-        }
-        return diag(data);
-    }
-
-    /**
-     * 根据向量生成矩阵
-     */
-    public static Double[][] diag(List<Double> data) {
-        Double[][] matrix = new Double[data.size()][data.size()];
-        for (int i = 0; i < data.size(); i++) {
-            for (int j = 0; j < data.size(); j++) {
-                if (i == j) {
-                    matrix[i][j] = data.get(i);
-                } else {
-                    matrix[i][j] = 0.0;
-                }
-            }
-        }
-
-        return matrix;
-    }
-
     /**
      * ek = Kepler(mk,e)
      * Kepler - Solves Kepler's equation for ek through iteration.
@@ -0,0 +1,12 @@
+package cn.byyddyh.spoofingdetection.protocol;
+
+/**
+ * Receives the frames completed by a {@link StreamEncoder}
+ */
+public interface FrameSink {
+
+    /**
+     * {@code buffer} is reused by the encoder once the call returns
+     */
+    void onFrame(byte[] buffer, int offset, int length);
+}
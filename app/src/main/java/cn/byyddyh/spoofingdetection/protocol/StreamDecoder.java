@@ -0,0 +1,337 @@
+package cn.byyddyh.spoofingdetection.protocol;
+
+import com.google.protobuf.nano.CodedInputByteBufferNano;
+import com.google.protobuf.nano.WireFormatNano;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static cn.byyddyh.spoofingdetection.protocol.StreamProtocol.*;
+
+/**
+ * Decodes {@code StreamBatch} frames (see {@link StreamProtocol}) and reports every message to a
+ * {@link StreamListener}. Arrays passed to the listener are reused by the next message and must be
+ * copied if they are kept. Unknown fields are skipped, so older decoders read newer frames.
+ *
+ * <p>A decoder must only be used from a single thread.
+ */
+public class StreamDecoder {
+
+    private static final int MAX_SATELLITES = 64;
+
+    private final float[] mImuValues = new float[IMU_VALUE_COUNT];
+    private final float[] mVelocity = new float[3];
+    private final float[] mUncertainty = new float[3];
+    private final int[] mSvids = new int[MAX_SATELLITES];
+    private final float[] mResiduals = new float[MAX_SATELLITES];
+    private final double[] mPseudoranges = new double[MAX_SATELLITES];
+    private final float[] mRates = new float[MAX_SATELLITES];
+    private final float[] mUncertainties = new float[MAX_SATELLITES];
+    private final float[] mSatellitePositions = new float[3 * MAX_SATELLITES];
+    private byte[] mScratch = new byte[16 * 1024];
+
+    private long mLastImuMicros;
+    private long mLastPvtMicros;
+    private long mLastResidualsMicros;
+    private long mLastAlarmMicros;
+    private long mLastMeasurementsMicros;
+
+    /**
+     * Decodes the remaining bytes of {@code frame}, its position is moved to the limit
+     */
+    public void decode(ByteBuffer frame, StreamListener listener) throws IOException {
+        int length = frame.remaining();
+        if (frame.hasArray()) {
+            decode(frame.array(), frame.arrayOffset() + frame.position(), length, listener);
+            frame.position(frame.limit());
+            return;
+        }
+        if (mScratch.length < length) {
+            mScratch = new byte[Math.max(length, 2 * mScratch.length)];
+        }
+        frame.get(mScratch, 0, length);
+        decode(mScratch, 0, length, listener);
+    }
+
+    /**
+     * Device id of a frame without decoding its messages. The encoder writes it first, so usually
+     * only the first field is read.
+     *
+     * @return 0 if the frame carries none, like {@link #decode}
+     * @throws IOException if the frame is malformed before the id
+     */
+    public static int readDeviceId(byte[] buffer, int offset, int length) throws IOException {
+        CodedInputByteBufferNano input = CodedInputByteBufferNano.newInstance(buffer, offset, length);
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (WireFormatNano.getTagFieldNumber(tag) == BATCH_DEVICE_ID
+                    && wireType(tag) == WIRETYPE_VARINT) {
+                return input.readUInt32();
+            }
+            input.skipField(tag);
+        }
+        return 0;
+    }
+
+    /**
+     * Decodes one frame
+     *
+     * @throws IOException if the frame is malformed
+     */
+    public void decode(byte[] buffer, int offset, int length, StreamListener listener)
+            throws IOException {
+        CodedInputByteBufferNano input = CodedInputByteBufferNano.newInstance(buffer, offset, length);
+        int deviceId = 0;
+        mLastImuMicros = 0;
+        mLastPvtMicros = 0;
+        mLastResidualsMicros = 0;
+        mLastAlarmMicros = 0;
+        mLastMeasurementsMicros = 0;
+        while (true) {
+            int tag = input.readTag();
+            if (tag == 0) {
+                return;
+            }
+            int field = WireFormatNano.getTagFieldNumber(tag);
+            if (field == BATCH_DEVICE_ID && wireType(tag) == WIRETYPE_VARINT) {
+                deviceId = input.readUInt32();
+                continue;
+            }
+            if (wireType(tag) != WIRETYPE_LENGTH_DELIMITED) {
+                input.skipField(tag);
+                continue;
+            }
+            int limit = input.pushLimit(input.readRawVarint32());
+            switch (field) {
+                case BATCH_IMU:
+                    readImu(input, deviceId, listener);
+                    break;
+                case BATCH_PVT:
+                    readPvt(input, deviceId, listener);
+                    break;
+                case BATCH_RESIDUALS:
+                    readResiduals(input, deviceId, listener);
+                    break;
+                case BATCH_ALARM:
+                    readAlarm(input, deviceId, listener);
+                    break;
+                case BATCH_MEASUREMENTS:
+                    readMeasurements(input, deviceId, listener);
+                    break;
+                default:
+                    input.skipRawBytes(input.getBytesUntilLimit());
+                    break;
+            }
+            input.popLimit(limit);
+        }
+    }
+
+    private void readImu(CodedInputByteBufferNano input, int deviceId, StreamListener listener)
+            throws IOException {
+        long delta = 0;
+        for (int i = 0; i < IMU_VALUE_COUNT; i++) {
+            mImuValues[i] = Float.NaN;
+        }
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            int field = WireFormatNano.getTagFieldNumber(tag);
+            if (field == FIELD_DELTA_TIME && wireType(tag) == WIRETYPE_VARINT) {
+                delta = input.readSInt64();
+            } else if (field == IMU_VALUES && wireType(tag) == WIRETYPE_LENGTH_DELIMITED) {
+                readPackedFloats(input, mImuValues);
+            } else {
+                input.skipField(tag);
+            }
+        }
+        mLastImuMicros += delta;
+        listener.onImuSample(deviceId, mLastImuMicros, mImuValues);
+    }
+
+    private void readPvt(CodedInputByteBufferNano input, int deviceId, StreamListener listener)
+            throws IOException {
+        long delta = 0;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        float altitude = Float.NaN;
+        int satellites = 0;
+        for (int i = 0; i < 3; i++) {
+            mVelocity[i] = Float.NaN;
+            mUncertainty[i] = Float.NaN;
+        }
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (tag) {
+                case (FIELD_DELTA_TIME << 3) | WIRETYPE_VARINT:
+                    delta = input.readSInt64();
+                    break;
+                case (PVT_LATITUDE << 3) | WIRETYPE_FIXED64:
+                    latitude = input.readDouble();
+                    break;
+                case (PVT_LONGITUDE << 3) | WIRETYPE_FIXED64:
+                    longitude = input.readDouble();
+                    break;
+                case (PVT_ALTITUDE << 3) | WIRETYPE_FIXED32:
+                    altitude = input.readFloat();
+                    break;
+                case (PVT_VELOCITY << 3) | WIRETYPE_LENGTH_DELIMITED:
+                    readPackedFloats(input, mVelocity);
+                    break;
+                case (PVT_UNCERTAINTY << 3) | WIRETYPE_LENGTH_DELIMITED:
+                    readPackedFloats(input, mUncertainty);
+                    break;
+                case (PVT_SATELLITES << 3) | WIRETYPE_VARINT:
+                    satellites = input.readUInt32();
+                    break;
+                default:
+                    input.skipField(tag);
+                    break;
+            }
+        }
+        mLastPvtMicros += delta;
+        listener.onPvtSolution(deviceId, mLastPvtMicros, latitude, longitude, altitude,
+                mVelocity, mUncertainty, satellites);
+    }
+
+    private void readResiduals(CodedInputByteBufferNano input, int deviceId,
+                               StreamListener listener) throws IOException {
+        long delta = 0;
+        int svidCount = 0;
+        int residualCount = 0;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            int field = WireFormatNano.getTagFieldNumber(tag);
+            if (field == FIELD_DELTA_TIME && wireType(tag) == WIRETYPE_VARINT) {
+                delta = input.readSInt64();
+            } else if (field == RESIDUALS_SVID && wireType(tag) == WIRETYPE_LENGTH_DELIMITED) {
+                int limit = input.pushLimit(input.readRawVarint32());
+                while (!input.isAtEnd()) {
+                    int svid = input.readUInt32();
+                    if (svidCount < MAX_SATELLITES) {
+                        mSvids[svidCount++] = svid;
+                    }
+                }
+                input.popLimit(limit);
+            } else if (field == RESIDUALS_METERS && wireType(tag) == WIRETYPE_LENGTH_DELIMITED) {
+                int limit = input.pushLimit(input.readRawVarint32());
+                while (!input.isAtEnd()) {
+                    float residual = input.readFloat();
+                    if (residualCount < MAX_SATELLITES) {
+                        mResiduals[residualCount++] = residual;
+                    }
+                }
+                input.popLimit(limit);
+            } else {
+                input.skipField(tag);
+            }
+        }
+        mLastResidualsMicros += delta;
+        listener.onSatelliteResiduals(deviceId, mLastResidualsMicros,
+                Math.min(svidCount, residualCount), mSvids, mResiduals);
+    }
+
+    private void readAlarm(CodedInputByteBufferNano input, int deviceId, StreamListener listener)
+            throws IOException {
+        long delta = 0;
+        int type = 0;
+        int svid = 0;
+        float statistic = Float.NaN;
+        float threshold = Float.NaN;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (tag) {
+                case (FIELD_DELTA_TIME << 3) | WIRETYPE_VARINT:
+                    delta = input.readSInt64();
+                    break;
+                case (ALARM_TYPE << 3) | WIRETYPE_VARINT:
+                    type = input.readUInt32();
+                    break;
+                case (ALARM_SVID << 3) | WIRETYPE_VARINT:
+                    svid = input.readUInt32();
+                    break;
+                case (ALARM_STATISTIC << 3) | WIRETYPE_FIXED32:
+                    statistic = input.readFloat();
+                    break;
+                case (ALARM_THRESHOLD << 3) | WIRETYPE_FIXED32:
+                    threshold = input.readFloat();
+                    break;
+                default:
+                    input.skipField(tag);
+                    break;
+            }
+        }
+        mLastAlarmMicros += delta;
+        listener.onAlarm(deviceId, mLastAlarmMicros, type, svid, statistic, threshold);
+    }
+
+    private void readMeasurements(CodedInputByteBufferNano input, int deviceId,
+                                  StreamListener listener) throws IOException {
+        long delta = 0;
+        int svidCount = 0;
+        int pseudorangeCount = 0;
+        int rateCount = 0;
+        int uncertaintyCount = 0;
+        int positionCount = 0;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            int field = WireFormatNano.getTagFieldNumber(tag);
+            if (field == FIELD_DELTA_TIME && wireType(tag) == WIRETYPE_VARINT) {
+                delta = input.readSInt64();
+            } else if (wireType(tag) != WIRETYPE_LENGTH_DELIMITED) {
+                input.skipField(tag);
+            } else if (field == MEASUREMENTS_SVID) {
+                int limit = input.pushLimit(input.readRawVarint32());
+                while (!input.isAtEnd()) {
+                    int svid = input.readUInt32();
+                    if (svidCount < MAX_SATELLITES) {
+                        mSvids[svidCount++] = svid;
+                    }
+                }
+                input.popLimit(limit);
+            } else if (field == MEASUREMENTS_PSEUDORANGE) {
+                int limit = input.pushLimit(input.readRawVarint32());
+                while (!input.isAtEnd()) {
+                    double pseudorange = input.readDouble();
+                    if (pseudorangeCount < MAX_SATELLITES) {
+                        mPseudoranges[pseudorangeCount++] = pseudorange;
+                    }
+                }
+                input.popLimit(limit);
+            } else if (field == MEASUREMENTS_RATE) {
+                rateCount = readPackedFloats(input, mRates);
+            } else if (field == MEASUREMENTS_UNCERTAINTY) {
+                uncertaintyCount = readPackedFloats(input, mUncertainties);
+            } else if (field == MEASUREMENTS_SATELLITE_POSITION) {
+                positionCount = readPackedFloats(input, mSatellitePositions) / 3;
+            } else {
+                input.skipField(tag);
+            }
+        }
+        mLastMeasurementsMicros += delta;
+        int count = Math.min(Math.min(svidCount, pseudorangeCount),
+                Math.min(Math.min(rateCount, uncertaintyCount), positionCount));
+        listener.onRangeMeasurements(deviceId, mLastMeasurementsMicros, count, mSvids,
+                mPseudoranges, mRates, mUncertainties, mSatellitePositions);
+    }
+
+    /**
+     * Reads a packed float field into {@code values}, surplus values are skipped. Returns the
+     * number of values stored.
+     */
+    private static int readPackedFloats(CodedInputByteBufferNano input, float[] values)
+            throws IOException {
+        int limit = input.pushLimit(input.readRawVarint32());
+        int count = 0;
+        while (!input.isAtEnd()) {
+            float value = input.readFloat();
+            if (count < values.length) {
+                values[count++] = value;
+            }
+        }
+        input.popLimit(limit);
+        return count;
+    }
+
+    private static int wireType(int tag) {
+        return tag & 0x7;
+    }
+}
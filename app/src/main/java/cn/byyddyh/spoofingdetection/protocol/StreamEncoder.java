@@ -0,0 +1,330 @@
+package cn.byyddyh.spoofingdetection.protocol;
+
+import com.google.protobuf.nano.CodedOutputByteBufferNano;
+
+import java.io.IOException;
+
+import cn.byyddyh.spoofingdetection.detection.SpoofingAlarm;
+import cn.byyddyh.spoofingdetection.detection.SpoofingAlarmSet;
+
+import static cn.byyddyh.spoofingdetection.protocol.StreamProtocol.*;
+
+/**
+ * Appends messages to a {@code StreamBatch} (see {@link StreamProtocol}) in a reused buffer and
+ * hands the frame to the {@link FrameSink} once {@code maxMessagesPerBatch} messages are collected,
+ * the buffer is nearly full or {@link #flush()} is called.
+ *
+ * <p>Messages are serialized directly from primitive arguments, nothing is allocated per message.
+ * An encoder must only be used from a single thread; use one encoder per producing thread.
+ */
+public class StreamEncoder {
+
+    private static final int DEFAULT_BUFFER_BYTES = 16 * 1024;
+    private static final int FLOAT_BYTES = 4;
+    private static final int DOUBLE_BYTES = 8;
+    /** Upper bound of one encoded message except residuals */
+    private static final int MAX_FIXED_MESSAGE_BYTES = 96;
+
+    private final int mDeviceId;
+    private final int mMaxMessagesPerBatch;
+    private final byte[] mBuffer;
+    private FrameSink mSink;
+
+    private CodedOutputByteBufferNano mOutput;
+    private int mMessageCount;
+    private long mLastImuMicros;
+    private long mLastPvtMicros;
+    private long mLastResidualsMicros;
+    private long mLastAlarmMicros;
+    private long mLastMeasurementsMicros;
+
+    public StreamEncoder(int deviceId, int maxMessagesPerBatch) {
+        this(deviceId, maxMessagesPerBatch, DEFAULT_BUFFER_BYTES);
+    }
+
+    public StreamEncoder(int deviceId, int maxMessagesPerBatch, int bufferBytes) {
+        mDeviceId = deviceId;
+        mMaxMessagesPerBatch = maxMessagesPerBatch;
+        mBuffer = new byte[bufferBytes];
+    }
+
+    public void setSink(FrameSink sink) {
+        mSink = sink;
+    }
+
+    public int getPendingMessageCount() {
+        return mMessageCount;
+    }
+
+    /**
+     * Appends one IMU sample, each vector holds x, y and z
+     */
+    public void addImuSample(long timeMicros, double[] acceleration, double[] velocity,
+                             double[] position) {
+        try {
+            ensureSpace(MAX_FIXED_MESSAGE_BYTES);
+            long delta = timeMicros - mLastImuMicros;
+            mLastImuMicros = timeMicros;
+            int valuesBytes = IMU_VALUE_COUNT * FLOAT_BYTES;
+            int size = CodedOutputByteBufferNano.computeSInt64Size(FIELD_DELTA_TIME, delta)
+                    + packedSize(IMU_VALUES, valuesBytes);
+            beginMessage(BATCH_IMU, size);
+            mOutput.writeSInt64(FIELD_DELTA_TIME, delta);
+            mOutput.writeTag(IMU_VALUES, WIRETYPE_LENGTH_DELIMITED);
+            mOutput.writeRawVarint32(valuesBytes);
+            writeFloats(acceleration, 3);
+            writeFloats(velocity, 3);
+            writeFloats(position, 3);
+            endMessage();
+        } catch (IOException e) {
+            // Cannot happen, the space was checked above
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends one position/velocity solution
+     */
+    public void addPvtSolution(long timeMicros, double latitudeDegrees, double longitudeDegrees,
+                               double altitudeMeters, double[] velocityEnuMps,
+                               double[] positionUncertaintyEnuMeters, int satellites) {
+        try {
+            ensureSpace(MAX_FIXED_MESSAGE_BYTES);
+            long delta = timeMicros - mLastPvtMicros;
+            mLastPvtMicros = timeMicros;
+            int size = CodedOutputByteBufferNano.computeSInt64Size(FIELD_DELTA_TIME, delta)
+                    + CodedOutputByteBufferNano.computeDoubleSize(PVT_LATITUDE, latitudeDegrees)
+                    + CodedOutputByteBufferNano.computeDoubleSize(PVT_LONGITUDE, longitudeDegrees)
+                    + CodedOutputByteBufferNano.computeFloatSize(PVT_ALTITUDE, (float) altitudeMeters)
+                    + packedSize(PVT_VELOCITY, 3 * FLOAT_BYTES)
+                    + packedSize(PVT_UNCERTAINTY, 3 * FLOAT_BYTES)
+                    + CodedOutputByteBufferNano.computeUInt32Size(PVT_SATELLITES, satellites);
+            beginMessage(BATCH_PVT, size);
+            mOutput.writeSInt64(FIELD_DELTA_TIME, delta);
+            mOutput.writeDouble(PVT_LATITUDE, latitudeDegrees);
+            mOutput.writeDouble(PVT_LONGITUDE, longitudeDegrees);
+            mOutput.writeFloat(PVT_ALTITUDE, (float) altitudeMeters);
+            mOutput.writeTag(PVT_VELOCITY, WIRETYPE_LENGTH_DELIMITED);
+            mOutput.writeRawVarint32(3 * FLOAT_BYTES);
+            writeFloats(velocityEnuMps, 3);
+            mOutput.writeTag(PVT_UNCERTAINTY, WIRETYPE_LENGTH_DELIMITED);
+            mOutput.writeRawVarint32(3 * FLOAT_BYTES);
+            writeFloats(positionUncertaintyEnuMeters, 3);
+            mOutput.writeUInt32(PVT_SATELLITES, satellites);
+            endMessage();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends the residuals of one epoch. {@code residualsMeters} is indexed by {@code svid - 1},
+     * NaN entries are skipped.
+     */
+    public void addSatelliteResiduals(long timeMicros, double[] residualsMeters) {
+        int count = 0;
+        int svidBytes = 0;
+        for (int i = 0; i < residualsMeters.length; i++) {
+            if (!Double.isNaN(residualsMeters[i])) {
+                count++;
+                svidBytes += CodedOutputByteBufferNano.computeUInt32SizeNoTag(i + 1);
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        try {
+            ensureSpace(MAX_FIXED_MESSAGE_BYTES + svidBytes + count * FLOAT_BYTES);
+            long delta = timeMicros - mLastResidualsMicros;
+            mLastResidualsMicros = timeMicros;
+            int size = CodedOutputByteBufferNano.computeSInt64Size(FIELD_DELTA_TIME, delta)
+                    + packedSize(RESIDUALS_SVID, svidBytes)
+                    + packedSize(RESIDUALS_METERS, count * FLOAT_BYTES);
+            beginMessage(BATCH_RESIDUALS, size);
+            mOutput.writeSInt64(FIELD_DELTA_TIME, delta);
+            mOutput.writeTag(RESIDUALS_SVID, WIRETYPE_LENGTH_DELIMITED);
+            mOutput.writeRawVarint32(svidBytes);
+            for (int i = 0; i < residualsMeters.length; i++) {
+                if (!Double.isNaN(residualsMeters[i])) {
+                    mOutput.writeUInt32NoTag(i + 1);
+                }
+            }
+            mOutput.writeTag(RESIDUALS_METERS, WIRETYPE_LENGTH_DELIMITED);
+            mOutput.writeRawVarint32(count * FLOAT_BYTES);
+            for (double residual : residualsMeters) {
+                if (!Double.isNaN(residual)) {
+                    mOutput.writeFloatNoTag((float) residual);
+                }
+            }
+            endMessage();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends the raw range measurements of one epoch. All arrays are indexed by {@code svid - 1},
+     * satellites without pseudorange or satellite position are skipped.
+     */
+    public void addRangeMeasurements(long timeMicros, double[] pseudorangesMeters,
+                                     double[] pseudorangeRatesMps, double[] uncertaintiesMeters,
+                                     double[][] satellitePositionsEcefMeters) {
+        int count = 0;
+        int svidBytes = 0;
+        for (int i = 0; i < pseudorangesMeters.length; i++) {
+            if (hasRangeMeasurement(i, pseudorangesMeters, satellitePositionsEcefMeters)) {
+                count++;
+                svidBytes += CodedOutputByteBufferNano.computeUInt32SizeNoTag(i + 1);
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        try {
+            ensureSpace(MAX_FIXED_MESSAGE_BYTES + svidBytes + count * (DOUBLE_BYTES + 5 * FLOAT_BYTES));
+            long delta = timeMicros - mLastMeasurementsMicros;
+            mLastMeasurementsMicros = timeMicros;
+            int size = CodedOutputByteBufferNano.computeSInt64Size(FIELD_DELTA_TIME, delta)
+                    + packedSize(MEASUREMENTS_SVID, svidBytes)
+                    + packedSize(MEASUREMENTS_PSEUDORANGE, count * DOUBLE_BYTES)
+                    + packedSize(MEASUREMENTS_RATE, count * FLOAT_BYTES)
+                    + packedSize(MEASUREMENTS_UNCERTAINTY, count * FLOAT_BYTES)
+                    + packedSize(MEASUREMENTS_SATELLITE_POSITION, 3 * count * FLOAT_BYTES);
+            beginMessage(BATCH_MEASUREMENTS, size);
+            mOutput.writeSInt64(FIELD_DELTA_TIME, delta);
+            mOutput.writeTag(MEASUREMENTS_SVID, WIRETYPE_LENGTH_DELIMITED);
+            mOutput.writeRawVarint32(svidBytes);
+            for (int i = 0; i < pseudorangesMeters.length; i++) {
+                if (hasRangeMeasurement(i, pseudorangesMeters, satellitePositionsEcefMeters)) {
+                    mOutput.writeUInt32NoTag(i + 1);
+                }
+            }
+            mOutput.writeTag(MEASUREMENTS_PSEUDORANGE, WIRETYPE_LENGTH_DELIMITED);
+            mOutput.writeRawVarint32(count * DOUBLE_BYTES);
+            for (int i = 0; i < pseudorangesMeters.length; i++) {
+                if (hasRangeMeasurement(i, pseudorangesMeters, satellitePositionsEcefMeters)) {
+                    mOutput.writeDoubleNoTag(pseudorangesMeters[i]);
+                }
+            }
+            mOutput.writeTag(MEASUREMENTS_RATE, WIRETYPE_LENGTH_DELIMITED);
+            mOutput.writeRawVarint32(count * FLOAT_BYTES);
+            for (int i = 0; i < pseudorangesMeters.length; i++) {
+                if (hasRangeMeasurement(i, pseudorangesMeters, satellitePositionsEcefMeters)) {
+                    mOutput.writeFloatNoTag((float) pseudorangeRatesMps[i]);
+                }
+            }
+            mOutput.writeTag(MEASUREMENTS_UNCERTAINTY, WIRETYPE_LENGTH_DELIMITED);
+            mOutput.writeRawVarint32(count * FLOAT_BYTES);
+            for (int i = 0; i < pseudorangesMeters.length; i++) {
+                if (hasRangeMeasurement(i, pseudorangesMeters, satellitePositionsEcefMeters)) {
+                    mOutput.writeFloatNoTag((float) uncertaintiesMeters[i]);
+                }
+            }
+            mOutput.writeTag(MEASUREMENTS_SATELLITE_POSITION, WIRETYPE_LENGTH_DELIMITED);
+            mOutput.writeRawVarint32(3 * count * FLOAT_BYTES);
+            for (int i = 0; i < pseudorangesMeters.length; i++) {
+                if (hasRangeMeasurement(i, pseudorangesMeters, satellitePositionsEcefMeters)) {
+                    writeFloats(satellitePositionsEcefMeters[i], 3);
+                }
+            }
+            endMessage();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends one detection alarm
+     */
+    public void addAlarm(long timeMicros, int type, int svid, double statistic, double threshold) {
+        try {
+            ensureSpace(MAX_FIXED_MESSAGE_BYTES);
+            long delta = timeMicros - mLastAlarmMicros;
+            mLastAlarmMicros = timeMicros;
+            int size = CodedOutputByteBufferNano.computeSInt64Size(FIELD_DELTA_TIME, delta)
+                    + CodedOutputByteBufferNano.computeUInt32Size(ALARM_TYPE, type)
+                    + CodedOutputByteBufferNano.computeUInt32Size(ALARM_SVID, svid)
+                    + CodedOutputByteBufferNano.computeFloatSize(ALARM_STATISTIC, (float) statistic)
+                    + CodedOutputByteBufferNano.computeFloatSize(ALARM_THRESHOLD, (float) threshold);
+            beginMessage(BATCH_ALARM, size);
+            mOutput.writeSInt64(FIELD_DELTA_TIME, delta);
+            mOutput.writeUInt32(ALARM_TYPE, type);
+            mOutput.writeUInt32(ALARM_SVID, svid);
+            mOutput.writeFloat(ALARM_STATISTIC, (float) statistic);
+            mOutput.writeFloat(ALARM_THRESHOLD, (float) threshold);
+            endMessage();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends every alarm of {@code alarms}
+     */
+    public void addAlarms(long timeMicros, SpoofingAlarmSet alarms) {
+        for (int i = 0; i < alarms.size(); i++) {
+            SpoofingAlarm alarm = alarms.get(i);
+            addAlarm(timeMicros, alarm.getType().ordinal(), alarm.getSvid(), alarm.getStatistic(),
+                    alarm.getThreshold());
+        }
+    }
+
+    /**
+     * Emits the pending messages as one frame, if any
+     */
+    public void flush() {
+        if (mOutput == null || mMessageCount == 0) {
+            return;
+        }
+        int length = mBuffer.length - mOutput.spaceLeft();
+        mOutput = null;
+        mMessageCount = 0;
+        if (mSink != null) {
+            mSink.onFrame(mBuffer, 0, length);
+        }
+    }
+
+    private void ensureSpace(int messageBytes) throws IOException {
+        if (mOutput != null && mOutput.spaceLeft() < messageBytes) {
+            flush();
+        }
+        if (mOutput == null) {
+            mOutput = CodedOutputByteBufferNano.newInstance(mBuffer, 0, mBuffer.length);
+            mOutput.writeUInt32(BATCH_DEVICE_ID, mDeviceId);
+            mLastImuMicros = 0;
+            mLastPvtMicros = 0;
+            mLastResidualsMicros = 0;
+            mLastAlarmMicros = 0;
+            mLastMeasurementsMicros = 0;
+        }
+    }
+
+    private void beginMessage(int field, int size) throws IOException {
+        mOutput.writeTag(field, WIRETYPE_LENGTH_DELIMITED);
+        mOutput.writeRawVarint32(size);
+    }
+
+    private void endMessage() {
+        mMessageCount++;
+        if (mMessageCount >= mMaxMessagesPerBatch) {
+            flush();
+        }
+    }
+
+    private void writeFloats(double[] values, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            mOutput.writeFloatNoTag((float) values[i]);
+        }
+    }
+
+    private static boolean hasRangeMeasurement(int index, double[] pseudorangesMeters,
+                                               double[][] satellitePositionsEcefMeters) {
+        return !Double.isNaN(pseudorangesMeters[index])
+                && !Double.isNaN(satellitePositionsEcefMeters[index][0]);
+    }
+
+    private static int packedSize(int field, int bytes) {
+        return CodedOutputByteBufferNano.computeTagSize(field)
+                + CodedOutputByteBufferNano.computeRawVarint32Size(bytes) + bytes;
+    }
+}
@@ -0,0 +1,29 @@
+package cn.byyddyh.spoofingdetection.protocol;
+
+/**
+ * Callbacks of {@link StreamDecoder}. Arrays are reused by the decoder and are only valid during
+ * the call.
+ */
+public interface StreamListener {
+
+    /**
+     * @param values acceleration, velocity and position, x y z each
+     */
+    void onImuSample(int deviceId, long timeMicros, float[] values);
+
+    void onPvtSolution(int deviceId, long timeMicros, double latitudeDegrees, double longitudeDegrees,
+                       float altitudeMeters, float[] velocityEnuMps, float[] positionUncertaintyEnuMeters,
+                       int satellites);
+
+    void onSatelliteResiduals(int deviceId, long timeMicros, int count, int[] svids,
+                              float[] residualsMeters);
+
+    void onAlarm(int deviceId, long timeMicros, int type, int svid, float statistic, float threshold);
+
+    /**
+     * @param satellitePositionsEcefMeters x y z of every svid, {@code 3 * count} values
+     */
+    void onRangeMeasurements(int deviceId, long timeMicros, int count, int[] svids,
+                             double[] pseudorangesMeters, float[] pseudorangeRatesMps,
+                             float[] uncertaintiesMeters, float[] satellitePositionsEcefMeters);
+}
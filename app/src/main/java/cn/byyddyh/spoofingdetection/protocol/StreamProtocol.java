@@ -0,0 +1,100 @@
+package cn.byyddyh.spoofingdetection.protocol;
+
+/**
+ * Field numbers of the binary streaming protocol. Every socket frame carries one
+ * {@code StreamBatch} encoded with protobuf-nano, equivalent to:
+ *
+ * <pre>
+ * message StreamBatch {
+ *   uint32 device_id = 1;
+ *   repeated ImuSample imu = 2;
+ *   repeated PvtSolution pvt = 3;
+ *   repeated SatelliteResiduals residuals = 4;
+ *   repeated Alarm alarm = 5;
+ *   repeated RangeMeasurements measurements = 6;
+ * }
+ * message ImuSample {
+ *   sint64 delta_time_micros = 1;
+ *   repeated float values = 2 [packed = true];   // acceleration, velocity, position (x, y, z each)
+ * }
+ * message PvtSolution {
+ *   sint64 delta_time_micros = 1;
+ *   double latitude_degrees = 2;
+ *   double longitude_degrees = 3;
+ *   float altitude_meters = 4;
+ *   repeated float velocity_enu_mps = 5 [packed = true];
+ *   repeated float position_uncertainty_enu_meters = 6 [packed = true];
+ *   uint32 satellites = 7;
+ * }
+ * message SatelliteResiduals {
+ *   sint64 delta_time_micros = 1;
+ *   repeated uint32 svid = 2 [packed = true];
+ *   repeated float residual_meters = 3 [packed = true];
+ * }
+ * message Alarm {
+ *   sint64 delta_time_micros = 1;
+ *   uint32 type = 2;                              // AlarmType ordinal
+ *   uint32 svid = 3;
+ *   float statistic = 4;
+ *   float threshold = 5;
+ * }
+ * message RangeMeasurements {
+ *   sint64 delta_time_micros = 1;
+ *   repeated uint32 svid = 2 [packed = true];
+ *   repeated double pseudorange_meters = 3 [packed = true];     // raw, uncorrected
+ *   repeated float pseudorange_rate_mps = 4 [packed = true];
+ *   repeated float pseudorange_uncertainty_meters = 5 [packed = true];
+ *   repeated float satellite_ecef_meters = 6 [packed = true];   // x, y, z per svid
+ * }
+ * </pre>
+ *
+ * <p>Timestamps are delta encoded per message kind within a frame: the first message of a kind
+ * carries its absolute time, every further one the difference to its predecessor, so a 100 Hz IMU
+ * stream costs two bytes of time per sample. IMU samples are stamped in elapsed realtime, the other
+ * messages in GPS time, both in microseconds.
+ */
+public final class StreamProtocol {
+
+    public static final int BATCH_DEVICE_ID = 1;
+    public static final int BATCH_IMU = 2;
+    public static final int BATCH_PVT = 3;
+    public static final int BATCH_RESIDUALS = 4;
+    public static final int BATCH_ALARM = 5;
+    public static final int BATCH_MEASUREMENTS = 6;
+
+    public static final int FIELD_DELTA_TIME = 1;
+
+    public static final int IMU_VALUES = 2;
+    /** Number of floats of an IMU sample */
+    public static final int IMU_VALUE_COUNT = 9;
+
+    public static final int PVT_LATITUDE = 2;
+    public static final int PVT_LONGITUDE = 3;
+    public static final int PVT_ALTITUDE = 4;
+    public static final int PVT_VELOCITY = 5;
+    public static final int PVT_UNCERTAINTY = 6;
+    public static final int PVT_SATELLITES = 7;
+
+    public static final int RESIDUALS_SVID = 2;
+    public static final int RESIDUALS_METERS = 3;
+
+    public static final int ALARM_TYPE = 2;
+    public static final int ALARM_SVID = 3;
+    public static final int ALARM_STATISTIC = 4;
+    public static final int ALARM_THRESHOLD = 5;
+
+    public static final int MEASUREMENTS_SVID = 2;
+    public static final int MEASUREMENTS_PSEUDORANGE = 3;
+    public static final int MEASUREMENTS_RATE = 4;
+    public static final int MEASUREMENTS_UNCERTAINTY = 5;
+    public static final int MEASUREMENTS_SATELLITE_POSITION = 6;
+
+    /** Protobuf wire types, {@code WireFormatNano} keeps its constants package private */
+    static final int WIRETYPE_VARINT = 0;
+    static final int WIRETYPE_FIXED64 = 1;
+    static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    static final int WIRETYPE_FIXED32 = 5;
+
+    private StreamProtocol() {
+    }
+}
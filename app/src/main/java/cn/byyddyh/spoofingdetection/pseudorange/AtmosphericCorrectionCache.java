@@ -0,0 +1,221 @@
+package cn.byyddyh.spoofingdetection.pseudorange;
+
+import static java.lang.Double.NaN;
+
+import java.util.Arrays;
+
+/**
+ * Ionospheric (Klobuchar) and tropospheric (EGNOS) corrections of the least square solution, with
+ * every intermediate term computed only as often as its inputs change:
+ *
+ * <ul>
+ *   <li>Receiver terms: geodetic latitude and longitude, height above sea level and the local
+ *       east/north/up axes. Recomputed when the receiver moves more than
+ *       {@link #MAX_RECEIVER_MOTION_METERS} from where they were computed or the geoid grid
+ *       changes.
+ *   <li>Zenith dry and wet delays: depend on latitude, height and day of year only. Recomputed with
+ *       the receiver terms or when the day changes.
+ *   <li>Per satellite elevation, azimuth and slant tropospheric delay: recomputed with the receiver
+ *       terms or when the satellite moves more than {@link #MAX_SATELLITE_MOTION_METERS}.
+ *   <li>Per satellite ionospheric delay: recomputed with the elevation, when the time of
+ *       transmission changes by more than {@link #MAX_TIME_CHANGE_SECONDS} or when the broadcast
+ *       Klobuchar coefficients change.
+ * </ul>
+ *
+ * <p>The ionospheric delay of satellites below the horizon is always computed afresh.
+ *
+ * <p>Within an epoch the least square iterations move the receiver by millimetres once the
+ * corrections are switched on, so the later iterations reuse the slant corrections of the first
+ * one. The thresholds keep the difference from computing everything afresh below 1 mm down to the
+ * 2° elevation cut-off of the mapping function: the steepest term, the slant dry delay, changes by
+ * about 7 mm per metre of height there.
+ *
+ * <p>Not thread safe, each least square solver owns one.
+ */
+class AtmosphericCorrectionCache {
+
+    static final double MAX_RECEIVER_MOTION_METERS = 0.1;
+    static final double MAX_SATELLITE_MOTION_METERS = 10.0;
+    static final double MAX_TIME_CHANGE_SECONDS = 0.1;
+
+    private static final double SPEED_OF_LIGHT_MPS = 299792458.0;
+
+    /**
+     * Cached terms of one satellite
+     */
+    private static final class SatelliteTerms {
+        final double[] positionEcefMeters = {NaN, NaN, NaN};
+        long receiverGeneration = -1;
+        double elevationRadians;
+        double azimuthRadians;
+
+        long troposphereGeneration = -1;
+        double troposphericCorrectionMeters;
+
+        long ionosphereGeneration = -1;
+        double ionosphereTowSeconds;
+        double ionosphericCorrectionMeters;
+    }
+
+    private final GeoidHeightGrid geoidHeightGrid;
+    private final SatelliteTerms[] satellites =
+            new SatelliteTerms[GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES];
+
+    private final double[] receiverPositionEcefMeters = {NaN, NaN, NaN};
+    private GeoidHeightGrid receiverGeoidHeightGrid;
+    private long receiverGeneration = 0;
+    private double latitudeRadians;
+    private double longitudeRadians;
+    private double heightAboveSeaLevelMeters;
+    private final double[] eastEcef = new double[3];
+    private final double[] northEcef = new double[3];
+    private final double[] upEcef = new double[3];
+
+    private int zenithDayOfYear = -1;
+    private long zenithReceiverGeneration = -1;
+    private long troposphereGeneration = 0;
+    private TroposphericModelEgnos.DryAndWetZenithDelays zenithDelays;
+
+    private final double[] alpha = new double[4];
+    private final double[] beta = new double[4];
+    private long ionosphereGeneration = 0;
+
+    /**
+     * @param geoidHeightGrid grid giving heights above sea level, {@code null} for
+     *                        {@link GeoidHeightGrid#getDefault()}
+     */
+    AtmosphericCorrectionCache(GeoidHeightGrid geoidHeightGrid) {
+        this.geoidHeightGrid = geoidHeightGrid;
+        for (int i = 0; i < satellites.length; i++) {
+            satellites[i] = new SatelliteTerms();
+        }
+    }
+
+    /**
+     * Ionospheric delay on L1 in meters of satellite {@code prn}
+     */
+    double getIonosphericCorrectionMeters(int prn, double[] userPositionEcefMeters,
+                                          double[] satellitePositionEcefMeters,
+                                          double gpsTowSeconds, double[] alpha, double[] beta) {
+        SatelliteTerms terms = updateGeometry(prn, userPositionEcefMeters, satellitePositionEcefMeters);
+        if (!Arrays.equals(alpha, this.alpha) || !Arrays.equals(beta, this.beta)) {
+            System.arraycopy(alpha, 0, this.alpha, 0, this.alpha.length);
+            System.arraycopy(beta, 0, this.beta, 0, this.beta.length);
+            ionosphereGeneration++;
+        }
+        if (terms.elevationRadians < 0) {
+            // Below the horizon the Klobuchar model nears its pole at -0.11 semicircles, where the
+            // cached receiver terms are not accurate enough
+            return IonosphericModel.ionoKlobucharCorrectionSeconds(userPositionEcefMeters,
+                    satellitePositionEcefMeters, gpsTowSeconds, alpha, beta,
+                    IonosphericModel.L1_FREQ_HZ) * SPEED_OF_LIGHT_MPS;
+        }
+        if (terms.ionosphereGeneration != ionosphereGeneration
+                || Math.abs(gpsTowSeconds - terms.ionosphereTowSeconds) > MAX_TIME_CHANGE_SECONDS) {
+            terms.ionosphericCorrectionMeters = IonosphericModel.ionoKlobucharCorrectionSeconds(
+                    terms.elevationRadians, terms.azimuthRadians, latitudeRadians, longitudeRadians,
+                    gpsTowSeconds, alpha, beta, IonosphericModel.L1_FREQ_HZ) * SPEED_OF_LIGHT_MPS;
+            terms.ionosphereTowSeconds = gpsTowSeconds;
+            terms.ionosphereGeneration = ionosphereGeneration;
+        }
+        return terms.ionosphericCorrectionMeters;
+    }
+
+    /**
+     * Tropospheric delay in meters of satellite {@code prn}
+     */
+    double getTroposphericCorrectionMeters(int prn, double[] userPositionEcefMeters,
+                                           double[] satellitePositionEcefMeters,
+                                           int dayOfYear1To366) {
+        SatelliteTerms terms = updateGeometry(prn, userPositionEcefMeters, satellitePositionEcefMeters);
+        if (dayOfYear1To366 != zenithDayOfYear || zenithReceiverGeneration != receiverGeneration) {
+            zenithDelays = TroposphericModelEgnos.calculateZenithDryAndWetDelaysSec(latitudeRadians,
+                    heightAboveSeaLevelMeters, dayOfYear1To366);
+            zenithDayOfYear = dayOfYear1To366;
+            zenithReceiverGeneration = receiverGeneration;
+            troposphereGeneration++;
+        }
+        if (terms.troposphereGeneration != troposphereGeneration) {
+            // Same arithmetic as TroposphericModelEgnos.calculateTropoCorrectionMeters
+            TroposphericModelEgnos.DryAndWetMappingValues mapping = TroposphericModelEgnos
+                    .computeDryAndWetMappingValuesUsingUNBabcMappingFunction(terms.elevationRadians,
+                            latitudeRadians, heightAboveSeaLevelMeters);
+            terms.troposphericCorrectionMeters =
+                    zenithDelays.dryZenithDelaySec * mapping.dryMappingValue
+                            + zenithDelays.wetZenithDelaySec * mapping.wetMappingValue;
+            terms.troposphereGeneration = troposphereGeneration;
+        }
+        return terms.troposphericCorrectionMeters;
+    }
+
+    /**
+     * Brings the receiver terms and the elevation and azimuth of satellite {@code prn} up to date
+     */
+    private SatelliteTerms updateGeometry(int prn, double[] userPositionEcefMeters,
+                                          double[] satellitePositionEcefMeters) {
+        GeoidHeightGrid grid = geoidHeightGrid != null ? geoidHeightGrid : GeoidHeightGrid.getDefault();
+        // NaN cached coordinates never compare as close, the first call always computes
+        if (grid != receiverGeoidHeightGrid
+                || !isWithin(userPositionEcefMeters, receiverPositionEcefMeters,
+                MAX_RECEIVER_MOTION_METERS)) {
+            updateReceiverTerms(userPositionEcefMeters, grid);
+        }
+
+        SatelliteTerms terms = satellites[prn - 1];
+        if (terms.receiverGeneration != receiverGeneration
+                || !isWithin(satellitePositionEcefMeters, terms.positionEcefMeters,
+                MAX_SATELLITE_MOTION_METERS)) {
+            double dx = satellitePositionEcefMeters[0] - userPositionEcefMeters[0];
+            double dy = satellitePositionEcefMeters[1] - userPositionEcefMeters[1];
+            double dz = satellitePositionEcefMeters[2] - userPositionEcefMeters[2];
+            double eastMeters = dx * eastEcef[0] + dy * eastEcef[1];
+            double northMeters = dx * northEcef[0] + dy * northEcef[1] + dz * northEcef[2];
+            double upMeters = dx * upEcef[0] + dy * upEcef[1] + dz * upEcef[2];
+            // As EcefToTopocentricConverter, without its LLA conversion and rotation matrices
+            terms.elevationRadians = Math.atan2(upMeters, Math.hypot(eastMeters, northMeters));
+            terms.azimuthRadians = Math.atan2(eastMeters, northMeters);
+            System.arraycopy(satellitePositionEcefMeters, 0, terms.positionEcefMeters, 0, 3);
+            terms.receiverGeneration = receiverGeneration;
+            terms.troposphereGeneration = -1;
+            terms.ionosphereGeneration = -1;
+        }
+        return terms;
+    }
+
+    private void updateReceiverTerms(double[] userPositionEcefMeters, GeoidHeightGrid grid) {
+        Ecef2LlaConverter.GeodeticLlaValues lla =
+                Ecef2LlaConverter.convertECEFToLLACloseForm(userPositionEcefMeters[0],
+                        userPositionEcefMeters[1], userPositionEcefMeters[2]);
+        latitudeRadians = lla.latitudeRadians;
+        longitudeRadians = lla.longitudeRadians;
+        // Without a geoid grid the height above the ellipsoid is used, off by the geoid undulation
+        heightAboveSeaLevelMeters = grid == null ? lla.altitudeMeters
+                : grid.getOrthometricHeightMeters(Math.toDegrees(latitudeRadians),
+                Math.toDegrees(longitudeRadians), lla.altitudeMeters);
+
+        double sinLatitude = Math.sin(latitudeRadians);
+        double cosLatitude = Math.cos(latitudeRadians);
+        double sinLongitude = Math.sin(longitudeRadians);
+        double cosLongitude = Math.cos(longitudeRadians);
+        eastEcef[0] = -sinLongitude;
+        eastEcef[1] = cosLongitude;
+        eastEcef[2] = 0;
+        northEcef[0] = -sinLatitude * cosLongitude;
+        northEcef[1] = -sinLatitude * sinLongitude;
+        northEcef[2] = cosLatitude;
+        upEcef[0] = cosLatitude * cosLongitude;
+        upEcef[1] = cosLatitude * sinLongitude;
+        upEcef[2] = sinLatitude;
+
+        System.arraycopy(userPositionEcefMeters, 0, receiverPositionEcefMeters, 0, 3);
+        receiverGeoidHeightGrid = grid;
+        receiverGeneration++;
+    }
+
+    private static boolean isWithin(double[] position, double[] cachedPosition, double meters) {
+        double dx = position[0] - cachedPosition[0];
+        double dy = position[1] - cachedPosition[1];
+        double dz = position[2] - cachedPosition[2];
+        return dx * dx + dy * dy + dz * dz <= meters * meters;
+    }
+}
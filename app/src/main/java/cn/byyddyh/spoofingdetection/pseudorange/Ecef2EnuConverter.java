@@ -19,6 +19,8 @@ package cn.byyddyh.spoofingdetection.pseudorange;
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
 
+import cn.byyddyh.spoofingdetection.matrix.Matrix3;
+
 /**
  * Converts ECEF (Earth Centered Earth Fixed) Cartesian coordinates to local ENU (East, North,
  * and Up).
@@ -46,12 +48,11 @@ public class Ecef2EnuConverter {
   public static EnuValues convertEcefToEnu(double ecefX, double ecefY, double ecefZ,
       double refLat, double refLng){
 
-    RealMatrix rotationMatrix = getRotationMatrix(refLat, refLng);
-    RealMatrix ecefCoordinates = new Array2DRowRealMatrix(new double[]{ecefX, ecefY, ecefZ});
-
-    RealMatrix enuResult = rotationMatrix.multiply(ecefCoordinates);
-    return new EnuValues(enuResult.getEntry(0, 0),
-        enuResult.getEntry(1, 0), enuResult.getEntry(2 , 0));
+    double[] rotationMatrix = new double[Matrix3.SIZE * Matrix3.SIZE];
+    getRotationMatrix(refLat, refLng, rotationMatrix);
+    double[] enuResult = {ecefX, ecefY, ecefZ};
+    Matrix3.multiplyVector(rotationMatrix, enuResult, enuResult);
+    return new EnuValues(enuResult[0], enuResult[1], enuResult[2]);
   }
 
   /**
@@ -71,19 +72,34 @@ public class Ecef2EnuConverter {
    * @return the Ecef to Enu rotation matrix
    */
   public static RealMatrix getRotationMatrix(double refLat, double refLng){
-    RealMatrix rotationMatrix = new Array2DRowRealMatrix(3, 3);
+    double[] rotationMatrix = new double[Matrix3.SIZE * Matrix3.SIZE];
+    getRotationMatrix(refLat, refLng, rotationMatrix);
+    return new Array2DRowRealMatrix(new double[][]{
+        {rotationMatrix[0], rotationMatrix[1], rotationMatrix[2]},
+        {rotationMatrix[3], rotationMatrix[4], rotationMatrix[5]},
+        {rotationMatrix[6], rotationMatrix[7], rotationMatrix[8]}}, false);
+  }
+
+  /**
+   * Fills {@code rotationMatrix} with the rotation of {@link #getRotationMatrix(double, double)},
+   * 3 x 3 row major, for the operations of {@link Matrix3}
+   */
+  public static void getRotationMatrix(double refLat, double refLng, double[] rotationMatrix){
+    double sinLat = Math.sin(refLat);
+    double cosLat = Math.cos(refLat);
+    double sinLng = Math.sin(refLng);
+    double cosLng = Math.cos(refLng);
 
     // Fill in the rotation Matrix
-    rotationMatrix.setEntry(0, 0, -1 * Math.sin(refLng));
-    rotationMatrix.setEntry(1, 0, -1 * Math.cos(refLng) * Math.sin(refLat));
-    rotationMatrix.setEntry(2, 0, Math.cos(refLng) * Math.cos(refLat));
-    rotationMatrix.setEntry(0, 1, Math.cos(refLng));
-    rotationMatrix.setEntry(1, 1, -1 * Math.sin(refLat) * Math.sin(refLng));
-    rotationMatrix.setEntry(2, 1, Math.cos(refLat) * Math.sin(refLng));
-    rotationMatrix.setEntry(0, 2, 0);
-    rotationMatrix.setEntry(1, 2, Math.cos(refLat));
-    rotationMatrix.setEntry(2, 2, Math.sin(refLat));
-    return rotationMatrix;
+    rotationMatrix[0] = -1 * sinLng;
+    rotationMatrix[1] = cosLng;
+    rotationMatrix[2] = 0;
+    rotationMatrix[3] = -1 * cosLng * sinLat;
+    rotationMatrix[4] = -1 * sinLat * sinLng;
+    rotationMatrix[5] = cosLat;
+    rotationMatrix[6] = cosLng * cosLat;
+    rotationMatrix[7] = cosLat * sinLng;
+    rotationMatrix[8] = sinLat;
   }
 
   /**
@@ -16,7 +16,7 @@
 
 package cn.byyddyh.spoofingdetection.pseudorange;
 
-import org.apache.commons.math3.linear.RealMatrix;
+import cn.byyddyh.spoofingdetection.matrix.Matrix3;
 
 /**
  * Transformations from ECEF coordinates to Topocentric coordinates
@@ -42,11 +42,11 @@ public class EcefToTopocentricConverter {
     Ecef2LlaConverter.GeodeticLlaValues latLngAlt = Ecef2LlaConverter.convertECEFToLLACloseForm(originECEFMeters[0],
         originECEFMeters[1], originECEFMeters[2]);
 
-    RealMatrix rotationMatrix =
-        Ecef2EnuConverter.
-            getRotationMatrix(latLngAlt.latitudeRadians, latLngAlt.longitudeRadians).transpose();
-    double[] eastNorthUpVectorMeters = GpsMathOperations.matrixByColVectMultiplication(
-        rotationMatrix.transpose().getData(), inputVectorMeters);
+    double[] rotationMatrix = new double[Matrix3.SIZE * Matrix3.SIZE];
+    Ecef2EnuConverter.getRotationMatrix(latLngAlt.latitudeRadians, latLngAlt.longitudeRadians,
+        rotationMatrix);
+    double[] eastNorthUpVectorMeters = new double[3];
+    Matrix3.multiplyVector(rotationMatrix, inputVectorMeters, eastNorthUpVectorMeters);
     double eastMeters = eastNorthUpVectorMeters[EAST_IDX];
     double northMeters = eastNorthUpVectorMeters[NORTH_IDX];
     double upMeters = eastNorthUpVectorMeters[UP_IDX];
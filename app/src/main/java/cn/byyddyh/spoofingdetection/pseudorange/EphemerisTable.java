@@ -0,0 +1,63 @@
+package cn.byyddyh.spoofingdetection.pseudorange;
+
+import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+
+/**
+ * Immutable index of the ephemerides of one {@link GpsNavMessageProto} by PRN, so that looking a
+ * satellite up is an array access instead of a scan of {@code ephemerids}.
+ *
+ * <p>A table is built once per navigation message and only stays valid as long as that message is
+ * not modified; {@link #forNavMessage} reuses it while the same message instance is used. Like the
+ * scans it replaces, the first ephemeris of a PRN wins if a message lists it twice.
+ */
+final class EphemerisTable {
+
+    private final GpsNavMessageProto mNavMessage;
+    /** Indexed by PRN, slot 0 unused */
+    private final GpsEphemerisProto[] mEphemerides =
+            new GpsEphemerisProto[GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES + 1];
+
+    private EphemerisTable(GpsNavMessageProto navMessage) {
+        mNavMessage = navMessage;
+        if (navMessage.ephemerids == null) {
+            return;
+        }
+        for (GpsEphemerisProto ephemeris : navMessage.ephemerids) {
+            int prn = ephemeris.prn;
+            if (prn > 0 && prn < mEphemerides.length && mEphemerides[prn] == null) {
+                mEphemerides[prn] = ephemeris;
+            }
+        }
+    }
+
+    /**
+     * Returns {@code table} if it was built for {@code navMessage}, a new table otherwise
+     *
+     * @return {@code null} if {@code navMessage} is {@code null}
+     */
+    static EphemerisTable forNavMessage(EphemerisTable table, GpsNavMessageProto navMessage) {
+        if (navMessage == null) {
+            return null;
+        }
+        if (table != null && table.mNavMessage == navMessage) {
+            return table;
+        }
+        return new EphemerisTable(navMessage);
+    }
+
+    GpsNavMessageProto getNavMessage() {
+        return mNavMessage;
+    }
+
+    /**
+     * @return the ephemeris of satellite {@code prn}, {@code null} if the message has none
+     */
+    GpsEphemerisProto get(int prn) {
+        return prn > 0 && prn < mEphemerides.length ? mEphemerides[prn] : null;
+    }
+
+    boolean contains(int prn) {
+        return get(prn) != null;
+    }
+}
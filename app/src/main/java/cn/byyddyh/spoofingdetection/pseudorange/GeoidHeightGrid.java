@@ -0,0 +1,252 @@
+package cn.byyddyh.spoofingdetection.pseudorange;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Geoid undulation N, the height of the geoid above the WGS84 ellipsoid, read offline from a
+ * memory-mapped grid such as EGM96 at 15′. The orthometric height used by the tropospheric model is
+ * {@code h - N}, {@code h} being the ellipsoidal height of the receiver.
+ *
+ * <p>The file is little endian: a 56 byte header followed by one {@code short} per node in
+ * centimetres, rows from north to south and columns eastwards from the western edge. A global grid
+ * wraps around in longitude, so the 360° column of the NGA text file is not stored; EGM96 at 15′ is
+ * 721 x 1440 nodes, about 2 MB.
+ *
+ * <pre>
+ * int    magic 'GEOD'        double north latitude, degrees
+ * short  version             double west longitude, degrees
+ * short  reserved            double latitude step, degrees
+ *                            double longitude step, degrees
+ *                            double metres per unit
+ * int    rows                int    columns
+ * </pre>
+ *
+ * <p>The grid is only read through absolute gets of the mapping, so one instance can be queried
+ * from any thread. {@link #main} converts NGA's {@code WW15MGH.GRD}.
+ */
+public class GeoidHeightGrid {
+
+    /** Looked for in the download directory by {@code MainActivity} */
+    public static final String DEFAULT_FILE_NAME = "egm96_15.geoid";
+
+    private static final int MAGIC = 0x47454F44;
+    private static final short VERSION = 1;
+    private static final int HEADER_BYTES = 56;
+    private static final double FULL_CIRCLE_DEGREES = 360.0;
+
+    private static volatile GeoidHeightGrid sDefault;
+
+    private final double mNorthDegrees;
+    private final double mWestDegrees;
+    private final double mLatitudeStepDegrees;
+    private final double mLongitudeStepDegrees;
+    private final double mMetersPerUnit;
+    private final int mRows;
+    private final int mColumns;
+    private final boolean mGlobal;
+    private final ShortBuffer mNodes;
+
+    private GeoidHeightGrid(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a geoid grid");
+        }
+        if (buffer.getShort(4) != VERSION) {
+            throw new IOException("Unsupported geoid grid version " + buffer.getShort(4));
+        }
+        mNorthDegrees = buffer.getDouble(8);
+        mWestDegrees = buffer.getDouble(16);
+        mLatitudeStepDegrees = buffer.getDouble(24);
+        mLongitudeStepDegrees = buffer.getDouble(32);
+        mMetersPerUnit = buffer.getDouble(40);
+        mRows = buffer.getInt(48);
+        mColumns = buffer.getInt(52);
+        if (mRows < 2 || mColumns < 2 || !(mLatitudeStepDegrees > 0)
+                || !(mLongitudeStepDegrees > 0)) {
+            throw new IOException("Bad geoid grid header");
+        }
+        if (buffer.capacity() < HEADER_BYTES + 2L * mRows * mColumns) {
+            throw new IOException("Truncated geoid grid");
+        }
+        mGlobal = Math.abs(mColumns * mLongitudeStepDegrees - FULL_CIRCLE_DEGREES) < 1e-9;
+        buffer.position(HEADER_BYTES);
+        mNodes = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    }
+
+    /**
+     * Maps {@code file} read only; the mapping outlives the closed channel
+     */
+    public static GeoidHeightGrid open(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r");
+             FileChannel channel = input.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new GeoidHeightGrid(buffer);
+        }
+    }
+
+    /**
+     * Grid used by the positioning, {@code null} until one has been loaded
+     */
+    public static GeoidHeightGrid getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Maps {@code file} as the default grid if it exists
+     *
+     * @return {@code false} if there is no usable grid, heights then stay above the ellipsoid
+     */
+    public static boolean loadDefault(File file) {
+        if (!file.isFile()) {
+            System.out.println("No geoid grid at " + file + ", heights above the ellipsoid are used "
+                    + "in the tropospheric correction");
+            return false;
+        }
+        try {
+            sDefault = open(file);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Geoid height above the ellipsoid in meters, interpolated bilinearly between the four
+     * surrounding nodes
+     */
+    public double getUndulationMeters(double latitudeDegrees, double longitudeDegrees) {
+        double row = (mNorthDegrees - latitudeDegrees) / mLatitudeStepDegrees;
+        row = Math.max(0.0, Math.min(row, mRows - 1));
+        int row0 = Math.min((int) row, mRows - 2);
+        double rowWeight = row - row0;
+
+        double column = (longitudeDegrees - mWestDegrees) / mLongitudeStepDegrees;
+        int column0;
+        int column1;
+        if (mGlobal) {
+            column = column % mColumns;
+            if (column < 0) {
+                column += mColumns;
+            }
+            column0 = Math.min((int) column, mColumns - 1);
+            column1 = column0 + 1 == mColumns ? 0 : column0 + 1;
+        } else {
+            column = Math.max(0.0, Math.min(column, mColumns - 1));
+            column0 = Math.min((int) column, mColumns - 2);
+            column1 = column0 + 1;
+        }
+        double columnWeight = column - column0;
+
+        int north = row0 * mColumns;
+        int south = north + mColumns;
+        double top = mNodes.get(north + column0)
+                + columnWeight * (mNodes.get(north + column1) - mNodes.get(north + column0));
+        double bottom = mNodes.get(south + column0)
+                + columnWeight * (mNodes.get(south + column1) - mNodes.get(south + column0));
+        return (top + rowWeight * (bottom - top)) * mMetersPerUnit;
+    }
+
+    /**
+     * Height above mean sea level of a point {@code ellipsoidHeightMeters} above the ellipsoid
+     */
+    public double getOrthometricHeightMeters(double latitudeDegrees, double longitudeDegrees,
+                                             double ellipsoidHeightMeters) {
+        return ellipsoidHeightMeters - getUndulationMeters(latitudeDegrees, longitudeDegrees);
+    }
+
+    /**
+     * Converts an NGA grid text file ({@code WW15MGH.GRD}: a header line
+     * {@code south north west east latStep lonStep} in degrees, then the undulations in meters, rows
+     * from north to south) into the binary format, rounding to centimetres
+     */
+    public static void convert(Reader text, File output) throws IOException {
+        BufferedReader reader = new BufferedReader(text);
+        double[] header = new double[6];
+        List<Double> values = new ArrayList<>();
+        int headerFields = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            for (String field : line.trim().split("\\s+")) {
+                if (field.isEmpty()) {
+                    continue;
+                }
+                double value = Double.parseDouble(field);
+                if (headerFields < header.length) {
+                    header[headerFields++] = value;
+                } else {
+                    values.add(value);
+                }
+            }
+        }
+        if (headerFields < header.length) {
+            throw new IOException("Missing grid header");
+        }
+        double south = header[0];
+        double north = header[1];
+        double west = header[2];
+        double east = header[3];
+        double latitudeStep = header[4];
+        double longitudeStep = header[5];
+        int rows = (int) Math.round((north - south) / latitudeStep) + 1;
+        int textColumns = (int) Math.round((east - west) / longitudeStep) + 1;
+        if (values.size() != rows * textColumns) {
+            throw new IOException("Expected " + rows * textColumns + " values, found "
+                    + values.size());
+        }
+        // The last column of a global grid repeats the first one
+        boolean global = Math.abs(east - west - FULL_CIRCLE_DEGREES) < 1e-9;
+        int columns = global ? textColumns - 1 : textColumns;
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 2 * rows * columns)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putShort(VERSION).putShort((short) 0)
+                .putDouble(north).putDouble(west)
+                .putDouble(latitudeStep).putDouble(longitudeStep)
+                .putDouble(0.01)
+                .putInt(rows).putInt(columns);
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                long centimetres = Math.round(values.get(row * textColumns + column) * 100.0);
+                if (centimetres < Short.MIN_VALUE || centimetres > Short.MAX_VALUE) {
+                    throw new IOException("Undulation out of range at row " + row + ", column "
+                            + column);
+                }
+                buffer.putShort((short) centimetres);
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(output))) {
+            out.write(buffer.array());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: GeoidHeightGrid <WW15MGH.GRD> [" + DEFAULT_FILE_NAME + "]");
+            return;
+        }
+        File text = new File(args[0]);
+        File output = args.length > 1 ? new File(args[1])
+                : new File(text.getAbsoluteFile().getParentFile(), DEFAULT_FILE_NAME);
+        try (Reader reader = new InputStreamReader(new FileInputStream(text), StandardCharsets.US_ASCII)) {
+            convert(reader, output);
+        }
+        System.out.println("Wrote " + output + " (" + output.length() + " bytes)");
+    }
+}
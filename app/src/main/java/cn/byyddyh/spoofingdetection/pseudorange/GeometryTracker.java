@@ -0,0 +1,289 @@
+package cn.byyddyh.spoofingdetection.pseudorange;
+
+import java.util.Arrays;
+
+import cn.byyddyh.spoofingdetection.matrix.Matrix4;
+
+/**
+ * Normal matrix {@code N = G'WG} of the least square geometry and its Cholesky factor
+ * {@code N = U'U}, kept from epoch to epoch: a satellite that appears is a rank-one update, one
+ * that disappears a rank-one downdate, and a satellite whose row moved is both. Rows of the
+ * geometry matrix, {@code [line of sight, 1]}, and the weights are stored per PRN. A row is only
+ * replaced once its line of sight turned by more than {@link #MAX_LINE_OF_SIGHT_CHANGE} radians or
+ * its weight changed by more than {@link #MAX_RELATIVE_WEIGHT_CHANGE}, so at 1 Hz most epochs
+ * leave the factor untouched and the DOP and uncertainties cost a few dozen operations.
+ *
+ * <p>A stored row is at most that far from the current one. The resulting DOP and uncertainties
+ * stay within a few tenths of a percent of a rebuild from the current rows. Rounding errors of
+ * the rank-one updates are flushed by rebuilding {@code N} from the stored rows and refactoring it
+ * every {@link #MAX_RANK_ONE_UPDATES} updates, and whenever a downdate loses positive
+ * definiteness.
+ *
+ * <p>With the weights {@code 1 / sigma^2}, {@code Q = N^-1} is the covariance of the solution; with
+ * unit weights its diagonal gives the dilutions of precision. Not thread safe.
+ */
+final class GeometryTracker {
+
+    /** About 2 s of the motion of a GPS satellite seen from the ground */
+    static final double MAX_LINE_OF_SIGHT_CHANGE = 1e-3;
+    static final double MAX_RELATIVE_WEIGHT_CHANGE = 0.01;
+    static final int MAX_RANK_ONE_UPDATES = 1000;
+
+    private static final int STATE_SIZE = Matrix4.SIZE;
+    private static final int MAX_SATELLITES = GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES;
+
+    /* Rows applied to N, indexed by PRN - 1 */
+    private final boolean[] mPresent = new boolean[MAX_SATELLITES];
+    private final double[] mLineOfSight = new double[3 * MAX_SATELLITES];
+    private final double[] mWeight = new double[MAX_SATELLITES];
+    private int mRowCount;
+
+    /* Rows of the epoch being set */
+    private final boolean[] mSeen = new boolean[MAX_SATELLITES];
+    private final boolean[] mReplace = new boolean[MAX_SATELLITES];
+    private final double[] mNewLineOfSight = new double[3 * MAX_SATELLITES];
+    private final double[] mNewWeight = new double[MAX_SATELLITES];
+
+    /** Upper triangle of N, row major */
+    private final double[] mNormal = new double[STATE_SIZE * STATE_SIZE];
+    /** Upper triangle of U, row major, valid if mFactorValid */
+    private final double[] mFactor = new double[STATE_SIZE * STATE_SIZE];
+    private boolean mFactorValid;
+    private int mRankOneUpdates;
+    /** A downdate failed, N may have drifted and is rebuilt at the end of the epoch */
+    private boolean mRebuildPending;
+
+    /** Q = N^-1, row major, valid if mCofactorValid */
+    private final double[] mCofactor = new double[STATE_SIZE * STATE_SIZE];
+    private boolean mCofactorValid;
+
+    private final double[] mScratch = new double[STATE_SIZE];
+
+    /**
+     * Starts setting the rows of a new epoch
+     */
+    void beginEpoch() {
+        Arrays.fill(mSeen, false);
+    }
+
+    /**
+     * Sets the row of satellite {@code prn} for the epoch
+     *
+     * @param geometryRow row of the geometry matrix, the unit vector from the satellite to the
+     *                    receiver followed by 1
+     * @param weight      1 for dilutions of precision, 1 / sigma^2 for a covariance; a row that is not
+     *                    finite is left out
+     */
+    void setRow(int prn, double[] geometryRow, double weight) {
+        if (!(Math.abs(geometryRow[0] + geometryRow[1] + geometryRow[2] + weight) < Double.POSITIVE_INFINITY)) {
+            return;
+        }
+        int i = prn - 1;
+        mSeen[i] = true;
+        System.arraycopy(geometryRow, 0, mNewLineOfSight, 3 * i, 3);
+        mNewWeight[i] = weight;
+    }
+
+    /**
+     * Brings {@code N} and its factor to the rows set since {@link #beginEpoch()}, satellites not set
+     * are dropped
+     */
+    void endEpoch() {
+        // Updates before downdates, so that N stays positive definite when a row is replaced
+        for (int i = 0; i < MAX_SATELLITES; i++) {
+            mReplace[i] = mSeen[i] && (!mPresent[i] || hasMoved(i));
+            if (mReplace[i]) {
+                rankOne(mNewLineOfSight, mNewWeight[i], i, 1.0);
+            }
+        }
+        for (int i = 0; i < MAX_SATELLITES; i++) {
+            if (mPresent[i] && (!mSeen[i] || mReplace[i])) {
+                rankOne(mLineOfSight, mWeight[i], i, -1.0);
+            }
+        }
+        mRowCount = 0;
+        for (int i = 0; i < MAX_SATELLITES; i++) {
+            if (mReplace[i]) {
+                System.arraycopy(mNewLineOfSight, 3 * i, mLineOfSight, 3 * i, 3);
+                mWeight[i] = mNewWeight[i];
+            }
+            mPresent[i] = mSeen[i];
+            if (mPresent[i]) {
+                mRowCount++;
+            }
+        }
+
+        // Only once the stored rows are committed, they are what N is rebuilt from
+        if (mRebuildPending || mRankOneUpdates > MAX_RANK_ONE_UPDATES) {
+            rebuildNormal();
+        }
+        if (!mFactorValid) {
+            mFactorValid = mRowCount >= STATE_SIZE && factorNormal();
+            mCofactorValid = false;
+        }
+    }
+
+    /**
+     * Forgets all rows
+     */
+    void reset() {
+        Arrays.fill(mPresent, false);
+        Arrays.fill(mNormal, 0.0);
+        mRowCount = 0;
+        mRankOneUpdates = 0;
+        mRebuildPending = false;
+        mFactorValid = false;
+        mCofactorValid = false;
+    }
+
+    int getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * @return {@code false} if fewer than 4 rows are set or they do not determine the solution
+     */
+    boolean isAvailable() {
+        return mFactorValid;
+    }
+
+    /**
+     * Geometric, position, horizontal, vertical and time dilutions of precision at the receiver,
+     * meaningful with unit weights, NaN if not {@link #isAvailable()}
+     *
+     * @param dop filled with GDOP, PDOP, HDOP, VDOP and TDOP
+     */
+    void computeDop(double latitudeRadians, double longitudeRadians, double[] dop) {
+        if (!updateCofactor()) {
+            Arrays.fill(dop, 0, 5, Double.NaN);
+            return;
+        }
+        double[] q = mCofactor;
+        double positionVariance = q[0] + q[5] + q[10];
+        double east = enuVariance(0, latitudeRadians, longitudeRadians);
+        double north = enuVariance(1, latitudeRadians, longitudeRadians);
+        double up = enuVariance(2, latitudeRadians, longitudeRadians);
+        dop[0] = Math.sqrt(positionVariance + q[15]);
+        dop[1] = Math.sqrt(positionVariance);
+        dop[2] = Math.sqrt(east + north);
+        dop[3] = Math.sqrt(up);
+        dop[4] = Math.sqrt(q[15]);
+    }
+
+    /**
+     * Standard deviations of the east, north and up components of the solution, meaningful with
+     * weights 1 / sigma^2, NaN if not {@link #isAvailable()}
+     */
+    void computeEnuStandardDeviations(double latitudeRadians, double longitudeRadians,
+                                      double[] sigmas, int offset) {
+        boolean available = updateCofactor();
+        for (int axis = 0; axis < 3; axis++) {
+            sigmas[offset + axis] = available
+                    ? Math.sqrt(enuVariance(axis, latitudeRadians, longitudeRadians)) : Double.NaN;
+        }
+    }
+
+    /**
+     * {@code r' Q r} for the east (0), north (1) or up (2) unit vector {@code r}, the rows of
+     * {@link Ecef2EnuConverter#getRotationMatrix}
+     */
+    private double enuVariance(int axis, double latitudeRadians, double longitudeRadians) {
+        double sinLatitude = Math.sin(latitudeRadians);
+        double cosLatitude = Math.cos(latitudeRadians);
+        double sinLongitude = Math.sin(longitudeRadians);
+        double cosLongitude = Math.cos(longitudeRadians);
+        double r0;
+        double r1;
+        double r2;
+        if (axis == 0) {
+            r0 = -sinLongitude;
+            r1 = cosLongitude;
+            r2 = 0;
+        } else if (axis == 1) {
+            r0 = -sinLatitude * cosLongitude;
+            r1 = -sinLatitude * sinLongitude;
+            r2 = cosLatitude;
+        } else {
+            r0 = cosLatitude * cosLongitude;
+            r1 = cosLatitude * sinLongitude;
+            r2 = sinLatitude;
+        }
+        double[] q = mCofactor;
+        return r0 * r0 * q[0] + r1 * r1 * q[5] + r2 * r2 * q[10]
+                + 2 * (r0 * r1 * q[1] + r0 * r2 * q[2] + r1 * r2 * q[6]);
+    }
+
+    private boolean hasMoved(int i) {
+        double dx = mNewLineOfSight[3 * i] - mLineOfSight[3 * i];
+        double dy = mNewLineOfSight[3 * i + 1] - mLineOfSight[3 * i + 1];
+        double dz = mNewLineOfSight[3 * i + 2] - mLineOfSight[3 * i + 2];
+        // Chord of unit vectors, equal to the angle at this scale
+        return dx * dx + dy * dy + dz * dz > MAX_LINE_OF_SIGHT_CHANGE * MAX_LINE_OF_SIGHT_CHANGE
+                || Math.abs(mNewWeight[i] - mWeight[i]) > MAX_RELATIVE_WEIGHT_CHANGE * mWeight[i];
+    }
+
+    /**
+     * {@code N += sign * w h h'} with {@code h = [lineOfSight[3i..3i+2], 1]}, and the same update or
+     * downdate of the factor
+     */
+    private void rankOne(double[] lineOfSight, double weight, int i, double sign) {
+        double[] x = mScratch;
+        x[0] = lineOfSight[3 * i];
+        x[1] = lineOfSight[3 * i + 1];
+        x[2] = lineOfSight[3 * i + 2];
+        x[3] = 1.0;
+        Matrix4.rankOneUpdate(mNormal, x, 0, sign * weight);
+        mRankOneUpdates++;
+        mCofactorValid = false;
+        if (!mFactorValid) {
+            return;
+        }
+
+        double scale = Math.sqrt(weight);
+        for (int r = 0; r < STATE_SIZE; r++) {
+            x[r] *= scale;
+        }
+        // A downdate leaving a tiny pivot has lost most of its accuracy, and the N it was applied to
+        // may have drifted as much, both are rebuilt from the stored rows
+        mFactorValid = Matrix4.choleskyUpdate(mFactor, x, sign);
+        if (!mFactorValid && sign < 0) {
+            mRebuildPending = true;
+        }
+    }
+
+    private void rebuildNormal() {
+        Arrays.fill(mNormal, 0.0);
+        mFactorValid = false;
+        for (int i = 0; i < MAX_SATELLITES; i++) {
+            if (mPresent[i]) {
+                rankOne(mLineOfSight, mWeight[i], i, 1.0);
+            }
+        }
+        mRankOneUpdates = 0;
+        mRebuildPending = false;
+    }
+
+    /**
+     * Cholesky factorization of {@link #mNormal} into {@link #mFactor}
+     *
+     * @return {@code false} if {@code N} is not positive definite
+     */
+    private boolean factorNormal() {
+        System.arraycopy(mNormal, 0, mFactor, 0, mNormal.length);
+        return Matrix4.cholesky(mFactor);
+    }
+
+    /**
+     * {@code Q = U^-1 U^-T} from the factor, unless it is up to date
+     */
+    private boolean updateCofactor() {
+        if (!mFactorValid) {
+            return false;
+        }
+        if (!mCofactorValid) {
+            Matrix4.choleskyInverse(mFactor, mCofactor);
+            mCofactorValid = true;
+        }
+        return true;
+    }
+}
@@ -34,6 +34,9 @@ class GpsMeasurement {
   /** Accumulated delta range state */
   public final boolean validAccumulatedDeltaRangeMeters; 
 
+  /** Accumulated delta range was reset or has a cycle slip since the previous epoch */
+  public final boolean accumulatedDeltaRangeSlip;
+
   /** Pseudorange rate measurement (meters per second) */
   public final double pseudorangeRateMps;  
 
@@ -50,9 +53,19 @@ class GpsMeasurement {
       boolean validAccumulatedDeltaRangeMeters, double pseudorangeRateMps,
       double signalToNoiseRatioDb, double accumulatedDeltaRangeUncertaintyMeters,
       double pseudorangeRateUncertaintyMps) {
+    this(arrivalTimeSinceGpsWeekNs, accumulatedDeltaRangeMeters, validAccumulatedDeltaRangeMeters,
+        false /* accumulatedDeltaRangeSlip */, pseudorangeRateMps, signalToNoiseRatioDb,
+        accumulatedDeltaRangeUncertaintyMeters, pseudorangeRateUncertaintyMps);
+  }
+
+  public GpsMeasurement(long arrivalTimeSinceGpsWeekNs, double accumulatedDeltaRangeMeters,
+      boolean validAccumulatedDeltaRangeMeters, boolean accumulatedDeltaRangeSlip,
+      double pseudorangeRateMps, double signalToNoiseRatioDb,
+      double accumulatedDeltaRangeUncertaintyMeters, double pseudorangeRateUncertaintyMps) {
     this.arrivalTimeSinceGpsWeekNs = arrivalTimeSinceGpsWeekNs;
     this.accumulatedDeltaRangeMeters = accumulatedDeltaRangeMeters;
     this.validAccumulatedDeltaRangeMeters = validAccumulatedDeltaRangeMeters;
+    this.accumulatedDeltaRangeSlip = accumulatedDeltaRangeSlip;
     this.pseudorangeRateMps = pseudorangeRateMps;
     this.signalToNoiseRatioDb = signalToNoiseRatioDb;
     this.accumulatedDeltaRangeUncertaintyMeters = accumulatedDeltaRangeUncertaintyMeters;
@@ -61,7 +74,8 @@ class GpsMeasurement {
 
   protected GpsMeasurement(GpsMeasurement another) {
     this(another.arrivalTimeSinceGpsWeekNs, another.accumulatedDeltaRangeMeters,
-        another.validAccumulatedDeltaRangeMeters, another.pseudorangeRateMps,
+        another.validAccumulatedDeltaRangeMeters, another.accumulatedDeltaRangeSlip,
+        another.pseudorangeRateMps,
         another.signalToNoiseRatioDb, another.accumulatedDeltaRangeUncertaintyMeters,
         another.pseudorangeRateUncertaintyMps);
   } 
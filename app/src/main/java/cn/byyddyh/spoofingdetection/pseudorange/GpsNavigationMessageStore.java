@@ -25,6 +25,7 @@ import androidx.annotation.NonNull;
 import androidx.core.util.Preconditions;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -35,7 +36,9 @@ import java.util.concurrent.TimeUnit;
  * {@link #onNavMessageReported(byte, byte, short, byte[])}
  *
  * <p>A {@link GpsNavMessageProto} containing the extracted field is obtained by calling the method
- * {@link #createDecodedNavMessage()}
+ * {@link #createDecodedNavMessage()}. It is an immutable snapshot, published when a subframe
+ * completes an ephemeris or changes the ionospheric parameters and shared by all readers until the
+ * next change; {@link #getVersion()} tells readers whether it changed. Reading takes no lock.
  *
  * <p>References:
  * http://www.gps.gov/technical/icwg/IS-GPS-200D.pdf and
@@ -171,27 +174,61 @@ public class GpsNavigationMessageStore {
 
   private IonosphericModelProto decodedIonosphericObj;
 
+  /** Set by the subframe handlers when the decoded content changes, guarded by the lock */
+  private boolean decodedContentChanged = false;
+
+  /**
+   * A published navigation message and its version
+   */
+  private static final class Snapshot {
+    final long version;
+    final GpsNavMessageProto navMessage;
+
+    Snapshot(long version, GpsNavMessageProto navMessage) {
+      this.version = version;
+      this.navMessage = navMessage;
+    }
+  }
+
+  private volatile Snapshot snapshot = new Snapshot(0, buildNavMessage());
+
+  /**
+   * Returns the version of the current snapshot, incremented on every change of the decoded
+   * ephemerides or ionospheric parameters
+   */
+  public long getVersion() {
+    return snapshot.version;
+  }
+
   /**
-   * Builds and returns the current {@link GpsNavMessageProto} filling the different ephemeris for
-   * the different satellites and setting the ionospheric model parameters.
+   * Returns the current {@link GpsNavMessageProto} with the different ephemeris for the different
+   * satellites and the ionospheric model parameters. The same instance is returned until the
+   * decoded content changes; it is shared and must not be modified.
    */
   @NonNull
   public GpsNavMessageProto createDecodedNavMessage() {
-    synchronized (fullyDecodedIntermediateEphemerides) {;
-      GpsNavMessageProto gpsNavMessageProto = new GpsNavMessageProto();
-      ArrayList<GpsEphemerisProto> gpsEphemerisProtoList = new ArrayList<>();
-      for (int i = 0; i < MAX_NUMBER_OF_SATELLITES; i++) {
-        if (fullyDecodedIntermediateEphemerides[i] != null) {
-          gpsEphemerisProtoList.add(fullyDecodedIntermediateEphemerides[i].getEphemerisObj());
-        }
-      }
-      if (decodedIonosphericObj != null) {
-        gpsNavMessageProto.iono = decodedIonosphericObj;
+    return snapshot.navMessage;
+  }
+
+  /**
+   * Builds a new {@link GpsNavMessageProto} from the fully decoded ephemerides, called with the lock
+   * held or from the constructor. Fully decoded ephemerides are never modified again, a new
+   * issue of data starts a new {@link IntermediateEphemeris}, so the message can share them.
+   */
+  private GpsNavMessageProto buildNavMessage() {
+    GpsNavMessageProto gpsNavMessageProto = new GpsNavMessageProto();
+    ArrayList<GpsEphemerisProto> gpsEphemerisProtoList = new ArrayList<>();
+    for (int i = 0; i < MAX_NUMBER_OF_SATELLITES; i++) {
+      if (fullyDecodedIntermediateEphemerides[i] != null) {
+        gpsEphemerisProtoList.add(fullyDecodedIntermediateEphemerides[i].getEphemerisObj());
       }
-      gpsNavMessageProto.ephemerids =
-          gpsEphemerisProtoList.toArray(new GpsEphemerisProto[gpsEphemerisProtoList.size()]);
-      return gpsNavMessageProto;
     }
+    if (decodedIonosphericObj != null) {
+      gpsNavMessageProto.iono = decodedIonosphericObj;
+    }
+    gpsNavMessageProto.ephemerids =
+        gpsEphemerisProtoList.toArray(new GpsEphemerisProto[gpsEphemerisProtoList.size()]);
+    return gpsNavMessageProto;
   }
 
   /**
@@ -223,6 +260,39 @@ public class GpsNavigationMessageStore {
           // invalid message id
           throw new IllegalArgumentException("Invalid Subframe ID: " + id);
       }
+      if (decodedContentChanged) {
+        decodedContentChanged = false;
+        snapshot = new Snapshot(snapshot.version + 1, buildNavMessage());
+      }
+    }
+  }
+
+  /**
+   * Seeds the store with ephemerides and ionospheric parameters decoded earlier, such as those of a
+   * {@link WarmStartSnapshot}. They only fill satellites without a fully decoded ephemeris and are
+   * replaced as soon as the receiver decodes a different issue of data.
+   */
+  public void restoreNavMessage(GpsNavMessageProto navMessageProto) {
+    synchronized (fullyDecodedIntermediateEphemerides) {
+      if (navMessageProto.ephemerids != null) {
+        for (GpsEphemerisProto gpsEphemerisProto : navMessageProto.ephemerids) {
+          int prn = gpsEphemerisProto.prn;
+          if (prn >= 1 && prn <= MAX_NUMBER_OF_SATELLITES
+              && fullyDecodedIntermediateEphemerides[prn - 1] == null) {
+            fullyDecodedIntermediateEphemerides[prn - 1] =
+                new IntermediateEphemeris(gpsEphemerisProto);
+            decodedContentChanged = true;
+          }
+        }
+      }
+      if (decodedIonosphericObj == null && navMessageProto.iono != null) {
+        decodedIonosphericObj = navMessageProto.iono;
+        decodedContentChanged = true;
+      }
+      if (decodedContentChanged) {
+        decodedContentChanged = false;
+        snapshot = new Snapshot(snapshot.version + 1, buildNavMessage());
+      }
     }
   }
 
@@ -429,7 +499,13 @@ public class GpsNavigationMessageStore {
 
     short tlsf = (short) extractBits(DELTA_TF_LS_INDEX, A_B_LENGTH, rawData);
 
-    decodedIonosphericObj = ionosphericModelProto;
+    // The page repeats every 12.5 minutes, only new values change the snapshot
+    if (decodedIonosphericObj == null
+        || !Arrays.equals(decodedIonosphericObj.alpha, ionosphericModelProto.alpha)
+        || !Arrays.equals(decodedIonosphericObj.beta, ionosphericModelProto.beta)) {
+      decodedIonosphericObj = ionosphericModelProto;
+      decodedContentChanged = true;
+    }
   }
 
   /**
@@ -443,6 +519,7 @@ public class GpsNavigationMessageStore {
     if (intermediateEphemeris.isFullyDecoded()) {
       partiallyDecodedIntermediateEphemerides[prn - 1] = null;
       fullyDecodedIntermediateEphemerides[prn - 1] = intermediateEphemeris;
+      decodedContentChanged = true;
     } else {
       partiallyDecodedIntermediateEphemerides[prn - 1] = intermediateEphemeris;
     }
@@ -668,14 +745,23 @@ public class GpsNavigationMessageStore {
    */
   private static class IntermediateEphemeris {
 
-    private final GpsEphemerisProto gpsEphemerisProtoObj = new GpsEphemerisProto();
+    private final GpsEphemerisProto gpsEphemerisProtoObj;
 
     private int subframesDecoded;
 
     public IntermediateEphemeris(byte prn) {
+      gpsEphemerisProtoObj = new GpsEphemerisProto();
       gpsEphemerisProtoObj.prn = prn;
     }
 
+    /**
+     * A fully decoded ephemeris holding {@code gpsEphemerisProto}, which must not be modified
+     */
+    public IntermediateEphemeris(GpsEphemerisProto gpsEphemerisProto) {
+      gpsEphemerisProtoObj = gpsEphemerisProto;
+      subframesDecoded = SUBFRAME_1 | SUBFRAME_2 | SUBFRAME_3;
+    }
+
     public void reportDecodedSubframe(int subframe) {
       subframesDecoded |= subframe;
     }
@@ -0,0 +1,177 @@
+package cn.byyddyh.spoofingdetection.pseudorange;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link PseudorangeSmoother} running a Hatch filter per satellite: the pseudorange is predicted
+ * from the last smoothed value and the range change since the last epoch, then averaged with the
+ * new measurement over a window growing up to {@link #MAX_CARRIER_WINDOW_EPOCHS},
+ *
+ * <pre>
+ * smoothed_k = rho_k / n + (n - 1) / n * (smoothed_k-1 + delta_k)
+ * </pre>
+ *
+ * <p>The range change {@code delta_k} is the difference of the accumulated delta range while it is
+ * valid and without reset or cycle slip, otherwise the Doppler rate integrated over the epoch
+ * interval. Integrated Doppler drifts faster than the carrier phase, so the window is limited to
+ * {@link #MAX_DOPPLER_WINDOW_EPOCHS} when it is used.
+ *
+ * <p>The pseudoranges of {@link UserPositionVelocityWeightedLeastSquare} are relative to the
+ * satellite with the latest time of week, so all of them jump by the same amount whenever the
+ * reference satellite or the receiver clock changes. Such a common jump is measured as the median
+ * prediction error over the satellites and added to every prediction; the least square clock bias
+ * absorbs what is left of it. A satellite whose own prediction error is off the median by more
+ * than {@link #MAX_DIVERGENCE_METERS}, or that was not seen within
+ * {@link #MAX_EPOCH_INTERVAL_SECONDS}, starts over from its raw pseudorange.
+ *
+ * <p>The filter state is kept in primitive arrays indexed by PRN - 1. Every call returns a new list
+ * holding a copy of each smoothed measurement, raw measurements are passed through as they are.
+ * The pseudorange uncertainty is passed on unchanged: multipath is correlated over the window and
+ * does not average out like thermal noise. Not thread safe.
+ */
+class HatchPseudorangeSmoother implements PseudorangeSmoother {
+
+    /** About 100 s at 1 Hz, the usual Hatch window for single frequency code */
+    static final int MAX_CARRIER_WINDOW_EPOCHS = 100;
+    static final int MAX_DOPPLER_WINDOW_EPOCHS = 10;
+    static final double MAX_DIVERGENCE_METERS = 50.0;
+    static final double MAX_EPOCH_INTERVAL_SECONDS = 2.5;
+
+    private static final int MAX_SATELLITES = GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES;
+    private static final double SECONDS_PER_NANO = 1.0e-9;
+
+    private final int[] mWindowEpochs = new int[MAX_SATELLITES];
+    private final double[] mSmoothedPseudorangeMeters = new double[MAX_SATELLITES];
+    private final long[] mTimeNs = new long[MAX_SATELLITES];
+    private final double[] mAccumulatedDeltaRangeMeters = new double[MAX_SATELLITES];
+    private final boolean[] mCarrierContinuous = new boolean[MAX_SATELLITES];
+    private final double[] mPseudorangeRateMps = new double[MAX_SATELLITES];
+
+    /* Scratch of one epoch */
+    private final double[] mPredictionErrorMeters = new double[MAX_SATELLITES];
+    private final boolean[] mPredicted = new boolean[MAX_SATELLITES];
+    private final boolean[] mUsedCarrier = new boolean[MAX_SATELLITES];
+    private final double[] mMedianScratch = new double[MAX_SATELLITES];
+
+    /** Satellites visible in the last epoch */
+    private final boolean[] mVisible = new boolean[MAX_SATELLITES];
+
+    @Override
+    public List<GpsMeasurementWithRangeAndUncertainty> updatePseudorangeSmoothingResult(
+            List<GpsMeasurementWithRangeAndUncertainty> usefulSatellitesToGPSReceiverMeasurements) {
+        List<GpsMeasurementWithRangeAndUncertainty> smoothedMeasurements =
+                new ArrayList<>(MAX_SATELLITES);
+        int predicted = 0;
+        for (int i = 0; i < MAX_SATELLITES; i++) {
+            GpsMeasurementWithRangeAndUncertainty measurement =
+                    usefulSatellitesToGPSReceiverMeasurements.get(i);
+            mPredicted[i] = measurement != null && predict(i, measurement);
+            if (mPredicted[i]) {
+                predicted++;
+            }
+        }
+        double commonJumpMeters = predicted > 0 ? median(mPredictionErrorMeters, mPredicted) : 0.0;
+
+        for (int i = 0; i < MAX_SATELLITES; i++) {
+            GpsMeasurementWithRangeAndUncertainty measurement =
+                    usefulSatellitesToGPSReceiverMeasurements.get(i);
+            mVisible[i] = measurement != null;
+            if (measurement == null) {
+                smoothedMeasurements.add(null);
+                continue;
+            }
+            double pseudorangeMeters = measurement.pseudorangeMeters;
+            if (mPredicted[i]
+                    && Math.abs(mPredictionErrorMeters[i] - commonJumpMeters) <= MAX_DIVERGENCE_METERS) {
+                int window = Math.min(mWindowEpochs[i] + 1,
+                        mUsedCarrier[i] ? MAX_CARRIER_WINDOW_EPOCHS : MAX_DOPPLER_WINDOW_EPOCHS);
+                // prediction = rho - error, shifted by the common jump
+                double predictionMeters = pseudorangeMeters - mPredictionErrorMeters[i] + commonJumpMeters;
+                mSmoothedPseudorangeMeters[i] =
+                        pseudorangeMeters / window + (window - 1.0) / window * predictionMeters;
+                mWindowEpochs[i] = window;
+            } else {
+                mSmoothedPseudorangeMeters[i] = pseudorangeMeters;
+                mWindowEpochs[i] = 1;
+            }
+            mTimeNs[i] = measurement.arrivalTimeSinceGpsWeekNs;
+            mAccumulatedDeltaRangeMeters[i] = measurement.accumulatedDeltaRangeMeters;
+            mCarrierContinuous[i] = measurement.validAccumulatedDeltaRangeMeters;
+            mPseudorangeRateMps[i] = measurement.pseudorangeRateMps;
+
+            smoothedMeasurements.add(mWindowEpochs[i] == 1
+                    ? measurement
+                    : new GpsMeasurementWithRangeAndUncertainty(measurement,
+                    mSmoothedPseudorangeMeters[i], measurement.pseudorangeUncertaintyMeters));
+        }
+        return Collections.unmodifiableList(smoothedMeasurements);
+    }
+
+    /**
+     * Computes the prediction error of satellite {@code i} into {@link #mPredictionErrorMeters}
+     *
+     * @return {@code false} if there is no prediction and the filter has to start over
+     */
+    private boolean predict(int i, GpsMeasurementWithRangeAndUncertainty measurement) {
+        if (mWindowEpochs[i] == 0) {
+            return false;
+        }
+        // Negative across the week rollover
+        double intervalSeconds = (measurement.arrivalTimeSinceGpsWeekNs - mTimeNs[i]) * SECONDS_PER_NANO;
+        if (intervalSeconds <= 0 || intervalSeconds > MAX_EPOCH_INTERVAL_SECONDS) {
+            return false;
+        }
+        double rangeChangeMeters;
+        mUsedCarrier[i] = mCarrierContinuous[i] && measurement.validAccumulatedDeltaRangeMeters
+                && !measurement.accumulatedDeltaRangeSlip;
+        if (mUsedCarrier[i]) {
+            rangeChangeMeters = measurement.accumulatedDeltaRangeMeters - mAccumulatedDeltaRangeMeters[i];
+        } else if (!Double.isNaN(measurement.pseudorangeRateMps)
+                && !Double.isNaN(mPseudorangeRateMps[i])) {
+            rangeChangeMeters =
+                    0.5 * (measurement.pseudorangeRateMps + mPseudorangeRateMps[i]) * intervalSeconds;
+        } else {
+            return false;
+        }
+        mPredictionErrorMeters[i] =
+                measurement.pseudorangeMeters - (mSmoothedPseudorangeMeters[i] + rangeChangeMeters);
+        return true;
+    }
+
+    /**
+     * Forgets all satellites, the next epoch starts from the raw pseudoranges
+     */
+    void reset() {
+        Arrays.fill(mWindowEpochs, 0);
+    }
+
+    /**
+     * Number of epochs averaged into the last smoothed pseudorange of {@code prn}, 0 if not tracked
+     */
+    int getWindowEpochs(int prn) {
+        return mVisible[prn - 1] ? mWindowEpochs[prn - 1] : 0;
+    }
+
+    /** Median of the available entries, insertion sort on the preallocated scratch array */
+    private double median(double[] values, boolean[] available) {
+        int count = 0;
+        for (int i = 0; i < MAX_SATELLITES; i++) {
+            if (!available[i]) {
+                continue;
+            }
+            double value = values[i];
+            int j = count++;
+            while (j > 0 && mMedianScratch[j - 1] > value) {
+                mMedianScratch[j] = mMedianScratch[j - 1];
+                j--;
+            }
+            mMedianScratch[j] = value;
+        }
+        return (count & 1) == 1
+                ? mMedianScratch[count / 2]
+                : 0.5 * (mMedianScratch[count / 2 - 1] + mMedianScratch[count / 2]);
+    }
+}
@@ -59,12 +59,32 @@ public class IonosphericModel {
 
     EcefToTopocentricConverter.TopocentricAEDValues elevationAndAzimuthRadians = EcefToTopocentricConverter
         .calculateElAzDistBetween2Points(userPositionECEFMeters, satellitePositionECEFMeters);
-    double elevationSemiCircle = elevationAndAzimuthRadians.elevationRadians / Math.PI;
-    double azimuthSemiCircle = elevationAndAzimuthRadians.azimuthRadians / Math.PI;
     Ecef2LlaConverter.GeodeticLlaValues latLngAlt = Ecef2LlaConverter.convertECEFToLLACloseForm(
         userPositionECEFMeters[0], userPositionECEFMeters[1], userPositionECEFMeters[2]);
-    double latitudeUSemiCircle = latLngAlt.latitudeRadians / Math.PI;
-    double longitudeUSemiCircle = latLngAlt.longitudeRadians / Math.PI;
+    return ionoKlobucharCorrectionSeconds(elevationAndAzimuthRadians.elevationRadians,
+        elevationAndAzimuthRadians.azimuthRadians, latLngAlt.latitudeRadians,
+        latLngAlt.longitudeRadians, gpsTOWSeconds, alpha, beta, frequencyHz);
+  }
+
+  /**
+   * Calculates the Ionospheric correction of the pseudorange in seconds using the Klobuchar
+   * Ionospheric model, from the satellite elevation and azimuth and the user geodetic latitude and
+   * longitude already computed by the caller.
+   */
+  public static double ionoKlobucharCorrectionSeconds(
+      double elevationRadians,
+      double azimuthRadians,
+      double userLatitudeRadians,
+      double userLongitudeRadians,
+      double gpsTOWSeconds,
+      double[] alpha,
+      double[] beta,
+      double frequencyHz) {
+
+    double elevationSemiCircle = elevationRadians / Math.PI;
+    double azimuthSemiCircle = azimuthRadians / Math.PI;
+    double latitudeUSemiCircle = userLatitudeRadians / Math.PI;
+    double longitudeUSemiCircle = userLongitudeRadians / Math.PI;
 
     // earth's centered angle (semi-circles)
     double earthCentredAngleSemiCircle = 0.0137 / (elevationSemiCircle + 0.11) - 0.022;
@@ -0,0 +1,160 @@
+package cn.byyddyh.spoofingdetection.pseudorange;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.util.Arrays;
+
+import cn.byyddyh.spoofingdetection.matrix.Matrix4;
+import cn.byyddyh.spoofingdetection.matrix.SmallMatrix;
+
+/**
+ * Weight matrix {@code W} of {@link UserPositionVelocityWeightedLeastSquare}, the inverse of the
+ * measurement covariance, with the two products the least square needs from it:
+ *
+ * <pre>
+ * H = (G' W G)^-1        correction = H G' W z
+ * </pre>
+ *
+ * <p>The measurements are uncorrelated in every noise model used so far, so the covariance is
+ * diagonal. {@code W} is then kept as the vector of {@code 1 / sigma^2}: {@code G'WG} and
+ * {@code G'Wz} are accumulated in one pass over the rows of the geometry matrix and the 4 x 4 system
+ * is solved by Cholesky, O(n) per iteration instead of the n x n products and the LU inversion of
+ * the covariance. A covariance with off-diagonal terms, from a correlated noise model, keeps the
+ * dense matrices, and so does a diagonal one whose normal matrix is not positive definite, so that
+ * such a geometry fails in {@link LUDecomposition} as before.
+ */
+final class LeastSquareWeights {
+
+    private static final int STATE_SIZE = Matrix4.SIZE;
+
+    /** 1 / sigma^2 of each measurement, {@code null} if the weights are dense */
+    private final double[] mDiagonal;
+    private RealMatrix mDense;
+
+    /* Workspace of the diagonal path, upper triangle of G'WG then its Cholesky factor */
+    private final double[] mNormal = new double[STATE_SIZE * STATE_SIZE];
+    private final double[] mRhs = new double[STATE_SIZE];
+
+    private LeastSquareWeights(double[] diagonal, RealMatrix dense) {
+        mDiagonal = diagonal;
+        mDense = dense;
+    }
+
+    /**
+     * Weights inverting {@code covarianceMatrix}
+     *
+     * @return {@code null} if the determinant of the covariance is not above
+     * {@code determinantTolerance}, ordinary least square is then expected
+     */
+    static LeastSquareWeights fromCovariance(double[][] covarianceMatrix, double determinantTolerance) {
+        int n = covarianceMatrix.length;
+        if (!isDiagonal(covarianceMatrix)) {
+            LUDecomposition lud = new LUDecomposition(new Array2DRowRealMatrix(covarianceMatrix));
+            if (lud.getDeterminant() <= determinantTolerance) {
+                return null;
+            }
+            return new LeastSquareWeights(null, lud.getSolver().getInverse());
+        }
+        // Same product of the pivots as LUDecomposition.getDeterminant()
+        double determinant = 1.0;
+        double[] diagonal = new double[n];
+        for (int i = 0; i < n; i++) {
+            determinant *= covarianceMatrix[i][i];
+            diagonal[i] = 1.0 / covarianceMatrix[i][i];
+        }
+        if (determinant <= determinantTolerance) {
+            return null;
+        }
+        return new LeastSquareWeights(diagonal, null);
+    }
+
+    /**
+     * Diagonal weights, {@code weights} is kept and must not be modified
+     */
+    static LeastSquareWeights fromDiagonal(double[] weights) {
+        return new LeastSquareWeights(weights, null);
+    }
+
+    /**
+     * 1 / sigma^2 of each measurement, {@code null} if the covariance has off-diagonal terms
+     */
+    double[] getDiagonal() {
+        return mDiagonal;
+    }
+
+    /**
+     * {@code H = (G' W G)^-1}, 4 x 4
+     */
+    RealMatrix calculateHMatrix(double[][] geometryMatrix) {
+        if (mDiagonal != null && accumulateNormal(geometryMatrix, null)) {
+            double[] h = new double[STATE_SIZE * STATE_SIZE];
+            Matrix4.choleskyInverse(mNormal, h);
+            return new Array2DRowRealMatrix(SmallMatrix.toRows(STATE_SIZE, h), false);
+        }
+        RealMatrix geometry = new Array2DRowRealMatrix(geometryMatrix, false);
+        RealMatrix weights = getDense();
+        RealMatrix tempH = geometry.transpose().multiply(weights).multiply(geometry);
+        return new LUDecomposition(tempH).getSolver().getInverse();
+    }
+
+    /**
+     * Weighted least square solution {@code H G' W z} of {@code G x = z}
+     */
+    double[] solve(double[][] geometryMatrix, double[] residuals) {
+        if (mDiagonal != null && accumulateNormal(geometryMatrix, residuals)) {
+            double[] x = new double[STATE_SIZE];
+            Matrix4.choleskySolve(mNormal, mRhs, x);
+            return x;
+        }
+        RealMatrix geometry = new Array2DRowRealMatrix(geometryMatrix, false);
+        RealMatrix weights = getDense();
+        RealMatrix weightedGeometryMatrix =
+                calculateHMatrix(geometryMatrix).multiply(geometry.transpose()).multiply(weights);
+        return GpsMathOperations.matrixByColVectMultiplication(weightedGeometryMatrix.getData(),
+                residuals);
+    }
+
+    private RealMatrix getDense() {
+        if (mDense == null) {
+            mDense = MatrixUtils.createRealDiagonalMatrix(mDiagonal);
+        }
+        return mDense;
+    }
+
+    /**
+     * Accumulates the upper triangle of {@code G'WG} and, if {@code residuals} is not {@code null},
+     * {@code G'Wz}, then factors {@code G'WG = U'U} in place
+     *
+     * @return {@code false} if {@code G'WG} is not positive definite
+     */
+    private boolean accumulateNormal(double[][] geometryMatrix, double[] residuals) {
+        Arrays.fill(mNormal, 0.0);
+        Arrays.fill(mRhs, 0.0);
+        for (int row = 0; row < geometryMatrix.length; row++) {
+            double[] g = geometryMatrix[row];
+            double w = mDiagonal[row];
+            Matrix4.rankOneUpdate(mNormal, g, 0, w);
+            if (residuals != null) {
+                double wz = w * residuals[row];
+                for (int i = 0; i < STATE_SIZE; i++) {
+                    mRhs[i] += wz * g[i];
+                }
+            }
+        }
+        return Matrix4.cholesky(mNormal);
+    }
+
+    private static boolean isDiagonal(double[][] matrix) {
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix[i].length; j++) {
+                if (i != j && matrix[i][j] != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,460 @@
+package cn.byyddyh.spoofingdetection.pseudorange;
+
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Bounded time search for the satellite subset consistent with a single receiver position when
+ * several satellites may be spoofed at once.
+ *
+ * <p>Testing every exclusion subset is combinatorial, so hypotheses are enumerated best first: each
+ * satellite is scored by its normalized leave-one-out statistic {@code w_i r_i^2 / (1 - h_i)} and
+ * the subsets of each size are popped from a priority queue in decreasing order of their summed
+ * score. Smaller subsets are always tried before larger ones. A hypothesis is pruned without solving
+ * if the PDOP of the remaining satellites exceeds {@link #DEFAULT_MAX_PDOP}, otherwise the weighted
+ * least square correction of the remaining satellites is solved from the post-fit residuals and the
+ * chi-square test of {@link RaimFaultDetector} is applied.
+ *
+ * <p>Hypotheses are evaluated in batches. The search stops after the batch in which the first
+ * consistent subset was found, when the candidates run out or when the time budget of the epoch is
+ * spent. Among the consistent subsets of the batch the one with the lowest test statistic relative
+ * to its threshold is returned.
+ *
+ * <p>On the device a batch is evaluated on the calling thread. For batch processing on the JVM a
+ * {@link ForkJoinPool} can be shared between the instances, it stays owned, and shut down, by the
+ * caller. An instance must only be used from a single thread, the pool threads only touch the
+ * batch.
+ */
+class MultiFaultSubsetSearch {
+
+    /** Default time budget of one search */
+    static final long DEFAULT_TIME_BUDGET_NANOS = 20_000_000L;
+    /** Default maximum number of satellites excluded at once */
+    static final int DEFAULT_MAX_FAULTS = 4;
+    /** Default PDOP above which a subset is not considered a usable position solution */
+    static final double DEFAULT_MAX_PDOP = 10.0;
+
+    private static final int STATE_SIZE = RaimFaultDetector.STATE_SIZE;
+    private static final int MAX_SATELLITES = RaimFaultDetector.MAX_SATELLITES;
+    /** Number of hypotheses handed to the pool at once */
+    private static final int BATCH_SIZE = 16;
+    /** Hypotheses evaluated sequentially by one fork join leaf */
+    private static final int LEAF_SIZE = 4;
+    private static final double MAX_LEVERAGE = 1.0 - 1.0e-9;
+
+    private final RaimFaultDetector raimFaultDetector;
+    /** {@code null} to evaluate on the calling thread */
+    private final ForkJoinPool pool;
+    private long timeBudgetNanos = DEFAULT_TIME_BUDGET_NANOS;
+    private int maxFaults = DEFAULT_MAX_FAULTS;
+    private double maxPdop = DEFAULT_MAX_PDOP;
+
+    private final double[] weights = new double[MAX_SATELLITES];
+    private final double[] scores = new double[MAX_SATELLITES];
+    private final double[] normalMatrixInverse = new double[STATE_SIZE * STATE_SIZE];
+    private final double[] inversionWorkspace = new double[STATE_SIZE * 2 * STATE_SIZE];
+    private final int[] rankedSatellites = new int[MAX_SATELLITES];
+    private final Hypothesis[] batch = new Hypothesis[BATCH_SIZE];
+    private final SubsetSearchResult result = new SubsetSearchResult();
+    /* Workspaces of the evaluation on the calling thread */
+    private final double[] evaluationWorkspace = new double[STATE_SIZE * 2 * STATE_SIZE];
+    private final double[] evaluationInverse = new double[STATE_SIZE * STATE_SIZE];
+    private final double[] evaluationCorrection = new double[STATE_SIZE];
+
+    /**
+     * @param raimFaultDetector provides the chi-square thresholds per degree of freedom
+     * @param pool              pool shared by the searches of a batch run, {@code null} to evaluate
+     *                          on the calling thread; not shut down by the search
+     */
+    MultiFaultSubsetSearch(RaimFaultDetector raimFaultDetector, ForkJoinPool pool) {
+        this.raimFaultDetector = raimFaultDetector;
+        this.pool = pool;
+    }
+
+    /**
+     * Search evaluating the hypotheses on the calling thread
+     */
+    MultiFaultSubsetSearch(RaimFaultDetector raimFaultDetector) {
+        this(raimFaultDetector, null);
+    }
+
+    void setTimeBudgetNanos(long timeBudgetNanos) {
+        this.timeBudgetNanos = timeBudgetNanos;
+    }
+
+    void setMaxFaults(int maxFaults) {
+        this.maxFaults = maxFaults;
+    }
+
+    void setMaxPdop(double maxPdop) {
+        this.maxPdop = maxPdop;
+    }
+
+    /**
+     * Searches the exclusion subset with the fewest satellites whose remaining measurements pass the
+     * chi-square test.
+     *
+     * @param geometryMatrix        n x 4 geometry matrix of the converged solution
+     * @param residualsMeters       n post-fit pseudorange residuals in meters
+     * @param variancesMetersSquare n pseudorange variances in meters square (diagonal covariance)
+     * @param satellitePrns         n PRNs in the row order of {@code geometryMatrix}
+     * @return the reused result of this search, valid until the next call
+     */
+    SubsetSearchResult search(
+            double[][] geometryMatrix,
+            double[] residualsMeters,
+            double[] variancesMetersSquare,
+            int[] satellitePrns) {
+        long deadlineNanos = System.nanoTime() + timeBudgetNanos;
+        int n = geometryMatrix.length;
+        result.clear();
+        // At least one degree of freedom has to remain to test a subset
+        int faultLimit = Math.min(maxFaults, n - STATE_SIZE - 1);
+        if (faultLimit < 1 || n > MAX_SATELLITES) {
+            return result;
+        }
+        for (int i = 0; i < n; i++) {
+            if (!(variancesMetersSquare[i] > 0)) {
+                return result;
+            }
+            weights[i] = 1.0 / variancesMetersSquare[i];
+        }
+        if (!RaimFaultDetector.invertNormalMatrix(
+                geometryMatrix, weights, n, 0, inversionWorkspace, normalMatrixInverse)) {
+            return result;
+        }
+        for (int i = 0; i < n; i++) {
+            double leverage = weights[i] * quadraticForm(normalMatrixInverse, geometryMatrix[i]);
+            double residual = residualsMeters[i];
+            scores[i] = leverage >= MAX_LEVERAGE
+                    ? 0 : weights[i] * residual * residual / (1.0 - leverage);
+        }
+        rankByScore(n);
+
+        SearchContext context = new SearchContext(
+                geometryMatrix, residualsMeters, weights, n, raimFaultDetector, maxPdop);
+        Hypothesis best = null;
+        for (int faults = 1; faults <= faultLimit && best == null; faults++) {
+            HypothesisQueue queue = new HypothesisQueue(faults, n);
+            while (best == null && !queue.isEmpty()) {
+                if (System.nanoTime() >= deadlineNanos) {
+                    result.budgetExhausted = true;
+                    return finish(best, satellitePrns);
+                }
+                int batchCount = 0;
+                while (batchCount < BATCH_SIZE && !queue.isEmpty()) {
+                    batch[batchCount++] = queue.poll();
+                }
+                if (pool != null) {
+                    pool.invoke(new EvaluateTask(context, batch, 0, batchCount));
+                } else {
+                    EvaluateTask.evaluate(context, batch, 0, batchCount, evaluationWorkspace,
+                            evaluationInverse, evaluationCorrection);
+                }
+                for (int i = 0; i < batchCount; i++) {
+                    Hypothesis hypothesis = batch[i];
+                    if (hypothesis.pruned) {
+                        result.hypothesesPruned++;
+                        continue;
+                    }
+                    result.hypothesesEvaluated++;
+                    if (hypothesis.consistent
+                            && (best == null || hypothesis.normalizedStatistic < best.normalizedStatistic)) {
+                        best = hypothesis;
+                    }
+                }
+            }
+        }
+        return finish(best, satellitePrns);
+    }
+
+    /**
+     * Sorts the rows {@code 0..n-1} into {@link #rankedSatellites} by decreasing score, ties in row
+     * order; insertion sort, n is at most {@link #MAX_SATELLITES}
+     */
+    private void rankByScore(int n) {
+        for (int i = 0; i < n; i++) {
+            double score = scores[i];
+            int j = i;
+            while (j > 0 && scores[rankedSatellites[j - 1]] < score) {
+                rankedSatellites[j] = rankedSatellites[j - 1];
+                j--;
+            }
+            rankedSatellites[j] = i;
+        }
+    }
+
+    private SubsetSearchResult finish(Hypothesis best, int[] satellitePrns) {
+        if (best != null) {
+            result.found = true;
+            result.testStatistic = best.testStatistic;
+            result.threshold = best.threshold;
+            result.pdop = best.pdop;
+            for (int i = 0; i < best.rows.length; i++) {
+                result.excludedPrns[result.excludedCount++] = satellitePrns[best.rows[i]];
+            }
+        }
+        return result;
+    }
+
+    /** Returns {@code g^T P g} for the row major 4x4 matrix {@code p} */
+    private static double quadraticForm(double[] p, double[] g) {
+        double sum = 0;
+        for (int r = 0; r < STATE_SIZE; r++) {
+            int row = r * STATE_SIZE;
+            sum += g[r] * (p[row] * g[0] + p[row + 1] * g[1] + p[row + 2] * g[2] + p[row + 3] * g[3]);
+        }
+        return sum;
+    }
+
+    /**
+     * Enumerates the {@code k}-subsets of the ranked satellites in decreasing order of their summed
+     * score. A subset is stored as ascending rank positions; its successors move one position one
+     * step towards lower scores, which never increases the summed score, so the queue pops subsets in
+     * order.
+     */
+    private class HypothesisQueue {
+        private final int n;
+        private final PriorityQueue<Hypothesis> queue =
+                new PriorityQueue<>((a, b) -> Double.compare(b.score, a.score));
+        private final Set<Integer> seenMasks = new HashSet<>();
+
+        HypothesisQueue(int faults, int n) {
+            this.n = n;
+            int[] ranks = new int[faults];
+            for (int i = 0; i < faults; i++) {
+                ranks[i] = i;
+            }
+            offer(ranks);
+        }
+
+        boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        Hypothesis poll() {
+            Hypothesis hypothesis = queue.poll();
+            int[] ranks = hypothesis.ranks;
+            for (int i = 0; i < ranks.length; i++) {
+                int next = ranks[i] + 1;
+                boolean free = next < n && (i == ranks.length - 1 || ranks[i + 1] != next);
+                if (free) {
+                    int[] successor = ranks.clone();
+                    successor[i] = next;
+                    offer(successor);
+                }
+            }
+            return hypothesis;
+        }
+
+        private void offer(int[] ranks) {
+            int mask = 0;
+            double score = 0;
+            int[] rows = new int[ranks.length];
+            for (int i = 0; i < ranks.length; i++) {
+                rows[i] = rankedSatellites[ranks[i]];
+                mask |= 1 << rows[i];
+                score += scores[rows[i]];
+            }
+            if (seenMasks.add(mask)) {
+                queue.add(new Hypothesis(ranks, rows, mask, score));
+            }
+        }
+    }
+
+    /**
+     * One exclusion hypothesis and, after evaluation, its test outcome
+     */
+    private static class Hypothesis {
+        final int[] ranks;
+        /** Excluded rows of the geometry matrix */
+        final int[] rows;
+        final int excludedMask;
+        final double score;
+
+        boolean pruned;
+        boolean consistent;
+        double pdop;
+        double testStatistic;
+        double threshold;
+        double normalizedStatistic;
+
+        Hypothesis(int[] ranks, int[] rows, int excludedMask, double score) {
+            this.ranks = ranks;
+            this.rows = rows;
+            this.excludedMask = excludedMask;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Read only inputs shared by the pool threads
+     */
+    private static class SearchContext {
+        final double[][] geometryMatrix;
+        final double[] residualsMeters;
+        final double[] weights;
+        final int n;
+        final RaimFaultDetector raimFaultDetector;
+        final double maxPdop;
+
+        SearchContext(double[][] geometryMatrix, double[] residualsMeters, double[] weights, int n,
+                      RaimFaultDetector raimFaultDetector, double maxPdop) {
+            this.geometryMatrix = geometryMatrix;
+            this.residualsMeters = residualsMeters;
+            this.weights = weights;
+            this.n = n;
+            this.raimFaultDetector = raimFaultDetector;
+            this.maxPdop = maxPdop;
+        }
+    }
+
+    /**
+     * Splits a batch of hypotheses until {@link #LEAF_SIZE} and evaluates the leaves with their own
+     * workspaces.
+     */
+    private static class EvaluateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SearchContext context;
+        private final Hypothesis[] hypotheses;
+        private final int from;
+        private final int to;
+
+        EvaluateTask(SearchContext context, Hypothesis[] hypotheses, int from, int to) {
+            this.context = context;
+            this.hypotheses = hypotheses;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new EvaluateTask(context, hypotheses, from, middle),
+                        new EvaluateTask(context, hypotheses, middle, to));
+                return;
+            }
+            evaluate(context, hypotheses, from, to, new double[STATE_SIZE * 2 * STATE_SIZE],
+                    new double[STATE_SIZE * STATE_SIZE], new double[STATE_SIZE]);
+        }
+
+        /**
+         * Evaluates {@code hypotheses[from..to-1]} sequentially with the given workspaces
+         */
+        static void evaluate(SearchContext context, Hypothesis[] hypotheses, int from, int to,
+                             double[] workspace, double[] inverse, double[] correction) {
+            for (int i = from; i < to; i++) {
+                evaluate(context, hypotheses[i], workspace, inverse, correction);
+            }
+        }
+
+        private static void evaluate(SearchContext context, Hypothesis hypothesis,
+                                     double[] workspace, double[] inverse, double[] correction) {
+            double[][] g = context.geometryMatrix;
+            int n = context.n;
+            int mask = hypothesis.excludedMask;
+
+            // Geometry bound first, it does not depend on the measurements
+            if (!RaimFaultDetector.invertNormalMatrix(g, null, n, mask, workspace, inverse)) {
+                hypothesis.pruned = true;
+                return;
+            }
+            hypothesis.pdop = Math.sqrt(inverse[0] + inverse[5] + inverse[10]);
+            if (!(hypothesis.pdop <= context.maxPdop)) {
+                hypothesis.pruned = true;
+                return;
+            }
+            if (!RaimFaultDetector.invertNormalMatrix(
+                    g, context.weights, n, mask, workspace, inverse)) {
+                hypothesis.pruned = true;
+                return;
+            }
+
+            // Re-solve the subset from the post-fit residuals: dx = P G^T W r
+            double[] gtwr = new double[STATE_SIZE];
+            for (int i = 0; i < n; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    continue;
+                }
+                double wr = context.weights[i] * context.residualsMeters[i];
+                for (int c = 0; c < STATE_SIZE; c++) {
+                    gtwr[c] += g[i][c] * wr;
+                }
+            }
+            for (int r = 0; r < STATE_SIZE; r++) {
+                int row = r * STATE_SIZE;
+                correction[r] = inverse[row] * gtwr[0] + inverse[row + 1] * gtwr[1]
+                        + inverse[row + 2] * gtwr[2] + inverse[row + 3] * gtwr[3];
+            }
+            double sse = 0;
+            for (int i = 0; i < n; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    continue;
+                }
+                double[] gi = g[i];
+                double residual = context.residualsMeters[i]
+                        - (gi[0] * correction[0] + gi[1] * correction[1]
+                        + gi[2] * correction[2] + gi[3] * correction[3]);
+                sse += context.weights[i] * residual * residual;
+            }
+            int dof = n - hypothesis.rows.length - STATE_SIZE;
+            hypothesis.testStatistic = sse;
+            hypothesis.threshold = context.raimFaultDetector.getThreshold(dof);
+            hypothesis.normalizedStatistic = sse / hypothesis.threshold;
+            hypothesis.consistent = sse <= hypothesis.threshold;
+        }
+    }
+
+    /**
+     * Outcome of one subset search
+     */
+    static class SubsetSearchResult {
+        /** True if a consistent subset was found */
+        boolean found;
+        /** PRNs excluded by the best subset, the first {@link #excludedCount} entries are valid */
+        final int[] excludedPrns = new int[MAX_SATELLITES];
+        int excludedCount;
+        double testStatistic;
+        double threshold;
+        double pdop;
+        /** Number of hypotheses solved and chi-square tested */
+        int hypothesesEvaluated;
+        /** Number of hypotheses rejected by the geometry bound without solving */
+        int hypothesesPruned;
+        /** True if the search was stopped by the time budget */
+        boolean budgetExhausted;
+
+        private void clear() {
+            found = false;
+            excludedCount = 0;
+            testStatistic = 0;
+            threshold = 0;
+            pdop = 0;
+            hypothesesEvaluated = 0;
+            hypothesesPruned = 0;
+            budgetExhausted = false;
+        }
+
+        /**
+         * Returns [found, hypothesesEvaluated, hypothesesPruned, budgetExhausted, testStatistic,
+         * excluded PRNs...] for the file log.
+         */
+        double[] toLogArray() {
+            double[] logArray = new double[5 + excludedCount];
+            logArray[0] = found ? 1 : 0;
+            logArray[1] = hypothesesEvaluated;
+            logArray[2] = hypothesesPruned;
+            logArray[3] = budgetExhausted ? 1 : 0;
+            logArray[4] = testStatistic;
+            for (int i = 0; i < excludedCount; i++) {
+                logArray[5 + i] = excludedPrns[i];
+            }
+            return logArray;
+        }
+    }
+}
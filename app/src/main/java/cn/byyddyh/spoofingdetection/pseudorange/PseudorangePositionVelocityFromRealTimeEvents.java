@@ -22,20 +22,16 @@ import android.location.GnssMeasurement;
 import android.location.GnssMeasurementsEvent;
 import android.location.GnssNavigationMessage;
 import android.location.GnssStatus;
-import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
 import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
 import android.location.cts.suplClient.SuplRrlpController;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.firebase.crashlytics.buildtools.reloc.org.apache.commons.logging.LogFactory;
 
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
@@ -44,6 +40,13 @@ import java.util.concurrent.TimeUnit;
 import cn.byyddyh.spoofingdetection.LogFragment;
 import cn.byyddyh.spoofingdetection.MainActivity;
 import cn.byyddyh.spoofingdetection.SettingsFragment;
+import cn.byyddyh.spoofingdetection.detection.ClockConsistencyMonitor;
+import cn.byyddyh.spoofingdetection.detection.Cn0AgcAnomalyDetector;
+import cn.byyddyh.spoofingdetection.detection.RangeRateConsistencyDetector;
+import cn.byyddyh.spoofingdetection.detection.SpoofingAlarmSet;
+import cn.byyddyh.spoofingdetection.diagnostics.PipelineLatencyMonitor;
+import cn.byyddyh.spoofingdetection.matrix.SmallMatrix;
+import cn.byyddyh.spoofingdetection.sensor.GnssImuSynchronizer;
 
 /**
  * Helper class for calculating Gps position and velocity solution using weighted least squares
@@ -54,17 +57,22 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
 
     private static final String TAG = "PseudorangePositionVelocityFromRealTimeEvents";
     private static final double SECONDS_PER_NANO = 1.0e-9;
+    private static final double SPEED_OF_LIGHT_MPS = 299792458.0;
     private static final int TOW_DECODED_MEASUREMENT_STATE_BIT = 3;
     /**
      * Average signal travel time from GPS satellite and earth
      */
     private static final int MINIMUM_NUMBER_OF_USEFUL_SATELLITES = 4;
     private static final int C_TO_N0_THRESHOLD_DB_HZ = 18;
+    /** Carrier frequencies this close to 1575.42 MHz are L1, L5 lies 400 MHz below */
+    private static final double L1_BAND_HALF_WIDTH_HZ = 10.0e6;
 
     private static final String SUPL_SERVER_NAME = "supl.google.com";
     private static final int SUPL_SERVER_PORT = 7276;
 
     private GpsNavMessageProto mHardwareGpsNavMessageProto = null;
+    private EphemerisTable mHardwareEphemerisTable = null;
+    private long mHardwareNavMessageVersion = -1;
 
     // navigation message parser
     private GpsNavigationMessageStore mGpsNavigationMessageStore = new GpsNavigationMessageStore();
@@ -82,8 +90,14 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
     private long mDeltaTimeMillisToMakeSuplRequest = TimeUnit.MINUTES.toMillis(30);
     private boolean mFirstSuplRequestNeeded = true;
     private GpsNavMessageProto mGpsNavMessageProtoUsed = null;
+    private EphemerisTable mEphemerisTableUsed = null;
+
+    /** Raw pseudoranges */
+    public static final int SMOOTHING_NONE = 0;
+    /** Carrier or Doppler aided Hatch filter, see {@link HatchPseudorangeSmoother} */
+    public static final int SMOOTHING_HATCH = 1;
 
-    // Only the interface of pseudorange smoother is provided. Please implement customized smoother.
+    private int mSmoothingMode = SMOOTHING_NONE;
     PseudorangeSmoother mPseudorangeSmoother = new PseudorangeNoSmoothingSmoother();
     private final UserPositionVelocityWeightedLeastSquare mUserPositionVelocityLeastSquareCalculator =
             new UserPositionVelocityWeightedLeastSquare(mPseudorangeSmoother);
@@ -96,61 +110,88 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
     private int mDayOfYear1To366 = 0;
     private int mGpsWeekNumber = 0;
     private long mArrivalTimeSinceGpsEpochNs = 0;
+    private PipelineLatencyMonitor mLatencyMonitor = null;
+    /* Epoch time on the sensor time base and the inertial state matched to it */
+    private long mEpochElapsedRealtimeNanos;
+    private final double[] mImuPosition = new double[3];
+    private final double[] mImuVelocity = new double[3];
+    private final Cn0AgcAnomalyDetector mCn0AgcAnomalyDetector = new Cn0AgcAnomalyDetector();
+    private final ClockConsistencyMonitor mClockConsistencyMonitor = new ClockConsistencyMonitor();
+    private final RangeRateConsistencyDetector mRangeRateConsistencyDetector =
+            new RangeRateConsistencyDetector();
+    private final SpoofingAlarmSet mSpoofingAlarms = new SpoofingAlarmSet();
+    // Raw measurements of the last epoch indexed by PRN - 1, streamed to the aggregation server
+    private final double[] mRawPseudorangesMeters =
+            GpsMathOperations.createAndFillArray(GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN);
+    private final double[] mRawPseudorangeRatesMps =
+            GpsMathOperations.createAndFillArray(GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN);
+    private final double[] mRawPseudorangeUncertaintiesMeters =
+            GpsMathOperations.createAndFillArray(GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN);
+    private long mSolutionTimeSinceGpsEpochNs = Long.MIN_VALUE;
+    // Position, clock bias, velocity and clock bias rate of the last solution, for the warm start
+    private final double[] mPositionVelocitySolutionEcef = GpsMathOperations.createAndFillArray(8, Double.NaN);
 
     /**
-     * 卡尔曼滤波器设置
+     * 卡尔曼滤波器设置, 6 x 6 行优先存储, 运算见 {@link SmallMatrix}
      */
-    private RealMatrix matrixA = MatrixUtils.createRealMatrix(new double[][]{
-            {1, 0, 0, 0, 0, 0},
-            {0, 1, 0, 0, 0, 0},
-            {0, 0, 1, 0, 0, 0},
-            {0, 0, 0, 1, 0, 0},
-            {0, 0, 0, 0, 1, 0},
-            {0, 0, 0, 0, 0, 1}
-    });
-    private RealMatrix matrixB = MatrixUtils.createRealMatrix(new double[][]{
-            {0, 0, 0, 0, 0, 0}
-    });
-    private RealMatrix matrixC = MatrixUtils.createRealMatrix(new double[][]{
-            {1, 0, 0, 0, 0, 0},
-            {0, 1, 0, 0, 0, 0},
-            {0, 0, 1, 0, 0, 0},
-            {0, 0, 0, 1, 0, 0},
-            {0, 0, 0, 0, 1, 0},
-            {0, 0, 0, 0, 0, 1}
-    });
-    private RealMatrix matrixR = MatrixUtils.createRealMatrix(new double[][]{
-            {0.05, 0, 0, 0, 0, 0},
-            {0, 0.05, 0, 0, 0, 0},
-            {0, 0, 0.05, 0, 0, 0},
-            {0, 0, 0, 0.005, 0, 0},
-            {0, 0, 0, 0, 0.005, 0},
-            {0, 0, 0, 0, 0, 0.01}
-    });
-    private RealMatrix matrixQ = MatrixUtils.createRealMatrix(new double[][]{
-            {2, 0, 0, 0, 0, 0},
-            {0, 2, 0, 0, 0, 0},
-            {0, 0, 50, 0, 0, 0},
-            {0, 0, 0, 0.005, 0, 0},
-            {0, 0, 0, 0, 0.005, 0},
-            {0, 0, 0, 0, 0, 0.04}
-    });
-    private RealMatrix matrixP = MatrixUtils.createRealMatrix(new double[][]{
-            {1, 0, 0, 0, 0, 0},
-            {0, 1, 0, 0, 0, 0},
-            {0, 0, 1, 0, 0, 0},
-            {0, 0, 0, 1, 0, 0},
-            {0, 0, 0, 0, 1, 0},
-            {0, 0, 0, 0, 0, 1}
-    });
-    private RealMatrix eyeSix = MatrixUtils.createRealMatrix(new double[][]{
-            {1, 0, 0, 0, 0, 0},
-            {0, 1, 0, 0, 0, 0},
-            {0, 0, 1, 0, 0, 0},
-            {0, 0, 0, 1, 0, 0},
-            {0, 0, 0, 0, 1, 0},
-            {0, 0, 0, 0, 0, 1}
-    });
+    private static final int KALMAN_SIZE = 6;
+    private final double[] matrixA = {
+            1, 0, 0, 0, 0, 0,
+            0, 1, 0, 0, 0, 0,
+            0, 0, 1, 0, 0, 0,
+            0, 0, 0, 1, 0, 0,
+            0, 0, 0, 0, 1, 0,
+            0, 0, 0, 0, 0, 1
+    };
+    private final double[] matrixC = {
+            1, 0, 0, 0, 0, 0,
+            0, 1, 0, 0, 0, 0,
+            0, 0, 1, 0, 0, 0,
+            0, 0, 0, 1, 0, 0,
+            0, 0, 0, 0, 1, 0,
+            0, 0, 0, 0, 0, 1
+    };
+    private final double[] matrixR = {
+            0.05, 0, 0, 0, 0, 0,
+            0, 0.05, 0, 0, 0, 0,
+            0, 0, 0.05, 0, 0, 0,
+            0, 0, 0, 0.005, 0, 0,
+            0, 0, 0, 0, 0.005, 0,
+            0, 0, 0, 0, 0, 0.01
+    };
+    private final double[] matrixQ = {
+            2, 0, 0, 0, 0, 0,
+            0, 2, 0, 0, 0, 0,
+            0, 0, 50, 0, 0, 0,
+            0, 0, 0, 0.005, 0, 0,
+            0, 0, 0, 0, 0.005, 0,
+            0, 0, 0, 0, 0, 0.04
+    };
+    private final double[] matrixP = {
+            1, 0, 0, 0, 0, 0,
+            0, 1, 0, 0, 0, 0,
+            0, 0, 1, 0, 0, 0,
+            0, 0, 0, 1, 0, 0,
+            0, 0, 0, 0, 1, 0,
+            0, 0, 0, 0, 0, 1
+    };
+    private final double[] eyeSix = {
+            1, 0, 0, 0, 0, 0,
+            0, 1, 0, 0, 0, 0,
+            0, 0, 1, 0, 0, 0,
+            0, 0, 0, 1, 0, 0,
+            0, 0, 0, 0, 1, 0,
+            0, 0, 0, 0, 0, 1
+    };
+    // 卡尔曼滤波工作区, 避免每个历元分配
+    private final double[] kalmanState = new double[KALMAN_SIZE];
+    private final double[] kalmanMeasurement = new double[KALMAN_SIZE];
+    private final double[] kalmanInnovation = new double[KALMAN_SIZE];
+    private final double[] kalmanCorrection = new double[KALMAN_SIZE];
+    private final double[] kalmanPredictedP = new double[KALMAN_SIZE * KALMAN_SIZE];
+    private final double[] kalmanGain = new double[KALMAN_SIZE * KALMAN_SIZE];
+    private final double[] kalmanTemp = new double[KALMAN_SIZE * KALMAN_SIZE];
+    private final double[] kalmanTempInverse = new double[KALMAN_SIZE * KALMAN_SIZE];
 
     public static Ecef2EnuConverter.EnuValues initEnuValues;
 
@@ -164,6 +205,17 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
     @SuppressLint("LongLogTag")
     public void computePositionVelocitySolutionsFromRawMeas(GnssMeasurementsEvent event)
             throws Exception {
+        computePositionVelocitySolutionsFromRawMeas(event, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * @param arrivalElapsedRealtimeNanos arrival of the event, the epoch time on receivers that do
+     *                                    not report their own elapsed realtime
+     */
+    @SuppressLint("LongLogTag")
+    public void computePositionVelocitySolutionsFromRawMeas(GnssMeasurementsEvent event,
+                                                            long arrivalElapsedRealtimeNanos)
+            throws Exception {
         if (mReferenceLocation == null) {
             // If no reference location is received, we can not get navigation message from SUPL and hence
             // we will not try to compute location.
@@ -177,17 +229,39 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
             mUsefulSatellitesToTowNs[i] = null;
         }
 
-        GnssClock gnssClock;
+        mSpoofingAlarms.clear();
+        GnssClock gnssClock = null;
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
             gnssClock = event.getClock();
+            mEpochElapsedRealtimeNanos = GnssImuSynchronizer.epochElapsedRealtimeNanos(
+                    gnssClock, arrivalElapsedRealtimeNanos);
             mArrivalTimeSinceGpsEpochNs = gnssClock.getTimeNanos() - gnssClock.getFullBiasNanos();
 
+            Arrays.fill(mRawPseudorangesMeters, Double.NaN);
+            mCn0AgcAnomalyDetector.beginEpoch(mSpoofingAlarms);
+            mRangeRateConsistencyDetector.beginEpoch(mArrivalTimeSinceGpsEpochNs);
             for (GnssMeasurement measurement : event.getMeasurements()) {
                 // ignore any measurement if it is not from GPS constellation
                 // 如果不是来自GPS星座，则忽略任何测量
                 if (measurement.getConstellationType() != GnssStatus.CONSTELLATION_GPS) {
                     continue;
                 }
+                // All per satellite state below is indexed by svid, dual frequency phones report L1
+                // and L5 of the same PRN and the second band would overwrite the first (C/N0, AGC,
+                // ranges and carrier phase all differ between the bands)
+                // 所有按svid索引的状态只保存L1，双频手机同一PRN的L5测量会覆盖L1
+                if (!isL1(measurement)) {
+                    continue;
+                }
+                // C/N0 and AGC statistics are kept for every tracked satellite, including the weak ones
+                // 对所有跟踪到的卫星（包括弱信号卫星）统计C/N0和AGC
+                mCn0AgcAnomalyDetector.addMeasurement(
+                        measurement.getSvid(),
+                        measurement.getCn0DbHz(),
+                        android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O
+                                && measurement.hasAutomaticGainControlLevelDb()
+                                ? measurement.getAutomaticGainControlLevelDb()
+                                : Double.NaN);
                 // ignore raw data if time is zero, if signal to noise ratio is below threshold or if
                 // TOW is not yet decoded
                 // 如果时间为零，如果信噪比低于阈值或TOW尚未解码，则忽略原始数据
@@ -212,18 +286,47 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
                         mLargestTowNs = receivedGPSTowNs;
                     }
                     mUsefulSatellitesToTowNs[measurement.getSvid() - 1] = receivedGPSTowNs;
+                    int adrState = measurement.getAccumulatedDeltaRangeState();
                     GpsMeasurement gpsReceiverMeasurement =
                             new GpsMeasurement(
                                     (long) mArrivalTimeSinceGPSWeekNs,
                                     measurement.getAccumulatedDeltaRangeMeters(),
-                                    isAccumulatedDeltaRangeStateValid(measurement.getAccumulatedDeltaRangeState()),
+                                    isAccumulatedDeltaRangeStateValid(adrState),
+                                    (adrState & (GnssMeasurement.ADR_STATE_RESET
+                                            | GnssMeasurement.ADR_STATE_CYCLE_SLIP)) != 0,
                                     measurement.getPseudorangeRateMetersPerSecond(),
                                     measurement.getCn0DbHz(),
                                     measurement.getAccumulatedDeltaRangeUncertaintyMeters(),
                                     measurement.getPseudorangeRateUncertaintyMetersPerSecond());
                     mUsefulSatellitesToReceiverMeasurements[measurement.getSvid() - 1] = gpsReceiverMeasurement;
+
+                    // Raw pseudorange for the Doppler/code/carrier range rate comparison
+                    // 原始伪距，用于多普勒/码/载波距离变化率的一致性比较
+                    double pseudorangeMeters = (mArrivalTimeSinceGPSWeekNs + measurement.getTimeOffsetNanos()
+                            - receivedGPSTowNs) * SECONDS_PER_NANO * SPEED_OF_LIGHT_MPS;
+                    double pseudorangeUncertaintyMeters = measurement.getReceivedSvTimeUncertaintyNanos()
+                            * SECONDS_PER_NANO * SPEED_OF_LIGHT_MPS;
+                    mRawPseudorangesMeters[measurement.getSvid() - 1] = pseudorangeMeters;
+                    mRawPseudorangeRatesMps[measurement.getSvid() - 1] =
+                            measurement.getPseudorangeRateMetersPerSecond();
+                    mRawPseudorangeUncertaintiesMeters[measurement.getSvid() - 1] =
+                            pseudorangeUncertaintyMeters;
+                    mRangeRateConsistencyDetector.addMeasurement(
+                            measurement.getSvid(),
+                            pseudorangeMeters,
+                            pseudorangeUncertaintyMeters,
+                            measurement.getPseudorangeRateMetersPerSecond(),
+                            measurement.getPseudorangeRateUncertaintyMetersPerSecond(),
+                            isAccumulatedDeltaRangeStateValid(adrState)
+                                    && (adrState & (GnssMeasurement.ADR_STATE_RESET
+                                    | GnssMeasurement.ADR_STATE_CYCLE_SLIP)) == 0,
+                            measurement.getAccumulatedDeltaRangeMeters(),
+                            measurement.getAccumulatedDeltaRangeUncertaintyMeters());
                 }
             }
+            mCn0AgcAnomalyDetector.endEpoch();
+            mRangeRateConsistencyDetector.endEpoch(mSpoofingAlarms);
+            logSpoofingAlarms(0);
         }
 
         // check if we should continue using the navigation message from the SUPL server, or use the
@@ -231,7 +334,7 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
         // 检查我们是否应该继续使用来自SUPL服务器的导航消息，或者如果我们完全收到了来自设备的导航消息
         boolean useNavMessageFromSupl =
                 continueUsingNavMessageFromSupl(
-                        mUsefulSatellitesToReceiverMeasurements, mHardwareGpsNavMessageProto);
+                        mUsefulSatellitesToReceiverMeasurements, mHardwareEphemerisTable);
         if (useNavMessageFromSupl) {
             Log.d(TAG, "Using navigation message from SUPL server");
 
@@ -253,13 +356,14 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
             Log.d(TAG, "Using navigation message from the GPS receiver");
             mGpsNavMessageProtoUsed = mHardwareGpsNavMessageProto;
         }
+        mEphemerisTableUsed = EphemerisTable.forNavMessage(mEphemerisTableUsed, mGpsNavMessageProtoUsed);
 
         // some times the SUPL server returns less satellites than the visible ones, so remove those
         // visible satellites that are not returned by SUPL
         // 有时，SUPL服务器返回的卫星少于可见卫星，因此请删除SUPL未返回的可见卫星
         for (int i = 0; i < GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES; i++) {
             if (mUsefulSatellitesToReceiverMeasurements[i] != null
-                    && !navMessageProtoContainsSvid(mGpsNavMessageProtoUsed, i + 1)) {
+                    && !mEphemerisTableUsed.contains(i + 1)) {
                 mUsefulSatellitesToReceiverMeasurements[i] = null;
                 mUsefulSatellitesToTowNs[i] = null;
             }
@@ -294,6 +398,7 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
                         GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN
                 );
 
+                markLatencyStage(PipelineLatencyMonitor.STAGE_PREPROCESS);
                 // 具体计算过程
                 performPositionVelocityComputationEcef(
                         mUserPositionVelocityLeastSquareCalculator,
@@ -306,6 +411,10 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
                         positionVelocitySolutionEcef,
                         positionVelocityUncertaintyEnu,
                         pseudorangeResidualMeters);
+                if (gnssClock != null) {
+                    checkClockConsistency(gnssClock, positionVelocitySolutionEcef);
+                }
+                markLatencyStage(PipelineLatencyMonitor.STAGE_WLS);
 
                 // 将ECEF的位置解转换为纬度、经度和高度
                 // convert the position solution from ECEF to latitude, longitude and altitude
@@ -314,6 +423,9 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
                                 positionVelocitySolutionEcef[0],
                                 positionVelocitySolutionEcef[1],
                                 positionVelocitySolutionEcef[2]);
+                mSolutionTimeSinceGpsEpochNs = mArrivalTimeSinceGpsEpochNs;
+                System.arraycopy(positionVelocitySolutionEcef, 0, mPositionVelocitySolutionEcef, 0,
+                        mPositionVelocitySolutionEcef.length);
                 mPositionSolutionLatLngDeg[0] = Math.toDegrees(latLngAlt.latitudeRadians);
                 mPositionSolutionLatLngDeg[1] = Math.toDegrees(latLngAlt.longitudeRadians);
                 mPositionSolutionLatLngDeg[2] = latLngAlt.altitudeMeters;
@@ -391,45 +503,44 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
                                 positionVelocitySolutionEcef[0], positionVelocitySolutionEcef[1], positionVelocitySolutionEcef[2],
                                 MainActivity.reference_radians_mea[0], MainActivity.reference_radians_mea[1]
                         );
-                    } else {
-                        RealMatrix temp = MatrixUtils.createRealMatrix(new double[][]{
-                                {MainActivity.pos_mea[0], MainActivity.pos_mea[1], MainActivity.pos_mea[2],
-                                        MainActivity.vel_mea[0], MainActivity.vel_mea[1], MainActivity.vel_mea[2]}
-                        });
+                    } else if (MainActivity.imuSynchronizer.stateAt(
+                            mEpochElapsedRealtimeNanos, mImuPosition, mImuVelocity)) {
+                        // 惯导状态取GNSS观测时刻的插值, 而不是当前时刻
+                        kalmanState[0] = mImuPosition[0];
+                        kalmanState[1] = mImuPosition[1];
+                        kalmanState[2] = mImuPosition[2];
+                        kalmanState[3] = mImuVelocity[0];
+                        kalmanState[4] = mImuVelocity[1];
+                        kalmanState[5] = mImuVelocity[2];
                         Ecef2EnuConverter.EnuValues enuValues = Ecef2EnuConverter.convertEcefToEnu(
                                 positionVelocitySolutionEcef[0], positionVelocitySolutionEcef[1], positionVelocitySolutionEcef[2],
                                 MainActivity.reference_radians_mea[0], MainActivity.reference_radians_mea[1]);
-                        RealMatrix tempGNSS = MatrixUtils.createRealMatrix(new double[][]{
-                                {enuValues.enuEast - initEnuValues.enuEast, enuValues.enuNorth - initEnuValues.enuNorth, enuValues.enuUP - initEnuValues.enuUP,
-                                        mVelocitySolutionEnuMps[0], mVelocitySolutionEnuMps[1], mVelocitySolutionEnuMps[2]}
-                        });
+                        kalmanMeasurement[0] = enuValues.enuEast - initEnuValues.enuEast;
+                        kalmanMeasurement[1] = enuValues.enuNorth - initEnuValues.enuNorth;
+                        kalmanMeasurement[2] = enuValues.enuUP - initEnuValues.enuUP;
+                        kalmanMeasurement[3] = mVelocitySolutionEnuMps[0];
+                        kalmanMeasurement[4] = mVelocitySolutionEnuMps[1];
+                        kalmanMeasurement[5] = mVelocitySolutionEnuMps[2];
 
                         // 遍历，如果误差大于10m，则不进行融合
                         boolean isContinue = true;
-                        for (int i = 0; i < 1; i++) {
-                            for (int j = 0; j < 6; j++) {
-                                if (tempGNSS.getEntry(i, j) > 10) {
-                                    isContinue = false;
-                                }
+                        for (int j = 0; j < KALMAN_SIZE; j++) {
+                            if (kalmanMeasurement[j] > 10) {
+                                isContinue = false;
                             }
                         }
 
-                        if (isContinue) {
-                            matrixP = matrixA.multiply(matrixP.transpose()).multiply(matrixA.transpose()).add(matrixR);
-                            RealMatrix K = matrixP.multiply(matrixC.transpose()).multiply(MatrixUtils.inverse(
-                                    matrixC.multiply(matrixP).multiply(matrixC.transpose()).add(matrixQ)
-                            ));
-
-                            temp = temp.transpose().add(K.multiply(tempGNSS.transpose().subtract(matrixC.multiply(temp.transpose()))));
-                            temp = temp.transpose();
-
-                            matrixP = (eyeSix.subtract(K.multiply(matrixC))).multiply(matrixP);
-
+                        if (isContinue && updateKalman()) {
+                            // 修正量交给IMU线程, 作用到其当前状态上
                             for (int i = 0; i < 3; i++) {
-                                MainActivity.pos_mea[i] = temp.getEntry(0, i);
-                                MainActivity.vel_mea[i] = temp.getEntry(0, i + 3);
+                                mImuPosition[i] = kalmanState[i] - mImuPosition[i];
+                                mImuVelocity[i] = kalmanState[i + 3] - mImuVelocity[i];
                             }
+                            MainActivity.imuSynchronizer.correct(
+                                    mEpochElapsedRealtimeNanos, mImuPosition, mImuVelocity);
                         }
+                    } else {
+                        Log.d(TAG, "No IMU state at the epoch time, fusion skipped");
                     }
                 } else {
                     validCount++;
@@ -438,6 +549,7 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
                 mPositionVelocityUncertaintyEnu[3] = positionVelocityUncertaintyEnu[3];
                 mPositionVelocityUncertaintyEnu[4] = positionVelocityUncertaintyEnu[4];
                 mPositionVelocityUncertaintyEnu[5] = positionVelocityUncertaintyEnu[5];
+                markLatencyStage(PipelineLatencyMonitor.STAGE_FUSION);
             }
             mFirstUsefulMeasurementSet = false;
         } else {
@@ -455,20 +567,88 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
         }
     }
 
-    private boolean isEmptyNavMessage(GpsNavMessageProto navMessageProto) {
-        if (navMessageProto.iono == null) return true;
-        if (navMessageProto.ephemerids.length == 0) return true;
-        return false;
+    /**
+     * Selects how pseudoranges are smoothed, {@link #SMOOTHING_NONE} or {@link #SMOOTHING_HATCH}. A
+     * new smoother starts without history.
+     */
+    public void setSmoothingMode(int smoothingMode) {
+        if (smoothingMode == mSmoothingMode) {
+            return;
+        }
+        switch (smoothingMode) {
+            case SMOOTHING_NONE:
+                mPseudorangeSmoother = new PseudorangeNoSmoothingSmoother();
+                break;
+            case SMOOTHING_HATCH:
+                mPseudorangeSmoother = new HatchPseudorangeSmoother();
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid smoothing mode: " + smoothingMode);
+        }
+        mSmoothingMode = smoothingMode;
+        mUserPositionVelocityLeastSquareCalculator.setPseudorangeSmoother(mPseudorangeSmoother);
+    }
+
+    public int getSmoothingMode() {
+        return mSmoothingMode;
     }
 
-    private boolean navMessageProtoContainsSvid(GpsNavMessageProto navMessageProto, int svid) {
-        List<GpsEphemerisProto> ephemeridesList =
-                new ArrayList<GpsEphemerisProto>(Arrays.asList(navMessageProto.ephemerids));
-        for (GpsEphemerisProto ephProtoFromList : ephemeridesList) {
-            if (ephProtoFromList.prn == svid) {
-                return true;
+    /**
+     * Sets the monitor receiving the stage boundaries of each processed measurement event
+     */
+    public void setLatencyMonitor(PipelineLatencyMonitor latencyMonitor) {
+        mLatencyMonitor = latencyMonitor;
+    }
+
+    private void markLatencyStage(int stage) {
+        if (mLatencyMonitor != null) {
+            mLatencyMonitor.markStageEnd(stage);
+        }
+    }
+
+    /**
+     * Checks the WLS receiver clock solution against the drift reported in {@code gnssClock} and
+     * adds the resulting alarms to the alarms of this epoch.
+     */
+    private void checkClockConsistency(GnssClock gnssClock, double[] positionVelocitySolutionEcef) {
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.N) {
+            return;
+        }
+        int firstAlarm = mSpoofingAlarms.size();
+        mClockConsistencyMonitor.update(
+                gnssClock.getTimeNanos(),
+                gnssClock.getFullBiasNanos(),
+                gnssClock.hasDriftNanosPerSecond() ? gnssClock.getDriftNanosPerSecond() : Double.NaN,
+                gnssClock.hasDriftUncertaintyNanosPerSecond()
+                        ? gnssClock.getDriftUncertaintyNanosPerSecond()
+                        : Double.NaN,
+                gnssClock.getHardwareClockDiscontinuityCount(),
+                positionVelocitySolutionEcef[3],
+                positionVelocitySolutionEcef[7],
+                mSpoofingAlarms);
+        if (LogFragment.writableFlag) {
+            LogFragment.fileLogger.storeArrayData("Clock Consistency", mClockConsistencyMonitor.toLogArray());
+        }
+        logSpoofingAlarms(firstAlarm);
+    }
+
+    /**
+     * Writes the alarms raised in this epoch starting at {@code firstAlarm} to the log view and the
+     * log file
+     */
+    private void logSpoofingAlarms(int firstAlarm) {
+        for (int i = firstAlarm; i < mSpoofingAlarms.size(); i++) {
+            Log.d(TAG, "Spoofing alarm: " + mSpoofingAlarms.get(i));
+            LogFragment.logText("Data", "Spoofing alarm: " + mSpoofingAlarms.get(i));
+            if (LogFragment.writableFlag) {
+                LogFragment.fileLogger.storeArrayData("Spoofing Alarm", mSpoofingAlarms.toLogArray(i));
             }
         }
+    }
+
+    private boolean isEmptyNavMessage(GpsNavMessageProto navMessageProto) {
+        if (navMessageProto.iono == null) return true;
+        if (navMessageProto.ephemerids.length == 0) return true;
         return false;
     }
 
@@ -536,30 +716,20 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
      */
     private static boolean continueUsingNavMessageFromSupl(
             GpsMeasurement[] usefulSatellitesToReceiverMeasurements,
-            GpsNavMessageProto hardwareGpsNavMessageProto) {
-        boolean useNavMessageFromSupl = true;
-        if (hardwareGpsNavMessageProto != null) {
-            ArrayList<GpsEphemerisProto> hardwareEphemeridesList =
-                    new ArrayList<GpsEphemerisProto>(Arrays.asList(hardwareGpsNavMessageProto.ephemerids));
-            if (hardwareGpsNavMessageProto.iono != null) {
-                for (int i = 0; i < GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES; i++) {
-                    if (usefulSatellitesToReceiverMeasurements[i] != null) {
-                        int prn = i + 1;
-                        for (GpsEphemerisProto hardwareEphProtoFromList : hardwareEphemeridesList) {
-                            if (hardwareEphProtoFromList.prn == prn) {
-                                useNavMessageFromSupl = false;
-                                break;
-                            }
-                            useNavMessageFromSupl = true;
-                        }
-                        if (useNavMessageFromSupl == true) {
-                            break;
-                        }
-                    }
+            EphemerisTable hardwareEphemerisTable) {
+        if (hardwareEphemerisTable == null || hardwareEphemerisTable.getNavMessage().iono == null) {
+            return true;
+        }
+        boolean anyUsefulSatellite = false;
+        for (int i = 0; i < GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES; i++) {
+            if (usefulSatellitesToReceiverMeasurements[i] != null) {
+                if (!hardwareEphemerisTable.contains(i + 1)) {
+                    return true;
                 }
+                anyUsefulSatellite = true;
             }
         }
-        return useNavMessageFromSupl;
+        return !anyUsefulSatellite;
     }
 
     /**
@@ -576,6 +746,16 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
         return (GnssMeasurement.ADR_STATE_VALID & accumulatedDeltaRangeState) == GnssMeasurement.ADR_STATE_VALID;
     }
 
+    /**
+     * Returns {@code true} for L1 measurements. Receivers that do not report the carrier frequency
+     * are single frequency L1 receivers.
+     */
+    private static boolean isL1(GnssMeasurement measurement) {
+        return !measurement.hasCarrierFrequencyHz()
+                || Math.abs(measurement.getCarrierFrequencyHz() - IonosphericModel.L1_FREQ_HZ)
+                < L1_BAND_HALF_WIDTH_HZ;
+    }
+
     /**
      * Parses a string array containing an updates to the navigation message and return the most
      * recent {@link GpsNavMessageProto}.
@@ -591,12 +771,114 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
             if (messageType == 1) {
                 mGpsNavigationMessageStore.onNavMessageReported(
                         messagePrn, messageType, (short) subMessageId, messageRawData);
-                mHardwareGpsNavMessageProto = mGpsNavigationMessageStore.createDecodedNavMessage();
+                updateHardwareNavMessage();
             }
         }
 
     }
 
+    /**
+     * Takes the navigation message of {@link #mGpsNavigationMessageStore} if it changed
+     */
+    private void updateHardwareNavMessage() {
+        long navMessageVersion = mGpsNavigationMessageStore.getVersion();
+        if (navMessageVersion != mHardwareNavMessageVersion) {
+            mHardwareNavMessageVersion = navMessageVersion;
+            mHardwareGpsNavMessageProto = mGpsNavigationMessageStore.createDecodedNavMessage();
+            mHardwareEphemerisTable = EphemerisTable.forNavMessage(mHardwareEphemerisTable,
+                    mHardwareGpsNavMessageProto);
+        }
+    }
+
+    /**
+     * 卡尔曼滤波更新, {@link #kalmanState} 为惯导状态, {@link #kalmanMeasurement} 为GNSS观测,
+     * 滤波结果写回 {@link #kalmanState}
+     *
+     * @return {@code false} 如果新息协方差不正定, 状态与协方差不变
+     */
+    private boolean updateKalman() {
+        int n = KALMAN_SIZE;
+        // P = A P' A' + R
+        SmallMatrix.multiplyTransposed(n, matrixA, matrixP, kalmanTemp);
+        SmallMatrix.multiplyTransposed(n, kalmanTemp, matrixA, kalmanPredictedP);
+        SmallMatrix.add(n, kalmanPredictedP, matrixR, kalmanPredictedP);
+
+        // K = P C' (C P C' + Q)^-1, 新息协方差对称正定, 用Cholesky求逆
+        SmallMatrix.multiplyTransposed(n, kalmanPredictedP, matrixC, kalmanTemp);
+        SmallMatrix.multiply(n, matrixC, kalmanTemp, kalmanGain);
+        SmallMatrix.add(n, kalmanGain, matrixQ, kalmanGain);
+        if (!SmallMatrix.cholesky(n, kalmanGain)) {
+            Log.d(TAG, "Kalman innovation covariance not positive definite, fusion skipped");
+            return false;
+        }
+        SmallMatrix.choleskyInverse(n, kalmanGain, kalmanTempInverse);
+        SmallMatrix.multiply(n, kalmanTemp, kalmanTempInverse, kalmanGain);
+
+        // x = x + K (z - C x)
+        SmallMatrix.multiplyVector(n, matrixC, kalmanState, kalmanInnovation);
+        for (int i = 0; i < n; i++) {
+            kalmanInnovation[i] = kalmanMeasurement[i] - kalmanInnovation[i];
+        }
+        SmallMatrix.multiplyVector(n, kalmanGain, kalmanInnovation, kalmanCorrection);
+        for (int i = 0; i < n; i++) {
+            kalmanState[i] += kalmanCorrection[i];
+        }
+
+        // P = (I - K C) P
+        SmallMatrix.multiply(n, kalmanGain, matrixC, kalmanTemp);
+        SmallMatrix.subtract(n, eyeSix, kalmanTemp, kalmanTemp);
+        SmallMatrix.multiply(n, kalmanTemp, kalmanPredictedP, matrixP);
+        return true;
+    }
+
+    /**
+     * Returns the state to restore on the next launch, {@code null} before the first solution
+     */
+    public WarmStartSnapshot createWarmStartSnapshot(long nowUnixMillis) {
+        if (mSolutionTimeSinceGpsEpochNs == Long.MIN_VALUE || mGpsNavMessageProtoUsed == null) {
+            return null;
+        }
+        return new WarmStartSnapshot(nowUnixMillis, mSolutionTimeSinceGpsEpochNs,
+                mPositionVelocitySolutionEcef, validCount,
+                mUserPositionVelocityLeastSquareCalculator.getInitCount(),
+                SmallMatrix.toRows(KALMAN_SIZE, matrixP),
+                mGpsNavMessageProtoUsed);
+    }
+
+    /**
+     * Restores what is still valid of a snapshot of an earlier run: the ephemerides and ionospheric
+     * parameters go to the navigation message store as if decoded from the receiver, so no SUPL
+     * request is needed for the satellites they cover; the receiver clock, the Kalman covariance
+     * and the warm-up counters are only restored if the snapshot is recent.
+     *
+     * <p>The reference location is not set here, the caller decides whether to use
+     * {@link WarmStartSnapshot#getPositionLatLngDeg()}.
+     *
+     * @return {@code true} if the receiver state was restored
+     */
+    @SuppressLint("LongLogTag")
+    public boolean restoreWarmStart(WarmStartSnapshot snapshot, long nowUnixMillis) {
+        GpsNavMessageProto navMessage = snapshot.getNavMessageValidAt(nowUnixMillis);
+        if (navMessage != null) {
+            mGpsNavigationMessageStore.restoreNavMessage(navMessage);
+            updateHardwareNavMessage();
+            Log.d(TAG, "Warm start: " + navMessage.ephemerids.length + " ephemerides restored, "
+                    + (navMessage.iono != null ? "with" : "without") + " ionospheric parameters");
+        }
+        if (!snapshot.isStateValidAt(nowUnixMillis)) {
+            return false;
+        }
+        double[] positionVelocitySolutionEcef = snapshot.getPositionVelocitySolutionEcef();
+        mUserPositionVelocityLeastSquareCalculator.restoreReceiverClock(
+                positionVelocitySolutionEcef[3], positionVelocitySolutionEcef[7],
+                snapshot.getInitCount());
+        SmallMatrix.copyFromRows(snapshot.getCovariance(), matrixP);
+        validCount = Math.max(0, snapshot.getValidCount());
+        Log.d(TAG, "Warm start: receiver state of " + snapshot.getAgeMillis(nowUnixMillis)
+                + " ms ago restored");
+        return true;
+    }
+
     /**
      * Sets a rough location of the receiver that can be used to request SUPL assistance data
      */
@@ -657,6 +939,43 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
         return mPositionVelocityUncertaintyEnu;
     }
 
+    /**
+     * Returns the spoofing alarms raised while processing the last measurement event
+     */
+    public SpoofingAlarmSet getSpoofingAlarms() {
+        return mSpoofingAlarms;
+    }
+
+    /**
+     * Returns the receiver time since the GPS epoch of the last computed solution in nanoseconds,
+     * {@code Long.MIN_VALUE} before the first solution
+     */
+    public long getSolutionTimeSinceGpsEpochNs() {
+        return mSolutionTimeSinceGpsEpochNs;
+    }
+
+    /**
+     * Returns the raw pseudoranges of the last epoch indexed by PRN - 1, NaN if not tracked
+     */
+    public double[] getRawPseudorangesMeters() {
+        return mRawPseudorangesMeters;
+    }
+
+    public double[] getRawPseudorangeRatesMps() {
+        return mRawPseudorangeRatesMps;
+    }
+
+    public double[] getRawPseudorangeUncertaintiesMeters() {
+        return mRawPseudorangeUncertaintiesMeters;
+    }
+
+    /**
+     * Returns the ECEF positions of the satellites used by the last solution indexed by PRN - 1
+     */
+    public double[][] getSatellitePositionsEcefMeters() {
+        return mUserPositionVelocityLeastSquareCalculator.getSatellitePositionsEcefMeters();
+    }
+
     /**
      * Returns the pseudorange residuals corrected by using clock bias computed from highest
      * elevationDegree satellites.
@@ -0,0 +1,321 @@
+package cn.byyddyh.spoofingdetection.pseudorange;
+
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+
+/**
+ * Receiver autonomous integrity monitoring (RAIM) with fault detection and exclusion (FDE) on top of
+ * a converged weighted least square position solution.
+ *
+ * <p>Detection is a chi-square test on the weighted sum of squared post-fit residuals
+ * {@code SSE = sum(w_i * r_i^2)} with {@code n - 4} degrees of freedom.
+ *
+ * <p>Exclusion evaluates every leave-one-out subset from the full normal matrix instead of solving
+ * {@code n} new least square problems. With {@code P = (G^T W G)^-1} and the leverage
+ * {@code h_i = w_i * g_i^T P g_i}, removing satellite {@code i} gives by the Sherman–Morrison
+ * formula:
+ *
+ * <ul>
+ *   <li>{@code P_(i) = P + w_i P g_i g_i^T P / (1 - h_i)}
+ *   <li>{@code x_(i) = x - w_i r_i P g_i / (1 - h_i)}
+ *   <li>{@code SSE_(i) = SSE - w_i r_i^2 / (1 - h_i)}
+ * </ul>
+ *
+ * <p>so scoring all candidates costs {@code O(n)} each after a single 4x4 inversion. The satellite
+ * whose removal lowers the SSE the most is excluded, {@code P} and the residuals are downdated and
+ * the test is repeated until it passes, the redundancy runs out or {@code maxExclusions} satellites
+ * were removed.
+ *
+ * <p>Reference: Parkinson, B.W., Spilker Jr., J.J.: 'Global positioning system: theory and
+ * applications' Vol. II, chapter 5 (receiver autonomous integrity monitoring).
+ *
+ * <p>All workspaces are preallocated, an instance must only be used from a single thread.
+ */
+class RaimFaultDetector {
+
+    /** Probability of false alarm of the chi-square test per epoch */
+    static final double DEFAULT_FALSE_ALARM_PROBABILITY = 1.0e-5;
+    /** Maximum number of satellites excluded in one epoch */
+    static final int DEFAULT_MAX_EXCLUSIONS = 3;
+
+    static final int STATE_SIZE = 4;
+    static final int MAX_SATELLITES = GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES;
+    /** Leverage close to one means the satellite is not redundant and cannot be tested */
+    private static final double MAX_LEVERAGE = 1.0 - 1.0e-9;
+
+    private final int maxExclusions;
+    /** Chi-square thresholds indexed by degrees of freedom */
+    private final double[] chiSquareThresholds = new double[MAX_SATELLITES + 1];
+
+    private final double[] weights = new double[MAX_SATELLITES];
+    private final double[] residuals = new double[MAX_SATELLITES];
+    private final boolean[] excluded = new boolean[MAX_SATELLITES];
+    private final double[] normalMatrixInverse = new double[STATE_SIZE * STATE_SIZE];
+    private final double[] inversionWorkspace = new double[STATE_SIZE * 2 * STATE_SIZE];
+    private final double[] pg = new double[STATE_SIZE];
+    private final RaimResult result = new RaimResult();
+
+    RaimFaultDetector() {
+        this(DEFAULT_FALSE_ALARM_PROBABILITY, DEFAULT_MAX_EXCLUSIONS);
+    }
+
+    RaimFaultDetector(double falseAlarmProbability, int maxExclusions) {
+        this.maxExclusions = maxExclusions;
+        for (int dof = 1; dof <= MAX_SATELLITES; dof++) {
+            chiSquareThresholds[dof] = new ChiSquaredDistribution(dof)
+                    .inverseCumulativeProbability(1.0 - falseAlarmProbability);
+        }
+    }
+
+    /**
+     * Returns the chi-square detection threshold on the weighted SSE for {@code dof} degrees of
+     * freedom.
+     */
+    double getThreshold(int dof) {
+        return chiSquareThresholds[Math.min(dof, MAX_SATELLITES)];
+    }
+
+    /**
+     * Runs the chi-square test on the post-fit residuals and, if it fails, excludes satellites one at
+     * a time using Sherman–Morrison downdates of the normal matrix.
+     *
+     * @param geometryMatrix        n x 4 geometry matrix of the converged solution
+     * @param residualsMeters       n post-fit pseudorange residuals in meters
+     * @param variancesMetersSquare n pseudorange variances in meters square (diagonal covariance)
+     * @param satellitePrns         n PRNs in the row order of {@code geometryMatrix}
+     * @return the reused result of this epoch, valid until the next call
+     */
+    RaimResult detectAndExclude(
+            double[][] geometryMatrix,
+            double[] residualsMeters,
+            double[] variancesMetersSquare,
+            int[] satellitePrns) {
+        int n = geometryMatrix.length;
+        result.clear();
+        if (n <= STATE_SIZE || n > MAX_SATELLITES) {
+            return result;
+        }
+
+        double sse = 0;
+        for (int i = 0; i < n; i++) {
+            if (!(variancesMetersSquare[i] > 0)) {
+                // Without a valid noise model the test statistic has no known distribution.
+                return result;
+            }
+            weights[i] = 1.0 / variancesMetersSquare[i];
+            residuals[i] = residualsMeters[i];
+            excluded[i] = false;
+            sse += weights[i] * residuals[i] * residuals[i];
+        }
+        if (!invertNormalMatrix(
+                geometryMatrix, weights, n, 0, inversionWorkspace, normalMatrixInverse)) {
+            return result;
+        }
+
+        int dof = n - STATE_SIZE;
+        result.available = true;
+        result.degreesOfFreedom = dof;
+        result.testStatistic = sse;
+        result.threshold = chiSquareThresholds[dof];
+        result.faultDetected = sse > result.threshold;
+
+        while (sse > chiSquareThresholds[dof]
+                && dof > 1
+                && result.excludedCount < maxExclusions) {
+            // Score every remaining satellite by the SSE of the subset without it
+            int candidate = -1;
+            double candidateSse = Double.MAX_VALUE;
+            double candidateLeverage = 0;
+            for (int i = 0; i < n; i++) {
+                if (excluded[i]) {
+                    continue;
+                }
+                double leverage = weights[i] * quadraticForm(geometryMatrix[i]);
+                if (leverage >= MAX_LEVERAGE) {
+                    continue;
+                }
+                double subsetSse = sse - weights[i] * residuals[i] * residuals[i] / (1.0 - leverage);
+                if (subsetSse < candidateSse) {
+                    candidateSse = subsetSse;
+                    candidate = i;
+                    candidateLeverage = leverage;
+                }
+            }
+            if (candidate < 0) {
+                break;
+            }
+            downdate(geometryMatrix, n, candidate, candidateLeverage);
+            sse = Math.max(candidateSse, 0);
+            dof--;
+            excluded[candidate] = true;
+            result.excludedPrns[result.excludedCount++] = satellitePrns[candidate];
+        }
+
+        result.postExclusionTestStatistic = sse;
+        result.postExclusionThreshold = chiSquareThresholds[dof];
+        result.exclusionSucceeded = sse <= chiSquareThresholds[dof];
+        return result;
+    }
+
+    /**
+     * Removes row {@code k} from the solution: updates the residuals of the remaining satellites with
+     * the leave-one-out state correction and applies the Sherman–Morrison update to {@code P}.
+     */
+    private void downdate(double[][] geometryMatrix, int n, int k, double leverage) {
+        double[] gk = geometryMatrix[k];
+        multiplyNormalMatrixInverse(gk);
+        double scale = weights[k] * residuals[k] / (1.0 - leverage);
+        for (int j = 0; j < n; j++) {
+            if (excluded[j] || j == k) {
+                continue;
+            }
+            double[] gj = geometryMatrix[j];
+            residuals[j] += scale * (gj[0] * pg[0] + gj[1] * pg[1] + gj[2] * pg[2] + gj[3] * pg[3]);
+        }
+        double gain = weights[k] / (1.0 - leverage);
+        for (int r = 0; r < STATE_SIZE; r++) {
+            for (int c = 0; c < STATE_SIZE; c++) {
+                normalMatrixInverse[r * STATE_SIZE + c] += gain * pg[r] * pg[c];
+            }
+        }
+    }
+
+    /** Stores {@code P * g} into {@link #pg} */
+    private void multiplyNormalMatrixInverse(double[] g) {
+        for (int r = 0; r < STATE_SIZE; r++) {
+            int row = r * STATE_SIZE;
+            pg[r] = normalMatrixInverse[row] * g[0] + normalMatrixInverse[row + 1] * g[1]
+                    + normalMatrixInverse[row + 2] * g[2] + normalMatrixInverse[row + 3] * g[3];
+        }
+    }
+
+    /** Returns {@code g^T P g} */
+    private double quadraticForm(double[] g) {
+        multiplyNormalMatrixInverse(g);
+        return g[0] * pg[0] + g[1] * pg[1] + g[2] * pg[2] + g[3] * pg[3];
+    }
+
+    /**
+     * Builds {@code G^T W G} from the rows of {@code geometryMatrix} that are not set in
+     * {@code excludedMask} and inverts it by Gauss-Jordan elimination with partial pivoting.
+     *
+     * @param weights   per row weights, or {@code null} for the unweighted {@code G^T G}
+     * @param workspace scratch array of at least 32 elements
+     * @param inverse   receives the row major 4x4 inverse
+     * @return false if the geometry is singular
+     */
+    static boolean invertNormalMatrix(
+            double[][] geometryMatrix,
+            double[] weights,
+            int n,
+            int excludedMask,
+            double[] workspace,
+            double[] inverse) {
+        int width = 2 * STATE_SIZE;
+        for (int r = 0; r < STATE_SIZE; r++) {
+            for (int c = 0; c < width; c++) {
+                workspace[r * width + c] = 0;
+            }
+            workspace[r * width + STATE_SIZE + r] = 1;
+        }
+        for (int i = 0; i < n; i++) {
+            if ((excludedMask & (1 << i)) != 0) {
+                continue;
+            }
+            double[] g = geometryMatrix[i];
+            double w = weights == null ? 1.0 : weights[i];
+            for (int r = 0; r < STATE_SIZE; r++) {
+                double wg = w * g[r];
+                for (int c = 0; c < STATE_SIZE; c++) {
+                    workspace[r * width + c] += wg * g[c];
+                }
+            }
+        }
+        for (int col = 0; col < STATE_SIZE; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < STATE_SIZE; r++) {
+                if (Math.abs(workspace[r * width + col]) > Math.abs(workspace[pivot * width + col])) {
+                    pivot = r;
+                }
+            }
+            double pivotValue = workspace[pivot * width + col];
+            if (Math.abs(pivotValue) < 1.0e-12) {
+                return false;
+            }
+            if (pivot != col) {
+                for (int c = 0; c < width; c++) {
+                    double tmp = workspace[col * width + c];
+                    workspace[col * width + c] = workspace[pivot * width + c];
+                    workspace[pivot * width + c] = tmp;
+                }
+            }
+            for (int c = 0; c < width; c++) {
+                workspace[col * width + c] /= pivotValue;
+            }
+            for (int r = 0; r < STATE_SIZE; r++) {
+                if (r == col) {
+                    continue;
+                }
+                double factor = workspace[r * width + col];
+                if (factor != 0) {
+                    for (int c = 0; c < width; c++) {
+                        workspace[r * width + c] -= factor * workspace[col * width + c];
+                    }
+                }
+            }
+        }
+        for (int r = 0; r < STATE_SIZE; r++) {
+            for (int c = 0; c < STATE_SIZE; c++) {
+                inverse[r * STATE_SIZE + c] = workspace[r * width + STATE_SIZE + c];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Outcome of one RAIM/FDE run
+     */
+    static class RaimResult {
+        /** False if there was no redundancy (n <= 4) or no valid noise model */
+        boolean available;
+        int degreesOfFreedom;
+        /** Weighted SSE of all satellites */
+        double testStatistic;
+        double threshold;
+        boolean faultDetected;
+        /** PRNs excluded by FDE, the first {@link #excludedCount} entries are valid */
+        final int[] excludedPrns = new int[MAX_SATELLITES];
+        int excludedCount;
+        /** Weighted SSE and threshold of the remaining satellites after exclusion */
+        double postExclusionTestStatistic;
+        double postExclusionThreshold;
+        /** True if the remaining satellites pass the chi-square test */
+        boolean exclusionSucceeded;
+
+        private void clear() {
+            available = false;
+            degreesOfFreedom = 0;
+            testStatistic = 0;
+            threshold = 0;
+            faultDetected = false;
+            excludedCount = 0;
+            postExclusionTestStatistic = 0;
+            postExclusionThreshold = 0;
+            exclusionSucceeded = false;
+        }
+
+        /**
+         * Returns [testStatistic, threshold, postExclusionTestStatistic, excluded PRNs...] for the
+         * file log.
+         */
+        double[] toLogArray() {
+            double[] logArray = new double[3 + excludedCount];
+            logArray[0] = testStatistic;
+            logArray[1] = threshold;
+            logArray[2] = postExclusionTestStatistic;
+            for (int i = 0; i < excludedCount; i++) {
+                logArray[3 + i] = excludedPrns[i];
+            }
+            return logArray;
+        }
+    }
+}
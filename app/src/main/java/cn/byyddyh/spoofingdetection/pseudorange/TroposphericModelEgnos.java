@@ -131,7 +131,7 @@ public class TroposphericModelEgnos {
    * and accuracy with satellites as low as 2 degrees elevation.
    * <p>Source: http://gauss2.gge.unb.ca/papers.pdf/iongpsgnss2003.guo.pdf
    */
-  private static DryAndWetMappingValues computeDryAndWetMappingValuesUsingUNBabcMappingFunction(
+  static DryAndWetMappingValues computeDryAndWetMappingValuesUsingUNBabcMappingFunction(
       double satElevationRadians, double userLatitudeRadians, double heightMetersAboveSeaLevel) {
 
     if (satElevationRadians > Math.PI / 2.0) {
@@ -177,7 +177,7 @@ public class TroposphericModelEgnos {
    * (http://espace.library.curtin.edu.au/cgi-bin/espace.pdf?file=/2008/11/13/file_1/18917)
    *
    */
-  private static DryAndWetZenithDelays calculateZenithDryAndWetDelaysSec(double userLatitudeRadians,
+  static DryAndWetZenithDelays calculateZenithDryAndWetDelaysSec(double userLatitudeRadians,
       double heightMetersAboveSeaLevel, int dayOfYear1To366) {
     // interpolated meteorological values
     double pressureMbar;
@@ -304,7 +304,7 @@ public class TroposphericModelEgnos {
    *
    * A class containing dry and wet mapping values
    */
-  private static class DryAndWetMappingValues {
+  static class DryAndWetMappingValues {
     public double dryMappingValue;
     public double wetMappingValue;
 
@@ -318,7 +318,7 @@ public class TroposphericModelEgnos {
    *
    * A class containing dry and wet delays in seconds experienced at zenith
    */
-  private static class DryAndWetZenithDelays {
+  static class DryAndWetZenithDelays {
     public double dryZenithDelaySec;
     public double wetZenithDelaySec;
 
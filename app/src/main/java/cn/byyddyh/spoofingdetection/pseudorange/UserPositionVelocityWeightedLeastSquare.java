@@ -30,16 +30,17 @@ import com.google.firebase.crashlytics.buildtools.reloc.com.google.common.collec
 
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.LUDecomposition;
-import org.apache.commons.math3.linear.QRDecomposition;
 import org.apache.commons.math3.linear.RealMatrix;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import cn.byyddyh.spoofingdetection.LogFragment;
 import cn.byyddyh.spoofingdetection.MainActivity;
+import cn.byyddyh.spoofingdetection.matrix.Matrix3;
 
 /**
  * Computes an iterative least square receiver position solution given the pseudorange (meters) and
@@ -76,27 +77,59 @@ class UserPositionVelocityWeightedLeastSquare {
     private static final double SECONDS_PER_NANO = 1.0e-9;
     private static final double DOUBLE_ROUND_OFF_TOLERANCE = 0.0000000001;
 
-    private final PseudorangeSmoother pseudorangeSmoother;
-    private double geoidHeightMeters;
-    private ElevationApiHelper elevationApiHelper;
-    private boolean calculateGeoidMeters = true;
-    private RealMatrix geometryMatrix;
+    private PseudorangeSmoother pseudorangeSmoother;
+    private final AtmosphericCorrectionCache atmosphericCorrectionCache;
+    /** Ephemerides of the last navigation message solved with, by PRN */
+    private EphemerisTable ephemerisTable;
+    private Array2DRowRealMatrix geometryMatrix;
     private double[] truthLocationForCorrectedResidualComputationEcef = null;
+    private final RaimFaultDetector raimFaultDetector = new RaimFaultDetector();
+    private final MultiFaultSubsetSearch multiFaultSubsetSearch;
+    /** ECEF positions of the satellites used by the last solution, indexed by PRN - 1, NaN if unused */
+    private final double[][] satellitePositionsEcefMeters =
+            new double[GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES][3];
+    /* Normal matrices kept over epochs, weighted by the pseudorange and pseudorange rate variances
+     and with unit weights for the DOP */
+    private final GeometryTracker positionGeometry = new GeometryTracker();
+    private final GeometryTracker velocityGeometry = new GeometryTracker();
+    private final GeometryTracker dopGeometry = new GeometryTracker();
+    /** GDOP, PDOP, HDOP, VDOP and TDOP of the last solution */
+    private final double[] dop = new double[5];
 
     /**
-     * Constructor
+     * Constructor, heights above sea level come from {@link GeoidHeightGrid#getDefault()}
      */
     public UserPositionVelocityWeightedLeastSquare(PseudorangeSmoother pseudorangeSmoother) {
-        this.pseudorangeSmoother = pseudorangeSmoother;
+        this(pseudorangeSmoother, null);
+    }
+
+    /**
+     * Constructor with the geoid grid giving heights above sea level, {@code null} for the default
+     */
+    public UserPositionVelocityWeightedLeastSquare(PseudorangeSmoother pseudorangeSmoother,
+                                                   GeoidHeightGrid geoidHeightGrid) {
+        this(pseudorangeSmoother, geoidHeightGrid, null);
     }
 
     /**
-     * Constructor with Google Elevation API Key
+     * Constructor for batch processing on the JVM, the multi-fault subset searches of all the
+     * instances share {@code subsetSearchPool}, which the caller shuts down once done
+     *
+     * @param subsetSearchPool {@code null} to search on the calling thread, as on the device
      */
     public UserPositionVelocityWeightedLeastSquare(PseudorangeSmoother pseudorangeSmoother,
-                                                   String elevationApiKey) {
+                                                   GeoidHeightGrid geoidHeightGrid,
+                                                   ForkJoinPool subsetSearchPool) {
+        this.pseudorangeSmoother = pseudorangeSmoother;
+        this.atmosphericCorrectionCache = new AtmosphericCorrectionCache(geoidHeightGrid);
+        this.multiFaultSubsetSearch = new MultiFaultSubsetSearch(raimFaultDetector, subsetSearchPool);
+    }
+
+    /**
+     * Replaces the smoother applied to the pseudoranges of the next epochs
+     */
+    void setPseudorangeSmoother(PseudorangeSmoother pseudorangeSmoother) {
         this.pseudorangeSmoother = pseudorangeSmoother;
-        this.elevationApiHelper = new ElevationApiHelper(elevationApiKey);
     }
 
     /**
@@ -114,6 +147,20 @@ class UserPositionVelocityWeightedLeastSquare {
     private int initLen = 10;                                                       // 系统初始化时间
     private int errorPseLimit = 200;                                                // 最大伪距误差
 
+    /**
+     * Restores the receiver clock and the initialization progress of an earlier run, see
+     * {@link WarmStartSnapshot}
+     */
+    void restoreReceiverClock(double clockBiasMeters, double clockBiasRateMps, int initCount) {
+        this.receiverClockBias = clockBiasMeters;
+        this.receiverClockBiasRate = clockBiasRateMps;
+        this.initCount = Math.max(0, Math.min(initCount, initLen));
+    }
+
+    int getInitCount() {
+        return initCount;
+    }
+
     /**
      * Least square solution to calculate the user position given the navigation message, pseudorange
      * and accumulated delta range measurements. Also calculates user velocity non-iteratively from
@@ -307,38 +354,20 @@ class UserPositionVelocityWeightedLeastSquare {
 
             // Calculate the geometry matrix according to "Global Positioning System: Theory and
             // Applications", Parkinson and Spilker page 413
-            RealMatrix covarianceMatrixM2 =
-                    new Array2DRowRealMatrix(satPosPseudorangeResidualAndWeight.covarianceMatrixMetersSquare);
-
             geometryMatrix = new Array2DRowRealMatrix(calculateGeometryMatrix(
                     satPosPseudorangeResidualAndWeight.satellitesPositionsMeters,
-                    positionVelocitySolutionECEF));
-            RealMatrix weightedGeometryMatrix;
-            RealMatrix weightMatrixMetersMinus2 = null;
+                    positionVelocitySolutionECEF), false);
 
             // Apply weighted least square only if the covariance matrix is not singular (has a non-zero
             // determinant), otherwise apply ordinary least square. The reason is to ignore reported
             // signal to noise ratios by the receiver that can lead to such singularities
             // 仅当协方差矩阵不是奇异的（具有非零行列式）时应用加权最小二乘，否则应用普通最小二乘。原因是忽略了接收机报告的可能导致这种奇异性的信噪比
-            LUDecomposition ludCovMatrixM2 = new LUDecomposition(covarianceMatrixM2);
-            double det = ludCovMatrixM2.getDeterminant();
+            LeastSquareWeights weightsMetersMinus2 = LeastSquareWeights.fromCovariance(
+                    satPosPseudorangeResidualAndWeight.covarianceMatrixMetersSquare,
+                    DOUBLE_ROUND_OFF_TOLERANCE);
 
-            if (det <= DOUBLE_ROUND_OFF_TOLERANCE) {
-                // Do not weight the geometry matrix if covariance matrix is singular.
-                weightedGeometryMatrix = geometryMatrix;
-            } else {
-                weightMatrixMetersMinus2 = ludCovMatrixM2.getSolver().getInverse();
-                RealMatrix hMatrix =
-                        calculateHMatrix(weightMatrixMetersMinus2, geometryMatrix);
-                weightedGeometryMatrix = hMatrix.multiply(geometryMatrix.transpose())
-                        .multiply(weightMatrixMetersMinus2);
-            }
-
-            // Equation 9 page 413 from "Global Positioning System: Theory and Applications", Parkinson
-            // and Spilker
-            deltaPositionMeters =
-                    GpsMathOperations.matrixByColVectMultiplication(weightedGeometryMatrix.getData(),
-                            satPosPseudorangeResidualAndWeight.pseudorangeResidualsMeters);
+            deltaPositionMeters = calculateDeltaPositionMeters(weightsMetersMinus2,
+                    satPosPseudorangeResidualAndWeight.pseudorangeResidualsMeters);
 
             // Apply corrections to the position estimate
             positionVelocitySolutionECEF[0] += deltaPositionMeters[0];
@@ -358,7 +387,7 @@ class UserPositionVelocityWeightedLeastSquare {
                             deltaPositionMeters,
                             doAtmosphericCorrections,
                             satPosPseudorangeResidualAndWeight,
-                            weightMatrixMetersMinus2);
+                            weightsMetersMinus2);
 
             // We use the first WLS iteration results and correct them based on the ground truth position
             // and using a clock error computed from high elevation satellites. The first iteration is
@@ -391,8 +420,18 @@ class UserPositionVelocityWeightedLeastSquare {
                             satPosPseudorangeResidualAndWeight,
                             satsWithResidualBelowThreshold);
 
+            // Once no satellite exceeds the fixed residual threshold, run the RAIM chi-square test on
+            // the weighted residuals and exclude faulty satellites found by FDE
+            // 当没有卫星超过固定残差阈值后，对加权残差进行RAIM卡方检验，并排除FDE识别出的故障卫星
+            if (!repeatLeastSquare) {
+                repeatLeastSquare =
+                        excludeFaultySatsByRaim(
+                                mutableSmoothedSatellitesToReceiverMeasurements,
+                                satPosPseudorangeResidualAndWeight);
+            }
+
         } while (repeatLeastSquare);
-        calculateGeoidMeters = false;
+        storeSatellitePositions(satPosPseudorangeResidualAndWeight);
 
         // The computed ECEF position will be used next to compute the user velocity.
         // we calculate and fill in the user velocity solutions based on following equation:
@@ -404,11 +443,9 @@ class UserPositionVelocityWeightedLeastSquare {
         // Get the number of satellite used in Geometry Matrix
         numberOfUsefulSatellites = geometryMatrix.getRowDimension();
 
-        RealMatrix rangeRateMps = new Array2DRowRealMatrix(numberOfUsefulSatellites, 1);
-        RealMatrix deltaPseudoRangeRateMps =
-                new Array2DRowRealMatrix(numberOfUsefulSatellites, 1);
-        RealMatrix pseudorangeRateWeight
-                = new Array2DRowRealMatrix(numberOfUsefulSatellites, numberOfUsefulSatellites);
+        double[][] geometryMatrixData = geometryMatrix.getDataRef();
+        double[] deltaPseudoRangeRateMps = new double[numberOfUsefulSatellites];
+        double[] pseudorangeRateWeight = new double[numberOfUsefulSatellites];
 
         // Correct the receiver time of week with the estimated receiver clock bias
         // 使用估计的接收器时钟偏差校正接收器每周的时间
@@ -446,57 +483,73 @@ class UserPositionVelocityWeightedLeastSquare {
                                 correctedTowAndWeek.weekNumber);
 
                 // Fill in range rates. range rate = satellite velocity (dot product) line-of-sight vector
-                rangeRateMps.setEntry(measurementCount, 0, -1 * (
-                        satPosECEFMetersVelocityMPS.velocityXMetersPerSec
-                                * geometryMatrix.getEntry(measurementCount, 0)
-                                + satPosECEFMetersVelocityMPS.velocityYMetersPerSec
-                                * geometryMatrix.getEntry(measurementCount, 1)
-                                + satPosECEFMetersVelocityMPS.velocityZMetersPerSec
-                                * geometryMatrix.getEntry(measurementCount, 2)));
-
-                deltaPseudoRangeRateMps.setEntry(measurementCount, 0,
+                double[] lineOfSight = geometryMatrixData[measurementCount];
+                double rangeRateMps = -1 * (
+                        satPosECEFMetersVelocityMPS.velocityXMetersPerSec * lineOfSight[0]
+                                + satPosECEFMetersVelocityMPS.velocityYMetersPerSec * lineOfSight[1]
+                                + satPosECEFMetersVelocityMPS.velocityZMetersPerSec * lineOfSight[2]);
+
+                deltaPseudoRangeRateMps[measurementCount] =
                         mutableSmoothedSatellitesToReceiverMeasurements.get(i).pseudorangeRateMps
-                                - rangeRateMps.getEntry(measurementCount, 0) + satelliteClockErrorRateMps
-                                - positionVelocitySolutionECEF[7]);
+                                - rangeRateMps + satelliteClockErrorRateMps
+                                - positionVelocitySolutionECEF[7];
 
                 // Calculate the velocity weight matrix by using 1 / square(PseudorangeRate Uncertainty)
                 // along the diagonal
-                pseudorangeRateWeight.setEntry(measurementCount, measurementCount,
-                        1 / (mutableSmoothedSatellitesToReceiverMeasurements
-                                .get(i).pseudorangeRateUncertaintyMps
-                                * mutableSmoothedSatellitesToReceiverMeasurements
-                                .get(i).pseudorangeRateUncertaintyMps));
+                double pseudorangeRateUncertaintyMps = mutableSmoothedSatellitesToReceiverMeasurements
+                        .get(i).pseudorangeRateUncertaintyMps;
+                pseudorangeRateWeight[measurementCount] =
+                        1 / (pseudorangeRateUncertaintyMps * pseudorangeRateUncertaintyMps);
                 measurementCount++;
             }
         }
 
-        RealMatrix weightedGeoMatrix = pseudorangeRateWeight.multiply(geometryMatrix);
-        RealMatrix deltaPseudoRangeRateWeightedMps =
-                pseudorangeRateWeight.multiply(deltaPseudoRangeRateMps);
-        QRDecomposition qrdWeightedGeoMatrix = new QRDecomposition(weightedGeoMatrix);
-        RealMatrix velocityMps
-                = qrdWeightedGeoMatrix.getSolver().solve(deltaPseudoRangeRateWeightedMps);
-        positionVelocitySolutionECEF[4] = velocityMps.getEntry(0, 0);
-        positionVelocitySolutionECEF[5] = velocityMps.getEntry(1, 0);
-        positionVelocitySolutionECEF[6] = velocityMps.getEntry(2, 0);
-        positionVelocitySolutionECEF[7] = velocityMps.getEntry(3, 0);
-
-        RealMatrix pseudorangeWeight
-                = new LUDecomposition(
-                new Array2DRowRealMatrix(satPosPseudorangeResidualAndWeight.covarianceMatrixMetersSquare
-                )
-        ).getSolver().getInverse();
+        // Least square solution of Weight * GeometryMatrix * v = Weight * delta, the residuals are
+        // weighted by the square of the weights
+        double[] squaredPseudorangeRateWeight = new double[numberOfUsefulSatellites];
+        for (int i = 0; i < numberOfUsefulSatellites; i++) {
+            squaredPseudorangeRateWeight[i] = pseudorangeRateWeight[i] * pseudorangeRateWeight[i];
+        }
+        double[] velocityMps = LeastSquareWeights.fromDiagonal(squaredPseudorangeRateWeight)
+                .solve(geometryMatrixData, deltaPseudoRangeRateMps);
+        System.arraycopy(velocityMps, 0, positionVelocitySolutionECEF, 4, 4);
+
+        LeastSquareWeights pseudorangeWeight = LeastSquareWeights.fromCovariance(
+                satPosPseudorangeResidualAndWeight.covarianceMatrixMetersSquare,
+                Double.NEGATIVE_INFINITY);
 
         // Calculate and store the uncertainties of position and velocity in local ENU system in meters
-        // and meters per second.
-        double[] pvUncertainty =
-                calculatePositionVelocityUncertaintyEnu(pseudorangeRateWeight, pseudorangeWeight,
-                        positionVelocitySolutionECEF);
-        System.arraycopy(pvUncertainty,
-                0 /*source starting pos*/,
-                positionVelocityUncertaintyEnu,
-                0 /*destination starting pos*/,
-                6 /*length of elements*/);
+        // and meters per second. With uncorrelated pseudoranges the normal matrices are only updated
+        // for the satellites that appeared, dropped or moved since the last epoch.
+        Ecef2LlaConverter.GeodeticLlaValues llaValues = Ecef2LlaConverter.convertECEFToLLACloseForm(
+                positionVelocitySolutionECEF[0], positionVelocitySolutionECEF[1],
+                positionVelocitySolutionECEF[2]);
+        int[] satellitePRNs = satPosPseudorangeResidualAndWeight.satellitePRNs;
+        double[] pseudorangeWeightDiagonal = pseudorangeWeight.getDiagonal();
+        if (pseudorangeWeightDiagonal != null) {
+            updateGeometry(positionGeometry, satellitePRNs, geometryMatrixData,
+                    pseudorangeWeightDiagonal);
+            updateGeometry(velocityGeometry, satellitePRNs, geometryMatrixData, pseudorangeRateWeight);
+            positionGeometry.computeEnuStandardDeviations(llaValues.latitudeRadians,
+                    llaValues.longitudeRadians, positionVelocityUncertaintyEnu, 0);
+            velocityGeometry.computeEnuStandardDeviations(llaValues.latitudeRadians,
+                    llaValues.longitudeRadians, positionVelocityUncertaintyEnu, 3);
+        } else {
+            double[] pvUncertainty = rotateUncertaintyToEnu(
+                    LeastSquareWeights.fromDiagonal(pseudorangeRateWeight).calculateHMatrix(geometryMatrixData),
+                    pseudorangeWeight.calculateHMatrix(geometryMatrixData),
+                    positionVelocitySolutionECEF);
+            System.arraycopy(pvUncertainty,
+                    0 /*source starting pos*/,
+                    positionVelocityUncertaintyEnu,
+                    0 /*destination starting pos*/,
+                    6 /*length of elements*/);
+        }
+        updateGeometry(dopGeometry, satellitePRNs, geometryMatrixData, null);
+        dopGeometry.computeDop(llaValues.latitudeRadians, llaValues.longitudeRadians, dop);
+        if (LogFragment.writableFlag && initCount >= initLen) {
+            LogFragment.fileLogger.storeArrayData("DOP", dop);
+        }
 
         receiverClockBias = positionVelocitySolutionECEF[3];
         receiverClockBiasRate = positionVelocitySolutionECEF[7];
@@ -510,36 +563,46 @@ class UserPositionVelocityWeightedLeastSquare {
         }
     }
 
-    private double smoothingFactor = 0.5; // 平滑因子
-    private double[] lastSmoothedPseudorange = new double[32]; // 上一个平滑伪距值
     /**
-     * 计算平滑伪距
-     * */
-    public List<Double> calculateSmoothedPseudoranges(List<GpsMeasurementWithRangeAndUncertainty> copySatellitesToReceiverMeasurements) {
-        List<Double> pseError = new ArrayList<>();
-
-        for (int i = 0; i < copySatellitesToReceiverMeasurements.size(); i++) {
-            if (copySatellitesToReceiverMeasurements.get(i) != null) {
-                double pseudorange = copySatellitesToReceiverMeasurements.get(i).pseudorangeMeters;
-                double pseudorangeRate = copySatellitesToReceiverMeasurements.get(i).pseudorangeRateMps;
-
-                double smoothedPseudorange;
-                if (i == 0) {
-                    // 第一个平滑伪距值等于第一个伪距值
-                    smoothedPseudorange = pseudorange;
-                    lastSmoothedPseudorange[i] = pseudorange;
-                } else {
-                    // 计算平滑伪距
-                    smoothedPseudorange = smoothingFactor * pseudorange
-                            + (1 - smoothingFactor) * (lastSmoothedPseudorange[i] + pseudorangeRate);
-                }
+     * Returns GDOP, PDOP, HDOP, VDOP and TDOP of the satellites used by the last solution, NaN if
+     * their geometry does not determine the position.
+     */
+    public double[] getDop() {
+        return dop;
+    }
 
-                lastSmoothedPseudorange[i] = smoothedPseudorange;
-                pseError.add(smoothedPseudorange - pseudorange);
-            }
+    /**
+     * Sets the rows of the satellites used by the solution in {@code geometry}
+     *
+     * @param weights 1 / sigma^2 of each row, {@code null} for unit weights
+     */
+    private static void updateGeometry(GeometryTracker geometry, int[] satellitePRNs,
+                                       double[][] geometryMatrixData, double[] weights) {
+        geometry.beginEpoch();
+        for (int i = 0; i < satellitePRNs.length; i++) {
+            geometry.setRow(satellitePRNs[i], geometryMatrixData[i], weights == null ? 1.0 : weights[i]);
         }
+        geometry.endEpoch();
+    }
 
-        return pseError;
+    /**
+     * Returns the ECEF positions of the satellites used by the last solution, indexed by PRN - 1.
+     * Rows of unused satellites are NaN.
+     */
+    public double[][] getSatellitePositionsEcefMeters() {
+        return satellitePositionsEcefMeters;
+    }
+
+    private void storeSatellitePositions(
+            SatellitesPositionPseudorangesResidualAndCovarianceMatrix satPosPseudorangeResidualAndWeight) {
+        for (double[] position : satellitePositionsEcefMeters) {
+            Arrays.fill(position, Double.NaN);
+        }
+        for (int i = 0; i < satPosPseudorangeResidualAndWeight.satellitePRNs.length; i++) {
+            System.arraycopy(satPosPseudorangeResidualAndWeight.satellitesPositionsMeters[i], 0,
+                    satellitePositionsEcefMeters[satPosPseudorangeResidualAndWeight.satellitePRNs[i] - 1],
+                    0, 3);
+        }
     }
 
     /**
@@ -564,27 +627,49 @@ class UserPositionVelocityWeightedLeastSquare {
             return null;
         }
 
-        RealMatrix velocityH = calculateHMatrix(velocityWeightMatrix, geometryMatrix);
-        RealMatrix positionH = calculateHMatrix(positionWeightMatrix, geometryMatrix);
+        return rotateUncertaintyToEnu(calculateHMatrix(velocityWeightMatrix, geometryMatrix),
+                calculateHMatrix(positionWeightMatrix, geometryMatrix), positionVelocitySolution);
+    }
+
+    /**
+     * Position and velocity uncertainties in ENU from the H matrices of
+     * {@link #calculateHMatrix}, as returned by {@link #calculatePositionVelocityUncertaintyEnu}
+     */
+    private double[] rotateUncertaintyToEnu(RealMatrix velocityH, RealMatrix positionH,
+                                            double[] positionVelocitySolution) {
 
         // Calculate the rotation Matrix to convert to local ENU system.
-        RealMatrix rotationMatrix = new Array2DRowRealMatrix(4, 4);
+        double[] rotationMatrix = new double[Matrix3.SIZE * Matrix3.SIZE];
         Ecef2LlaConverter.GeodeticLlaValues llaValues = Ecef2LlaConverter.convertECEFToLLACloseForm
                 (positionVelocitySolution[0], positionVelocitySolution[1], positionVelocitySolution[2]);
-        rotationMatrix.setSubMatrix(
-                Ecef2EnuConverter.getRotationMatrix(llaValues.longitudeRadians,
-                        llaValues.latitudeRadians).getData(), 0, 0);
-        rotationMatrix.setEntry(3, 3, 1);
+        Ecef2EnuConverter.getRotationMatrix(llaValues.latitudeRadians, llaValues.longitudeRadians,
+                rotationMatrix);
 
-        // Convert to local ENU by pre-multiply rotation matrix and multiply rotation matrix transposed
-        velocityH = rotationMatrix.multiply(velocityH).multiply(rotationMatrix.transpose());
-        positionH = rotationMatrix.multiply(positionH).multiply(rotationMatrix.transpose());
+        // Convert to local ENU by pre-multiply rotation matrix and multiply rotation matrix
+        // transposed, the clock rows do not enter the diagonal of the 3 x 3 blocks
+        double[] velocityEnu = rotateBlock(rotationMatrix, velocityH);
+        double[] positionEnu = rotateBlock(rotationMatrix, positionH);
 
         // Return the square root of diagonal entries
         return new double[]{
-                Math.sqrt(positionH.getEntry(0, 0)), Math.sqrt(positionH.getEntry(1, 1)),
-                Math.sqrt(positionH.getEntry(2, 2)), Math.sqrt(velocityH.getEntry(0, 0)),
-                Math.sqrt(velocityH.getEntry(1, 1)), Math.sqrt(velocityH.getEntry(2, 2))};
+                Math.sqrt(positionEnu[0]), Math.sqrt(positionEnu[4]),
+                Math.sqrt(positionEnu[8]), Math.sqrt(velocityEnu[0]),
+                Math.sqrt(velocityEnu[4]), Math.sqrt(velocityEnu[8])};
+    }
+
+    /**
+     * {@code R H3 R'} for the upper left 3 x 3 block {@code H3} of {@code h}, row major
+     */
+    private static double[] rotateBlock(double[] rotationMatrix, RealMatrix h) {
+        double[] block = new double[Matrix3.SIZE * Matrix3.SIZE];
+        for (int i = 0; i < Matrix3.SIZE; i++) {
+            for (int j = 0; j < Matrix3.SIZE; j++) {
+                block[Matrix3.SIZE * i + j] = h.getEntry(i, j);
+            }
+        }
+        double[] rotated = new double[Matrix3.SIZE * Matrix3.SIZE];
+        Matrix3.rotateSymmetric(rotationMatrix, block, rotated);
+        return rotated;
     }
 
     /**
@@ -605,6 +690,23 @@ class UserPositionVelocityWeightedLeastSquare {
         return new LUDecomposition(tempH).getSolver().getInverse();
     }
 
+    /**
+     * Correction to the position and clock bias from the pseudorange residuals on the current
+     * {@link #geometryMatrix}, equation 9 page 413 from "Global Positioning System: Theory and
+     * Applications", Parkinson and Spilker
+     *
+     * @param weightsMetersMinus2 {@code null} for ordinary least square
+     */
+    private double[] calculateDeltaPositionMeters(LeastSquareWeights weightsMetersMinus2,
+                                                  double[] pseudorangeResidualsMeters) {
+        if (weightsMetersMinus2 == null) {
+            // Do not weight the geometry matrix if covariance matrix is singular.
+            return GpsMathOperations.matrixByColVectMultiplication(geometryMatrix.getData(),
+                    pseudorangeResidualsMeters);
+        }
+        return weightsMetersMinus2.solve(geometryMatrix.getDataRef(), pseudorangeResidualsMeters);
+    }
+
     /**
      * Applies weighted least square iterations and corrects to the position solution until correction
      * is below threshold. An exception is thrown if the maximum number of iterations:
@@ -621,9 +723,8 @@ class UserPositionVelocityWeightedLeastSquare {
             double[] deltaPositionMeters,
             boolean doAtmosphericCorrections,
             SatellitesPositionPseudorangesResidualAndCovarianceMatrix satPosPseudorangeResidualAndWeight,
-            RealMatrix weightMatrixMetersMinus2)
+            LeastSquareWeights weightsMetersMinus2)
             throws Exception {
-        RealMatrix weightedGeometryMatrix;
         int numberOfIterations = 0;
 
         while ((Math.abs(deltaPositionMeters[0]) + Math.abs(deltaPositionMeters[1])
@@ -649,26 +750,12 @@ class UserPositionVelocityWeightedLeastSquare {
             // Calculate the geometry matrix according to "Global Positioning System: Theory and
             // Applications", Parkinson and Spilker page 413
             geometryMatrix = new Array2DRowRealMatrix(calculateGeometryMatrix(
-                    satPosPseudorangeResidualAndWeight.satellitesPositionsMeters, positionSolutionECEF));
-            // Apply weighted least square only if the covariance matrix is
-            // not singular (has a non-zero determinant), otherwise apply ordinary least square.
-            // The reason is to ignore reported signal to noise ratios by the receiver that can
-            // lead to such singularities
-            if (weightMatrixMetersMinus2 == null) {
-                weightedGeometryMatrix = geometryMatrix;
-            } else {
-                RealMatrix hMatrix =
-                        calculateHMatrix(weightMatrixMetersMinus2, geometryMatrix);
-                weightedGeometryMatrix = hMatrix.multiply(geometryMatrix.transpose())
-                        .multiply(weightMatrixMetersMinus2);
-            }
-
-            // Equation 9 page 413 from "Global Positioning System: Theory and Applications",
-            // Parkinson and Spilker
-            deltaPositionMeters =
-                    GpsMathOperations.matrixByColVectMultiplication(
-                            weightedGeometryMatrix.getData(),
-                            satPosPseudorangeResidualAndWeight.pseudorangeResidualsMeters);
+                    satPosPseudorangeResidualAndWeight.satellitesPositionsMeters, positionSolutionECEF),
+                    false);
+            // Weighted least square only if the covariance matrix is not singular, as decided
+            // on the first iteration
+            deltaPositionMeters = calculateDeltaPositionMeters(weightsMetersMinus2,
+                    satPosPseudorangeResidualAndWeight.pseudorangeResidualsMeters);
 
             // Apply corrections to the position estimate
             positionSolutionECEF[0] += deltaPositionMeters[0];
@@ -682,6 +769,63 @@ class UserPositionVelocityWeightedLeastSquare {
         return satPosPseudorangeResidualAndWeight;
     }
 
+    /**
+     * Runs RAIM fault detection and exclusion on the converged solution. If a fault is detected the
+     * multi-fault subset search looks for the smallest consistent subset, falling back to the greedy
+     * RAIM exclusion when it finds none within its time budget. The test results are logged on every
+     * epoch, the excluded satellites are only removed from
+     * {@code usefulSatellitesToReceiverMeasurements} if anti-spoofing is enabled. Returns true if any
+     * satellite is removed.
+     */
+    private boolean excludeFaultySatsByRaim(
+            List<GpsMeasurementWithRangeAndUncertainty> usefulSatellitesToReceiverMeasurements,
+            SatellitesPositionPseudorangesResidualAndCovarianceMatrix satPosPseudorangeResidualAndWeight) {
+        int numberOfSatellites = satPosPseudorangeResidualAndWeight.pseudorangeResidualsMeters.length;
+        double[] variancesMetersSquare = new double[numberOfSatellites];
+        for (int i = 0; i < numberOfSatellites; i++) {
+            variancesMetersSquare[i] =
+                    satPosPseudorangeResidualAndWeight.covarianceMatrixMetersSquare[i][i];
+        }
+        double[][] geometryMatrixData = geometryMatrix.getData();
+        RaimFaultDetector.RaimResult raimResult =
+                raimFaultDetector.detectAndExclude(
+                        geometryMatrixData,
+                        satPosPseudorangeResidualAndWeight.pseudorangeResidualsMeters,
+                        variancesMetersSquare,
+                        satPosPseudorangeResidualAndWeight.satellitePRNs);
+        if (!raimResult.available) {
+            return false;
+        }
+        boolean logResults = LogFragment.writableFlag && initCount >= initLen;
+        if (logResults) {
+            LogFragment.fileLogger.storeArrayData("RAIM", raimResult.toLogArray());
+        }
+        int[] excludedPrns = raimResult.excludedPrns;
+        int excludedCount = raimResult.excludedCount;
+        if (raimResult.faultDetected) {
+            MultiFaultSubsetSearch.SubsetSearchResult searchResult =
+                    multiFaultSubsetSearch.search(
+                            geometryMatrixData,
+                            satPosPseudorangeResidualAndWeight.pseudorangeResidualsMeters,
+                            variancesMetersSquare,
+                            satPosPseudorangeResidualAndWeight.satellitePRNs);
+            if (logResults) {
+                LogFragment.fileLogger.storeArrayData("Subset Search", searchResult.toLogArray());
+            }
+            if (searchResult.found) {
+                excludedPrns = searchResult.excludedPrns;
+                excludedCount = searchResult.excludedCount;
+            }
+        }
+        if (!MainActivity.isUsedAntiSpoof || excludedCount == 0) {
+            return false;
+        }
+        for (int i = 0; i < excludedCount; i++) {
+            usefulSatellitesToReceiverMeasurements.set(excludedPrns[i] - 1, null);
+        }
+        return true;
+    }
+
     /**
      * Removes satellites that have residuals above {@value #RESIDUAL_TO_REPEAT_LEAST_SQUARE_METERS}
      * from the {@code usefulSatellitesToReceiverMeasurements} list. Returns true if any satellite is
@@ -898,21 +1042,20 @@ class UserPositionVelocityWeightedLeastSquare {
                 double troposphericCorrectionMeters;
                 if (doAtmosphericCorrections) {
                     ionosphericCorrectionMeters =
-                            IonosphericModel.ionoKlobucharCorrectionSeconds(
+                            atmosphericCorrectionCache.getIonosphericCorrectionMeters(
+                                    i + 1,
                                     userPositionTempECEFMeters,
                                     satellitesPositionsECEFMeters[satsCounter],
                                     correctedTowAndWeek.gpsTimeOfWeekSeconds,
                                     alpha,
-                                    beta,
-                                    IonosphericModel.L1_FREQ_HZ)
-                                    * SPEED_OF_LIGHT_MPS;
+                                    beta);
 
                     troposphericCorrectionMeters =
-                            calculateTroposphericCorrectionMeters(
-                                    dayOfYear1To366,
-                                    satellitesPositionsECEFMeters,
+                            atmosphericCorrectionCache.getTroposphericCorrectionMeters(
+                                    i + 1,
                                     userPositionTempECEFMeters,
-                                    satsCounter);
+                                    satellitesPositionsECEFMeters[satsCounter],
+                                    dayOfYear1To366);
                 } else {
                     troposphericCorrectionMeters = 0.0;
                     ionosphericCorrectionMeters = 0.0;
@@ -997,21 +1140,20 @@ class UserPositionVelocityWeightedLeastSquare {
                 double troposphericCorrectionMeters;
                 if (doAtmosphericCorrections) {
                     ionosphericCorrectionMeters =
-                            IonosphericModel.ionoKlobucharCorrectionSeconds(
+                            atmosphericCorrectionCache.getIonosphericCorrectionMeters(
+                                    i + 1,
                                     userPositionTempECEFMeters,
                                     satellitesPositionsECEFMeters[satsCounter],
                                     correctedTowAndWeek.gpsTimeOfWeekSeconds,
                                     alpha,
-                                    beta,
-                                    IonosphericModel.L1_FREQ_HZ)
-                                    * SPEED_OF_LIGHT_MPS;
+                                    beta);
 
                     troposphericCorrectionMeters =
-                            calculateTroposphericCorrectionMeters(
-                                    dayOfYear1To366,
-                                    satellitesPositionsECEFMeters,
+                            atmosphericCorrectionCache.getTroposphericCorrectionMeters(
+                                    i + 1,
                                     userPositionTempECEFMeters,
-                                    satsCounter);
+                                    satellitesPositionsECEFMeters[satsCounter],
+                                    dayOfYear1To366);
                 } else {
                     troposphericCorrectionMeters = 0.0;
                     ionosphericCorrectionMeters = 0.0;
@@ -1034,22 +1176,12 @@ class UserPositionVelocityWeightedLeastSquare {
     }
 
     /**
-     * Searches ephemerides list for the ephemeris associated with current satellite in process
+     * Looks up the ephemeris associated with current satellite in process
      */
     private GpsEphemerisProto getEphemerisForSatellite(GpsNavMessageProto navMessageProto,
                                                        int satPrn) {
-        List<GpsEphemerisProto> ephemeridesList
-                = new ArrayList<GpsEphemerisProto>(Arrays.asList(navMessageProto.ephemerids));
-        GpsEphemerisProto ephemeridesProto = null;
-        int ephemerisPrn = 0;
-        for (GpsEphemerisProto ephProtoFromList : ephemeridesList) {
-            ephemerisPrn = ephProtoFromList.prn;
-            if (ephemerisPrn == satPrn) {
-                ephemeridesProto = ephProtoFromList;
-                break;
-            }
-        }
-        return ephemeridesProto;
+        ephemerisTable = EphemerisTable.forNavMessage(ephemerisTable, navMessageProto);
+        return ephemerisTable.get(satPrn);
     }
 
     /**
@@ -1107,61 +1239,6 @@ class UserPositionVelocityWeightedLeastSquare {
                 - troposphericCorrectionMeters - userPositionECEFMeters[3];
     }
 
-    /**
-     * Calculates the Gps tropospheric correction in meters
-     */
-    private double calculateTroposphericCorrectionMeters(int dayOfYear1To366,
-                                                         double[][] satellitesPositionsECEFMeters, double[] userPositionTempECEFMeters,
-                                                         int satsCounter) {
-        double troposphericCorrectionMeters;
-        EcefToTopocentricConverter.TopocentricAEDValues elevationAzimuthDist =
-                EcefToTopocentricConverter.convertCartesianToTopocentricRadMeters(
-                        userPositionTempECEFMeters, GpsMathOperations.subtractTwoVectors(
-                                satellitesPositionsECEFMeters[satsCounter], userPositionTempECEFMeters));
-
-        Ecef2LlaConverter.GeodeticLlaValues lla =
-                Ecef2LlaConverter.convertECEFToLLACloseForm(userPositionTempECEFMeters[0],
-                        userPositionTempECEFMeters[1], userPositionTempECEFMeters[2]);
-
-        // Geoid of the area where the receiver is located is calculated once and used for the
-        // rest of the dataset as it change very slowly over wide area. This to save the delay
-        // associated with accessing Google Elevation API. We assume this very first iteration of WLS
-        // will compute the correct altitude above the ellipsoid of the ground at the latitude and
-        // longitude
-        if (calculateGeoidMeters) {
-            double elevationAboveSeaLevelMeters = 0;
-            if (elevationApiHelper == null) {
-                System.out.println("No Google API key is set. Elevation above sea level is set to "
-                        + "default 0 meters. This may cause inaccuracy in tropospheric correction.");
-            } else {
-                try {
-                    elevationAboveSeaLevelMeters = elevationApiHelper
-                            .getElevationAboveSeaLevelMeters(
-                                    Math.toDegrees(lla.latitudeRadians), Math.toDegrees(lla.longitudeRadians)
-                            );
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    System.out.println("Error when getting elevation from Google Server. "
-                            + "Could be wrong Api key or network error. Elevation above sea level is set to "
-                            + "default 0 meters. This may cause inaccuracy in tropospheric correction.");
-                }
-            }
-
-            geoidHeightMeters = ElevationApiHelper.calculateGeoidHeightMeters(
-                    lla.altitudeMeters,
-                    elevationAboveSeaLevelMeters
-            );
-            troposphericCorrectionMeters = TroposphericModelEgnos.calculateTropoCorrectionMeters(
-                    elevationAzimuthDist.elevationRadians, lla.latitudeRadians, elevationAboveSeaLevelMeters,
-                    dayOfYear1To366);
-        } else {
-            troposphericCorrectionMeters = TroposphericModelEgnos.calculateTropoCorrectionMeters(
-                    elevationAzimuthDist.elevationRadians, lla.latitudeRadians,
-                    lla.altitudeMeters - geoidHeightMeters, dayOfYear1To366);
-        }
-        return troposphericCorrectionMeters;
-    }
-
     /**
      * Gets the number of useful satellites from a list of
      * {@link GpsMeasurementWithRangeAndUncertainty}.
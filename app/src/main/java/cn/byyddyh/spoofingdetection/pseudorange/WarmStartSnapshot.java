@@ -0,0 +1,296 @@
+package cn.byyddyh.spoofingdetection.pseudorange;
+
+import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+import android.util.Log;
+
+import com.google.protobuf.nano.MessageNano;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * State of the positioning saved between two launches, so that a restart does not have to wait for
+ * SUPL, the broadcast ionospheric page and the warm-up of the least square and Kalman filter again:
+ * the navigation message of the last solution, the position, velocity and receiver clock of that
+ * solution, the Kalman covariance and the warm-up counters.
+ *
+ * <p>The file is a few kilobytes, big endian, closed by a CRC32 of everything before it:
+ *
+ * <pre>
+ * int    magic 'WARM'          int    valid count, int init count
+ * short  version               double covariance, 6 x 6 row major
+ * short  reserved              int    navigation message length
+ * long   saved, Unix millis    byte[] navigation message, nano proto
+ * long   solution, GPS nanos   int    CRC32
+ * double position x, y, z, clock bias, velocity x, y, z, clock bias rate
+ * </pre>
+ *
+ * <p>It is written to a temporary file and renamed, so a crash never leaves a half written
+ * snapshot. What is still usable is decided when it is read back: ephemerides within
+ * {@link #MAX_EPHEMERIS_AGE_SECONDS} of their time of ephemeris, ionospheric parameters up to
+ * {@link #MAX_IONO_AGE_MILLIS} old and the receiver state up to {@link #MAX_STATE_AGE_MILLIS}.
+ */
+public class WarmStartSnapshot {
+
+    public static final String DEFAULT_FILE_NAME = "warm_start.bin";
+
+    /** Half the 4 hour fit interval of a broadcast ephemeris */
+    public static final long MAX_EPHEMERIS_AGE_SECONDS = TimeUnit.HOURS.toSeconds(2);
+    /** The broadcast Klobuchar coefficients are usually updated once a day */
+    public static final long MAX_IONO_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    /**
+     * Older receiver states are not restored: the receiver may have moved away from the saved
+     * position and the clock drift changes with temperature
+     */
+    public static final long MAX_STATE_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final String TAG = "WarmStartSnapshot";
+    private static final int MAGIC = 0x5741524D;
+    private static final short VERSION = 1;
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final int STATE_SIZE = 8;
+    private static final int COVARIANCE_SIZE = 6;
+    private static final long SECONDS_PER_WEEK = TimeUnit.DAYS.toSeconds(7);
+    private static final int GPS_CYCLE_WEEKS = 1024;
+    /** Larger files are not snapshots of this format */
+    private static final int MAX_FILE_BYTES = 64 * 1024;
+
+    private final long mSavedUnixMillis;
+    private final long mSolutionTimeSinceGpsEpochNs;
+    private final double[] mPositionVelocitySolutionEcef;
+    private final int mValidCount;
+    private final int mInitCount;
+    private final double[][] mCovariance;
+    private final GpsNavMessageProto mNavMessage;
+
+    /**
+     * @param positionVelocitySolutionEcef position, clock bias, velocity and clock bias rate as
+     *                                     filled by the least square solver
+     * @param covariance                   6 x 6 Kalman covariance
+     */
+    WarmStartSnapshot(long savedUnixMillis, long solutionTimeSinceGpsEpochNs,
+                      double[] positionVelocitySolutionEcef, int validCount, int initCount,
+                      double[][] covariance, GpsNavMessageProto navMessage) {
+        mSavedUnixMillis = savedUnixMillis;
+        mSolutionTimeSinceGpsEpochNs = solutionTimeSinceGpsEpochNs;
+        mPositionVelocitySolutionEcef = positionVelocitySolutionEcef.clone();
+        mValidCount = validCount;
+        mInitCount = initCount;
+        mCovariance = new double[COVARIANCE_SIZE][];
+        for (int i = 0; i < COVARIANCE_SIZE; i++) {
+            mCovariance[i] = covariance[i].clone();
+        }
+        mNavMessage = navMessage;
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write}
+     *
+     * @return {@code null} if there is no file or it is damaged or of another version
+     */
+    public static WarmStartSnapshot read(File file) {
+        if (!file.isFile() || file.length() > MAX_FILE_BYTES) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) file.length()];
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            input.readFully(bytes);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception reading the warm start snapshot " + file, e);
+            return null;
+        }
+        try {
+            return decode(bytes);
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring warm start snapshot " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    static WarmStartSnapshot decode(byte[] bytes) throws IOException {
+        if (bytes.length < 4) {
+            throw new IOException("Truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        input.skipBytes(bytes.length - 4);
+        if (input.readInt() != (int) crc.getValue()) {
+            throw new IOException("Bad checksum");
+        }
+
+        input = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a warm start snapshot");
+        }
+        short version = input.readShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+        input.readShort();
+        long savedUnixMillis = input.readLong();
+        long solutionTimeSinceGpsEpochNs = input.readLong();
+        double[] positionVelocitySolutionEcef = new double[STATE_SIZE];
+        for (int i = 0; i < STATE_SIZE; i++) {
+            positionVelocitySolutionEcef[i] = input.readDouble();
+        }
+        int validCount = input.readInt();
+        int initCount = input.readInt();
+        double[][] covariance = new double[COVARIANCE_SIZE][COVARIANCE_SIZE];
+        for (int i = 0; i < COVARIANCE_SIZE; i++) {
+            for (int j = 0; j < COVARIANCE_SIZE; j++) {
+                covariance[i][j] = input.readDouble();
+            }
+        }
+        int navMessageLength = input.readInt();
+        if (navMessageLength < 0 || navMessageLength != input.available()) {
+            throw new IOException("Bad navigation message length " + navMessageLength);
+        }
+        byte[] navMessageBytes = new byte[navMessageLength];
+        input.readFully(navMessageBytes);
+        return new WarmStartSnapshot(savedUnixMillis, solutionTimeSinceGpsEpochNs,
+                positionVelocitySolutionEcef, validCount, initCount, covariance,
+                GpsNavMessageProto.parseFrom(navMessageBytes));
+    }
+
+    byte[] encode() throws IOException {
+        byte[] navMessageBytes = MessageNano.toByteArray(mNavMessage);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512 + navMessageBytes.length);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(MAGIC);
+        output.writeShort(VERSION);
+        output.writeShort(0);
+        output.writeLong(mSavedUnixMillis);
+        output.writeLong(mSolutionTimeSinceGpsEpochNs);
+        for (double value : mPositionVelocitySolutionEcef) {
+            output.writeDouble(value);
+        }
+        output.writeInt(mValidCount);
+        output.writeInt(mInitCount);
+        for (double[] row : mCovariance) {
+            for (double value : row) {
+                output.writeDouble(value);
+            }
+        }
+        output.writeInt(navMessageBytes.length);
+        output.write(navMessageBytes);
+        output.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        output.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces {@code file} with this snapshot
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + TEMP_EXTENSION);
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            output.write(encode());
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Returns the part of the saved navigation message still usable at {@code nowUnixMillis}: the
+     * ephemerides whose time of ephemeris is within {@link #MAX_EPHEMERIS_AGE_SECONDS} of the GPS
+     * time then and the ionospheric parameters if the snapshot is less than
+     * {@link #MAX_IONO_AGE_MILLIS} old.
+     *
+     * @return {@code null} if nothing is usable
+     */
+    GpsNavMessageProto getNavMessageValidAt(long nowUnixMillis) {
+        long ageMillis = getAgeMillis(nowUnixMillis);
+        if (ageMillis < 0) {
+            // The clock went backwards, the age of the content is unknown
+            return null;
+        }
+        // GPS time now, from the receiver time of the last solution and the wall clock since
+        long gpsSeconds = TimeUnit.NANOSECONDS.toSeconds(mSolutionTimeSinceGpsEpochNs)
+                + TimeUnit.MILLISECONDS.toSeconds(ageMillis);
+        long gpsWeek = gpsSeconds / SECONDS_PER_WEEK;
+        double gpsTowSeconds = gpsSeconds - gpsWeek * SECONDS_PER_WEEK;
+
+        List<GpsEphemerisProto> ephemerides = new ArrayList<>();
+        if (mNavMessage.ephemerids != null) {
+            for (GpsEphemerisProto ephemeris : mNavMessage.ephemerids) {
+                // Some sources give the week modulo 1024
+                long weeks = Math.floorMod(ephemeris.week - gpsWeek, GPS_CYCLE_WEEKS);
+                if (weeks >= GPS_CYCLE_WEEKS / 2) {
+                    weeks -= GPS_CYCLE_WEEKS;
+                }
+                double ageSeconds = gpsTowSeconds - ephemeris.toe - weeks * SECONDS_PER_WEEK;
+                if (Math.abs(ageSeconds) <= MAX_EPHEMERIS_AGE_SECONDS) {
+                    ephemerides.add(ephemeris);
+                }
+            }
+        }
+        boolean ionoValid = mNavMessage.iono != null && ageMillis <= MAX_IONO_AGE_MILLIS;
+        if (ephemerides.isEmpty() && !ionoValid) {
+            return null;
+        }
+        GpsNavMessageProto navMessage = new GpsNavMessageProto();
+        navMessage.iono = ionoValid ? mNavMessage.iono : null;
+        navMessage.ephemerids = ephemerides.toArray(new GpsEphemerisProto[0]);
+        return navMessage;
+    }
+
+    /**
+     * Returns {@code true} if the receiver state can still be restored at {@code nowUnixMillis}
+     */
+    public boolean isStateValidAt(long nowUnixMillis) {
+        long ageMillis = getAgeMillis(nowUnixMillis);
+        return ageMillis >= 0 && ageMillis <= MAX_STATE_AGE_MILLIS;
+    }
+
+    public long getAgeMillis(long nowUnixMillis) {
+        return nowUnixMillis - mSavedUnixMillis;
+    }
+
+    public long getSavedUnixMillis() {
+        return mSavedUnixMillis;
+    }
+
+    /**
+     * Position of the last solution as latitude and longitude in degrees and altitude in meters
+     */
+    public double[] getPositionLatLngDeg() {
+        Ecef2LlaConverter.GeodeticLlaValues lla = Ecef2LlaConverter.convertECEFToLLACloseForm(
+                mPositionVelocitySolutionEcef[0], mPositionVelocitySolutionEcef[1],
+                mPositionVelocitySolutionEcef[2]);
+        return new double[]{Math.toDegrees(lla.latitudeRadians),
+                Math.toDegrees(lla.longitudeRadians), lla.altitudeMeters};
+    }
+
+    double[] getPositionVelocitySolutionEcef() {
+        return mPositionVelocitySolutionEcef;
+    }
+
+    int getValidCount() {
+        return mValidCount;
+    }
+
+    int getInitCount() {
+        return mInitCount;
+    }
+
+    double[][] getCovariance() {
+        return mCovariance;
+    }
+}
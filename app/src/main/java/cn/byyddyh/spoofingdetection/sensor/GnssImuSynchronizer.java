@@ -0,0 +1,192 @@
+package cn.byyddyh.spoofingdetection.sensor;
+
+import android.location.GnssClock;
+import android.os.Build;
+
+/**
+ * Matches GNSS epochs with the inertial state at the same instant, both on the
+ * {@code elapsedRealtimeNanos} time base of {@code SensorEvent.timestamp}.
+ *
+ * <p>The IMU thread {@link #add adds} every integrated state to a bounded ring ordered by time.
+ * The positioning thread asks for the state {@link #stateAt at the GNSS measurement time}: a
+ * binary search finds the two states around it, O(log n), and interpolates between them, or
+ * propagates the newest state with its acceleration if the epoch is more recent. The filter
+ * correction computed at that time is handed back through {@link #correct} and applied by the IMU
+ * thread to its current state with {@link #applyCorrection}, carrying the velocity correction
+ * forward over the elapsed time, so nothing has to be integrated again.
+ */
+public class GnssImuSynchronizer {
+
+    /** About 4 s at 500 Hz, far more than the delivery latency of a GNSS epoch */
+    public static final int DEFAULT_CAPACITY = 2048;
+    /** Epochs further past the newest IMU state are not matched, the IMU has stalled */
+    public static final long MAX_PROPAGATION_NANOS = 200_000_000L;
+
+    private static final double NS2S = 1e-9;
+    /** Position, velocity and acceleration */
+    private static final int STATE_SIZE = 9;
+
+    private final int mMask;
+    private final long[] mTimes;
+    private final double[] mStates;
+
+    /* Guarded by this */
+    private long mCount = 0;
+    private long mCorrectionNanos;
+    private final double[] mCorrection = new double[6];
+    private volatile boolean mCorrectionPending = false;
+
+    public GnssImuSynchronizer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public GnssImuSynchronizer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mTimes = new long[size];
+        mStates = new double[STATE_SIZE * size];
+    }
+
+    /**
+     * Best estimate of the measurement time of an epoch on the {@code elapsedRealtimeNanos} base:
+     * the receiver's own value from Android Q on, otherwise the arrival time of the callback
+     */
+    public static long epochElapsedRealtimeNanos(GnssClock clock, long arrivalElapsedRealtimeNanos) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && clock.hasElapsedRealtimeNanos()) {
+            return clock.getElapsedRealtimeNanos();
+        }
+        return arrivalElapsedRealtimeNanos;
+    }
+
+    /**
+     * Records the inertial state integrated up to {@code timestampNanos}, IMU thread only
+     *
+     * @return {@code false} if the timestamp does not advance and the state was ignored
+     */
+    public synchronized boolean add(long timestampNanos, double[] acc, double[] vel, double[] pos) {
+        if (mCount > 0 && timestampNanos <= mTimes[(int) (mCount - 1) & mMask]) {
+            return false;
+        }
+        int slot = (int) mCount & mMask;
+        mTimes[slot] = timestampNanos;
+        int index = STATE_SIZE * slot;
+        for (int i = 0; i < 3; i++) {
+            mStates[index + i] = pos[i];
+            mStates[index + 3 + i] = vel[i];
+            mStates[index + 6 + i] = acc[i];
+        }
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Inertial position and velocity at {@code timestampNanos}
+     *
+     * @return {@code false} if the time is older than the ring or too far past the newest state
+     */
+    public synchronized boolean stateAt(long timestampNanos, double[] pos, double[] vel) {
+        if (mCount == 0) {
+            return false;
+        }
+        long oldest = Math.max(0, mCount - mTimes.length);
+        long newest = mCount - 1;
+        if (timestampNanos < mTimes[(int) oldest & mMask]) {
+            return false;
+        }
+        long newestTime = mTimes[(int) newest & mMask];
+        if (timestampNanos >= newestTime) {
+            long elapsed = timestampNanos - newestTime;
+            if (elapsed > MAX_PROPAGATION_NANOS) {
+                return false;
+            }
+            // Constant acceleration over the gap
+            double dt = elapsed * NS2S;
+            int index = STATE_SIZE * ((int) newest & mMask);
+            for (int i = 0; i < 3; i++) {
+                double acc = mStates[index + 6 + i];
+                vel[i] = mStates[index + 3 + i] + acc * dt;
+                pos[i] = mStates[index + i] + mStates[index + 3 + i] * dt + 0.5 * acc * dt * dt;
+            }
+            return true;
+        }
+
+        // First state at or after the requested time, there is one before it
+        long low = oldest + 1;
+        long high = newest;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (mTimes[(int) mid & mMask] < timestampNanos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int after = (int) low & mMask;
+        int before = (int) (low - 1) & mMask;
+        double weight = (double) (timestampNanos - mTimes[before])
+                / (mTimes[after] - mTimes[before]);
+        int beforeIndex = STATE_SIZE * before;
+        int afterIndex = STATE_SIZE * after;
+        for (int i = 0; i < 3; i++) {
+            pos[i] = mStates[beforeIndex + i]
+                    + weight * (mStates[afterIndex + i] - mStates[beforeIndex + i]);
+            vel[i] = mStates[beforeIndex + 3 + i]
+                    + weight * (mStates[afterIndex + 3 + i] - mStates[beforeIndex + 3 + i]);
+        }
+        return true;
+    }
+
+    /**
+     * Queues the filter correction of the state at {@code timestampNanos}, replacing one not yet
+     * applied
+     */
+    public synchronized void correct(long timestampNanos, double[] deltaPos, double[] deltaVel) {
+        mCorrectionNanos = timestampNanos;
+        System.arraycopy(deltaPos, 0, mCorrection, 0, 3);
+        System.arraycopy(deltaVel, 0, mCorrection, 3, 3);
+        mCorrectionPending = true;
+    }
+
+    /**
+     * Applies a queued correction to the IMU thread's state, which is valid at
+     * {@code stateNanos}. The velocity correction also moves the position by the time elapsed
+     * since the corrected epoch.
+     *
+     * @return {@code true} if a correction was applied
+     */
+    public boolean applyCorrection(long stateNanos, double[] pos, double[] vel) {
+        if (!mCorrectionPending) {
+            return false;
+        }
+        synchronized (this) {
+            if (!mCorrectionPending) {
+                return false;
+            }
+            double dt = (stateNanos - mCorrectionNanos) * NS2S;
+            for (int i = 0; i < 3; i++) {
+                pos[i] += mCorrection[i] + mCorrection[3 + i] * dt;
+                vel[i] += mCorrection[3 + i];
+            }
+            mCorrectionPending = false;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the history and any pending correction, for a reset of the integration
+     */
+    public synchronized void clear() {
+        mCount = 0;
+        mCorrectionPending = false;
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(mCount, mTimes.length);
+    }
+}
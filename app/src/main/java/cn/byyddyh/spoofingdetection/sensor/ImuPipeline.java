@@ -0,0 +1,180 @@
+package cn.byyddyh.spoofingdetection.sensor;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers one sensor off the main thread in two stages:
+ *
+ * <ul>
+ *   <li>The sensor thread, a {@link HandlerThread} passed to
+ *       {@link SensorManager#registerListener(SensorEventListener, Sensor, int, int, Handler)},
+ *       only copies each event into an {@link ImuSampleRing}. With a non zero
+ *       {@code maxReportLatencyUs} the hardware FIFO batches samples and the thread wakes once per
+ *       batch instead of once per sample.
+ *   <li>The consumer thread drains the ring into an {@link ImuSampleRing.Consumer}, where the slow
+ *       work (integration, logging, streaming) happens without holding up delivery.
+ * </ul>
+ *
+ * <p>The consumer parks when the ring is empty and is unparked by the sensor thread. The park is
+ * bounded, so a wake-up lost to the lock-free handoff only delays a batch by {@link #PARK_NANOS}.
+ */
+public class ImuPipeline implements SensorEventListener {
+
+    private static final String TAG = "ImuPipeline";
+
+    /** Batches of about 50 ms, short enough for the on-screen values to look live */
+    public static final int DEFAULT_MAX_REPORT_LATENCY_US = 50_000;
+    /** About 8 s at 500 Hz, larger than any hardware FIFO flush */
+    public static final int DEFAULT_RING_CAPACITY = 4096;
+
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int DRAIN_BATCH = 256;
+
+    private final SensorManager mSensorManager;
+    private final int mSensorType;
+    private final ImuSampleRing mRing;
+    private final ImuSampleRing.Consumer mConsumer;
+
+    private HandlerThread mSensorThread;
+    private Thread mConsumerThread;
+    private volatile boolean mRunning = false;
+    private volatile boolean mConsumerParked = false;
+    private volatile long mSamples = 0;
+
+    public ImuPipeline(SensorManager sensorManager, int sensorType, ImuSampleRing.Consumer consumer) {
+        this(sensorManager, sensorType, consumer, DEFAULT_RING_CAPACITY);
+    }
+
+    public ImuPipeline(SensorManager sensorManager, int sensorType, ImuSampleRing.Consumer consumer,
+                       int ringCapacity) {
+        mSensorManager = sensorManager;
+        mSensorType = sensorType;
+        // An exception would kill the consumer thread and silently stop the pipeline
+        mConsumer = (timestampNanos, x, y, z) -> {
+            try {
+                consumer.onSample(timestampNanos, x, y, z);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Sample consumer failed", e);
+            }
+        };
+        mRing = new ImuSampleRing(ringCapacity);
+    }
+
+    /**
+     * Starts both threads and registers for the sensor, does nothing if already running
+     *
+     * @param samplingPeriodUs   a {@code SensorManager.SENSOR_DELAY_*} constant or a period in µs
+     * @param maxReportLatencyUs 0 for immediate delivery, otherwise the allowed batching delay
+     * @return {@code false} if the sensor is missing or could not be registered
+     */
+    public synchronized boolean start(int samplingPeriodUs, int maxReportLatencyUs) {
+        if (mRunning) {
+            return true;
+        }
+        Sensor sensor = mSensorManager.getDefaultSensor(mSensorType);
+        if (sensor == null) {
+            Log.w(TAG, "No sensor of type " + mSensorType);
+            return false;
+        }
+
+        mRunning = true;
+        mConsumerThread = new Thread(this::consume, TAG + "-consumer");
+        mConsumerThread.start();
+        mSensorThread = new HandlerThread(TAG + "-sensor", Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        mSensorThread.start();
+        Handler handler = new Handler(mSensorThread.getLooper());
+        if (!mSensorManager.registerListener(this, sensor, samplingPeriodUs, maxReportLatencyUs,
+                handler)) {
+            Log.w(TAG, "Could not register for sensor type " + mSensorType);
+            stop();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Unregisters, lets the consumer finish the samples already delivered and stops both threads
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mSensorManager.unregisterListener(this);
+        mSensorThread.quitSafely();
+        try {
+            mSensorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mRunning = false;
+        LockSupport.unpark(mConsumerThread);
+        try {
+            mConsumerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mSensorThread = null;
+        mConsumerThread = null;
+    }
+
+    /** Sensor thread */
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        if (event.sensor.getType() != mSensorType) {
+            return;
+        }
+        float[] values = event.values;
+        mRing.offer(event.timestamp, values[0], values[1], values[2]);
+        if (mConsumerParked) {
+            LockSupport.unpark(mConsumerThread);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    private void consume() {
+        long samples = 0;
+        while (true) {
+            int drained = mRing.drain(mConsumer, DRAIN_BATCH);
+            if (drained > 0) {
+                samples += drained;
+                mSamples = samples;
+                continue;
+            }
+            if (!mRunning) {
+                // The sensor thread has quit, nothing can arrive any more
+                if (mRing.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            mConsumerParked = true;
+            if (mRing.isEmpty()) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            mConsumerParked = false;
+        }
+    }
+
+    /** Samples handed to the consumer so far */
+    public long getSamples() {
+        return mSamples;
+    }
+
+    /** Samples lost because the consumer fell behind by a full ring */
+    public long getDroppedSamples() {
+        return mRing.getDropped();
+    }
+}
@@ -0,0 +1,118 @@
+package cn.byyddyh.spoofingdetection.sensor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer queue of three axis sensor samples, stored in primitive
+ * arrays so that no object is created per sample.
+ *
+ * <p>{@link #offer} must only be called by the producer thread and {@link #drain} only by the
+ * consumer thread. Each side publishes its position with an ordered store and caches the other
+ * side's position, so the common case touches no shared cache line. A full ring drops the new
+ * sample rather than blocking the sensor thread.
+ */
+public final class ImuSampleRing {
+
+    /**
+     * Receives the drained samples on the consumer thread
+     */
+    public interface Consumer {
+        void onSample(long timestampNanos, float x, float y, float z);
+    }
+
+    private final int mMask;
+    private final long[] mTimestamps;
+    private final float[] mValues;
+
+    /** Next slot to write, published by the producer */
+    private final AtomicLong mHead = new AtomicLong();
+    /** Next slot to read, published by the consumer */
+    private final AtomicLong mTail = new AtomicLong();
+    /** Producer's view of mTail */
+    private long mTailCache = 0;
+    /** Consumer's view of mHead */
+    private long mHeadCache = 0;
+    private volatile long mDropped = 0;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public ImuSampleRing(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 24) {
+            throw new IllegalArgumentException("Bad capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mTimestamps = new long[size];
+        mValues = new float[3 * size];
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Appends a sample, producer thread only
+     *
+     * @return {@code false} if the ring was full and the sample was dropped
+     */
+    public boolean offer(long timestampNanos, float x, float y, float z) {
+        long head = mHead.get();
+        if (head - mTailCache > mMask) {
+            mTailCache = mTail.get();
+            if (head - mTailCache > mMask) {
+                mDropped++;
+                return false;
+            }
+        }
+        int slot = (int) head & mMask;
+        mTimestamps[slot] = timestampNanos;
+        int index = 3 * slot;
+        mValues[index] = x;
+        mValues[index + 1] = y;
+        mValues[index + 2] = z;
+        mHead.lazySet(head + 1);
+        return true;
+    }
+
+    /**
+     * Hands up to {@code maxSamples} samples to {@code consumer} in order, consumer thread only
+     *
+     * @return the number of samples consumed
+     */
+    public int drain(Consumer consumer, int maxSamples) {
+        long tail = mTail.get();
+        if (tail >= mHeadCache) {
+            mHeadCache = mHead.get();
+            if (tail >= mHeadCache) {
+                return 0;
+            }
+        }
+        int count = (int) Math.min(mHeadCache - tail, maxSamples);
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (tail + i) & mMask;
+            int index = 3 * slot;
+            consumer.onSample(mTimestamps[slot], mValues[index], mValues[index + 1],
+                    mValues[index + 2]);
+        }
+        mTail.lazySet(tail + count);
+        return count;
+    }
+
+    /** Samples waiting, exact only on the consumer thread */
+    public int size() {
+        return (int) (mHead.get() - mTail.get());
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    /** Samples dropped because the consumer fell a full ring behind */
+    public long getDropped() {
+        return mDropped;
+    }
+}
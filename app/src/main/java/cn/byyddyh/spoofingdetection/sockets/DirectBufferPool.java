@@ -0,0 +1,67 @@
+package cn.byyddyh.spoofingdetection.sockets;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe pool of direct {@link ByteBuffer}s of one fixed size. Direct buffers are expensive to
+ * allocate and are released late by the garbage collector, so the socket layer recycles them
+ * instead of allocating one per message.
+ */
+public class DirectBufferPool {
+
+    private final int mBufferSize;
+    private final int mMaxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> mBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPooledCount = new AtomicInteger();
+    private final AtomicInteger mAllocatedCount = new AtomicInteger();
+
+    /**
+     * @param bufferSize capacity of every buffer in bytes
+     * @param maxPooled  maximum number of idle buffers kept, surplus buffers are left to the GC
+     */
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer of {@link #getBufferSize()} bytes
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = mBuffers.poll();
+        if (buffer != null) {
+            mPooledCount.decrementAndGet();
+            return buffer;
+        }
+        mAllocatedCount.incrementAndGet();
+        return ByteBuffer.allocateDirect(mBufferSize);
+    }
+
+    /**
+     * Returns {@code buffer} to the pool. Buffers not allocated by this pool are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != mBufferSize) {
+            return;
+        }
+        buffer.clear();
+        if (mPooledCount.incrementAndGet() <= mMaxPooled) {
+            mBuffers.offer(buffer);
+        } else {
+            mPooledCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of direct buffers allocated since construction
+     */
+    public int getAllocatedCount() {
+        return mAllocatedCount.get();
+    }
+}
@@ -0,0 +1,26 @@
+package cn.byyddyh.spoofingdetection.sockets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callbacks of a {@link NioEventLoop}. All methods are invoked on the selector thread and must not
+ * block.
+ */
+public interface FrameListener {
+
+    /**
+     * A connection was accepted or established
+     */
+    void onConnected(NioPeer peer);
+
+    /**
+     * A complete frame arrived. {@code payload} is a read only view positioned on the frame payload
+     * and is only valid during the call; copy what has to be kept.
+     */
+    void onFrame(NioPeer peer, ByteBuffer payload);
+
+    /**
+     * The connection was closed by either side or failed
+     */
+    void onDisconnected(NioPeer peer);
+}
@@ -0,0 +1,300 @@
+package cn.byyddyh.spoofingdetection.sockets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single selector thread serving any number of listening sockets and connections with length
+ * prefixed frames (see {@link NioPeer}).
+ *
+ * <p>Accepting, connecting, reading and writing all happen on the selector thread, other threads
+ * only append frames to a peer's outbound buffers and hand the peer to the loop, which costs no
+ * thread creation and at most one {@link Selector#wakeup()} per flush. Socket buffers are taken
+ * from a shared {@link DirectBufferPool}.
+ *
+ * <p>The class does not depend on Android and is shared by the app and the plain JVM tools.
+ */
+public class NioEventLoop implements Closeable {
+
+    private static final String TAG = "NioEventLoop";
+    /** Size of the pooled socket buffers */
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 256;
+    /** Buffers written by one gathering write */
+    private static final int GATHER_LIMIT = 16;
+
+    private final String mName;
+    private final FrameListener mListener;
+    private final Selector mSelector;
+    private final DirectBufferPool mPool = new DirectBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NioPeer> mFlushQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean(false);
+    private final Set<NioPeer> mPeers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final AtomicInteger mNextPeerId = new AtomicInteger(1);
+    private final ByteBuffer[] mGatherScratch = new ByteBuffer[GATHER_LIMIT];
+    private final List<ServerSocketChannel> mServerChannels = new ArrayList<>();
+    private Thread mThread;
+    private volatile boolean mRunning = false;
+
+    public NioEventLoop(String name, FrameListener listener) throws IOException {
+        mName = name;
+        mListener = listener;
+        mSelector = Selector.open();
+    }
+
+    /**
+     * Starts the selector thread
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this::run, mName);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Accepts connections on {@code port} of all interfaces
+     */
+    public void listen(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        execute(() -> {
+            try {
+                serverChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+                mServerChannels.add(serverChannel);
+            } catch (IOException e) {
+                closeQuietly(serverChannel);
+            }
+        });
+    }
+
+    /**
+     * Opens a connection to {@code host:port}. {@link FrameListener#onConnected} is called once it
+     * is established, {@link FrameListener#onDisconnected} if it fails.
+     */
+    public NioPeer connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        NioPeer peer = new NioPeer(this, mPool, channel, mNextPeerId.getAndIncrement());
+        execute(() -> {
+            try {
+                boolean connected = channel.connect(new InetSocketAddress(host, port));
+                SelectionKey key = channel.register(mSelector,
+                        connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, peer);
+                peer.setKey(key);
+                if (connected) {
+                    onPeerConnected(peer);
+                }
+            } catch (IOException e) {
+                closePeer(peer);
+            }
+        });
+        return peer;
+    }
+
+    /**
+     * Sends {@code payload} as one frame to every connected peer
+     */
+    public void broadcast(byte[] payload) {
+        for (NioPeer peer : mPeers) {
+            peer.send(payload);
+        }
+    }
+
+    /**
+     * Returns the currently connected peers
+     */
+    public Set<NioPeer> getPeers() {
+        return Collections.unmodifiableSet(mPeers);
+    }
+
+    public DirectBufferPool getBufferPool() {
+        return mPool;
+    }
+
+    /**
+     * Runs {@code task} on the selector thread
+     */
+    public void execute(Runnable task) {
+        mTasks.offer(task);
+        wakeup();
+    }
+
+    /**
+     * Stops the selector thread and closes every channel
+     */
+    @Override
+    public void close() {
+        mRunning = false;
+        mSelector.wakeup();
+        Thread thread = mThread;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void scheduleFlush(NioPeer peer) {
+        mFlushQueue.offer(peer);
+        wakeup();
+    }
+
+    private void wakeup() {
+        if (mWakeupPending.compareAndSet(false, true)) {
+            mSelector.wakeup();
+        }
+    }
+
+    private void run() {
+        try {
+            while (mRunning) {
+                mSelector.select();
+                mWakeupPending.set(false);
+                runTasks();
+                flushPeers();
+                Set<SelectionKey> selectedKeys = mSelector.selectedKeys();
+                Iterator<SelectionKey> iterator = selectedKeys.iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(TAG + ": selector failed " + e);
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void flushPeers() {
+        NioPeer peer;
+        while ((peer = mFlushQueue.poll()) != null) {
+            if (peer.isClosed() || !mPeers.contains(peer)) {
+                // Not connected yet, the data is flushed once the connection is established
+                continue;
+            }
+            try {
+                peer.flush(mGatherScratch);
+            } catch (IOException e) {
+                closePeer(peer);
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept((ServerSocketChannel) key.channel());
+            return;
+        }
+        NioPeer peer = (NioPeer) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                if (peer.getChannel().finishConnect()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    onPeerConnected(peer);
+                }
+                return;
+            }
+            if (key.isReadable() && !peer.read(mListener)) {
+                closePeer(peer);
+                return;
+            }
+            if (key.isValid() && key.isWritable()) {
+                peer.flush(mGatherScratch);
+            }
+        } catch (IOException e) {
+            closePeer(peer);
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                NioPeer peer = new NioPeer(this, mPool, channel, mNextPeerId.getAndIncrement());
+                peer.setKey(channel.register(mSelector, SelectionKey.OP_READ, peer));
+                onPeerConnected(peer);
+            }
+        } catch (IOException e) {
+            System.err.println(TAG + ": accept failed " + e);
+        }
+    }
+
+    private void onPeerConnected(NioPeer peer) throws IOException {
+        mPeers.add(peer);
+        mListener.onConnected(peer);
+        // Frames queued before the connection was established
+        peer.flush(mGatherScratch);
+    }
+
+    void closePeer(NioPeer peer) {
+        if (peer.isClosed()) {
+            return;
+        }
+        mPeers.remove(peer);
+        SelectionKey key = peer.getChannel().keyFor(mSelector);
+        if (key != null) {
+            key.cancel();
+        }
+        closeQuietly(peer.getChannel());
+        peer.releaseBuffers();
+        mListener.onDisconnected(peer);
+    }
+
+    private void shutdown() {
+        for (NioPeer peer : new ArrayList<>(mPeers)) {
+            closePeer(peer);
+        }
+        for (ServerSocketChannel serverChannel : mServerChannels) {
+            closeQuietly(serverChannel);
+        }
+        mServerChannels.clear();
+        closeQuietly(mSelector);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with a channel that failed to close
+        }
+    }
+}
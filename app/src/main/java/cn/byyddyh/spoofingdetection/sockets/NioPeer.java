@@ -0,0 +1,309 @@
+package cn.byyddyh.spoofingdetection.sockets;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One connection of a {@link NioEventLoop}.
+ *
+ * <p>Frames are a 4 byte big endian payload length followed by the payload. {@link #send} may be
+ * called from any thread and never blocks: the frame is appended to the last outbound buffer if it
+ * still has room, so bursts of small messages are coalesced into a single socket write, and the
+ * selector thread is woken up once per flush. If more than {@link #MAX_PENDING_BYTES} are waiting
+ * the frame is dropped and counted.
+ */
+public class NioPeer {
+
+    /** Length of the frame header */
+    public static final int HEADER_BYTES = 4;
+    /** Largest accepted payload, longer frames close the connection */
+    public static final int MAX_FRAME_BYTES = 1 << 20;
+    /** Outbound bytes queued per peer before frames are dropped */
+    public static final int MAX_PENDING_BYTES = 4 << 20;
+
+    private final NioEventLoop mLoop;
+    private final DirectBufferPool mPool;
+    private final SocketChannel mChannel;
+    private final int mId;
+    private SelectionKey mKey;
+
+    // Outbound buffers filled by producers, guarded by mOutbound
+    private final ArrayDeque<ByteBuffer> mOutbound = new ArrayDeque<>();
+    private int mPendingBytes = 0;
+    private boolean mFlushScheduled = false;
+
+    // Selector thread only
+    private final ArrayDeque<ByteBuffer> mWriting = new ArrayDeque<>();
+    private ByteBuffer mReadBuffer;
+
+    private volatile boolean mClosed = false;
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mSentFrames = new AtomicLong();
+
+    /** Application state attached to the connection */
+    private volatile Object mAttachment;
+
+    NioPeer(NioEventLoop loop, DirectBufferPool pool, SocketChannel channel, int id) {
+        mLoop = loop;
+        mPool = pool;
+        mChannel = channel;
+        mId = id;
+        mReadBuffer = pool.acquire();
+    }
+
+    /**
+     * Returns an id unique within the event loop
+     */
+    public int getId() {
+        return mId;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        try {
+            return mChannel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    public Object getAttachment() {
+        return mAttachment;
+    }
+
+    public void setAttachment(Object attachment) {
+        mAttachment = attachment;
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    public long getSentFrames() {
+        return mSentFrames.get();
+    }
+
+    public boolean send(byte[] payload) {
+        return send(payload, 0, payload.length);
+    }
+
+    /**
+     * Queues one frame. Returns false if the peer is closed or the frame was dropped because too
+     * much data is pending.
+     */
+    public boolean send(byte[] payload, int offset, int length) {
+        if (mClosed || length > MAX_FRAME_BYTES) {
+            return false;
+        }
+        boolean schedule;
+        synchronized (mOutbound) {
+            ByteBuffer tail = reserve(HEADER_BYTES + length);
+            if (tail == null) {
+                return false;
+            }
+            tail.putInt(length);
+            tail.put(payload, offset, length);
+            schedule = scheduleFlushLocked();
+        }
+        mSentFrames.incrementAndGet();
+        if (schedule) {
+            mLoop.scheduleFlush(this);
+        }
+        return true;
+    }
+
+    /**
+     * Queues the remaining bytes of {@code payload} as one frame, see {@link #send(byte[], int, int)}
+     */
+    public boolean send(ByteBuffer payload) {
+        int length = payload.remaining();
+        if (mClosed || length > MAX_FRAME_BYTES) {
+            return false;
+        }
+        boolean schedule;
+        synchronized (mOutbound) {
+            ByteBuffer tail = reserve(HEADER_BYTES + length);
+            if (tail == null) {
+                return false;
+            }
+            tail.putInt(length);
+            tail.put(payload);
+            schedule = scheduleFlushLocked();
+        }
+        mSentFrames.incrementAndGet();
+        if (schedule) {
+            mLoop.scheduleFlush(this);
+        }
+        return true;
+    }
+
+    /**
+     * Closes the connection on the selector thread
+     */
+    public void close() {
+        mLoop.execute(() -> mLoop.closePeer(this));
+    }
+
+    /** Returns an outbound buffer with room for {@code frameBytes}, or null if over the limit */
+    private ByteBuffer reserve(int frameBytes) {
+        if (mPendingBytes + frameBytes > MAX_PENDING_BYTES) {
+            mDroppedFrames.incrementAndGet();
+            return null;
+        }
+        mPendingBytes += frameBytes;
+        ByteBuffer tail = mOutbound.peekLast();
+        if (tail == null || tail.remaining() < frameBytes) {
+            tail = frameBytes <= mPool.getBufferSize()
+                    ? mPool.acquire() : ByteBuffer.allocate(frameBytes);
+            mOutbound.addLast(tail);
+        }
+        return tail;
+    }
+
+    private boolean scheduleFlushLocked() {
+        if (mFlushScheduled) {
+            return false;
+        }
+        mFlushScheduled = true;
+        return true;
+    }
+
+    // ---- Selector thread ----
+
+    void setKey(SelectionKey key) {
+        mKey = key;
+    }
+
+    SocketChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Writes as much pending data as the socket accepts. Registers write interest if data is left.
+     */
+    void flush(ByteBuffer[] gatherScratch) throws IOException {
+        synchronized (mOutbound) {
+            ByteBuffer buffer;
+            while ((buffer = mOutbound.pollFirst()) != null) {
+                buffer.flip();
+                mWriting.addLast(buffer);
+            }
+            mFlushScheduled = false;
+        }
+        long written = 0;
+        while (!mWriting.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : mWriting) {
+                if (count == gatherScratch.length) {
+                    break;
+                }
+                gatherScratch[count++] = buffer;
+            }
+            long bytes = mChannel.write(gatherScratch, 0, count);
+            written += bytes;
+            while (!mWriting.isEmpty() && !mWriting.peekFirst().hasRemaining()) {
+                mPool.release(mWriting.pollFirst());
+            }
+            if (bytes == 0) {
+                break;
+            }
+        }
+        for (int i = 0; i < gatherScratch.length; i++) {
+            gatherScratch[i] = null;
+        }
+        if (written > 0) {
+            synchronized (mOutbound) {
+                mPendingBytes -= (int) written;
+            }
+        }
+        if (mKey != null && mKey.isValid()) {
+            int interest = mKey.interestOps();
+            if (mWriting.isEmpty()) {
+                mKey.interestOps(interest & ~SelectionKey.OP_WRITE);
+            } else {
+                mKey.interestOps(interest | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Reads from the socket and delivers every complete frame. Returns false on end of stream or a
+     * malformed frame.
+     */
+    boolean read(FrameListener listener) throws IOException {
+        int read = mChannel.read(mReadBuffer);
+        if (read < 0) {
+            return false;
+        }
+        mReadBuffer.flip();
+        while (mReadBuffer.remaining() >= HEADER_BYTES) {
+            int start = mReadBuffer.position();
+            int length = mReadBuffer.getInt(start);
+            if (length < 0 || length > MAX_FRAME_BYTES) {
+                return false;
+            }
+            if (mReadBuffer.remaining() < HEADER_BYTES + length) {
+                if (HEADER_BYTES + length > mReadBuffer.capacity()) {
+                    growReadBuffer(HEADER_BYTES + length);
+                    return true;
+                }
+                break;
+            }
+            ByteBuffer payload = mReadBuffer.asReadOnlyBuffer();
+            payload.position(start + HEADER_BYTES);
+            payload.limit(start + HEADER_BYTES + length);
+            mReadBuffer.position(start + HEADER_BYTES + length);
+            listener.onFrame(this, payload);
+        }
+        mReadBuffer.compact();
+        shrinkReadBuffer();
+        return true;
+    }
+
+    /** Moves the partial frame into a heap buffer large enough for it, buffer is left in fill mode */
+    private void growReadBuffer(int frameBytes) {
+        ByteBuffer larger = ByteBuffer.allocate(frameBytes);
+        larger.put(mReadBuffer);
+        mPool.release(mReadBuffer);
+        mReadBuffer = larger;
+    }
+
+    /** Returns to a pooled buffer once an oversized frame has been consumed */
+    private void shrinkReadBuffer() {
+        if (mReadBuffer.isDirect() || mReadBuffer.position() > mPool.getBufferSize()) {
+            return;
+        }
+        ByteBuffer pooled = mPool.acquire();
+        mReadBuffer.flip();
+        pooled.put(mReadBuffer);
+        mReadBuffer = pooled;
+    }
+
+    /**
+     * Releases all buffers, the channel has to be closed by the loop
+     */
+    void releaseBuffers() {
+        mClosed = true;
+        synchronized (mOutbound) {
+            for (ByteBuffer buffer : mOutbound) {
+                mPool.release(buffer);
+            }
+            mOutbound.clear();
+            mPendingBytes = 0;
+        }
+        for (ByteBuffer buffer : mWriting) {
+            mPool.release(buffer);
+        }
+        mWriting.clear();
+        mPool.release(mReadBuffer);
+        mReadBuffer = null;
+    }
+}
@@ -1,58 +1,44 @@
 package cn.byyddyh.spoofingdetection.sockets;
 
 import android.content.Context;
-import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
-import android.widget.Toast;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
-public class SocketClient {
-    private Socket client;
+/**
+ * Frame client on a {@link NioEventLoop}. Sending only queues the message, the selector thread
+ * writes it, so no thread is created per message.
+ */
+public class SocketClient implements FrameListener {
+    private static final String TAG = "SocketClient";
+    private NioEventLoop loop;
+    private volatile NioPeer peer;
     private Context context;
-    private int port;           //IP
-    private String site;            //端口
+    private int port;           //端口
+    private String site;            //IP
     public static Handler mHandler;
-    private boolean isClient = false;
-    private PrintWriter out;
-    private String str;
-
+    private volatile boolean isClient = false;
 
     /**
-     * @effect 开启线程建立连接开启客户端
+     * @effect 开启selector线程建立连接开启客户端
      */
     public void openClientThread() {
-        /*
-         * connect()步骤
-         */
-        Thread thread = new Thread(() -> {
-            try {
-                /*
-                 *  connect()步骤
-                 * */
-                client = new Socket(site, port);
-                // client.setSoTimeout ( 5000 );//设置超时时间
-                isClient = true;
-                forOut();
-                forIn();
-                Log.i("hahah", "site=" + site + " ,port=" + port);
-            } catch (UnknownHostException e) {
-                e.printStackTrace();
-                Log.i("socket", "6");
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.i("socket", "7");
-            }
-
-        });
-        thread.start();
+        try {
+            /*
+             *  connect()步骤
+             * */
+            loop = new NioEventLoop("SocketClient", this);
+            loop.start();
+            peer = loop.connect(site, port);
+            Log.i(TAG, "site=" + site + " ,port=" + port);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.i("socket", "7");
+        }
     }
 
     /**
@@ -65,59 +51,70 @@ public class SocketClient {
     }
 
     /**
-     * @effect 得到输出字符串
+     * @steps write();
+     * @effect 发送文本消息
      */
-    public void forOut() {
-        try {
-            out = new PrintWriter(client.getOutputStream());
-        } catch (IOException e) {
-            e.printStackTrace();
-            Log.i("socket", "8");
-        }
+    public void sendMsg(final String str) {
+        sendFrame(str.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
-     * @steps read();
-     * @effect 得到输入字符串
+     * @steps write();
+     * @effect 发送二进制帧，返回是否已加入发送队列
+     */
+    public boolean sendFrame(byte[] payload) {
+        return sendFrame(payload, 0, payload.length);
+    }
+
+    /**
+     * @effect 发送payload[offset, offset + length)作为一帧, 数据在返回前已复制
      */
-    public void forIn() {
+    public boolean sendFrame(byte[] payload, int offset, int length) {
+        NioPeer current = peer;
+        if (current == null || current.isClosed()) {
+            Log.w(TAG, "网络连接失败");
+            return false;
+        }
+        return current.send(payload, offset, length);
+    }
 
-        while (isClient) {
-            try {
-                InputStream in = client.getInputStream();
-                /*得到的是16进制数，需要进行解析*/
-                byte[] bt = new byte[50];
-                in.read(bt);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                    str = new String(bt, StandardCharsets.UTF_8);
-                }
-            } catch (IOException e) {
-                Log.d("SocketClient 异常", e.getMessage());
-            }
-            if (str != null) {
-                Message msg = new Message();
-                msg.obj = str;
-                mHandler.sendMessage(msg);
-            }
+    public boolean isConnected() {
+        return isClient;
+    }
 
+    /**
+     * @effect 关闭连接
+     */
+    public void close() {
+        if (loop != null) {
+            loop.close();
         }
     }
 
+    @Override
+    public void onConnected(NioPeer peer) {
+        isClient = true;
+    }
+
     /**
-     * @steps write();
-     * @effect 发送消息
+     * @steps read();
+     * @effect 得到输入字符串并发送到主界面
      */
-    public void sendMsg(final String str) {
-        new Thread(() -> {
-            if (client != null) {
-                out.print(str);
-                out.flush();
-                Log.i("SocketClient Send over", out + "");
-            } else {
-                isClient = false;
-                Toast.makeText(context, "网络连接失败", Toast.LENGTH_LONG).show();
-            }
-        }).start();
+    @Override
+    public void onFrame(NioPeer peer, ByteBuffer payload) {
+        if (mHandler == null) {
+            return;
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        Message msg = new Message();
+        msg.obj = new String(bytes, StandardCharsets.UTF_8);
+        mHandler.sendMessage(msg);
+    }
 
+    @Override
+    public void onDisconnected(NioPeer peer) {
+        isClient = false;
+        Log.d(TAG, "连接断开");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+package cn.byyddyh.spoofingdetection;
+
+/**
+ * Host JVM micro benchmark harness shared by the {@code *Benchmark} mains of the test tree. Every
+ * benchmark takes the same arguments,
+ *
+ * <pre>
+ * XxxBenchmark [iterations] [rounds]
+ * </pre>
+ *
+ * and times its variants in turn on the same data. The first round is a warm-up and not printed,
+ * every further round prints the time per operation of each variant. The results of the operations
+ * are summed into a checksum printed at the end, so the JIT cannot drop the work. Numbers are only
+ * comparable within one run.
+ */
+public final class Benchmark {
+
+    /** One timed operation, the result goes into the checksum */
+    public interface Operation {
+        double run();
+    }
+
+    /** A named implementation of the operation under test */
+    public static final class Variant {
+        final String mLabel;
+        final Operation mOperation;
+
+        private Variant(String label, Operation operation) {
+            mLabel = label;
+            mOperation = operation;
+        }
+    }
+
+    private static final int DEFAULT_ROUNDS = 5;
+
+    private final int mIterations;
+    private final int mRounds;
+
+    private Benchmark(int iterations, int rounds) {
+        mIterations = iterations;
+        mRounds = rounds;
+    }
+
+    /**
+     * Parses {@code [iterations] [rounds]}
+     */
+    public static Benchmark fromArgs(String[] args, int defaultIterations) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : defaultIterations;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+        return new Benchmark(iterations, rounds);
+    }
+
+    public static Variant variant(String label, Operation operation) {
+        return new Variant(label, operation);
+    }
+
+    /**
+     * Times {@code variants}, one call is one operation
+     */
+    public void run(String name, Variant... variants) {
+        run(name, 1, variants);
+    }
+
+    /**
+     * Times {@code variants}, one call covers {@code operationsPerCall} operations, e.g. the epochs
+     * of a batch solution
+     */
+    public void run(String name, int operationsPerCall, Variant... variants) {
+        double sink = 0;
+        long[] nanos = new long[variants.length];
+        for (int round = 0; round <= mRounds; round++) {
+            for (int v = 0; v < variants.length; v++) {
+                Operation operation = variants[v].mOperation;
+                long start = System.nanoTime();
+                for (int i = 0; i < mIterations; i++) {
+                    sink += operation.run();
+                }
+                nanos[v] = System.nanoTime() - start;
+            }
+            if (round > 0) {
+                StringBuilder line = new StringBuilder(name).append(", round ").append(round).append(':');
+                for (int v = 0; v < variants.length; v++) {
+                    line.append(v == 0 ? " " : ", ").append(variants[v].mLabel).append(' ')
+                            .append(String.format("%.1f", (double) nanos[v] / mIterations / operationsPerCall))
+                            .append(" ns");
+                }
+                System.out.println(line);
+            }
+        }
+        System.out.println(name + " checksum " + sink);
+    }
+}
@@ -0,0 +1,36 @@
+package cn.byyddyh.spoofingdetection;
+
+import java.util.Random;
+
+import cn.byyddyh.spoofingdetection.gnsslog.GnssLogText;
+import cn.byyddyh.spoofingdetection.gnsslog.RawRecord;
+
+import static cn.byyddyh.spoofingdetection.Benchmark.variant;
+
+/**
+ * Time per Raw record of {@link LogRecordEncoder} against the {@code String.format} code it
+ * replaced, on the same fixed set of records. Run {@code main} on the host JVM, see
+ * {@link Benchmark} for the arguments.
+ */
+public class LogRecordEncoderBenchmark {
+
+    private static int sNext = 0;
+
+    public static void main(String[] args) {
+        Benchmark benchmark = Benchmark.fromArgs(args, 200000);
+        Random random = new Random(42);
+        final RawRecord[] records = new RawRecord[1024];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = LogRecordEncoderTest.randomRecord(random);
+        }
+
+        final LogRecordEncoder encoder = new LogRecordEncoder();
+        benchmark.run("Raw record",
+                variant("String.format",
+                        () -> LogRecordEncoderTest.formatRaw(records[sNext++ & 1023]).length()),
+                variant("encoder", () -> {
+                    GnssLogText.appendRaw(encoder, records[sNext++ & 1023]);
+                    return encoder.length();
+                }));
+    }
+}
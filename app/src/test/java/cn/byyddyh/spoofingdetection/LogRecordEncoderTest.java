@@ -0,0 +1,256 @@
+package cn.byyddyh.spoofingdetection;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import cn.byyddyh.spoofingdetection.gnsslog.GnssLogText;
+import cn.byyddyh.spoofingdetection.gnsslog.RawRecord;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link LogRecordEncoder} with the {@code String.format} and {@link Double#toString}
+ * output it replaces.
+ */
+public class LogRecordEncoderTest {
+
+    private static final int RANDOM_DOUBLES = 200000;
+    private static final int RANDOM_RECORDS = 4096;
+
+    private final LogRecordEncoder mEncoder = new LogRecordEncoder(16);
+
+    @Test
+    public void longs_matchLongToString() {
+        long[] values = {0, 1, -1, 9, 10, 99, 100, -100, 12345, Integer.MAX_VALUE,
+                (long) Integer.MAX_VALUE + 1, Integer.MIN_VALUE, 1000000000000000000L,
+                Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+        for (long value : values) {
+            assertEquals(Long.toString(value), encodeLong(value));
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < RANDOM_DOUBLES; i++) {
+            long value = random.nextLong() >> random.nextInt(64);
+            assertEquals(Long.toString(value), encodeLong(value));
+        }
+    }
+
+    @Test
+    public void specialDoubles_matchDoubleToString() {
+        double[] values = {Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.0, -0.0,
+                Double.MIN_VALUE, -Double.MIN_VALUE, Double.MIN_NORMAL, Math.nextDown(Double.MIN_NORMAL),
+                1e-310, -2.5e-320, Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (double value : values) {
+            assertEquals(Double.toString(value), encodeDouble(value));
+        }
+    }
+
+    @Test
+    public void powersOfTen_matchDoubleToString() {
+        // 1e-3 and 1e7 are the edges of the plain notation
+        for (int exponent = -30; exponent <= 30; exponent++) {
+            double value = Double.parseDouble("1e" + exponent);
+            assertEquals(Double.toString(value), encodeDouble(value));
+            assertEquals(Double.toString(-value), encodeDouble(-value));
+            assertRoundTrip(Math.nextUp(value));
+            assertRoundTrip(Math.nextDown(value));
+        }
+    }
+
+    @Test
+    public void shortDecimals_matchDoubleToString() {
+        // Values as the receiver reports them, a few decimals
+        double[] values = {0.5, 1.25, 45.3, -0.001, 0.0015, 123.456, 9999999.9, 1575420030.0 / 1e3,
+                1.5e-3, 299792458.0 / 100, 22.100000381469727, -8.333333333333334};
+        for (double value : values) {
+            assertEquals(Double.toString(value), encodeDouble(value));
+        }
+        Random random = new Random(2);
+        for (int i = 0; i < RANDOM_DOUBLES; i++) {
+            int decimals = random.nextInt(7);
+            double value = Math.round((random.nextDouble() - 0.5) * 2e7) / Math.pow(10, decimals);
+            assertEquals(Double.toString(value), encodeDouble(value));
+        }
+    }
+
+    @Test
+    public void fullPrecisionDoubles_parseBackIdentically() {
+        Random random = new Random(3);
+        for (int i = 0; i < RANDOM_DOUBLES; i++) {
+            assertRoundTrip((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(14) - 4));
+        }
+        for (int i = 0; i < RANDOM_DOUBLES; i++) {
+            assertRoundTrip(Double.longBitsToDouble(random.nextLong()));
+        }
+    }
+
+    @Test
+    public void floats_matchFloatToString() {
+        float[] values = {1575.42e6f, 1575.42e6f, 1176.45e6f, Float.NaN, 0.0f, -0.0f, 1.5f,
+                Float.MIN_VALUE, 1575.42e6f};
+        for (float value : values) {
+            mEncoder.begin("").appendFloat(value);
+            assertEquals(Float.toString(value), mEncoder.toString());
+        }
+    }
+
+    @Test
+    public void fieldsAndLines() {
+        mEncoder.begin("Tag").next().appendLong(1).next().next().appendDouble(2.5).end();
+        assertEquals("Tag,1,,2.5\n", mEncoder.toString());
+        mEncoder.begin("Next");
+        assertEquals("Next", mEncoder.toString());
+    }
+
+    @Test
+    public void rawRecordWithoutOptionalFields_matchesStringFormat() {
+        RawRecord record = randomRecord(new Random(4));
+        record.hasLeapSecond = false;
+        record.hasTimeUncertaintyNanos = false;
+        record.hasBiasNanos = false;
+        record.hasBiasUncertaintyNanos = false;
+        record.hasDriftNanosPerSecond = false;
+        record.hasDriftUncertaintyNanosPerSecond = false;
+        record.hasCarrierFrequencyHz = false;
+        record.hasCarrierCycles = false;
+        record.hasCarrierPhase = false;
+        record.hasCarrierPhaseUncertainty = false;
+        record.hasSnrInDb = false;
+        record.hasAutomaticGainControlLevelDb = false;
+        GnssLogText.appendRaw(mEncoder, record);
+        String line = mEncoder.toString();
+        assertEquals(formatRaw(record), line);
+        // 30 fields, the optional ones empty
+        String[] fields = line.trim().split(",", -1);
+        assertEquals(30, fields.length);
+        assertEquals("", fields[3]);
+        assertEquals("", fields[29]);
+    }
+
+    @Test
+    public void randomRawRecords_matchStringFormat() {
+        Random random = new Random(5);
+        for (int i = 0; i < RANDOM_RECORDS; i++) {
+            RawRecord record = randomRecord(random);
+            GnssLogText.appendRaw(mEncoder, record);
+            assertEquals(formatRaw(record), mEncoder.toString());
+        }
+    }
+
+    private String encodeLong(long value) {
+        return mEncoder.begin("").appendLong(value).toString();
+    }
+
+    private String encodeDouble(double value) {
+        return mEncoder.begin("").appendDouble(value).toString();
+    }
+
+    /**
+     * The encoded text parses back to {@code value} and is no longer than the JDK's. Where it differs
+     * it is either shorter, {@link Double#toString} is not always the shortest before JDK 19, or only
+     * the last digit of a 17 digit fraction differs.
+     */
+    private void assertRoundTrip(double value) {
+        String expected = Double.toString(value);
+        String actual = encodeDouble(value);
+        assertEquals(actual, Double.doubleToLongBits(value),
+                Double.doubleToLongBits(Double.parseDouble(actual)));
+        if (!expected.equals(actual)) {
+            assertTrue(expected + " " + actual, actual.length() <= expected.length());
+            if (actual.length() == expected.length()) {
+                assertEquals(expected + " " + actual, expected.substring(0, expected.length() - 1),
+                        actual.substring(0, actual.length() - 1));
+            }
+        }
+    }
+
+    /**
+     * A measurement as the receiver reports it: values with the few decimals of the hardware, each
+     * optional field present or not
+     */
+    static RawRecord randomRecord(Random random) {
+        RawRecord record = new RawRecord();
+        record.elapsedRealtimeMillis = 100000 + random.nextInt(100000000);
+        record.timeNanos = random.nextLong() >>> 12;
+        record.hasLeapSecond = random.nextBoolean();
+        record.leapSecond = 18;
+        record.hasTimeUncertaintyNanos = random.nextBoolean();
+        record.timeUncertaintyNanos = random.nextInt(1000) / 10.0;
+        record.fullBiasNanos = -1300000000000000000L - (random.nextLong() >>> 20);
+        record.hasBiasNanos = random.nextBoolean();
+        record.biasNanos = random.nextInt(1000000) / 1000.0;
+        record.hasBiasUncertaintyNanos = random.nextBoolean();
+        record.biasUncertaintyNanos = random.nextInt(100000) / 1000.0;
+        record.hasDriftNanosPerSecond = random.nextBoolean();
+        record.driftNanosPerSecond = (random.nextInt(2000000) - 1000000) / 1000.0;
+        record.hasDriftUncertaintyNanosPerSecond = random.nextBoolean();
+        record.driftUncertaintyNanosPerSecond = random.nextInt(10000) / 1000.0;
+        record.hardwareClockDiscontinuityCount = random.nextInt(10);
+        record.svid = 1 + random.nextInt(32);
+        record.timeOffsetNanos = random.nextInt(3) == 0 ? 0.0 : random.nextInt(1000) / 100.0;
+        record.state = random.nextInt(0x4000);
+        record.receivedSvTimeNanos = random.nextLong() >>> 14;
+        record.receivedSvTimeUncertaintyNanos = random.nextInt(100);
+        record.cn0DbHz = random.nextInt(500) / 10.0;
+        record.pseudorangeRateMetersPerSecond = (random.nextInt(2000000) - 1000000) / 1000.0;
+        record.pseudorangeRateUncertaintyMetersPerSecond = random.nextInt(1000) / 1000.0;
+        record.accumulatedDeltaRangeState = random.nextInt(32);
+        record.accumulatedDeltaRangeMeters = (random.nextInt(2000000) - 1000000) / 100.0;
+        record.accumulatedDeltaRangeUncertaintyMeters = random.nextInt(1000) / 10000.0;
+        record.hasCarrierFrequencyHz = random.nextBoolean();
+        record.carrierFrequencyHz = random.nextBoolean() ? 1575.42e6f : 1176.45e6f;
+        record.hasCarrierCycles = random.nextBoolean();
+        record.carrierCycles = random.nextLong() >>> 30;
+        record.hasCarrierPhase = random.nextBoolean();
+        record.carrierPhase = random.nextInt(1000) / 1000.0;
+        record.hasCarrierPhaseUncertainty = random.nextBoolean();
+        record.carrierPhaseUncertainty = random.nextInt(100) / 1000.0;
+        record.multipathIndicator = random.nextInt(3);
+        record.hasSnrInDb = random.nextBoolean();
+        record.snrInDb = random.nextInt(400) / 10.0;
+        record.constellationType = 1 + random.nextInt(6);
+        record.hasAutomaticGainControlLevelDb = random.nextBoolean();
+        record.automaticGainControlLevelDb = (random.nextInt(2000) - 1000) / 100.0;
+        return record;
+    }
+
+    /**
+     * The Raw line as FileLogger wrote it with {@code String.format} before the encoder
+     */
+    static String formatRaw(RawRecord r) {
+        String clockStream = String.format(
+                "Raw,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
+                r.elapsedRealtimeMillis,
+                r.timeNanos,
+                r.hasLeapSecond ? r.leapSecond : "",
+                r.hasTimeUncertaintyNanos ? r.timeUncertaintyNanos : "",
+                r.fullBiasNanos,
+                r.hasBiasNanos ? r.biasNanos : "",
+                r.hasBiasUncertaintyNanos ? r.biasUncertaintyNanos : "",
+                r.hasDriftNanosPerSecond ? r.driftNanosPerSecond : "",
+                r.hasDriftUncertaintyNanosPerSecond ? r.driftUncertaintyNanosPerSecond : "",
+                r.hardwareClockDiscontinuityCount + ",");
+        String measurementStream = String.format(
+                "%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
+                r.svid,
+                r.timeOffsetNanos,
+                r.state,
+                r.receivedSvTimeNanos,
+                r.receivedSvTimeUncertaintyNanos,
+                r.cn0DbHz,
+                r.pseudorangeRateMetersPerSecond,
+                r.pseudorangeRateUncertaintyMetersPerSecond,
+                r.accumulatedDeltaRangeState,
+                r.accumulatedDeltaRangeMeters,
+                r.accumulatedDeltaRangeUncertaintyMeters,
+                r.hasCarrierFrequencyHz ? r.carrierFrequencyHz : "",
+                r.hasCarrierCycles ? r.carrierCycles : "",
+                r.hasCarrierPhase ? r.carrierPhase : "",
+                r.hasCarrierPhaseUncertainty ? r.carrierPhaseUncertainty : "",
+                r.multipathIndicator,
+                r.hasSnrInDb ? r.snrInDb : "",
+                r.constellationType,
+                r.hasAutomaticGainControlLevelDb ? r.automaticGainControlLevelDb : "");
+        return clockStream + measurementStream + "\n";
+    }
+}
@@ -0,0 +1,84 @@
+package cn.byyddyh.spoofingdetection.aggregation;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CellGridTest {
+
+    private static final double CELL_METERS = 2000.0;
+    private static final double MARGIN_METERS = 500.0;
+
+    private final CellGrid mGrid = new CellGrid(CELL_METERS, MARGIN_METERS);
+    private final long[] mCells = new long[CellGrid.MAX_NEIGHBOURS];
+
+    @Test
+    public void devicesAcrossABorder_visitEachOthersCell() {
+        // One metre apart on either side of the x = -2,148,000 m border
+        double[] first = {-2148000.5, 4426641.0, 4044656.0};
+        double[] second = {-2147999.5, 4426641.0, 4044656.0};
+        long firstCell = mGrid.cellKey(first);
+        long secondCell = mGrid.cellKey(second);
+        assertTrue(firstCell != secondCell);
+        assertTrue(mGrid.isGuest(secondCell, firstCell, first));
+        assertTrue(mGrid.isGuest(firstCell, secondCell, second));
+        assertEquals(1, mGrid.guestCells(firstCell, first, mCells));
+        assertEquals(secondCell, mCells[0]);
+    }
+
+    @Test
+    public void cellCenter_hasNoGuestCells() {
+        double[] center = {-2149000.0, 4427000.0, 4045000.0};
+        assertEquals(0, mGrid.guestCells(mGrid.cellKey(center), center, mCells));
+    }
+
+    @Test
+    public void cellCorner_visitsSevenCells() {
+        double[] corner = {-2148000.1, 4428000.1, 4046000.1};
+        assertEquals(7, mGrid.guestCells(mGrid.cellKey(corner), corner, mCells));
+    }
+
+    @Test
+    public void farHomeCell_hasNoGuestCells() {
+        // A device that left its home cell is not a guest of the home's neighbours
+        double[] home = {-2149000.0, 4427000.0, 4045000.0};
+        double[] position = {-2139000.0, 4427000.0, 4045000.0};
+        long homeCell = mGrid.cellKey(home);
+        assertEquals(0, mGrid.guestCells(homeCell, position, mCells));
+        assertFalse(mGrid.isGuest(mGrid.cellKey(position), homeCell, position));
+    }
+
+    @Test
+    public void guestCells_matchIsGuest() {
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            double[] position = {(random.nextDouble() - 0.5) * 1.3e7,
+                    (random.nextDouble() - 0.5) * 1.3e7, (random.nextDouble() - 0.5) * 1.3e7};
+            long homeCell = mGrid.cellKey(position);
+            int count = mGrid.guestCells(homeCell, position, mCells);
+            int guests = 0;
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dz = -1; dz <= 1; dz++) {
+                        double[] neighbour = {position[0] + dx * CELL_METERS,
+                                position[1] + dy * CELL_METERS, position[2] + dz * CELL_METERS};
+                        if (mGrid.isGuest(mGrid.cellKey(neighbour), homeCell, position)) {
+                            guests++;
+                        }
+                    }
+                }
+            }
+            assertEquals(guests, count);
+            for (int j = 0; j < count; j++) {
+                assertTrue(mGrid.isGuest(mCells[j], homeCell, position));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void marginLargerThanCell_isRejected() {
+        new CellGrid(100.0, 200.0);
+    }
+}
@@ -0,0 +1,84 @@
+package cn.byyddyh.spoofingdetection.matrix;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.util.Random;
+
+import cn.byyddyh.spoofingdetection.Benchmark;
+
+import static cn.byyddyh.spoofingdetection.Benchmark.variant;
+
+/**
+ * Time of the operations the positioning and fusion code moved from commons-math to this package:
+ * the 4 x 4 product and inverse of the normal matrices, and the 6 x 6 product and symmetric
+ * positive definite inverse of the Kalman filter. Run {@code main} on the host JVM, see
+ * {@link Benchmark} for the arguments.
+ */
+public class MatrixBenchmark {
+
+    public static void main(String[] args) {
+        Benchmark benchmark = Benchmark.fromArgs(args, 200000);
+        Random random = new Random(42);
+
+        final double[] a4 = spd(random, 4);
+        final double[] b4 = spd(random, 4);
+        final double[] out4 = new double[16];
+        final RealMatrix ra4 = real(4, a4);
+        final RealMatrix rb4 = real(4, b4);
+        final double[] a6 = spd(random, 6);
+        final double[] b6 = spd(random, 6);
+        final double[] u6 = new double[36];
+        final double[] out6 = new double[36];
+        final RealMatrix ra6 = real(6, a6);
+        final RealMatrix rb6 = real(6, b6);
+
+        benchmark.run("4x4 multiply",
+                variant("commons-math", () -> ra4.multiply(rb4).getEntry(0, 0)),
+                variant("matrix", () -> {
+                    Matrix4.multiply(a4, b4, out4);
+                    return out4[0];
+                }));
+        benchmark.run("4x4 inverse",
+                variant("commons-math",
+                        () -> new LUDecomposition(ra4).getSolver().getInverse().getEntry(0, 0)),
+                variant("matrix", () -> {
+                    Matrix4.invert(a4, out4);
+                    return out4[0];
+                }));
+        benchmark.run("6x6 multiply",
+                variant("commons-math", () -> ra6.multiply(rb6).getEntry(0, 0)),
+                variant("matrix", () -> {
+                    SmallMatrix.multiply(6, a6, b6, out6);
+                    return out6[0];
+                }));
+        benchmark.run("6x6 SPD inverse",
+                variant("commons-math",
+                        () -> new LUDecomposition(ra6).getSolver().getInverse().getEntry(0, 0)),
+                variant("matrix", () -> {
+                    System.arraycopy(a6, 0, u6, 0, 36);
+                    SmallMatrix.cholesky(6, u6);
+                    SmallMatrix.choleskyInverse(6, u6, out6);
+                    return out6[0];
+                }));
+    }
+
+    /** Symmetric positive definite, {@code a a' + n I} */
+    private static double[] spd(Random random, int n) {
+        double[] a = new double[n * n];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = 2 * random.nextDouble() - 1;
+        }
+        double[] p = new double[n * n];
+        SmallMatrix.multiplyTransposed(n, a, a, p);
+        for (int i = 0; i < n; i++) {
+            p[(n + 1) * i] += n;
+        }
+        return p;
+    }
+
+    private static RealMatrix real(int n, double[] a) {
+        return new Array2DRowRealMatrix(SmallMatrix.toRows(n, a), false);
+    }
+}
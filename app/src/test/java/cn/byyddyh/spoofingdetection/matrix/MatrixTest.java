@@ -0,0 +1,274 @@
+package cn.byyddyh.spoofingdetection.matrix;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.CholeskyDecomposition;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link Matrix3}, {@link Matrix4} and {@link SmallMatrix} with commons-math on seeded
+ * random matrices
+ */
+public class MatrixTest {
+
+    private static final int TRIALS = 200;
+    /** Relative to the larger of 1 and the expected entry */
+    private static final double TOLERANCE = 1e-12;
+    /** Sizes of SmallMatrix in use: the Kalman filter and position, velocity and clock */
+    private static final int[] SMALL_SIZES = {2, 6, 8};
+
+    private final Random mRandom = new Random(1);
+
+    @Test
+    public void matrix3_matchesCommonsMath() {
+        for (int trial = 0; trial < TRIALS; trial++) {
+            double[] a = random(3);
+            double[] b = random(3);
+            double[] x = random(1, 3);
+            double[] out = new double[9];
+            RealMatrix ra = real(3, a);
+            RealMatrix rb = real(3, b);
+
+            Matrix3.multiply(a, b, out);
+            assertClose(ra.multiply(rb), out);
+            Matrix3.transposeMultiply(a, b, out);
+            assertClose(ra.transpose().multiply(rb), out);
+            Matrix3.multiplyTransposed(a, b, out);
+            assertClose(ra.multiply(rb.transpose()), out);
+            double[] y = new double[3];
+            Matrix3.multiplyVector(a, x, y);
+            assertClose(ra.operate(x), y);
+
+            double[] p = spd(3);
+            Matrix3.rotateSymmetric(a, p, out);
+            assertClose(ra.multiply(real(3, p)).multiply(ra.transpose()), out);
+
+            assertTrue(Matrix3.invert(a, out));
+            assertClose(new LUDecomposition(ra).getSolver().getInverse(), out);
+
+            double[] u = p.clone();
+            assertTrue(Matrix3.cholesky(u));
+            assertClose(new CholeskyDecomposition(real(3, p)).getLT(), upper(3, u));
+        }
+    }
+
+    @Test
+    public void matrix4_matchesCommonsMath() {
+        for (int trial = 0; trial < TRIALS; trial++) {
+            double[] a = random(4);
+            double[] b = random(4);
+            double[] x = random(1, 4);
+            double[] out = new double[16];
+            RealMatrix ra = real(4, a);
+            RealMatrix rb = real(4, b);
+
+            Matrix4.multiply(a, b, out);
+            assertClose(ra.multiply(rb), out);
+            Matrix4.transposeMultiply(a, b, out);
+            assertClose(ra.transpose().multiply(rb), out);
+            Matrix4.multiplyTransposed(a, b, out);
+            assertClose(ra.multiply(rb.transpose()), out);
+            double[] y = new double[4];
+            Matrix4.multiplyVector(a, x, y);
+            assertClose(ra.operate(x), y);
+
+            assertTrue(Matrix4.invert(a, out));
+            assertClose(new LUDecomposition(ra).getSolver().getInverse(), out);
+
+            double[] p = spd(4);
+            RealMatrix rp = real(4, p);
+            double[] u = p.clone();
+            assertTrue(Matrix4.cholesky(u));
+            assertClose(new CholeskyDecomposition(rp).getLT(), upper(4, u));
+            Matrix4.choleskySolve(u, x, y);
+            assertClose(new LUDecomposition(rp).getSolver().solve(new ArrayRealVector(x)).toArray(), y);
+            Matrix4.choleskyInverse(u, out);
+            assertClose(new LUDecomposition(rp).getSolver().getInverse(), out);
+        }
+    }
+
+    @Test
+    public void matrix4_rankOneUpdates() {
+        for (int trial = 0; trial < TRIALS; trial++) {
+            double[] p = spd(4);
+            double[] v = random(1, 6);
+            double weight = 0.1 + mRandom.nextDouble();
+            RealMatrix x = new Array2DRowRealMatrix(Arrays.copyOfRange(v, 2, 6));
+            RealMatrix expected = real(4, p).add(x.multiply(x.transpose()).scalarMultiply(weight));
+
+            double[] c = p.clone();
+            Matrix4.rankOneUpdate(c, v, 2, weight);
+            assertClose(upper(expected), upper(4, c));
+
+            // Factor of p + w x x', then back to p
+            double[] u = p.clone();
+            assertTrue(Matrix4.cholesky(u));
+            double[] scaled = new double[4];
+            for (int i = 0; i < 4; i++) {
+                scaled[i] = Math.sqrt(weight) * v[2 + i];
+            }
+            assertTrue(Matrix4.choleskyUpdate(u, scaled.clone(), 1.0));
+            assertClose(new CholeskyDecomposition(expected).getLT(), upper(4, u));
+            assertTrue(Matrix4.choleskyUpdate(u, scaled, -1.0));
+            assertClose(new CholeskyDecomposition(real(4, p)).getLT(), upper(4, u));
+        }
+    }
+
+    @Test
+    public void smallMatrix_matchesCommonsMath() {
+        for (int n : SMALL_SIZES) {
+            for (int trial = 0; trial < TRIALS; trial++) {
+                double[] a = random(n);
+                double[] b = random(n);
+                double[] x = random(1, n);
+                double[] out = new double[n * n];
+                RealMatrix ra = real(n, a);
+                RealMatrix rb = real(n, b);
+
+                SmallMatrix.multiply(n, a, b, out);
+                assertClose(ra.multiply(rb), out);
+                SmallMatrix.transposeMultiply(n, a, b, out);
+                assertClose(ra.transpose().multiply(rb), out);
+                SmallMatrix.multiplyTransposed(n, a, b, out);
+                assertClose(ra.multiply(rb.transpose()), out);
+                double[] y = new double[n];
+                SmallMatrix.multiplyVector(n, a, x, y);
+                assertClose(ra.operate(x), y);
+                SmallMatrix.add(n, a, b, out);
+                assertClose(ra.add(rb), out);
+                SmallMatrix.subtract(n, a, b, out);
+                assertClose(ra.subtract(rb), out);
+                SmallMatrix.setIdentity(n, out);
+                assertClose(MatrixUtils.createRealIdentityMatrix(n), out);
+
+                double[] p = spd(n);
+                RealMatrix rp = real(n, p);
+                double[] u = p.clone();
+                assertTrue(SmallMatrix.cholesky(n, u));
+                assertClose(new CholeskyDecomposition(rp).getLT(), upper(n, u));
+                SmallMatrix.choleskySolve(n, u, x, y);
+                assertClose(new LUDecomposition(rp).getSolver().solve(new ArrayRealVector(x)).toArray(), y);
+                SmallMatrix.choleskyInverse(n, u, out);
+                assertClose(new LUDecomposition(rp).getSolver().getInverse(), out);
+
+                // c += a' diag(w) a over k rows
+                int k = 1 + mRandom.nextInt(2 * n);
+                double[] rows = random(k, n);
+                double[] weights = random(1, k);
+                double[] c = p.clone();
+                SmallMatrix.symmetricRankUpdate(n, c, rows, k, weights);
+                double[][] rowArrays = new double[k][n];
+                for (int r = 0; r < k; r++) {
+                    System.arraycopy(rows, n * r, rowArrays[r], 0, n);
+                }
+                RealMatrix rr = new Array2DRowRealMatrix(rowArrays, false);
+                RealMatrix expected = rp.add(rr.transpose()
+                        .multiply(MatrixUtils.createRealDiagonalMatrix(weights)).multiply(rr));
+                assertClose(upper(expected), upper(n, c));
+            }
+        }
+    }
+
+    @Test
+    public void rows_roundTrip() {
+        double[] a = random(6);
+        double[][] rows = SmallMatrix.toRows(6, a);
+        assertClose(real(6, a), flat(new Array2DRowRealMatrix(rows)));
+        double[] copy = new double[36];
+        SmallMatrix.copyFromRows(rows, copy);
+        assertTrue(Arrays.equals(a, copy));
+    }
+
+    @Test
+    public void singularMatrices_areReported() {
+        double[] singular3 = {1, 2, 3, 2, 4, 6, 0, 1, 1};
+        double[] out3 = new double[9];
+        assertFalse(Matrix3.invert(singular3, out3));
+        assertTrue(Arrays.equals(new double[9], out3));
+        assertFalse(Matrix3.cholesky(new double[]{1, 2, 0, 2, 1, 0, 0, 0, 1}));
+
+        double[] singular4 = new double[16];
+        double[] out4 = new double[16];
+        assertFalse(Matrix4.invert(singular4, out4));
+        assertFalse(Matrix4.cholesky(singular4.clone()));
+        assertFalse(SmallMatrix.cholesky(4, singular4.clone()));
+
+        // Downdating the only row of a rank-one matrix cannot stay positive definite
+        double[] p = spd(4);
+        double[] u = p.clone();
+        assertTrue(Matrix4.cholesky(u));
+        double[] x = {100, 0, 0, 0};
+        assertFalse(Matrix4.choleskyUpdate(u, x, -1.0));
+    }
+
+    /** {@code rows x columns} entries in [-1, 1) */
+    private double[] random(int rows, int columns) {
+        double[] a = new double[rows * columns];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = 2 * mRandom.nextDouble() - 1;
+        }
+        return a;
+    }
+
+    private double[] random(int n) {
+        return random(n, n);
+    }
+
+    /** Symmetric positive definite, {@code a a' + n I} */
+    private double[] spd(int n) {
+        double[] a = random(n);
+        double[] p = new double[n * n];
+        SmallMatrix.multiplyTransposed(n, a, a, p);
+        for (int i = 0; i < n; i++) {
+            p[(n + 1) * i] += n;
+        }
+        return p;
+    }
+
+    private static RealMatrix real(int n, double[] a) {
+        return new Array2DRowRealMatrix(SmallMatrix.toRows(n, a), false);
+    }
+
+    private static double[] flat(RealMatrix m) {
+        int n = m.getRowDimension();
+        double[] a = new double[n * n];
+        SmallMatrix.copyFromRows(m.getData(), a);
+        return a;
+    }
+
+    /** Upper triangle of {@code a}, zeros below */
+    private static double[] upper(int n, double[] a) {
+        double[] u = new double[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                u[n * i + j] = a[n * i + j];
+            }
+        }
+        return u;
+    }
+
+    private static RealMatrix upper(RealMatrix m) {
+        int n = m.getRowDimension();
+        return real(n, upper(n, flat(m)));
+    }
+
+    private static void assertClose(RealMatrix expected, double[] actual) {
+        assertClose(flat(expected), actual);
+    }
+
+    private static void assertClose(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("entry " + i, expected[i], actual[i],
+                    TOLERANCE * Math.max(1.0, Math.abs(expected[i])));
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package cn.byyddyh.spoofingdetection.process.dataProcess;
+
+import cn.byyddyh.spoofingdetection.Benchmark;
+import cn.byyddyh.spoofingdetection.process.dataModel.GNSSGpsEph;
+import cn.byyddyh.spoofingdetection.process.dataModel.GNSSMeas;
+
+import static cn.byyddyh.spoofingdetection.Benchmark.variant;
+
+/**
+ * Time per epoch of {@link GNSSPosition#gpsWlsPvt} on {@link WlsPvtFixture}. Run {@code main} on
+ * the host JVM, see {@link Benchmark} for the arguments.
+ *
+ * <p>Only the {@code gpsWlsPvt(GNSSMeas, GNSSGpsEph)} entry point and the data model are used,
+ * which the implementation before {@link WlsPvtEngine} had as well, so this class and the fixture
+ * time either version of the tree.
+ */
+public class WlsPvtBenchmark {
+
+    public static void main(String[] args) {
+        Benchmark benchmark = Benchmark.fromArgs(args, 2000);
+        final GNSSGpsEph eph = WlsPvtFixture.ephemerides();
+        final GNSSMeas meas = WlsPvtFixture.measurements(0, WlsPvtFixture.EPOCHS);
+
+        benchmark.run("WLS PVT per epoch", WlsPvtFixture.EPOCHS,
+                variant("gpsWlsPvt", () -> GNSSPosition.gpsWlsPvt(meas, eph).allLlaDegDegM.size()));
+    }
+}
@@ -0,0 +1,85 @@
+package cn.byyddyh.spoofingdetection.process.dataProcess;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import cn.byyddyh.spoofingdetection.process.dataModel.GNSSGpsEph;
+import cn.byyddyh.spoofingdetection.process.dataModel.GNSSMeas;
+import cn.byyddyh.spoofingdetection.process.dataModel.GpsPvt;
+
+import static org.junit.Assert.*;
+
+/**
+ * Regression test of {@link WlsPvtEngine} and {@link GNSSPosition#solveEpoch} against the states
+ * the previous GNSSPosition computed on {@link WlsPvtFixture}
+ */
+public class WlsPvtEngineTest {
+
+    /* The engine differs from the old code in rounding and in the analytic satellite velocity */
+    private static final double POSITION_TOLERANCE_M = 1e-4;
+    private static final double VELOCITY_TOLERANCE_MPS = 1e-5;
+
+    private final GNSSGpsEph mEph = WlsPvtFixture.ephemerides();
+
+    @Test
+    public void solveEpoch_matchesOldGnssPosition() {
+        GNSSMeas meas = WlsPvtFixture.measurements(0, WlsPvtFixture.EPOCHS);
+        WlsPvtEngine engine = new WlsPvtEngine();
+        GpsPvt pvt = new GpsPvt();
+        double[] xo = new double[8];
+        for (int k = 0; k < WlsPvtFixture.EPOCHS; k++) {
+            assertTrue(GNSSPosition.solveEpoch(engine, meas, k, WlsPvtFixture.WEEK, mEph, xo, pvt));
+            assertState("epoch " + k, WlsPvtFixture.EXPECTED_STATES[k], xo);
+
+            assertEquals(WlsPvtFixture.SVIDS.length, (int) pvt.numSvs.get(k));
+            assertEquals(xo[3], pvt.allBcMeters.get(k), 0.0);
+            assertEquals(xo[7], pvt.allBcDotMps.get(k), 0.0);
+            // The NED velocity is a rotation of the ECEF one
+            Double[] vNed = pvt.allVelMps.get(k);
+            assertEquals(Math.sqrt(xo[4] * xo[4] + xo[5] * xo[5] + xo[6] * xo[6]),
+                    Math.sqrt(vNed[0] * vNed[0] + vNed[1] * vNed[1] + vNed[2] * vNed[2]), 1e-12);
+            Double[] lla = pvt.allLlaDegDegM.get(k);
+            assertEquals(39.6, lla[0], 0.1);
+            assertEquals(116.0, lla[1], 0.5);
+        }
+    }
+
+    @Test
+    public void solve_fromPreviousEpochMatchesColdStart() {
+        // Epoch 3 alone, from the state the old code had after epoch 2
+        double[] xo = WlsPvtFixture.EXPECTED_STATES[2].clone();
+        GNSSMeas meas = WlsPvtFixture.measurements(3, 4);
+        WlsPvtEngine engine = new WlsPvtEngine();
+        assertTrue(GNSSPosition.solveEpoch(engine, meas, 0, WlsPvtFixture.WEEK, mEph, xo, new GpsPvt()));
+        assertState("epoch 3", WlsPvtFixture.EXPECTED_STATES[3], xo);
+    }
+
+    @Test
+    public void solve_withoutEnoughSatellitesLeavesStateUnchanged() {
+        GNSSMeas meas = WlsPvtFixture.measurements(0, 1);
+        WlsPvtEngine engine = new WlsPvtEngine();
+        engine.beginEpoch();
+        for (int j = 0; j < 3; j++) {
+            engine.addMeasurement(meas.Svid.get(j), meas.tRxSeconds.get(0)[j].doubleValue(),
+                    meas.PrM.get(0)[j].doubleValue(), meas.PrSigmaM.get(0)[j],
+                    meas.PrrMps.get(0)[j], meas.PrrSigmaMps.get(0)[j]);
+        }
+        // Satellites without an ephemeris do not count either
+        engine.addMeasurement(33, meas.tRxSeconds.get(0)[3].doubleValue(),
+                meas.PrM.get(0)[3].doubleValue(), 3.0, 0.0, 0.1);
+        double[] xo = WlsPvtFixture.EXPECTED_STATES[0].clone();
+        assertEquals(0, engine.solve(mEph, WlsPvtFixture.WEEK,
+                meas.FctSeconds.get(0).doubleValue(), xo));
+        assertTrue(Arrays.equals(WlsPvtFixture.EXPECTED_STATES[0], xo));
+    }
+
+    private static void assertState(String message, double[] expected, double[] actual) {
+        for (int i = 0; i < 4; i++) {
+            assertEquals(message + " state " + i, expected[i], actual[i], POSITION_TOLERANCE_M);
+        }
+        for (int i = 4; i < 8; i++) {
+            assertEquals(message + " state " + i, expected[i], actual[i], VELOCITY_TOLERANCE_MPS);
+        }
+    }
+}
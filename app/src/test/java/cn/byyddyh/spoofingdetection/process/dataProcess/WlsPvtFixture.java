@@ -0,0 +1,159 @@
+package cn.byyddyh.spoofingdetection.process.dataProcess;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import cn.byyddyh.spoofingdetection.process.dataModel.GNSSGpsEph;
+import cn.byyddyh.spoofingdetection.process.dataModel.GNSSMeas;
+import cn.byyddyh.spoofingdetection.process.utils.GpsConstants;
+
+/**
+ * Fixed GPS scenario for the WLS PVT: 32 synthetic ephemerides, a receiver near 39.6N 116E moving
+ * at (1.5, -2.0, 0.7) m/s in ECEF with a clock bias of 12345 m drifting at -35 m/s, and 5 epochs of
+ * the 11 satellites above -5 degrees with Gaussian noise of the stated sigmas.
+ *
+ * <p>{@link #EXPECTED_STATES} are the ECEF states {@code [x, y, z, bc, vx, vy, vz, bcDot]} the
+ * {@code GNSSPosition} before {@link WlsPvtEngine} computed for the epochs one after the other,
+ * starting from the center of the Earth.
+ */
+final class WlsPvtFixture {
+
+    static final long WEEK = 2200;
+    static final int TOE = 345600;
+    static final int EPOCHS = 5;
+
+    static final int[] SVIDS = {2, 3, 9, 13, 14, 15, 19, 20, 25, 26, 32};
+
+    static final double[][] PSEUDORANGES_M = {
+            {2.584307223470873E7, 2.1275442163199324E7, 2.120240602204675E7, 2.522997269123775E7,
+                    2.4710943360336196E7, 2.1697429600786746E7, 2.5708030131749418E7,
+                    2.4311348451771684E7, 2.5265399197391458E7, 2.4094855811205115E7,
+                    2.5671933406899147E7},
+            {2.5843525290103905E7, 2.1275868526978638E7, 2.1202838080705624E7, 2.522955441996919E7,
+                    2.4711422580852836E7, 2.1697940133779757E7, 2.5707510055963363E7,
+                    2.4311738592198845E7, 2.5265072541157793E7, 2.4095289082489904E7,
+                    2.5671651420358874E7},
+            {2.5844016183952685E7, 2.1276244467204344E7, 2.1203277285695456E7, 2.522915410201752E7,
+                    2.4711907176565215E7, 2.169843621921651E7, 2.5706994152023327E7,
+                    2.4312210978962976E7, 2.5264785515906066E7, 2.4095722939711634E7,
+                    2.5671362111888934E7},
+            {2.5844453974381085E7, 2.1276639285834566E7, 2.120371499112998E7, 2.522871992778438E7,
+                    2.4712377615246717E7, 2.1698922497208737E7, 2.570648922559587E7,
+                    2.431264222625829E7, 2.5264475474249687E7, 2.4096157225011513E7,
+                    2.567107161807823E7},
+            {2.5844911624683414E7, 2.127705771438981E7, 2.1204143771127038E7, 2.5228217859496586E7,
+                    2.4712867889788546E7, 2.169943550276542E7, 2.5705958807938915E7,
+                    2.4313045910341468E7, 2.5264188754696243E7, 2.4096592634703886E7,
+                    2.567076807339477E7},
+    };
+
+    static final double[][] PSEUDORANGE_RATES_MPS = {
+            {466.2184503429949, 396.74897934391754, 432.81854150170005, -444.59098988442787,
+                    479.0839479080171, 501.3959961799681, -516.7101342808487, 432.8431171823982,
+                    -300.5203924240509, 434.3924459198006, -296.85166707036234},
+            {466.02804448889907, 396.6822975129274, 433.4612417689558, -444.68951162618663,
+                    478.73532507015443, 502.2864809942291, -516.5966344165874, 432.5622997286164,
+                    -300.506269677765, 434.59347046842225, -297.1612865057601},
+            {465.68142276020166, 396.59442867043964, 433.34443441719213, -444.3082611067359,
+                    479.3145144640525, 501.55983095891105, -516.5666291325143, 432.82622142846355,
+                    -300.3165584962489, 434.69836121028317, -296.9946103541303},
+            {466.28460331140184, 397.36323474908943, 433.5665431957351, -444.5116242860553,
+                    479.0990500352475, 501.95576747329335, -516.7839263470048, 432.98897395883216,
+                    -300.16388773166574, 434.82735126393624, -297.1909334982988},
+            {465.8961418637014, 397.4832905294126, 433.68392588075807, -444.4210901341892,
+                    479.43745622348024, 501.95202093447614, -516.6031944783631, 433.0286841789546,
+                    -300.40847229769275, 434.4881881174705, -296.7474082856611},
+    };
+
+    static final double[][] EXPECTED_STATES = {
+            {-2148750.588531855, 4426640.690295811, 4044672.0478570806, 12340.613969059352,
+                    1.169983981143373, -1.6050284934108525, 0.7932148638314893, -34.856391019220894},
+            {-2148746.6834837287, 4426636.839967729, 4044660.099671114, 12304.707519294023,
+                    1.5459442902011966, -2.0443311931441177, 0.5920629420182074, -35.07572728114073},
+            {-2148745.256578518, 4426642.2098278515, 4044668.132420381, 12276.896659133941,
+                    1.374768365791056, -1.688187188778535, 0.8005825991776829, -34.88851091077961},
+            {-2148739.5611808044, 4426643.869695643, 4044657.574566433, 12245.482754720984,
+                    1.483872309797282, -2.0929873029583836, 0.5321105708149593, -34.97074820587505},
+            {-2148741.3413507654, 4426632.198616121, 4044653.891769332, 12202.532201851935,
+                    1.4381592859657926, -2.0160200347250097, 0.7988465882310365, -34.98566915763937},
+    };
+
+    private WlsPvtFixture() {
+    }
+
+    /**
+     * Ephemerides of PRN 1 to 32, all with the reference time {@link #TOE} of week {@link #WEEK}
+     */
+    static GNSSGpsEph ephemerides() {
+        GNSSGpsEph eph = new GNSSGpsEph();
+        Random random = new Random(7);
+        for (int prn = 1; prn <= 32; prn++) {
+            eph.PRN.add(prn);
+            eph.Toc.add(TOE);
+            eph.af0.add(new BigDecimal(1e-4 * (random.nextDouble() - 0.5)));
+            eph.af1.add(new BigDecimal(1e-11 * (random.nextDouble() - 0.5)));
+            eph.af2.add(BigDecimal.ZERO);
+            eph.IODE.add(1);
+            eph.Crs.add(60 * (random.nextDouble() - 0.5));
+            eph.Delta_n.add(new BigDecimal(4.5e-9));
+            eph.M0.add(2 * Math.PI * random.nextDouble() - Math.PI);
+            eph.Cuc.add(new BigDecimal(2e-6 * (random.nextDouble() - 0.5)));
+            eph.e.add(0.002 + 0.015 * random.nextDouble());
+            eph.Cus.add(new BigDecimal(1e-5 * (random.nextDouble() - 0.5)));
+            eph.Asqrt.add(new BigDecimal(5153.6 + random.nextDouble()));
+            eph.Toe.add(TOE);
+            eph.Cic.add(new BigDecimal(2e-7 * (random.nextDouble() - 0.5)));
+            eph.OMEGA.add(((prn - 1) % 6) * Math.PI / 3 - Math.PI + 0.1);
+            eph.Cis.add(new BigDecimal(2e-7 * (random.nextDouble() - 0.5)));
+            eph.i0.add(0.96 + 0.02 * random.nextDouble());
+            eph.Crc.add(200 + 100 * random.nextDouble());
+            eph.omega.add(2 * Math.PI * random.nextDouble() - Math.PI);
+            eph.OMEGA_DOT.add(new BigDecimal(-8e-9));
+            eph.IDOT.add(new BigDecimal(1e-10));
+            eph.codeL2.add(1);
+            eph.GPS_Week.add((int) WEEK);
+            eph.L2Pdata.add(0);
+            eph.accuracy.add(2.0);
+            eph.health.add(0);
+            eph.TGD.add(new BigDecimal(-1e-8 * random.nextDouble()));
+            eph.IODC.add(1);
+            eph.ttx.add(TOE - 30);
+            eph.Fit_interval.add(0);
+        }
+        return eph;
+    }
+
+    /**
+     * Epochs {@code from} to {@code to - 1} as the rows of one {@link GNSSMeas}
+     */
+    static GNSSMeas measurements(int from, int to) {
+        GNSSMeas meas = new GNSSMeas();
+        for (int svid : SVIDS) {
+            meas.Svid.add(svid);
+        }
+        int n = SVIDS.length;
+        for (int k = from; k < to; k++) {
+            double tRxSeconds = TOE + 10 + k;
+            meas.FctSeconds.add(new BigDecimal(WEEK * GpsConstants.WEEKSEC + tRxSeconds));
+            BigDecimal[] tRx = new BigDecimal[n];
+            BigDecimal[] pr = new BigDecimal[n];
+            Double[] prSigma = new Double[n];
+            Double[] prr = new Double[n];
+            Double[] prrSigma = new Double[n];
+            for (int j = 0; j < n; j++) {
+                int i = SVIDS[j] - 1;
+                tRx[j] = new BigDecimal(tRxSeconds);
+                pr[j] = new BigDecimal(PSEUDORANGES_M[k][j]);
+                prSigma[j] = 3.0 + 4 * ((i * 7) % 5);
+                prr[j] = PSEUDORANGE_RATES_MPS[k][j];
+                prrSigma[j] = 0.1 + 0.1 * (i % 3);
+            }
+            meas.tRxSeconds.add(tRx);
+            meas.PrM.add(pr);
+            meas.PrSigmaM.add(prSigma);
+            meas.PrrMps.add(prr);
+            meas.PrrSigmaMps.add(prrSigma);
+        }
+        return meas;
+    }
+}
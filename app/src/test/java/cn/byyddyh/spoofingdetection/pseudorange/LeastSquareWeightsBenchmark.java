@@ -0,0 +1,39 @@
+package cn.byyddyh.spoofingdetection.pseudorange;
+
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.util.Random;
+
+import cn.byyddyh.spoofingdetection.Benchmark;
+
+import static cn.byyddyh.spoofingdetection.Benchmark.variant;
+
+/**
+ * Time of one weighted position correction, from the covariance to {@code H G'W z}, with the dense
+ * LU formulas and with {@link LeastSquareWeights}, for 8, 16 and 32 satellites. Run {@code main} on
+ * the host JVM, see {@link Benchmark} for the arguments.
+ */
+public class LeastSquareWeightsBenchmark {
+
+    private static final double DETERMINANT_TOLERANCE = 0.0000000001;
+    private static final int[] SATELLITE_COUNTS = {8, 16, 32};
+
+    public static void main(String[] args) {
+        Benchmark benchmark = Benchmark.fromArgs(args, 20000);
+        Random random = new Random(42);
+        for (int n : SATELLITE_COUNTS) {
+            final double[][] geometry = LeastSquareWeightsTest.randomGeometry(random, n);
+            final double[][] covariance = LeastSquareWeightsTest.diagonalCovariance(random, n);
+            final double[] residuals = LeastSquareWeightsTest.randomResiduals(random, n);
+
+            benchmark.run(n + " satellites",
+                    variant("dense", () -> {
+                        RealMatrix weights = LeastSquareWeightsTest.denseWeights(covariance);
+                        return LeastSquareWeightsTest.denseSolve(weights, geometry, residuals)[0];
+                    }),
+                    variant("diagonal", () -> LeastSquareWeights
+                            .fromCovariance(covariance, DETERMINANT_TOLERANCE)
+                            .solve(geometry, residuals)[0]));
+        }
+    }
+}
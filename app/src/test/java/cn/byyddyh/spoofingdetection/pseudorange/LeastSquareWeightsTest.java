@@ -0,0 +1,145 @@
+package cn.byyddyh.spoofingdetection.pseudorange;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularMatrixException;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link LeastSquareWeights} with the dense formulas of the weighted least square it
+ * replaced: {@code W} the LU inverse of the covariance, {@code H = (G'WG)^-1} and the correction
+ * {@code H G'W z}.
+ */
+public class LeastSquareWeightsTest {
+
+    /** Relative, on the entries of H */
+    private static final double TOLERANCE = 1e-9;
+    /** Meters, poorly conditioned geometries of 4 or 5 satellites lose a few more digits */
+    private static final double CORRECTION_TOLERANCE_M = 1e-6;
+    /** As in {@link UserPositionVelocityWeightedLeastSquare} */
+    private static final double DETERMINANT_TOLERANCE = 0.0000000001;
+
+    @Test
+    public void diagonalCovariance_matchesDenseFormulas() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 500; trial++) {
+            int n = 4 + random.nextInt(29);
+            double[][] geometry = randomGeometry(random, n);
+            double[][] covariance = diagonalCovariance(random, n);
+            double[] residuals = randomResiduals(random, n);
+
+            LeastSquareWeights weights =
+                    LeastSquareWeights.fromCovariance(covariance, DETERMINANT_TOLERANCE);
+            assertNotNull(weights);
+            assertNotNull(weights.getDiagonal());
+            RealMatrix denseWeights = denseWeights(covariance);
+            assertMatrixEquals(denseH(denseWeights, geometry).getData(),
+                    weights.calculateHMatrix(geometry).getData());
+            assertArrayEquals(denseSolve(denseWeights, geometry, residuals),
+                    weights.solve(geometry, residuals), CORRECTION_TOLERANCE_M);
+        }
+    }
+
+    @Test
+    public void correlatedCovariance_keepsDenseWeights() {
+        Random random = new Random(2);
+        int n = 8;
+        double[][] geometry = randomGeometry(random, n);
+        double[][] covariance = diagonalCovariance(random, n);
+        covariance[0][1] = covariance[1][0] = 0.5 * Math.sqrt(covariance[0][0] * covariance[1][1]);
+        double[] residuals = randomResiduals(random, n);
+
+        LeastSquareWeights weights =
+                LeastSquareWeights.fromCovariance(covariance, DETERMINANT_TOLERANCE);
+        assertNotNull(weights);
+        assertNull(weights.getDiagonal());
+        RealMatrix denseWeights = denseWeights(covariance);
+        assertMatrixEquals(denseH(denseWeights, geometry).getData(),
+                weights.calculateHMatrix(geometry).getData());
+        assertArrayEquals(denseSolve(denseWeights, geometry, residuals),
+                weights.solve(geometry, residuals), CORRECTION_TOLERANCE_M);
+    }
+
+    @Test
+    public void singularCovariance_returnsNull() {
+        double[][] covariance = {{1e-30, 0}, {0, 1e-30}};
+        assertNull(LeastSquareWeights.fromCovariance(covariance, DETERMINANT_TOLERANCE));
+    }
+
+    @Test(expected = SingularMatrixException.class)
+    public void singularGeometry_failsAsBefore() {
+        // Four satellites in the same direction do not determine the position
+        double[][] geometry = new double[4][];
+        for (int i = 0; i < 4; i++) {
+            geometry[i] = new double[]{0.6, 0.8, 0.0, 1.0};
+        }
+        LeastSquareWeights.fromDiagonal(new double[]{1, 1, 1, 1}).calculateHMatrix(geometry);
+    }
+
+    /**
+     * Rows {@code [unit line of sight, 1]} of satellites above the receiver's horizon
+     */
+    static double[][] randomGeometry(Random random, int n) {
+        double[][] geometry = new double[n][];
+        for (int i = 0; i < n; i++) {
+            double azimuth = 2 * Math.PI * random.nextDouble();
+            double elevation = Math.toRadians(5 + 85 * random.nextDouble());
+            geometry[i] = new double[]{
+                    -Math.cos(elevation) * Math.sin(azimuth),
+                    -Math.cos(elevation) * Math.cos(azimuth),
+                    -Math.sin(elevation),
+                    1.0};
+        }
+        return geometry;
+    }
+
+    static double[][] diagonalCovariance(Random random, int n) {
+        double[][] covariance = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            double sigma = 1 + 20 * random.nextDouble();
+            covariance[i][i] = sigma * sigma;
+        }
+        return covariance;
+    }
+
+    static double[] randomResiduals(Random random, int n) {
+        double[] residuals = new double[n];
+        for (int i = 0; i < n; i++) {
+            residuals[i] = 100 * random.nextGaussian();
+        }
+        return residuals;
+    }
+
+    static RealMatrix denseWeights(double[][] covariance) {
+        return new LUDecomposition(new Array2DRowRealMatrix(covariance)).getSolver().getInverse();
+    }
+
+    static RealMatrix denseH(RealMatrix weights, double[][] geometryMatrix) {
+        RealMatrix geometry = new Array2DRowRealMatrix(geometryMatrix);
+        RealMatrix normal = geometry.transpose().multiply(weights).multiply(geometry);
+        return new LUDecomposition(normal).getSolver().getInverse();
+    }
+
+    static double[] denseSolve(RealMatrix weights, double[][] geometryMatrix, double[] residuals) {
+        RealMatrix geometry = new Array2DRowRealMatrix(geometryMatrix);
+        RealMatrix weightedGeometryMatrix =
+                denseH(weights, geometryMatrix).multiply(geometry.transpose()).multiply(weights);
+        return GpsMathOperations.matrixByColVectMultiplication(weightedGeometryMatrix.getData(),
+                residuals);
+    }
+
+    private static void assertMatrixEquals(double[][] expected, double[][] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            for (int j = 0; j < expected[i].length; j++) {
+                assertEquals(expected[i][j], actual[i][j],
+                        TOLERANCE * Math.max(1.0, Math.abs(expected[i][j])));
+            }
+        }
+    }
+}